@@ -0,0 +1,109 @@
+package bns.testcarl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Files written for the benchmarks, made of lines looking like source code: their content
+ * does not matter to the counting methods, but their lengths, line lengths and encodings do.
+ */
+public final class BenchmarkFiles {
+
+    /**
+     * Mixes of files whose lines are counted by the benchmarks.
+     */
+    public enum FileMix {
+        // Many small files, as most of the files of applications: the cost of opening them dominates
+        SMALL_ASCII,
+        // A few big files, whose lines are long and hold non-ASCII characters
+        LARGE_UTF8,
+        // Files of all sizes, with and without BOM, whose encodings are found or guessed differently
+        MIXED_ENCODINGS
+    }
+
+    private static final String[] LINE_SAMPLES = {
+            "    public static void main(String[] args) {",
+            "        // Compte les lignes des fichiers avec leur encodage",
+            "        return nbOfLines > 0 ? nbOfLines : -1;",
+            "}",
+            "",
+            "    SELECT id, nom, prénom FROM personnes WHERE âge >= 18;",
+    };
+
+    private BenchmarkFiles() {
+    }
+
+    /**
+     * @return the files of {@code fileMix}, written into {@code directory}.
+     */
+    static List<File> write(Path directory, FileMix fileMix) throws IOException {
+        Random random = new Random(17);
+        List<File> files = new ArrayList<>();
+        switch (fileMix) {
+            case SMALL_ASCII:
+                for (int n = 0; n != 2000; ++n) {
+                    files.add(write(directory.resolve("small" + n + ".java"), random, 1024 + random.nextInt(7 * 1024), StandardCharsets.US_ASCII, false, "\n"));
+                }
+                break;
+            case LARGE_UTF8:
+                for (int n = 0; n != 8; ++n) {
+                    files.add(write(directory.resolve("large" + n + ".sql"), random, 8 << 20, StandardCharsets.UTF_8, false, "\r\n"));
+                }
+                break;
+            case MIXED_ENCODINGS:
+                Charset[] charsets = { StandardCharsets.US_ASCII, StandardCharsets.UTF_8, StandardCharsets.ISO_8859_1, StandardCharsets.UTF_16LE, StandardCharsets.UTF_16BE };
+                for (int n = 0; n != 500; ++n) {
+                    Charset charset = charsets[n % charsets.length];
+                    // Lengths from 1 KB to 1 MB, most files being small
+                    int length = 1024 << random.nextInt(random.nextInt(11) + 1);
+                    boolean withBom = charset.name().startsWith("UTF") && random.nextBoolean();
+                    files.add(write(directory.resolve("mixed" + n + ".txt"), random, length, charset, withBom, random.nextBoolean() ? "\n" : "\r\n"));
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown file mix " + fileMix);
+        }
+        return files;
+    }
+
+    /**
+     * @return the file written at {@code path}, whose length is about {@code length} bytes.
+     */
+    static File write(Path path, Random random, int length, Charset charset, boolean withBom, String lineSeparator) throws IOException {
+        StringBuilder content = new StringBuilder(length);
+        if (withBom) {
+            content.append('\ufeff');
+        }
+        while (content.length() < length / charset.newEncoder().averageBytesPerChar()) {
+            String line = LINE_SAMPLES[random.nextInt(LINE_SAMPLES.length)];
+            content.append(charset.newEncoder().canEncode(line) ? line : line.replaceAll("[^\\x00-\\x7F]", "e")).append(lineSeparator);
+        }
+        Files.write(path, content.toString().getBytes(charset));
+        return path.toFile();
+    }
+
+    /**
+     * Deletes {@code directory} and its files.
+     */
+    static void delete(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> {
+                try {
+                    Files.delete(path);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+    }
+}
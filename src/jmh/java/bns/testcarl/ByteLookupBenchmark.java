@@ -0,0 +1,99 @@
+package bns.testcarl;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time taken by the static methods of LineCountUtils for counting the lines of a single
+ * UTF-8 file, for checking the claims about the size of the read buffer (4K being said
+ * faster than 2K and 8K), FileChannel vs FileInputStream, and memory-mapping vs reading,
+ * along with the cost of classifying the lines as blank, comment or code lines in the same pass.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class ByteLookupBenchmark {
+
+    @Param({"2048", "4096", "8192", "65536"})
+    private int fileReadBufferSize;
+
+    @Param({"8192", "1048576", "33554432"})
+    private int fileLength;
+
+    private Path directory;
+    private File file;
+
+    @Setup(Level.Trial)
+    public void writeFile() throws IOException {
+        directory = Files.createTempDirectory("byte-lookup-benchmark");
+        file = BenchmarkFiles.write(directory.resolve("benchmark.txt"), new Random(19), fileLength, StandardCharsets.UTF_8, false, "\n");
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFile() throws IOException {
+        BenchmarkFiles.delete(directory);
+    }
+
+    @Benchmark
+    public long byteLookup() throws IOException {
+        return LineCountUtils.countLinesWithByteLookup(file, fileReadBufferSize, 0);
+    }
+
+    @Benchmark
+    public long vectorizedByteLookup() throws IOException {
+        return LineCountUtils.countLinesWithVectorizedByteLookup(file, fileReadBufferSize, 0);
+    }
+
+    @Benchmark
+    public long byteLookupUsingFileChannel() throws IOException {
+        return LineCountUtils.countLinesWithByteLookupUsingFileChannel(file, fileReadBufferSize, 0, false);
+    }
+
+    @Benchmark
+    public long byteLookupUsingFileChannelAndDirectBuffer() throws IOException {
+        return LineCountUtils.countLinesWithByteLookupUsingFileChannel(file, fileReadBufferSize, 0, true);
+    }
+
+    // The read buffer size does not apply: the window is as big as the file (up to 64 MB)
+    @Benchmark
+    public long memoryMappedByteLookup() throws IOException {
+        return LineCountUtils.countLinesWithMemoryMappedByteLookup(file, 0, 64 << 20);
+    }
+
+    @Benchmark
+    public LineMetrics lineMetricsScan() throws IOException {
+        return LineMetricsScanner.scan(file, fileReadBufferSize, 0, StandardCharsets.UTF_8, CommentSyntax.C_LIKE);
+    }
+
+    @Benchmark
+    public long charLookup() throws IOException {
+        return LineCountUtils.countLinesWithCharLookup(file, fileReadBufferSize, 0, StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public long entireFileLoadedInMemory() throws IOException {
+        return LineCountUtils.countLinesWithEntireFileLoadedInMemory(file, fileReadBufferSize, 0, StandardCharsets.UTF_8);
+    }
+}
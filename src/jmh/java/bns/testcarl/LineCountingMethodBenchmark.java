@@ -0,0 +1,68 @@
+package bns.testcarl;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time taken by countCodeLines(...) for counting the lines of a mix of files with each
+ * {@link LineCountUtils.LineCountingMethod}, encoding detection and parallelism included.
+ * The files are read from the page cache once the 1st iteration has read them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class LineCountingMethodBenchmark {
+
+    // All the methods, the enum constants being taken by default
+    @Param
+    private LineCountUtils.LineCountingMethod lineCountingMethod;
+
+    @Param
+    private BenchmarkFiles.FileMix fileMix;
+
+    @Param({"false", "true"})
+    private boolean singlePassEncodingDetection;
+
+    private Path directory;
+    private List<File> files;
+
+    @Setup(Level.Trial)
+    public void writeFiles() throws IOException {
+        directory = Files.createTempDirectory("line-counting-benchmark");
+        files = BenchmarkFiles.write(directory, fileMix);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFiles() throws IOException {
+        BenchmarkFiles.delete(directory);
+    }
+
+    @Benchmark
+    public long countCodeLines() throws IOException {
+        LineCountUtils lineCountUtils = new LineCountUtils();
+        lineCountUtils.setLineCountingMethod(lineCountingMethod);
+        lineCountUtils.setSinglePassEncodingDetection(singlePassEncodingDetection);
+        return lineCountUtils.countCodeLines(files, null);
+    }
+}
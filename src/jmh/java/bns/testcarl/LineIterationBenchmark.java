@@ -0,0 +1,98 @@
+package bns.testcarl;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time taken, and bytes allocated (q.v. -prof gc), for iterating over the lines of a single
+ * UTF-8 file by LineSpanIterator, which gives access to their contents without allocating,
+ * compared with the readLine() of BufferedReader and the readLine() and hasNextLine() of
+ * CustomBufferedReader that it is meant to replace, and with the plain count of lines by
+ * countLinesWithCharLookup(...), which decodes the file as well but doesn't give the lines.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class LineIterationBenchmark {
+
+    @Param({"4096", "8192", "65536"})
+    private int fileReadBufferSize;
+
+    @Param({"8192", "1048576", "33554432"})
+    private int fileLength;
+
+    private Path directory;
+    private File file;
+
+    @Setup(Level.Trial)
+    public void writeFile() throws IOException {
+        directory = Files.createTempDirectory("line-iteration-benchmark");
+        file = BenchmarkFiles.write(directory.resolve("benchmark.txt"), new Random(23), fileLength, StandardCharsets.UTF_8, false, "\n");
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFile() throws IOException {
+        BenchmarkFiles.delete(directory);
+    }
+
+    // The chars of each line are summed, so that the iteration cannot be optimized away
+    @Benchmark
+    public long lineSpanIterator() throws IOException {
+        long nbOfChars = 0;
+        try (LineSpanIterator iterator = LineSpanIterator.open(file, 0, StandardCharsets.UTF_8, fileReadBufferSize, LineSpanIterator.LongLinePolicy.SPLIT)) {
+            while (iterator.nextLine()) {
+                nbOfChars += iterator.lineLength();
+            }
+        }
+        return nbOfChars;
+    }
+
+    // The BufferedReader-based methods use their own buffer of 8192 chars, whatever fileReadBufferSize
+    @Benchmark
+    public long genuineBufferedReaderReadLine() throws IOException {
+        return countLinesWithBufferedReader(LineCountUtils.LineCountingMethod.GENUINE_BUFFERED_READER_READLINE);
+    }
+
+    @Benchmark
+    public long customBufferedReaderReadLine() throws IOException {
+        return countLinesWithBufferedReader(LineCountUtils.LineCountingMethod.CUSTOM_BUFFERED_READER_READLINE);
+    }
+
+    @Benchmark
+    public long customBufferedReaderHasNextLine() throws IOException {
+        return countLinesWithBufferedReader(LineCountUtils.LineCountingMethod.CUSTOM_BUFFERED_READER_HAS_NEXT_LINE);
+    }
+
+    @Benchmark
+    public long charLookup() throws IOException {
+        return LineCountUtils.countLinesWithCharLookup(file, fileReadBufferSize, 0, StandardCharsets.UTF_8);
+    }
+
+    private long countLinesWithBufferedReader(LineCountUtils.LineCountingMethod lineCountingMethod) throws IOException {
+        LineCountUtils lineCountUtils = new LineCountUtils();
+        lineCountUtils.setLineCountingMethod(lineCountingMethod);
+        return lineCountUtils.countLinesWithBufferedReader(file, 0, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,302 @@
+package bns.testcarl;
+
+import com.google.common.io.ByteSource;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Reader streaming the regular entries of the archives whose lines are counted by
+ * {@link LineCountUtils} without being extracted to disk (q.v. setCountArchiveEntries(...)),
+ * each entry being read once, through the same encoding detection and counting kernels as
+ * files. The entries of zip archives (and so of jar, war and ear archives) are read from their
+ * central directory, in parallel, whereas those of tar archives, compressed or not, can only be
+ * read one after the other. The archives nested into archives are counted as files.
+ */
+final class ArchiveReader {
+
+    enum Format {ZIP, TAR, TAR_GZ}
+
+    private static final int TAR_BLOCK_SIZE = 512;
+
+    /**
+     * Consumer of the entries of an archive.
+     */
+    @FunctionalInterface
+    interface EntryConsumer {
+        /**
+         * Consumes the entry whose path in the archive is {@code entryName}, {@code size} bytes long,
+         * the stream of {@code content} being valid until this method returns only.
+         * @return whether the next entries of the archive are wanted.
+         */
+        boolean accept(String entryName, long size, ByteSource content);
+    }
+
+    private ArchiveReader() {
+    }
+
+    /**
+     * @return the format of the archive {@code file} according to its extension, or {@code null}
+     * if it is not an archive.
+     */
+    static Format formatOf(File file) {
+        String name = file.getName().toLowerCase(Locale.ROOT);
+        if (name.endsWith(".zip") || name.endsWith(".jar") || name.endsWith(".war") || name.endsWith(".ear")) {
+            return Format.ZIP;
+        }
+        if (name.endsWith(".tar.gz") || name.endsWith(".tgz")) {
+            return Format.TAR_GZ;
+        }
+        return name.endsWith(".tar") ? Format.TAR : null;
+    }
+
+    /**
+     * @return the path reporting the entry {@code entryName} of {@code archive}, as done by jar URLs.
+     */
+    static File entryFile(File archive, String entryName) {
+        return new File(archive.getPath() + "!/" + entryName);
+    }
+
+    /**
+     * Streams the regular entries of {@code archive} to {@code consumer}, those of a zip archive by
+     * as many threads at once as the common pool has if {@code parallel}, until the consumer wants
+     * no more entries.
+     * @throws IOException if the archive cannot be read, the consumer being left to handle the
+     * exceptions thrown by the streams of the entries.
+     */
+    static void forEachEntry(File archive, Format format, boolean parallel, EntryConsumer consumer) throws IOException {
+        if (format == Format.ZIP) {
+            forEachZipEntry(archive, parallel, consumer);
+        } else {
+            try (InputStream fis = new FileInputStream(archive);
+                 InputStream in = format == Format.TAR_GZ ? new GZIPInputStream(fis, 1 << 16) : new BufferedInputStream(fis, 1 << 16)) {
+                forEachTarEntry(in, consumer);
+            }
+        }
+    }
+
+    private static void forEachZipEntry(File archive, boolean parallel, EntryConsumer consumer) throws IOException {
+        try (ZipFile zipFile = new ZipFile(archive)) {
+            List<? extends ZipEntry> entries = zipFile.stream().filter(entry -> !entry.isDirectory()).collect(Collectors.toList());
+            // ZipFile reads the entries opened by several threads at once, each with its own inflater
+            Stream<? extends ZipEntry> entryStream = parallel ? entries.parallelStream() : entries.stream();
+            entryStream.allMatch(entry -> consumer.accept(entry.getName(), entry.getSize(), new ByteSource() {
+                @Override
+                public InputStream openStream() throws IOException {
+                    return zipFile.getInputStream(entry);
+                }
+            }));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Streams the regular entries of the tar archive read from {@code in}, whose headers are those
+     * of POSIX ustar, with the long names of GNU tar and the paths of PAX extended headers.
+     */
+    private static void forEachTarEntry(InputStream in, EntryConsumer consumer) throws IOException {
+        byte[] header = new byte[TAR_BLOCK_SIZE];
+        String longName = null; // Name of the next entry given by a GNU or PAX header, if any
+        while (in.readNBytes(header, 0, TAR_BLOCK_SIZE) == TAR_BLOCK_SIZE && !isZeroBlock(header)) {
+            long size = parseTarNumber(header, 124, 12);
+            long paddedSize = (size + TAR_BLOCK_SIZE - 1) & -TAR_BLOCK_SIZE;
+            byte type = header[156];
+            if (type == 'L' || type == 'x') {
+                if (size > Integer.MAX_VALUE - 8) {
+                    throw new IOException("Invalid size of tar extended header: " + size);
+                }
+                byte[] data = readFully(in, (int) size);
+                in.skipNBytes(paddedSize - size);
+                String pathOfHeader = type == 'L' ? trimAtNul(data, 0, data.length) : parsePaxPath(data);
+                if (pathOfHeader != null) {
+                    longName = pathOfHeader;
+                }
+                continue;
+            }
+            String name = longName != null ? longName : parseTarName(header);
+            longName = null;
+            if (type == '0' || type == 0 || type == '7') {
+                BoundedInputStream content = new BoundedInputStream(in, size);
+                boolean goOn = consumer.accept(name, size, new ByteSource() {
+                    @Override
+                    public InputStream openStream() {
+                        return content;
+                    }
+                });
+                if (!goOn) {
+                    return;
+                }
+                // The bytes of the entry left unread by the consumer, if any, and the padding
+                in.skipNBytes(content.remaining + paddedSize - size);
+            } else {
+                in.skipNBytes(paddedSize);
+            }
+        }
+    }
+
+    private static boolean isZeroBlock(byte[] block) {
+        for (byte b : block) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String parseTarName(byte[] header) {
+        String name = trimAtNul(header, 0, 100);
+        // The prefix of ustar headers holds the directories of the paths longer than 100 bytes
+        if (header[257] == 'u' && header[258] == 's' && header[259] == 't' && header[260] == 'a' && header[261] == 'r') {
+            String prefix = trimAtNul(header, 345, 155);
+            if (!prefix.isEmpty()) {
+                return prefix + '/' + name;
+            }
+        }
+        return name;
+    }
+
+    /**
+     * @return the number of the field of {@code header}, written as octal digits, or in base-256
+     * if its 1st byte has its highest bit set, as done by GNU tar for the sizes beyond 8 GB.
+     */
+    private static long parseTarNumber(byte[] header, int offset, int length) throws IOException {
+        long number = 0;
+        if ((header[offset] & 0x80) != 0) {
+            for (int i = offset + 1; i != offset + length; ++i) {
+                number = number << 8 | (header[i] & 0xFF);
+            }
+            return number;
+        }
+        for (int i = offset; i != offset + length; ++i) {
+            byte b = header[i];
+            if (b == 0 || b == ' ') {
+                if (number != 0) {
+                    break;
+                }
+            } else if (b >= '0' && b <= '7') {
+                number = number << 3 | (b - '0');
+            } else {
+                throw new IOException("Invalid tar header");
+            }
+        }
+        return number;
+    }
+
+    /**
+     * @return the "path" of the records of a PAX extended header, each of them being written
+     * as "length path=value\n", or {@code null} if none.
+     */
+    private static String parsePaxPath(byte[] data) {
+        int offset = 0;
+        while (offset < data.length) {
+            int space = offset;
+            while (space < data.length && data[space] != ' ') {
+                ++space;
+            }
+            int recordLength;
+            try {
+                recordLength = Integer.parseInt(new String(data, offset, space - offset, StandardCharsets.US_ASCII));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (recordLength <= 0 || offset + recordLength > data.length) {
+                return null;
+            }
+            String record = new String(data, space + 1, offset + recordLength - space - 2, StandardCharsets.UTF_8);
+            if (record.startsWith("path=")) {
+                return record.substring(5);
+            }
+            offset += recordLength;
+        }
+        return null;
+    }
+
+    private static String trimAtNul(byte[] bytes, int offset, int length) {
+        int end = offset;
+        while (end != offset + length && bytes[end] != 0) {
+            ++end;
+        }
+        return new String(bytes, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] bytes = in.readNBytes(length);
+        if (bytes.length != length) {
+            throw new EOFException("Truncated tar archive");
+        }
+        return bytes;
+    }
+
+    /**
+     * Stream of the bytes of a tar entry, which does not close the stream of the archive.
+     */
+    private static final class BoundedInputStream extends FilterInputStream {
+        private long remaining;
+
+        private BoundedInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b >= 0) {
+                --remaining;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining == 0) {
+                return len == 0 ? 0 : -1;
+            }
+            int nbReadBytes = in.read(b, off, (int) Math.min(len, remaining));
+            if (nbReadBytes > 0) {
+                remaining -= nbReadBytes;
+            }
+            return nbReadBytes;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long nbSkippedBytes = in.skip(Math.min(n, remaining));
+            remaining -= nbSkippedBytes;
+            return nbSkippedBytes;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        @Override
+        public void close() {
+            // The stream of the archive is closed once all its entries are read
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
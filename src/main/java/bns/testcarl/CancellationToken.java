@@ -0,0 +1,100 @@
+package bns.testcarl;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token telling the counting of lines run by {@link LineCountUtils} to stop, either because
+ * {@link #cancel()} has been called (from any thread) or because its deadline has passed.<p>
+ * The counting stops starting new files as soon as the token is cancelled, and the files
+ * being read stop at the next buffer, their lines being left out of the (partial) count.
+ * The loops reading the files check the token bound to the current thread by LineCountUtils,
+ * so that the public static counting methods need not be given one more argument.
+ */
+public final class CancellationToken {
+
+    // Token checked by the loops reading the bytes of a file in the current thread, if any
+    private static final ThreadLocal<CancellationToken> CURRENT_TOKEN = new ThreadLocal<>();
+
+    private final CancellationToken parent;
+    private final Long deadlineNanos;
+    private volatile boolean cancelled = false;
+
+    public CancellationToken() {
+        this(null, null);
+    }
+
+    private CancellationToken(CancellationToken parent, Long deadlineNanos) {
+        this.parent = parent;
+        this.deadlineNanos = deadlineNanos;
+    }
+
+    /**
+     * @return a token that is cancelled once {@code timeoutMillis} have elapsed from now,
+     * unless {@link #cancel()} is called before.
+     */
+    public static CancellationToken withTimeout(long timeoutMillis) {
+        return new CancellationToken(null, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+    }
+
+    /**
+     * @return a token that is cancelled along with this token, or when its own {@link #cancel()}
+     * is called, for e.g. for stopping a run once its threshold is reached without cancelling
+     * the token supplied by the caller, which may be shared by other runs.
+     */
+    CancellationToken newChild() {
+        return new CancellationToken(this, null);
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled || isDeadlineExceeded() || (parent != null && parent.isCancelled());
+    }
+
+    /**
+     * @return whether the deadline of this token (or of its parent) has passed.
+     */
+    public boolean isDeadlineExceeded() {
+        return (deadlineNanos != null && System.nanoTime() - deadlineNanos >= 0) || (parent != null && parent.isDeadlineExceeded());
+    }
+
+    /**
+     * @throws CancellationException if this token has been cancelled.
+     */
+    public void throwIfCancelled() {
+        if (isCancelled()) {
+            throw new CancellationException("Line counting cancelled");
+        }
+    }
+
+    /**
+     * Binds {@code token} (null for none) to the current thread.
+     * @return the token that was bound to the current thread, to be restored once done.
+     */
+    static CancellationToken setCurrent(CancellationToken token) {
+        CancellationToken previousToken = CURRENT_TOKEN.get();
+        CURRENT_TOKEN.set(token);
+        return previousToken;
+    }
+
+    /**
+     * @return the token bound to the current thread, or null if none.
+     */
+    static CancellationToken current() {
+        return CURRENT_TOKEN.get();
+    }
+
+    /**
+     * Called by the loops reading files between two buffers.
+     * @throws CancellationException if the token bound to the current thread has been cancelled.
+     */
+    static void throwIfCurrentCancelled() {
+        CancellationToken token = CURRENT_TOKEN.get();
+        if (token != null) {
+            token.throwIfCancelled();
+        }
+    }
+}
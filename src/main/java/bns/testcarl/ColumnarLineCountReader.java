@@ -0,0 +1,219 @@
+package bns.testcarl;
+
+import lombok.Value;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reader of the files written by {@link ColumnarLineCountWriter}, each block being memory-mapped
+ * when read, so that files holding the records of tens of millions of files are neither loaded
+ * on the heap nor limited to the 2 GB of a single mapping. {@link #summarize()} only reads the
+ * columns it aggregates, which are read in place; {@link #forEach(FileLineCountSink)} replays
+ * all the records, paths included.
+ */
+public final class ColumnarLineCountReader implements Closeable {
+
+    private final FileChannel channel;
+    private final String[] encodingNames;
+    private final long[] blockOffsets; // Followed by the offset of the footer, where the last block ends
+    private final long nbOfRecords;
+
+    /**
+     * Totals of the records of a file, the counts per encoding being those of the files whose
+     * lines have been counted, whose encoding is named NAME_FOR_UNKNOWN_ENCODINGS if unknown.
+     */
+    @Value
+    public static class Summary {
+        long nbOfFiles;
+        long nbOfFailedFiles;
+        long lineCount;
+        long nbOfBytes;          // Sum of the lengths of the files whose lines have been counted
+        long durationNanos;      // Sum of the time spent on each file, failed files included
+        Map<String, Long> nbOfFilesPerEncoding;
+        Map<String, Long> lineCountPerEncoding;
+    }
+
+    private ColumnarLineCountReader(FileChannel channel) throws IOException {
+        this.channel = channel;
+        long size = channel.size();
+        if (size < ColumnarLineCountWriter.HEADER_SIZE + ColumnarLineCountWriter.END_SIZE) {
+            throw new IOException("Not a columnar line count file: invalid size " + size);
+        }
+        ByteBuffer header = readFully(0, ColumnarLineCountWriter.HEADER_SIZE);
+        ByteBuffer end = readFully(size - ColumnarLineCountWriter.END_SIZE, ColumnarLineCountWriter.END_SIZE);
+        long footerOffset = end.getLong();
+        if (header.getInt() != ColumnarLineCountWriter.MAGIC || end.getInt() != ColumnarLineCountWriter.MAGIC
+                || footerOffset < ColumnarLineCountWriter.HEADER_SIZE || footerOffset > size - ColumnarLineCountWriter.END_SIZE) {
+            throw new IOException("Not a columnar line count file, or not closed by its writer");
+        }
+        int version = header.getInt();
+        if (version != ColumnarLineCountWriter.VERSION) {
+            throw new IOException("Unsupported version of columnar line count file: " + version);
+        }
+
+        ByteBuffer footer = readFully(footerOffset, (int) (size - ColumnarLineCountWriter.END_SIZE - footerOffset));
+        encodingNames = new String[footer.getInt()];
+        for (int i = 0; i != encodingNames.length; ++i) {
+            byte[] nameBytes = new byte[footer.getShort()];
+            footer.get(nameBytes);
+            encodingNames[i] = new String(nameBytes, StandardCharsets.US_ASCII);
+        }
+        blockOffsets = new long[footer.getInt() + 1];
+        for (int b = 0; b != blockOffsets.length - 1; ++b) {
+            blockOffsets[b] = footer.getLong();
+        }
+        blockOffsets[blockOffsets.length - 1] = footerOffset;
+        nbOfRecords = footer.getLong();
+    }
+
+    /**
+     * @return a reader of {@code file}, to be closed once done.
+     * @throws IOException if {@code file} cannot be read or is not a complete columnar line count file.
+     */
+    public static ColumnarLineCountReader open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            return new ColumnarLineCountReader(channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private ByteBuffer readFully(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Truncated columnar line count file");
+            }
+        }
+        return buffer.flip();
+    }
+
+    public long getNbOfRecords() {
+        return nbOfRecords;
+    }
+
+    /**
+     * @return the totals of all the records, aggregated from the columns of lengths, line counts,
+     * durations and encodings, those of the paths being left unread.
+     */
+    public Summary summarize() throws IOException {
+        long nbOfFiles = 0;
+        long nbOfFailedFiles = 0;
+        long lineCount = 0;
+        long nbOfBytes = 0;
+        long durationNanos = 0;
+        // Index 0 is for unknown encodings, index i + 1 for encodingNames[i]
+        long[] nbOfFilesPerEncodingIndex = new long[encodingNames.length + 1];
+        long[] lineCountPerEncodingIndex = new long[encodingNames.length + 1];
+        for (int b = 0; b != blockOffsets.length - 1; ++b) {
+            MappedByteBuffer block = mapBlock(b);
+            try {
+                int n = block.getInt(0);
+                int lengthsOffset = 2 * Integer.BYTES;
+                int lineCountsOffset = lengthsOffset + n * Long.BYTES;
+                int durationsOffset = lineCountsOffset + n * Long.BYTES;
+                int encodingIndexesOffset = durationsOffset + n * (Long.BYTES + Float.BYTES);
+                for (int r = 0; r != n; ++r) {
+                    long recordLineCount = block.getLong(lineCountsOffset + r * Long.BYTES);
+                    durationNanos += block.getLong(durationsOffset + r * Long.BYTES);
+                    ++nbOfFiles;
+                    if (recordLineCount < 0) {
+                        ++nbOfFailedFiles;
+                        continue;
+                    }
+                    lineCount += recordLineCount;
+                    nbOfBytes += block.getLong(lengthsOffset + r * Long.BYTES);
+                    int encodingIndex = block.getShort(encodingIndexesOffset + r * Short.BYTES) + 1;
+                    ++nbOfFilesPerEncodingIndex[encodingIndex];
+                    lineCountPerEncodingIndex[encodingIndex] += recordLineCount;
+                }
+            } finally {
+                LineCountUtils.unmap(block);
+            }
+        }
+        Map<String, Long> nbOfFilesPerEncoding = new HashMap<>();
+        Map<String, Long> lineCountPerEncoding = new HashMap<>();
+        for (int i = 0; i != nbOfFilesPerEncodingIndex.length; ++i) {
+            if (nbOfFilesPerEncodingIndex[i] != 0) {
+                String encodingName = i == 0 ? LineCountUtils.NAME_FOR_UNKNOWN_ENCODINGS : encodingNames[i - 1];
+                nbOfFilesPerEncoding.merge(encodingName, nbOfFilesPerEncodingIndex[i], Long::sum);
+                lineCountPerEncoding.merge(encodingName, lineCountPerEncodingIndex[i], Long::sum);
+            }
+        }
+        return new Summary(nbOfFiles, nbOfFailedFiles, lineCount, nbOfBytes, durationNanos, nbOfFilesPerEncoding, lineCountPerEncoding);
+    }
+
+    /**
+     * Passes all the records to {@code sink}, in the order they have been written, the encodings
+     * that are not supported by this JVM being passed as unknown ({@code null}).
+     */
+    public void forEach(FileLineCountSink sink) throws IOException {
+        Charset[] encodings = new Charset[encodingNames.length];
+        for (int i = 0; i != encodings.length; ++i) {
+            encodings[i] = Charset.isSupported(encodingNames[i]) ? Charset.forName(encodingNames[i]) : null;
+        }
+        byte[] path = new byte[256];
+        for (int b = 0; b != blockOffsets.length - 1; ++b) {
+            MappedByteBuffer block = mapBlock(b);
+            try {
+                int n = block.getInt(0);
+                int lengthsOffset = 2 * Integer.BYTES;
+                int lineCountsOffset = lengthsOffset + n * Long.BYTES;
+                int durationsOffset = lineCountsOffset + n * Long.BYTES;
+                int encodingConfidencesOffset = durationsOffset + n * Long.BYTES;
+                int encodingIndexesOffset = encodingConfidencesOffset + n * Float.BYTES;
+                int bomLengthsOffset = encodingIndexesOffset + n * Short.BYTES;
+                int flagsOffset = bomLengthsOffset + n;
+                int sharedPrefixLengthsOffset = flagsOffset + n;
+                int suffixLengthsOffset = sharedPrefixLengthsOffset + n * Character.BYTES;
+                int suffixOffset = suffixLengthsOffset + n * Character.BYTES;
+                for (int r = 0; r != n; ++r) {
+                    int sharedPrefixLength = block.getChar(sharedPrefixLengthsOffset + r * Character.BYTES);
+                    int suffixLength = block.getChar(suffixLengthsOffset + r * Character.BYTES);
+                    int pathLength = sharedPrefixLength + suffixLength;
+                    if (pathLength > path.length) {
+                        byte[] grownPath = new byte[Math.max(2 * path.length, pathLength)];
+                        System.arraycopy(path, 0, grownPath, 0, sharedPrefixLength);
+                        path = grownPath;
+                    }
+                    block.get(suffixOffset, path, sharedPrefixLength, suffixLength);
+                    suffixOffset += suffixLength;
+
+                    int encodingIndex = block.getShort(encodingIndexesOffset + r * Short.BYTES);
+                    sink.onFileCounted(new File(new String(path, 0, pathLength, StandardCharsets.UTF_8)),
+                            block.getLong(lengthsOffset + r * Long.BYTES),
+                            encodingIndex >= 0 ? encodings[encodingIndex] : null,
+                            (block.get(flagsOffset + r) & ColumnarLineCountWriter.FLAG_ENCODING_IS_CERTAIN) != 0,
+                            block.getFloat(encodingConfidencesOffset + r * Float.BYTES),
+                            block.get(bomLengthsOffset + r) & 0xFF,
+                            block.getLong(lineCountsOffset + r * Long.BYTES),
+                            block.getLong(durationsOffset + r * Long.BYTES));
+                }
+            } finally {
+                LineCountUtils.unmap(block);
+            }
+        }
+    }
+
+    private MappedByteBuffer mapBlock(int b) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, blockOffsets[b], blockOffsets[b + 1] - blockOffsets[b]);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
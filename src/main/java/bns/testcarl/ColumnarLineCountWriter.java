@@ -0,0 +1,227 @@
+package bns.testcarl;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link FileLineCountSink} writing the records of the files to a compact binary file made of
+ * columns, read by {@link ColumnarLineCountReader}.<p>
+ * The records are buffered by batches in primitive arrays, one per column, each full batch
+ * being written as a block holding all the values of a column, then all those of the next
+ * column, etc., so that aggregating some columns does not read the others. A path is stored as
+ * the number of its leading bytes shared with the path of the previous record of its block,
+ * followed by its remaining bytes, since the files of a directory are mostly counted in a row,
+ * and the name of an encoding is stored once, in the footer, the blocks holding its index.<p>
+ * Layout of the file (big-endian):<pre>
+ * header: magic (4), version (4)
+ * block:  number of records n (4), number of bytes of the path suffixes (4), then the columns:
+ *         file lengths (8n), line counts or -1 if failed (8n), durations in ns (8n), confidences
+ *         in the encodings (4n), indexes of the encodings or -1 if unknown (2n), BOM lengths (n),
+ *         flags (n), lengths of the
+ *         prefixes shared with the previous path (2n), lengths of the path suffixes (2n), and
+ *         the UTF-8 bytes of the path suffixes
+ * footer: number of encoding names (4), each name as its length (2) + ASCII bytes, number of
+ *         blocks (4), offset of each block (8 each), number of records (8)
+ * end:    offset of the footer (8), magic (4)</pre>
+ * onFileCounted(...) can be called concurrently; close() must be called once the counting is
+ * done, the file being readable only once closed.
+ */
+public final class ColumnarLineCountWriter implements FileLineCountSink, Closeable {
+
+    static final int MAGIC = 0x4C435231; // "LCR1"
+    static final int VERSION = 2;
+    static final int HEADER_SIZE = 8;
+    static final int END_SIZE = 12;
+    static final int FLAG_ENCODING_IS_CERTAIN = 0x1;
+
+    // Bytes per record of the fixed-length columns of a block
+    static final int FIXED_RECORD_SIZE = 3 * Long.BYTES + Float.BYTES + Short.BYTES + 2 + 2 * Character.BYTES;
+
+    static final int DEFAULT_BATCH_SIZE = 1 << 16;
+
+    private final FileChannel channel;
+    private final int batchSize;
+
+    // Columns of the records of the current batch
+    private final long[] lengths;
+    private final long[] lineCounts;
+    private final long[] durations;
+    private final float[] encodingConfidences;
+    private final short[] encodingIndexes;
+    private final byte[] bomLengths;
+    private final byte[] flags;
+    private final char[] sharedPrefixLengths;
+    private final char[] suffixLengths;
+    private byte[] suffixBytes = new byte[1 << 16];
+    private int nbOfSuffixBytes;
+    private int nbOfBatchedRecords;
+    private byte[] previousPath = new byte[0];
+
+    private final Map<String, Short> encodingIndexesByName = new HashMap<>();
+    private final List<String> encodingNames = new ArrayList<>();
+    private final List<Long> blockOffsets = new ArrayList<>();
+    private long nbOfRecords;
+    private ByteBuffer blockBuffer = ByteBuffer.allocate(0);
+    private boolean closed;
+
+    public ColumnarLineCountWriter(Path file) throws IOException {
+        this(file, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Creates or truncates {@code file}, the records being written by blocks of {@code batchSize}.
+     */
+    public ColumnarLineCountWriter(Path file, int batchSize) throws IOException {
+        this.batchSize = Math.max(1, batchSize);
+        lengths = new long[this.batchSize];
+        lineCounts = new long[this.batchSize];
+        durations = new long[this.batchSize];
+        encodingConfidences = new float[this.batchSize];
+        encodingIndexes = new short[this.batchSize];
+        bomLengths = new byte[this.batchSize];
+        flags = new byte[this.batchSize];
+        sharedPrefixLengths = new char[this.batchSize];
+        suffixLengths = new char[this.batchSize];
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION).flip();
+        writeFully(header);
+    }
+
+    /**
+     * @throws UncheckedIOException if the batch of records this record completes could not be written.
+     */
+    @Override
+    public synchronized void onFileCounted(File file, long fileLength, Charset encoding, boolean isEncodingCertain, float encodingConfidence, int bomLength, long lineCount, long durationNanos) {
+        if (closed) {
+            throw new IllegalStateException("Columnar line count writer already closed");
+        }
+        byte[] path = file.getAbsolutePath().getBytes(StandardCharsets.UTF_8);
+        int sharedPrefixLength = 0;
+        int maxSharedPrefixLength = Math.min(Character.MAX_VALUE, Math.min(path.length, previousPath.length));
+        while (sharedPrefixLength != maxSharedPrefixLength && path[sharedPrefixLength] == previousPath[sharedPrefixLength]) {
+            ++sharedPrefixLength;
+        }
+        int suffixLength = path.length - sharedPrefixLength;
+        if (suffixLength > Character.MAX_VALUE) {
+            throw new IllegalArgumentException("Path too long for a columnar line count file: " + file);
+        }
+        if (nbOfSuffixBytes + suffixLength > suffixBytes.length) {
+            byte[] grownSuffixBytes = new byte[Math.max(2 * suffixBytes.length, nbOfSuffixBytes + suffixLength)];
+            System.arraycopy(suffixBytes, 0, grownSuffixBytes, 0, nbOfSuffixBytes);
+            suffixBytes = grownSuffixBytes;
+        }
+        System.arraycopy(path, sharedPrefixLength, suffixBytes, nbOfSuffixBytes, suffixLength);
+        nbOfSuffixBytes += suffixLength;
+        previousPath = path;
+
+        int r = nbOfBatchedRecords++;
+        lengths[r] = fileLength;
+        lineCounts[r] = lineCount;
+        durations[r] = durationNanos;
+        encodingConfidences[r] = encodingConfidence;
+        encodingIndexes[r] = encoding != null ? getEncodingIndex(encoding.name()) : -1;
+        bomLengths[r] = (byte) bomLength;
+        flags[r] = (byte) (isEncodingCertain ? FLAG_ENCODING_IS_CERTAIN : 0);
+        sharedPrefixLengths[r] = (char) sharedPrefixLength;
+        suffixLengths[r] = (char) suffixLength;
+        if (nbOfBatchedRecords == batchSize) {
+            try {
+                writeBlock();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private short getEncodingIndex(String encodingName) {
+        Short encodingIndex = encodingIndexesByName.get(encodingName);
+        if (encodingIndex == null) {
+            encodingIndex = (short) encodingNames.size();
+            encodingIndexesByName.put(encodingName, encodingIndex);
+            encodingNames.add(encodingName);
+        }
+        return encodingIndex;
+    }
+
+    private void writeBlock() throws IOException {
+        int n = nbOfBatchedRecords;
+        int blockSize = 2 * Integer.BYTES + n * FIXED_RECORD_SIZE + nbOfSuffixBytes;
+        if (blockBuffer.capacity() < blockSize) {
+            blockBuffer = ByteBuffer.allocate(Math.max(blockSize, 2 * blockBuffer.capacity()));
+        }
+        ByteBuffer block = blockBuffer.clear();
+        block.putInt(n).putInt(nbOfSuffixBytes);
+        block.asLongBuffer().put(lengths, 0, n).put(lineCounts, 0, n).put(durations, 0, n);
+        block.position(block.position() + 3 * n * Long.BYTES);
+        block.asFloatBuffer().put(encodingConfidences, 0, n);
+        block.position(block.position() + n * Float.BYTES);
+        block.asShortBuffer().put(encodingIndexes, 0, n);
+        block.position(block.position() + n * Short.BYTES);
+        block.put(bomLengths, 0, n).put(flags, 0, n);
+        block.asCharBuffer().put(sharedPrefixLengths, 0, n).put(suffixLengths, 0, n);
+        block.position(block.position() + 2 * n * Character.BYTES);
+        block.put(suffixBytes, 0, nbOfSuffixBytes).flip();
+
+        blockOffsets.add(channel.position());
+        writeFully(block);
+        nbOfRecords += n;
+        nbOfBatchedRecords = 0;
+        nbOfSuffixBytes = 0;
+        // Each block can be read on its own
+        previousPath = new byte[0];
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Writes the last batch of records and the footer, then closes the file.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (nbOfBatchedRecords != 0) {
+                writeBlock();
+            }
+            long footerOffset = channel.position();
+            int footerSize = 2 * Integer.BYTES + blockOffsets.size() * Long.BYTES + Long.BYTES + END_SIZE;
+            for (String encodingName : encodingNames) {
+                footerSize += Short.BYTES + encodingName.length();
+            }
+            ByteBuffer footer = ByteBuffer.allocate(footerSize);
+            footer.putInt(encodingNames.size());
+            for (String encodingName : encodingNames) {
+                byte[] nameBytes = encodingName.getBytes(StandardCharsets.US_ASCII);
+                footer.putShort((short) nameBytes.length).put(nameBytes);
+            }
+            footer.putInt(blockOffsets.size());
+            for (long blockOffset : blockOffsets) {
+                footer.putLong(blockOffset);
+            }
+            footer.putLong(nbOfRecords);
+            footer.putLong(footerOffset).putInt(MAGIC).flip();
+            writeFully(footer);
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package bns.testcarl;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Comment rules of a family of languages used by {@link LineMetricsScanner} for telling
+ * comment lines from code lines: markers starting a comment that ends with the line,
+ * delimiters of block comments, and the quotes of the strings in which markers are
+ * not comments. Markers are 1 to 4 ASCII characters long, which can be matched in the
+ * code units of any encoding without decoding them into chars first.<p>
+ * The rules are chosen by the extension of each file ({@link #forFile(File)}), since the
+ * files grouped by language by SoftwareComposition are told apart by their extensions.
+ * Files of unknown extensions have no comments: all their non-blank lines are code.
+ */
+public final class CommentSyntax {
+
+    public static final CommentSyntax NONE = new CommentSyntax(new String[0], new String[0][], "");
+    public static final CommentSyntax C_LIKE = new CommentSyntax(new String[]{"//"}, new String[][]{{"/*", "*/"}}, "\"'");
+    public static final CommentSyntax CSS = new CommentSyntax(new String[0], new String[][]{{"/*", "*/"}}, "\"'");
+    public static final CommentSyntax PHP = new CommentSyntax(new String[]{"//", "#"}, new String[][]{{"/*", "*/"}}, "\"'");
+    public static final CommentSyntax HASH = new CommentSyntax(new String[]{"#"}, new String[0][], "\"'");
+    public static final CommentSyntax SQL = new CommentSyntax(new String[]{"--"}, new String[][]{{"/*", "*/"}}, "'");
+    public static final CommentSyntax XML = new CommentSyntax(new String[0], new String[][]{{"<!--", "-->"}}, "");
+
+    private static final Map<String, CommentSyntax> SYNTAX_BY_EXTENSION = new HashMap<>();
+
+    static {
+        register(C_LIKE, "java", "c", "h", "cc", "cpp", "cxx", "hh", "hpp", "hxx", "cs", "js", "jsx", "ts", "tsx",
+                "go", "kt", "kts", "scala", "swift", "rs", "groovy", "gradle", "m", "mm", "dart", "scss", "less");
+        register(CSS, "css");
+        register(PHP, "php");
+        register(HASH, "py", "sh", "bash", "ksh", "zsh", "rb", "pl", "pm", "r", "yaml", "yml", "toml", "properties", "cmake", "ps1");
+        register(SQL, "sql", "pls", "pks", "pkb");
+        register(XML, "xml", "xsd", "xsl", "xslt", "html", "htm", "xhtml", "svg");
+    }
+
+    // Classes of the ASCII code units: any other code unit is ORDINARY
+    static final byte ORDINARY = 0;
+    static final byte WHITESPACE = 1;
+    static final byte LINE_BREAK = 2;
+    static final byte SPECIAL = 3;  // Part of a marker, or quote
+
+    final byte[] unitClasses = new byte[128];
+
+    // Markers packed into an int, their last character in the lowest byte, as matched against
+    // the last 4 code units met (q.v. LineMetricsScanner), along with the mask of their length
+    final int[] lineCommentMarkers;
+    final int[] lineCommentMarkerMasks;
+    final int[] lineCommentMarkerLengths;
+    final int[] blockCommentStarts;
+    final int[] blockCommentStartMasks;
+    final int[] blockCommentStartLengths;
+    final int[] blockCommentEnds;
+    final int[] blockCommentEndMasks;
+    final boolean[] quotes = new boolean[128];
+
+    /**
+     * @param lineCommentMarkers markers of the comments ending with the line, for e.g. "//"
+     * @param blockCommentDelimiters pairs of the markers starting and ending block comments, for e.g. {"/*", "*&#47;"}
+     * @param quotes characters starting and ending strings, inside which backslash escapes the next character
+     */
+    public CommentSyntax(String[] lineCommentMarkers, String[][] blockCommentDelimiters, String quotes) {
+        for (int unit = 0; unit != unitClasses.length; ++unit) {
+            if (unit == '\r' || unit == '\n') {
+                unitClasses[unit] = LINE_BREAK;
+            } else if (unit == ' ' || unit == '\t' || unit == '\f' || unit == 0x0B) {
+                unitClasses[unit] = WHITESPACE;
+            }
+        }
+        this.lineCommentMarkers = new int[lineCommentMarkers.length];
+        lineCommentMarkerMasks = new int[lineCommentMarkers.length];
+        lineCommentMarkerLengths = new int[lineCommentMarkers.length];
+        for (int i = 0; i != lineCommentMarkers.length; ++i) {
+            this.lineCommentMarkers[i] = pack(lineCommentMarkers[i]);
+            lineCommentMarkerMasks[i] = mask(lineCommentMarkers[i]);
+            lineCommentMarkerLengths[i] = lineCommentMarkers[i].length();
+        }
+        blockCommentStarts = new int[blockCommentDelimiters.length];
+        blockCommentStartMasks = new int[blockCommentDelimiters.length];
+        blockCommentStartLengths = new int[blockCommentDelimiters.length];
+        blockCommentEnds = new int[blockCommentDelimiters.length];
+        blockCommentEndMasks = new int[blockCommentDelimiters.length];
+        for (int i = 0; i != blockCommentDelimiters.length; ++i) {
+            blockCommentStarts[i] = pack(blockCommentDelimiters[i][0]);
+            blockCommentStartMasks[i] = mask(blockCommentDelimiters[i][0]);
+            blockCommentStartLengths[i] = blockCommentDelimiters[i][0].length();
+            blockCommentEnds[i] = pack(blockCommentDelimiters[i][1]);
+            blockCommentEndMasks[i] = mask(blockCommentDelimiters[i][1]);
+        }
+        for (char quote : quotes.toCharArray()) {
+            if (quote >= 128 || unitClasses[quote] != ORDINARY) {
+                throw new IllegalArgumentException("Invalid quote: " + quote);
+            }
+            this.quotes[quote] = true;
+            unitClasses[quote] = SPECIAL;
+        }
+    }
+
+    private int pack(String marker) {
+        if (marker.isEmpty() || marker.length() > 4) {
+            throw new IllegalArgumentException("Comment markers must be 1 to 4 characters long: \"" + marker + "\"");
+        }
+        int packedMarker = 0;
+        for (char c : marker.toCharArray()) {
+            if (c >= 128 || unitClasses[c] == WHITESPACE || unitClasses[c] == LINE_BREAK) {
+                throw new IllegalArgumentException("Invalid character in comment marker \"" + marker + "\"");
+            }
+            unitClasses[c] = SPECIAL;
+            packedMarker = packedMarker << 8 | c;
+        }
+        return packedMarker;
+    }
+
+    private static int mask(String marker) {
+        return marker.length() == 4 ? -1 : (1 << (8 * marker.length())) - 1;
+    }
+
+    private static void register(CommentSyntax syntax, String... extensions) {
+        for (String extension : extensions) {
+            SYNTAX_BY_EXTENSION.put(extension, syntax);
+        }
+    }
+
+    /**
+     * @return the comment rules of the files whose extension is {@code extension} (case-insensitive),
+     * or {@link #NONE} if unknown.
+     */
+    public static CommentSyntax forExtension(String extension) {
+        return SYNTAX_BY_EXTENSION.getOrDefault(extension.toLowerCase(Locale.ROOT), NONE);
+    }
+
+    public static CommentSyntax forFile(File file) {
+        String name = file.getName();
+        int dotIndex = name.lastIndexOf('.');
+        return dotIndex > 0 ? forExtension(name.substring(dotIndex + 1)) : NONE;
+    }
+}
@@ -0,0 +1,151 @@
+package bns.testcarl;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Dedupe stage of {@link LineCountUtils}, run before any file is read for counting its lines,
+ * splitting a collection of files into unique files, whose lines have to be counted, and the
+ * duplicates of each of them, to which the count of lines of the unique file is attributed:
+ * <ul>
+ * <li>paths of the same file, i.e. having the same {@link BasicFileAttributes#fileKey()}
+ * (inode and device on Unix), such as hard links, symbolic links and paths through symbolic
+ * links to directories, are collapsed from their attributes only, without reading them;</li>
+ * <li>copies of the same content, such as vendored libraries dropped many times, are found
+ * by the Murmur3 128-bit hash of the content of the files having the same length as other
+ * files, and so only these files are read once more than without dedupe.</li>
+ * </ul>
+ * Files that do not exist are left out, as done by the counting methods of LineCountUtils.
+ */
+@Slf4j
+final class FileDeduplicator {
+
+    private final List<File> uniqueFiles = new ArrayList<>();
+
+    // Bind each unique file having duplicates to its duplicates
+    private final Map<File, List<File>> duplicatesOfFiles = new HashMap<>();
+
+    private FileDeduplicator() {
+    }
+
+    /**
+     * @return the unique files of {@code files} along with their duplicates, the 1st path of a file
+     * or of a content in the iteration order of {@code files} being the unique one.
+     */
+    static FileDeduplicator deduplicate(Collection<File> files, int fileReadBufferSize) {
+        FileDeduplicator deduplicator = new FileDeduplicator();
+
+        // Paths of the same file
+        Map<Object, File> fileByKey = new HashMap<>();
+        Map<File, Long> lengthOfFiles = new LinkedHashMap<>();
+        for (File file : files) {
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            } catch (NoSuchFileException e) {
+                continue;
+            } catch (IOException e) {
+                // Counted as if unique, so that its failure, if any, is reported by the counting
+                deduplicator.uniqueFiles.add(file);
+                continue;
+            }
+            // Some file systems give no key, in which case each path is said to be a file of its own
+            Object fileKey = attributes.fileKey();
+            File sameFile = fileKey != null ? fileByKey.putIfAbsent(fileKey, file) : null;
+            if (sameFile != null) {
+                deduplicator.addDuplicate(sameFile, file);
+            } else if (attributes.isRegularFile()) {
+                lengthOfFiles.put(file, attributes.size());
+            } else {
+                deduplicator.uniqueFiles.add(file);
+            }
+        }
+
+        // Copies of the same content, among the files having the same length (empty files aside)
+        Map<Long, List<File>> filesByLength = new LinkedHashMap<>();
+        lengthOfFiles.forEach((file, length) -> filesByLength.computeIfAbsent(length, l -> new ArrayList<>(1)).add(file));
+        List<File> filesToHash = new ArrayList<>();
+        filesByLength.forEach((length, sameLengthFiles) -> {
+            if (length != 0 && sameLengthFiles.size() > 1) {
+                filesToHash.addAll(sameLengthFiles);
+            }
+        });
+        Map<File, HashCode> contentHashes = new ConcurrentHashMap<>();
+        filesToHash.parallelStream().forEach(file -> {
+            try {
+                contentHashes.put(file, hashContent(file, fileReadBufferSize));
+            } catch (IOException e) {
+                log.warn(String.format("Unable to hash the content of \"%s\": it is not deduplicated.", file.getAbsolutePath()), e);
+            }
+        });
+        Map<List<Object>, File> fileByContent = new HashMap<>();
+        lengthOfFiles.forEach((file, length) -> {
+            HashCode contentHash = contentHashes.get(file);
+            File sameContentFile = contentHash != null ? fileByContent.putIfAbsent(List.of(length, contentHash), file) : null;
+            if (sameContentFile != null) {
+                deduplicator.addDuplicate(sameContentFile, file);
+            } else {
+                deduplicator.uniqueFiles.add(file);
+            }
+        });
+        return deduplicator;
+    }
+
+    private void addDuplicate(File uniqueFile, File duplicate) {
+        List<File> duplicates = duplicatesOfFiles.computeIfAbsent(uniqueFile, f -> new ArrayList<>(1));
+        duplicates.add(duplicate);
+        // The duplicates of a path of a file found to have the same content as another file
+        // are those of the other file
+        List<File> duplicatesOfDuplicate = duplicatesOfFiles.remove(duplicate);
+        if (duplicatesOfDuplicate != null) {
+            duplicates.addAll(duplicatesOfDuplicate);
+        }
+    }
+
+    private static HashCode hashContent(File file, int fileReadBufferSize) throws IOException {
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        try (IoBufferPool.Buffers buffers = IoBufferPool.acquire();
+             FileInputStream fis = new FileInputStream(file)) {
+            byte[] buffer = buffers.byteArray(Math.max(fileReadBufferSize, 1 << 16));
+            for (int nbReadBytes = fis.read(buffer); nbReadBytes > 0; nbReadBytes = fis.read(buffer)) {
+                hasher.putBytes(buffer, 0, nbReadBytes);
+            }
+        }
+        return hasher.hash();
+    }
+
+    /**
+     * @return the files whose lines have to be counted, in the iteration order of the files deduplicated.
+     */
+    List<File> getUniqueFiles() {
+        return uniqueFiles;
+    }
+
+    /**
+     * @return the duplicates of {@code uniqueFile}, which may be empty.
+     */
+    List<File> getDuplicates(File uniqueFile) {
+        return Objects.requireNonNullElse(duplicatesOfFiles.get(uniqueFile), List.of());
+    }
+
+    int getNbOfDuplicates() {
+        return duplicatesOfFiles.values().stream().mapToInt(List::size).sum();
+    }
+}
@@ -1,12 +1,15 @@
 //package com.castsoftware.webi.common.utils;
 package bns.testcarl;
-import com.google.common.collect.ImmutableList;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CoderResult;
@@ -17,7 +20,9 @@ import java.nio.charset.StandardCharsets;
  * Utility class for finding or guessing the encoding of a file according to its BOM or
  * by analyzing a sample of the characters that are found at the beginning of the file.
  * Note: for the moment, this class only recognize the BOMs of the following encodings:
- * UTF-8, UTF-16 and UTF-32 (whatever the Endianness), and GB-18030.
+ * UTF-8, UTF-16 and UTF-32 (whatever the Endianness), and GB-18030. The samples that are
+ * none of them are scored against a few legacy code pages, among which the EBCDIC ones
+ * of the COBOL and PL/I sources of mainframes, before being said to be ISO-8859-1.
  */
 public class FileEncodingUtils {
 
@@ -30,7 +35,13 @@ public class FileEncodingUtils {
     // Number of bytes read from a file whose encoding must be guessed; currently 1024 because
     // is enough for up to 256 UTF-32 chars., 512 UTF-16 chars., 256 to 1024 ASCII/UTF-8 chars.
     // With 1024, the performances are same or even better than with 128, 256, 512, and 2048.
-    private static final int SAMPLING_READ_NUMBER_OF_BYTES = 1024;
+    // Package-private so that line counting can read at least these bytes in its 1st buffer.
+    static final int SAMPLING_READ_NUMBER_OF_BYTES = 1024;
+
+    // Version of the detection of the encodings, and of the classification of binary files, to be
+    // increased by any change that may give another result for the same bytes, so that the counts
+    // of lines stored by LineCountCache with the previous results are done again
+    static final int DETECTION_VERSION = 1;
 
     // List all the Charsets handled by this class and whose BOM will be recognized
     private static final Charset UTF_8 = StandardCharsets.UTF_8;
@@ -45,6 +56,25 @@ public class FileEncodingUtils {
     // List all the Charsets handled by this class for which there
     // is no BOM (or maybe there exist a BOM, but I don't know it)
     private static final Charset ISO_8859_1 = StandardCharsets.ISO_8859_1;
+    private static final Charset IBM_037 = Charset.forName("IBM037");   // EBCDIC of the USA, the most common one
+    private static final Charset IBM_1047 = Charset.forName("IBM1047"); // EBCDIC of z/OS UNIX
+    private static final Charset EUC_KR = Charset.forName("EUC-KR");
+    private static final Charset SHIFT_JIS = Charset.forName("Shift_JIS");
+    private static final Charset WINDOWS_1251 = Charset.forName("windows-1251");
+    private static final Charset WINDOWS_1252 = Charset.forName("windows-1252");
+
+    // Minimal confidence in a guessed encoding for the guess to be said certain (q.v. getConfidence(...))
+    private static final float THRESHOLD_CONFIDENCE_OF_CERTAIN_GUESSES = 0.99f;
+
+    // Upper bound of the probability that the bytes >= 0x80 of a character of a text that is not
+    // UTF-8 (accented letter of a single-byte encoding, or double-byte character of an Asian one)
+    // happen to make a well-formed multi-bytes sequence of UTF-8: at most 1 out of 8, since the
+    // lead byte must be followed by the right number of bytes of the range 0x80-0xBF only
+    private static final double PROBABILITY_OF_FORTUITOUS_UTF_8_SEQUENCE = 0.125;
+
+    // Confidence in the legacy code pages guessed from the byte frequencies of the whole file,
+    // and in ISO-8859-1 that any sequence of bytes is, which is only as likely as anything else
+    private static final float CONFIDENCE_OF_STATISTICAL_GUESSES = 0.5f;
 
     // Arbitrarily define the threshold density of 0x0 telling if the file is
     // encoded in UTF-16 rather than in UTF-32 as the average density of 0x0
@@ -53,6 +83,86 @@ public class FileEncodingUtils {
     // -the density of 0x0 inside a pure ASCII string encoded in UTF-32 is 75%
     private static final float THRESHOLD_DENSITY_UTF_16_VS_32 = ((50f + 75f) / 2) / 100;
 
+    // Maximal density of control characters (other than whitespace, backspace and escape) in the
+    // sample of a text file having no BOM, beyond which the file is said to be binary: a few of
+    // them are met in some text files, whereas most binary formats are full of small numbers
+    private static final float THRESHOLD_DENSITY_OF_CONTROL_CHARACTERS = 0.1f;
+
+    // Minimal densities in the sample of EBCDIC text (bytes >= 0x40 and line breaks), of EBCDIC
+    // spaces (0x40, which is '@' in ASCII) and of EBCDIC letters and digits for the sample to be
+    // said EBCDIC: the fixed format of COBOL sources makes them full of spaces
+    private static final float THRESHOLD_DENSITY_OF_EBCDIC_TEXT = 0.95f;
+    private static final float THRESHOLD_DENSITY_OF_EBCDIC_SPACES = 0.05f;
+    private static final float THRESHOLD_DENSITY_OF_EBCDIC_LETTERS_AND_DIGITS = 0.3f;
+
+    // Minimal density of the characters of the most frequent lead bytes among the multi-bytes
+    // characters of a sample for the sample to be said EUC-KR or Shift_JIS
+    private static final float THRESHOLD_DENSITY_OF_FREQUENT_CHARACTERS = 0.5f;
+
+    // Minimal densities of the Cyrillic letters of windows-1251 (0xC0-0xFF) among the bytes >= 0x80
+    // of the sample, and of those following another Cyrillic letter among them, for the sample to
+    // be said windows-1251
+    private static final float THRESHOLD_DENSITY_OF_CYRILLIC_LETTERS = 0.8f;
+    private static final float THRESHOLD_DENSITY_OF_CYRILLIC_LETTER_RUNS = 0.5f;
+
+    // Read 2, 4 or 8 bytes of a byte[] as a UTF-16 code unit, a UTF-32 code unit or a long
+    private static final VarHandle CHAR_VIEW_LE = MethodHandles.byteArrayViewVarHandle(char[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle CHAR_VIEW_BE = MethodHandles.byteArrayViewVarHandle(char[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle INT_VIEW_LE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle INT_VIEW_BE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle LONG_VIEW = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final long HIGH_BIT_OF_EVERY_BYTE = 0x8080808080808080L;
+    private static final long LOW_7_BITS_OF_EVERY_BYTE = 0x7F7F7F7F7F7F7F7FL;
+
+    // Bind each byte to the length of the UTF-8 sequence it starts (0 if it cannot start any,
+    // i.e. a continuation byte, an overlong lead 0xC0 or 0xC1, or a lead beyond U+10FFFF), and
+    // to the range of the 2nd byte of the sequence, which rules out the overlong sequences, the
+    // surrogates and the code points beyond U+10FFFF (q.v. table 3-7 of the Unicode Standard)
+    private static final byte[] UTF_8_SEQUENCE_LENGTHS = new byte[256];
+    private static final int[] UTF_8_MIN_SECOND_BYTES = new int[256];
+    private static final int[] UTF_8_MAX_SECOND_BYTES = new int[256];
+
+    static {
+        for (int lead = 0; lead != 0x80; ++lead) {
+            UTF_8_SEQUENCE_LENGTHS[lead] = 1;
+        }
+        for (int lead = 0xC2; lead <= 0xF4; ++lead) {
+            UTF_8_SEQUENCE_LENGTHS[lead] = (byte) (lead < 0xE0 ? 2 : lead < 0xF0 ? 3 : 4);
+            UTF_8_MIN_SECOND_BYTES[lead] = 0x80;
+            UTF_8_MAX_SECOND_BYTES[lead] = 0xBF;
+        }
+        UTF_8_MIN_SECOND_BYTES[0xE0] = 0xA0; // Overlong below U+0800
+        UTF_8_MAX_SECOND_BYTES[0xED] = 0x9F; // Surrogates U+D800 to U+DFFF
+        UTF_8_MIN_SECOND_BYTES[0xF0] = 0x90; // Overlong below U+10000
+        UTF_8_MAX_SECOND_BYTES[0xF4] = 0x8F; // Beyond U+10FFFF
+    }
+
+    // Bind each byte to its classes in the legacy code pages guessed by getGuessedLegacyEncoding(...)
+    private static final byte EBCDIC_TEXT = 0x1;             // Space, letter, digit, punctuation or line break of EBCDIC
+    private static final byte EBCDIC_LETTER_OR_DIGIT = 0x2;
+    private static final byte WINDOWS_1252_CHARACTER = 0x4;  // Byte 0x80-0x9F of windows-1252 that is not a C1 control character of ISO-8859-1
+    private static final byte[] LEGACY_BYTE_CLASSES = new byte[256];
+
+    static {
+        for (int b = 0x40; b != 0xFF; ++b) {
+            LEGACY_BYTE_CLASSES[b] = EBCDIC_TEXT;
+        }
+        for (int b : new int[]{0x05 /* HT */, 0x0C /* FF */, 0x0D /* CR */, 0x15 /* NL */, 0x25 /* LF */}) {
+            LEGACY_BYTE_CLASSES[b] = EBCDIC_TEXT;
+        }
+        // a-i, j-r, s-z, A-I, J-R, S-Z and 0-9
+        for (int[] range : new int[][]{{0x81, 0x89}, {0x91, 0x99}, {0xA2, 0xA9}, {0xC1, 0xC9}, {0xD1, 0xD9}, {0xE2, 0xE9}, {0xF0, 0xF9}}) {
+            for (int b = range[0]; b <= range[1]; ++b) {
+                LEGACY_BYTE_CLASSES[b] |= EBCDIC_LETTER_OR_DIGIT;
+            }
+        }
+        for (int b = 0x80; b != 0xA0; ++b) {
+            if (b != 0x81 && b != 0x8D && b != 0x8F && b != 0x90 && b != 0x9D) {
+                LEGACY_BYTE_CLASSES[b] |= WINDOWS_1252_CHARACTER;
+            }
+        }
+    }
+
     private FileEncodingUtils() {
     }
 
@@ -71,11 +181,38 @@ public class FileEncodingUtils {
      * of the BOM that has been found, if any, or will be set to 0 otherwise.
      */
     public static Charset getOrGuessEncoding(File file, boolean[] isCertain, int[] bomLength) throws IOException {
+        return getOrGuessEncoding(file, isCertain, bomLength, null);
+    }
+
+    /**
+     * Same as {@link FileEncodingUtils#getOrGuessEncoding(File, boolean[], int[])}, except that
+     * if {@code isBinary} is non-null, then this output arg. tells whether the file is said to be
+     * binary rather than text by {@link FileEncodingUtils#isBinarySample(byte[], int, Charset)}
+     * from the same sample as the one the encoding is guessed from.
+     */
+    public static Charset getOrGuessEncoding(File file, boolean[] isCertain, int[] bomLength, boolean[] isBinary) throws IOException {
+        return getOrGuessEncoding(file, isCertain, bomLength, isBinary, null);
+    }
+
+    /**
+     * Same as above, except that if {@code confidence} is non-null, then this output arg. gives
+     * the confidence in the returned encoding, from 0 to 1: 1 if it is certain thanks to a BOM or
+     * to the validation of the whole file, and the closer to 1 the more of the file has been
+     * validated, or the more non-ASCII characters have been validated as UTF-8 (q.v.
+     * getConfidence(...)); {@code isCertain} tells whether it reaches a threshold.<p>
+     * If the sample is inconclusive, i.e. ASCII that any ASCII-compatible encoding would give,
+     * two more windows of the same size are read in the middle and at the tail of the file
+     * thanks to positioned reads, the encoding being guessed from the first of them that is not
+     * ASCII, if any, so that an ASCII header (license, imports...) doesn't hide the encoding of
+     * the text that follows.
+     */
+    public static Charset getOrGuessEncoding(File file, boolean[] isCertain, int[] bomLength, boolean[] isBinary, float[] confidence) throws IOException {
         // Performance measures have shown that it doesn't worth having a dedicated method
         // that takes a FileInputStream or a RandomAccessFile in argument so that the File
         // resource would be left open after this method will have returned the encoding.
-        try (FileInputStream fis = new FileInputStream(file)) {
-            byte[] file1stBytes = new byte[Math.max(BOM_REQUIRED_NUMBER_OF_BYTES, SAMPLING_READ_NUMBER_OF_BYTES)];
+        try (IoBufferPool.Buffers buffers = IoBufferPool.acquire();
+             FileInputStream fis = new FileInputStream(file)) {
+            byte[] file1stBytes = buffers.sampleByteArray(Math.max(BOM_REQUIRED_NUMBER_OF_BYTES, SAMPLING_READ_NUMBER_OF_BYTES));
             int bomReadByteCount = fis.read(file1stBytes, 0, BOM_REQUIRED_NUMBER_OF_BYTES);
             if (bomReadByteCount <= 0) {
                 // An empty file is, by convention, said to be UTF-8 encoded so that no
@@ -86,6 +223,12 @@ public class FileEncodingUtils {
                 if (bomLength != null) {
                     bomLength[0] = 0;
                 }
+                if (isBinary != null) {
+                    isBinary[0] = false;
+                }
+                if (confidence != null) {
+                    confidence[0] = 1f;
+                }
                 return UTF_8;
             }
             Charset result = getEncodingFromBom(file1stBytes, bomReadByteCount);
@@ -97,23 +240,255 @@ public class FileEncodingUtils {
                 if (bomLength != null) {
                     bomLength[0] = getBomLength(result);
                 }
+                if (isBinary != null) {
+                    isBinary[0] = false;
+                }
+                if (confidence != null) {
+                    confidence[0] = 1f;
+                }
                 return result;
             }
             int moreReadByteCount = fis.read(file1stBytes, bomReadByteCount, SAMPLING_READ_NUMBER_OF_BYTES - bomReadByteCount);
             int sampleLength = moreReadByteCount > 0 ? bomReadByteCount + moreReadByteCount : bomReadByteCount;
-            long fileLength = file.length();
-            result = getGuessedEncodingFromSample(file1stBytes, sampleLength, fileLength);
+            return getGuessedEncoding(file1stBytes, sampleLength, fis.getChannel(), file.length(), isCertain, bomLength, isBinary, confidence);
+        }
+    }
+
+    /**
+     * Same as {@link FileEncodingUtils#getOrGuessEncoding(File, boolean[], int[])}, except
+     * that the BOM and the sample are the {@code nbOfBytes} first bytes of the file, already
+     * read in {@code file1stBytes} by the caller, and whose length is {@code fileLength}.<p>
+     * This allows reading the first bytes of a file only once, both for getting its encoding
+     * and for counting its lines; the results are the same as those of the overload taking a
+     * {@code File} provided that {@code nbOfBytes} is the length of the file, or is at least
+     * {@link FileEncodingUtils#SAMPLING_READ_NUMBER_OF_BYTES} (the bytes beyond are ignored).
+     */
+    public static Charset getOrGuessEncoding(byte[] file1stBytes, int nbOfBytes, long fileLength, boolean[] isCertain, int[] bomLength) {
+        return getOrGuessEncoding(file1stBytes, nbOfBytes, fileLength, isCertain, bomLength, null);
+    }
+
+    /**
+     * Same as above, {@code isBinary} being the output arg. of
+     * {@link FileEncodingUtils#getOrGuessEncoding(File, boolean[], int[], boolean[])}.
+     */
+    public static Charset getOrGuessEncoding(byte[] file1stBytes, int nbOfBytes, long fileLength, boolean[] isCertain, int[] bomLength, boolean[] isBinary) {
+        return getOrGuessEncoding(file1stBytes, nbOfBytes, null, fileLength, isCertain, bomLength, isBinary, null);
+    }
+
+    /**
+     * Same as above, {@code confidence} being the output arg. of
+     * {@link FileEncodingUtils#getOrGuessEncoding(File, boolean[], int[], boolean[], float[])},
+     * and {@code channel} being {@code null} or the channel of the file, whose position is left
+     * unchanged, for reading more windows of the file if the sample is inconclusive.
+     */
+    public static Charset getOrGuessEncoding(byte[] file1stBytes, int nbOfBytes, FileChannel channel, long fileLength, boolean[] isCertain, int[] bomLength, boolean[] isBinary, float[] confidence) {
+        if (nbOfBytes <= 0) {
+            // An empty file is, by convention, said to be UTF-8 encoded so that no
+            // "unknown" encoding will be reported in stats. because of empty files
             if (isCertain != null) {
-                // If an encoding could be guessed, and that encoding is not a single-byte one
-                // into which most probably any sequence of bytes can be encoded, and encoding
-                // attempt has succeeded for the entire file, then the guess is said certain.
-                isCertain[0] = result != null && !result.equals(ISO_8859_1) && sampleLength == fileLength;
+                isCertain[0] = true;
             }
             if (bomLength != null) {
                 bomLength[0] = 0;
             }
+            if (isBinary != null) {
+                isBinary[0] = false;
+            }
+            if (confidence != null) {
+                confidence[0] = 1f;
+            }
+            return UTF_8;
+        }
+        Charset result = getEncodingFromBom(file1stBytes, Math.min(nbOfBytes, BOM_REQUIRED_NUMBER_OF_BYTES));
+        if (result != null) {
+            if (isCertain != null) {
+                // BOM found: encoding is certain
+                isCertain[0] = true;
+            }
+            if (bomLength != null) {
+                bomLength[0] = getBomLength(result);
+            }
+            if (isBinary != null) {
+                isBinary[0] = false;
+            }
+            if (confidence != null) {
+                confidence[0] = 1f;
+            }
             return result;
         }
+        return getGuessedEncoding(file1stBytes, Math.min(nbOfBytes, SAMPLING_READ_NUMBER_OF_BYTES), channel, fileLength, isCertain, bomLength, isBinary, confidence);
+    }
+
+    /**
+     * @return the encoding guessed from the sample of a file having no BOM, and from more windows
+     * of the file read from {@code channel} if it is non-null and the sample is inconclusive,
+     * setting the output args. of {@link FileEncodingUtils#getOrGuessEncoding(File, boolean[], int[], boolean[], float[])}.
+     */
+    private static Charset getGuessedEncoding(byte[] sampleBytes, int sampleLength, FileChannel channel, long fileLength,
+                                              boolean[] isCertain, int[] bomLength, boolean[] isBinary, float[] confidence) {
+        int[] nbOfMultiByteSequences = new int[1];
+        Charset result = getGuessedEncodingFromSample(sampleBytes, sampleLength, fileLength, sampleLength == fileLength, nbOfMultiByteSequences);
+        boolean isBinarySample = (isBinary != null || channel != null) && isBinarySample(sampleBytes, sampleLength, result);
+        if (isBinary != null) {
+            isBinary[0] = isBinarySample;
+        }
+        long[] nbOfSampledBytes = {sampleLength};
+        if (channel != null && !isBinarySample && UTF_8.equals(result) && nbOfMultiByteSequences[0] == 0 && sampleLength < fileLength) {
+            result = getGuessedEncodingFromMoreWindows(channel, fileLength, nbOfSampledBytes, nbOfMultiByteSequences);
+        }
+        float resultConfidence = getConfidence(result, nbOfSampledBytes[0], fileLength, nbOfMultiByteSequences[0]);
+        if (isCertain != null) {
+            // If an encoding could be guessed, and that encoding is not a single-byte one
+            // into which most probably any sequence of bytes can be encoded, nor a legacy one
+            // guessed from statistics, i.e. if it is one of the encodings having a BOM, and
+            // encoding attempt has succeeded for the entire file, or for enough non-ASCII
+            // characters of its sampled windows, then the guess is said certain.
+            isCertain[0] = resultConfidence >= THRESHOLD_CONFIDENCE_OF_CERTAIN_GUESSES;
+        }
+        if (bomLength != null) {
+            bomLength[0] = 0;
+        }
+        if (confidence != null) {
+            confidence[0] = resultConfidence;
+        }
+        return result;
+    }
+
+    /**
+     * @return the encoding guessed from the windows of SAMPLING_READ_NUMBER_OF_BYTES bytes read from
+     * {@code channel} in the middle and at the tail of a file whose sample, i.e. its 1st window, is
+     * ASCII: UTF-8 if they are UTF-8 (or ASCII) as well, or else the encoding guessed from the 1st
+     * window that is not. {@code nbOfSampledBytes} and {@code nbOfMultiByteSequences} are in-out
+     * args. accumulating the bytes read and the multi-bytes sequences validated as UTF-8.<p>
+     * The windows being only a hint, a read failing leaves the guess made from the windows read
+     * so far, the failure being met again, and reported, by the counting of the lines.
+     */
+    private static Charset getGuessedEncodingFromMoreWindows(FileChannel channel, long fileLength, long[] nbOfSampledBytes, int[] nbOfMultiByteSequences) {
+        long middleWindowStart = Math.max(nbOfSampledBytes[0], fileLength / 2 - SAMPLING_READ_NUMBER_OF_BYTES / 2);
+        long tailWindowStart = Math.max(middleWindowStart + SAMPLING_READ_NUMBER_OF_BYTES, fileLength - SAMPLING_READ_NUMBER_OF_BYTES);
+        int[] nbOfWindowMultiByteSequences = new int[1];
+        try (IoBufferPool.Buffers buffers = IoBufferPool.acquire()) {
+            ByteBuffer window = buffers.byteBuffer(SAMPLING_READ_NUMBER_OF_BYTES);
+            byte[] windowBytes = window.array();
+            for (long windowStart : new long[]{middleWindowStart, tailWindowStart}) {
+                if (windowStart >= fileLength) {
+                    break;
+                }
+                // Positioned reads, which leave the position of the channel, and so of the stream
+                // the lines are counted from, unchanged
+                window.clear().limit((int) Math.min(SAMPLING_READ_NUMBER_OF_BYTES, fileLength - windowStart));
+                int nbReadBytes = 0;
+                while (window.hasRemaining() && nbReadBytes >= 0) {
+                    // Until the window is full, or the end of a file shorter than it used to be
+                    nbReadBytes = channel.read(window, windowStart + window.position());
+                }
+                int windowLength = window.position();
+                nbOfSampledBytes[0] += windowLength;
+                boolean endOfInput = windowStart + windowLength == fileLength;
+                Charset windowEncoding = getGuessedEncodingOfWindow(windowBytes, windowLength, fileLength, endOfInput, nbOfWindowMultiByteSequences);
+                if (UTF_8.equals(windowEncoding)) {
+                    nbOfMultiByteSequences[0] += nbOfWindowMultiByteSequences[0];
+                } else if (windowEncoding != null && !windowEncoding.name().startsWith("UTF-16") && !windowEncoding.name().startsWith("UTF-32")) {
+                    // The code units of UTF-16 or UTF-32 following an ASCII window are binary data
+                    // embedded in a text file rather than the encoding of the file, and are ignored
+                    nbOfMultiByteSequences[0] = 0;
+                    return windowEncoding;
+                }
+            }
+        } catch (IOException e) {
+            // The guess made so far stands (q.v. above)
+        }
+        return UTF_8;
+    }
+
+    /**
+     * @return the encoding guessed from the {@code windowLength} first bytes of {@code windowBytes},
+     * read from the middle of a file, which may start in the middle of a multi-bytes character: the
+     * window is made to start after its 1st line break, LF and CR being whole characters of UTF-8 as
+     * well as of the legacy multi-bytes encodings (whose trailing bytes are >= 0x30, 0x30-0x39 being
+     * the 2nd and 4th bytes of the 4-bytes sequences of GB18030), or, for a window without line
+     * break, after the 0 to 3 leading bytes (the tail of a character is at most 3 bytes long) giving
+     * the best guess: UTF-8, then the other validated encodings, then the legacy code pages, then
+     * ISO-8859-1, the fewest bytes being skipped among equal guesses. The bytes of the window are
+     * shifted by the bytes skipped.
+     */
+    private static Charset getGuessedEncodingOfWindow(byte[] windowBytes, int windowLength, long fileLength, boolean endOfInput, int[] nbOfMultiByteSequences) {
+        int lineBreak = 0;
+        while (lineBreak != windowLength && windowBytes[lineBreak] != '\n' && windowBytes[lineBreak] != '\r') {
+            ++lineBreak;
+        }
+        if (lineBreak != windowLength) {
+            System.arraycopy(windowBytes, lineBreak + 1, windowBytes, 0, windowLength - lineBreak - 1);
+            return getGuessedEncodingFromSample(windowBytes, windowLength - lineBreak - 1, fileLength, endOfInput, nbOfMultiByteSequences);
+        }
+        Charset windowEncoding = null;
+        int windowEncodingRank = -1;
+        for (int nbOfSkippedBytes = 0; nbOfSkippedBytes <= Math.min(3, windowLength - 1); ++nbOfSkippedBytes) {
+            if (nbOfSkippedBytes != 0) {
+                System.arraycopy(windowBytes, 1, windowBytes, 0, windowLength - nbOfSkippedBytes);
+            }
+            Charset encoding = getGuessedEncodingFromSample(windowBytes, windowLength - nbOfSkippedBytes, fileLength, endOfInput, nbOfMultiByteSequences);
+            if (UTF_8.equals(encoding)) {
+                // nbOfMultiByteSequences is that of this guess
+                return encoding;
+            }
+            int encodingRank = encoding == null || ISO_8859_1.equals(encoding) ? 0 : getBomLength(encoding) > 0 ? 2 : 1;
+            if (encodingRank > windowEncodingRank) {
+                windowEncoding = encoding;
+                windowEncodingRank = encodingRank;
+            }
+        }
+        return windowEncoding;
+    }
+
+    /**
+     * @return the confidence, from 0 to 1, in the encoding {@code guessedEncoding} guessed from
+     * {@code nbOfSampledBytes} bytes of a file {@code fileLength} bytes long, among which
+     * {@code nbOfMultiByteSequences} multi-bytes sequences have been validated as UTF-8:<p>
+     * -the encodings that are validated (UTF-8, UTF-16, UTF-32 and GB-18030) are all the more
+     *  likely that the sampled bytes cover the file, the risk left by the bytes that have not been
+     *  sampled being divided by the improbability of the validated UTF-8 multi-bytes sequences,
+     * -the legacy code pages guessed from statistics, and ISO-8859-1 that any sequence of bytes is,
+     *  are at most CONFIDENCE_OF_STATISTICAL_GUESSES, so that they are never said certain.
+     */
+    private static float getConfidence(Charset guessedEncoding, long nbOfSampledBytes, long fileLength, int nbOfMultiByteSequences) {
+        if (guessedEncoding == null) {
+            return 0f;
+        }
+        double coverage = fileLength > 0 ? Math.min(1.0, (double) nbOfSampledBytes / fileLength) : 1.0;
+        if (getBomLength(guessedEncoding) <= 0) {
+            return (float) (CONFIDENCE_OF_STATISTICAL_GUESSES * coverage);
+        }
+        return (float) (1.0 - (1.0 - coverage) * Math.pow(PROBABILITY_OF_FORTUITOUS_UTF_8_SEQUENCE, nbOfMultiByteSequences));
+    }
+
+    /**
+     * @return whether the file whose sample, i.e. its first bytes, consists of the {@code sampleLength}
+     * first bytes of {@code sampleBytes}, and from which {@code guessedEncoding} has been guessed
+     * ({@code null} if none), is binary (executable, image, archive...) rather than text: as done
+     * by git and al., a sample having 0x0 that are not those of UTF-16 or UTF-32 code units is
+     * binary, and so is a sample full of control characters. A file having a BOM is text.
+     */
+    public static boolean isBinarySample(byte[] sampleBytes, int sampleLength, Charset guessedEncoding) {
+        if (guessedEncoding == null) {
+            return sampleLength > 0;
+        }
+        String encodingName = guessedEncoding.name();
+        if (encodingName.startsWith("UTF-16") || encodingName.startsWith("UTF-32")) {
+            // The 0x0 of the sample have been found to be those of the code units
+            return false;
+        }
+        int nbOfControlCharacters = 0;
+        for (int i = 0; i != sampleLength; ++i) {
+            int b = sampleBytes[i];
+            if (b == 0) {
+                return true;
+            }
+            if ((b < 0x20 && b >= 0 && b != '\t' && b != '\n' && b != '\r' && b != '\f' && b != '\b' && b != 0x1B) || b == 0x7F) {
+                ++nbOfControlCharacters;
+            }
+        }
+        return nbOfControlCharacters > THRESHOLD_DENSITY_OF_CONTROL_CHARACTERS * sampleLength;
     }
 
     /**
@@ -221,24 +596,53 @@ public class FileEncodingUtils {
 
     /**
      * @return the said "guessed" encoding if one could be determined by analysis
-     * of the beginning of the file, or {@code null} if file encoding is unknown.
+     * of the beginning of the file, or {@code null} if file encoding is unknown.<p>
+     * The sample is validated as UTF-32, UTF-16 and UTF-8 by the hand-written validators
+     * below, which accept exactly what the decoders of the JDK accept, so that guessing the
+     * encoding of millions of files neither allocates nor decodes anything; the decoder of
+     * the JDK is used only for GB-18030, which is tried for the rare samples having 0x0.
      */
     private static Charset getGuessedEncodingFromSample(byte[] sampleBytes, int sampleLength, long fileLength) {
+        return getGuessedEncodingFromSample(sampleBytes, sampleLength, fileLength, sampleLength == fileLength, null);
+    }
+
+    /**
+     * Same as above for a sample ending the file if {@code sampleMakesTheWholeFile} (for e.g. the
+     * tail window of the file), {@code nbOfMultiByteSequences} being {@code null} or an output arg.
+     * set to the number of multi-bytes sequences of the sample if it is guessed to be UTF-8.
+     */
+    private static Charset getGuessedEncodingFromSample(byte[] sampleBytes, int sampleLength, long fileLength, boolean sampleMakesTheWholeFile, int[] nbOfMultiByteSequences) {
         if (sampleLength <= 0) {
             return null;
         }
 
-        int nbOf0x0 = 0;
-        for (int i = 0; i != sampleLength; ++i) {
+        // Count the 0x0 at each byte index modulo 4 in one pass, 8 bytes per step: the highest bit
+        // of each byte of zeroMask is set if and only if that byte is 0x0 (without false positive,
+        // since adding 0x7F to the low 7 bits of a byte cannot carry into the next byte)
+        int nbOf0x0AtIndex0 = 0, nbOf0x0AtIndex1 = 0, nbOf0x0AtIndex2 = 0, nbOf0x0AtIndex3 = 0;
+        int i = 0;
+        for (; i <= sampleLength - 8; i += 8) {
+            long word = (long) LONG_VIEW.get(sampleBytes, i);
+            long zeroMask = ~(((word & LOW_7_BITS_OF_EVERY_BYTE) + LOW_7_BITS_OF_EVERY_BYTE) | word | LOW_7_BITS_OF_EVERY_BYTE);
+            if (zeroMask != 0) {
+                // i being a multiple of 8, bytes 0 and 4 of the long are at index 0 modulo 4, etc.
+                nbOf0x0AtIndex0 += Long.bitCount(zeroMask & 0x0000008000000080L);
+                nbOf0x0AtIndex1 += Long.bitCount(zeroMask & 0x0000800000008000L);
+                nbOf0x0AtIndex2 += Long.bitCount(zeroMask & 0x0080000000800000L);
+                nbOf0x0AtIndex3 += Long.bitCount(zeroMask & 0x8000000080000000L);
+            }
+        }
+        for (; i != sampleLength; ++i) {
             if (sampleBytes[i] == 0) {
-                ++nbOf0x0;
+                switch (i & 3) {
+                    case 0: ++nbOf0x0AtIndex0; break;
+                    case 1: ++nbOf0x0AtIndex1; break;
+                    case 2: ++nbOf0x0AtIndex2; break;
+                    default: ++nbOf0x0AtIndex3; break;
+                }
             }
         }
-
-        // Avoids re-allocations if several encodings are checked to be the right one...
-        ByteBuffer wrappedSampleWith0x0 = ByteBuffer.wrap(sampleBytes, 0, sampleLength);
-        CharBuffer decodingBuffer = CharBuffer.wrap(new char[sampleLength * 2 /* x2 is by safety, Ok because samples are small */]);
-        boolean sampleMakesTheWholeFile = sampleLength == fileLength;
+        int nbOf0x0 = nbOf0x0AtIndex0 + nbOf0x0AtIndex1 + nbOf0x0AtIndex2 + nbOf0x0AtIndex3;
 
         if (nbOf0x0 != 0) {
             float densityOf0x0 = (float) nbOf0x0 / (float) sampleLength;
@@ -247,24 +651,15 @@ public class FileEncodingUtils {
                 // -most probably UTF-32, and the position of the 0x0 gives the Endianness
                 // -if density is exactly 75%, most probably UTF-32 containing only ASCII
                 //  as for example "xyz" encoded as "x000y000z000" or "000x000y000z"
-                int[] nbOfZerosPerByteIndex = {0, 0, 0, 0};
-                for (int i = 0; i != sampleLength; ++i) {
-                    if (sampleBytes[i] == 0) {
-                        ++(nbOfZerosPerByteIndex[i & 3]);
-                    }
-                }
                 // Endianness is initially guessed thanks to the output of the following code:
                 // "A".getBytes(UTF_32LE) -> [65, 0, 0,  0] BMP characters are at index 0 and 1
                 // "A".getBytes(UTF_32BE) -> [ 0, 0, 0, 65] BMP characters are at index 2 and 3
-                int nbOfZerosForBytes01 = nbOfZerosPerByteIndex[0] + nbOfZerosPerByteIndex[1];
-                int nbOfZerosForBytes23 = nbOfZerosPerByteIndex[2] + nbOfZerosPerByteIndex[3];
-                Charset guessedEncoding = nbOfZerosForBytes23 > nbOfZerosForBytes01 ? UTF_32LE : UTF_32BE;
-                if (isEncodingSuccessful(guessedEncoding, wrappedSampleWith0x0, decodingBuffer, sampleMakesTheWholeFile)) {
-                    return guessedEncoding;
+                boolean bigEndian = nbOf0x0AtIndex2 + nbOf0x0AtIndex3 <= nbOf0x0AtIndex0 + nbOf0x0AtIndex1;
+                if (isValidUtf32(sampleBytes, sampleLength, bigEndian, sampleMakesTheWholeFile)) {
+                    return bigEndian ? UTF_32BE : UTF_32LE;
                 }
-                guessedEncoding = guessedEncoding.equals(UTF_32LE) ? UTF_32BE : UTF_32LE;
-                if (isEncodingSuccessful(guessedEncoding, wrappedSampleWith0x0, decodingBuffer, sampleMakesTheWholeFile)) {
-                    return guessedEncoding;
+                if (isValidUtf32(sampleBytes, sampleLength, !bigEndian, sampleMakesTheWholeFile)) {
+                    return bigEndian ? UTF_32LE : UTF_32BE;
                 }
                 // Not UTF-32: continuation of the execution flow
                 // will try with UTF-16 if file length is even...
@@ -275,22 +670,15 @@ public class FileEncodingUtils {
                 // -most probably UTF-16, and the position of the 0x0 gives the Endianness
                 // -if density is exactly 50%, most probably UTF-16 containing only ASCII
                 //  as for example "abcde" encoded as "a0b0c0d0e0" or "0a0b0c0d0e"
-                int[] nbOfZerosPerByteIndex = {0, 0};
-                for (int i = 0; i != sampleLength; ++i) {
-                    if (sampleBytes[i] == 0) {
-                        ++(nbOfZerosPerByteIndex[i & 1]);
-                    }
-                }
                 // Endianness is initially guessed thanks to the output of the following code:
                 // "A".getBytes(UTF_16LE) -> [65, 0] ASCII characters are at index 0
                 // "A".getBytes(UTF_16BE) -> [0, 65] ASCII characters are at index 1
-                Charset guessedEncoding = nbOfZerosPerByteIndex[1] > nbOfZerosPerByteIndex[0] ? UTF_16LE : UTF_16BE;
-                if (isEncodingSuccessful(guessedEncoding, wrappedSampleWith0x0, decodingBuffer, sampleMakesTheWholeFile)) {
-                    return guessedEncoding;
+                boolean bigEndian = nbOf0x0AtIndex1 + nbOf0x0AtIndex3 <= nbOf0x0AtIndex0 + nbOf0x0AtIndex2;
+                if (isValidUtf16(sampleBytes, sampleLength, bigEndian, sampleMakesTheWholeFile)) {
+                    return bigEndian ? UTF_16BE : UTF_16LE;
                 }
-                guessedEncoding = guessedEncoding.equals(UTF_16LE) ? UTF_16BE : UTF_16LE;
-                if (isEncodingSuccessful(guessedEncoding, wrappedSampleWith0x0, decodingBuffer, sampleMakesTheWholeFile)) {
-                    return guessedEncoding;
+                if (isValidUtf16(sampleBytes, sampleLength, !bigEndian, sampleMakesTheWholeFile)) {
+                    return bigEndian ? UTF_16LE : UTF_16BE;
                 }
                 // Not UTF-16 (and maybe neither UTF-32 if this encoding was tried before also)
                 // Continuation of the execution flow will try with other encodings, in case the
@@ -298,58 +686,317 @@ public class FileEncodingUtils {
             }
         }
 
-        // As it happened to meet 0x0 in some Mainframe files, we replace them by
-        // blanks so that they won't disturb UTF-8 or ISO-xxx encoding detection.
-        // Since 0x0 and 0x20 are both ASCII, this transformation won't corrupt
-        // the sample if it is encoded in UTF-8 or ISO-8859-1.
-        ByteBuffer wrappedSampleWithout0x0;
-        if (nbOf0x0 != 0) {
-            byte[] sampleWithout0x0 = new byte[sampleLength]; // no call to clone() because sampleLength can be < sampleBytes.length()
-            for (int i = 0; i != sampleLength; ++i) {
-                sampleWithout0x0[i] = sampleBytes[i] == 0x0 ? (byte) 0x20 : sampleBytes[i];
+        // As it happened to meet 0x0 in some Mainframe files, they must not disturb UTF-8
+        // detection: being ASCII, they are accepted by the UTF-8 validator as blanks would be.
+        int nbOfUtf8MultiByteSequences = countUtf8MultiByteSequences(sampleBytes, sampleLength, sampleMakesTheWholeFile);
+        if (nbOfUtf8MultiByteSequences >= 0) {
+            if (nbOfMultiByteSequences != null) {
+                nbOfMultiByteSequences[0] = nbOfUtf8MultiByteSequences;
             }
-            wrappedSampleWithout0x0 = ByteBuffer.wrap(sampleWithout0x0, 0, sampleLength);
-        } else {
-            // wrappedSampleWith0x0 already does not contain any 0x0
-            wrappedSampleWithout0x0 = wrappedSampleWith0x0;
+            return UTF_8;
         }
 
-        // Check for various multi-bytes encodings, then single-byte encodings.
-        // Even though quite probably any sequence of bytes can be encoded into
-        // ISO_8859_1 because it's a single-byte encoding, we have a real try by
-        // safety. Also, since ISO_8859_1 is one of the few encodings defined in
-        // StandardCharsets, there are chances that this encoding is correct...
-        for (Charset triedEncoding : ImmutableList.of(UTF_8, GB_18030, ISO_8859_1)) {
-            // Detection of GB-18030 is done using the wrapped buffer having its
-            // genuine 0x0, and is attempted only if the sample contains at least
-            // a 0x0 because otherwise this encoding is confused with ISO_8859_1.
-            if (triedEncoding.equals(GB_18030) && nbOf0x0 == 0) {
-                continue;
-            }
-            ByteBuffer wrapped = triedEncoding.equals(GB_18030) ? wrappedSampleWith0x0 : wrappedSampleWithout0x0;
-            if (isEncodingSuccessful(triedEncoding, wrapped, decodingBuffer, sampleMakesTheWholeFile)) {
-                return triedEncoding;
+        // Detection of GB-18030 is done using the sample having its genuine 0x0, and is
+        // attempted only if the sample contains at least a 0x0 because otherwise this
+        // encoding is confused with ISO_8859_1.
+        if (nbOf0x0 != 0) {
+            try (IoBufferPool.Buffers buffers = IoBufferPool.acquire()) {
+                CharBuffer decodingBuffer = buffers.charBuffer(sampleLength * 2 /* x2 is by safety, Ok because samples are small */);
+                if (isEncodingSuccessful(buffers.decoder(GB_18030), ByteBuffer.wrap(sampleBytes, 0, sampleLength), decodingBuffer, sampleMakesTheWholeFile)) {
+                    return GB_18030;
+                }
             }
         }
 
-        // Encoding may be any single-byte encoding like ISO-8859-N, or a multi-bytes one.
+        // Legacy code pages, which cannot be validated, but only guessed from the frequencies of
+        // the bytes of the sample, so that the lines of EBCDIC files are counted from their own
+        // line breaks, and the multi-bytes encodings are not taken for a single-byte one
+        Charset legacyEncoding = getGuessedLegacyEncoding(sampleBytes, sampleLength, sampleMakesTheWholeFile);
+        if (legacyEncoding != null) {
+            return legacyEncoding;
+        }
+
+        // Any sequence of bytes can be decoded as ISO_8859_1, since it is a single-byte encoding
+        // mapping all the 256 bytes. Also, since ISO_8859_1 is one of the few encodings defined in
+        // StandardCharsets, there are chances that this encoding is correct...
+        // The encoding may however be any single-byte encoding like ISO-8859-N, or a multi-bytes one.
         // A smart detection could consist in trying to encode the sample in every of the
         // multi-bytes encodings that can be enumerated by the Charset class until one
         // succeeds, then in every of the single-byte encodings, but doing so is out of
         // the scope of what this class is currently designed for (i.e. line counting).
-        return null;
+        return ISO_8859_1;
+    }
+
+    /**
+     * @return the legacy code page whose byte frequencies the sample, which is not UTF-8, fits
+     * best, or {@code null} if it fits none of them: EBCDIC (037 or 1047), EUC-KR, Shift_JIS,
+     * windows-1251 or windows-1252. The frequencies are counted in one pass scoring each byte
+     * against LEGACY_BYTE_CLASSES, the multi-bytes encodings being validated by their own pass
+     * only if the sample has the bytes >= 0x80 they are made of.
+     */
+    private static Charset getGuessedLegacyEncoding(byte[] sampleBytes, int sampleLength, boolean endOfInput) {
+        int nbOfEbcdicTextBytes = 0;
+        int nbOfEbcdicLettersAndDigits = 0;
+        int nbOfEbcdicSpaces = 0;
+        int nbOfIbm037Brackets = 0;
+        int nbOfIbm1047Brackets = 0;
+        int nbOfHighBytes = 0;              // Bytes >= 0x80
+        int nbOfCyrillicLetterRuns = 0;     // Bytes 0xC0-0xFF of windows-1251 following such a byte
+        int nbOfCyrillicLetters = 0;
+        int nbOfWindows1252Characters = 0;  // Bytes 0x80-0x9F that are characters of windows-1252
+        int nbOfBytesUndefinedInWindows1252 = 0;
+        boolean previousIsCyrillicLetter = false;
+        for (int i = 0; i != sampleLength; ++i) {
+            int b = sampleBytes[i] & 0xFF;
+            int byteClasses = LEGACY_BYTE_CLASSES[b];
+            if ((byteClasses & EBCDIC_TEXT) != 0) {
+                ++nbOfEbcdicTextBytes;
+                if ((byteClasses & EBCDIC_LETTER_OR_DIGIT) != 0) {
+                    ++nbOfEbcdicLettersAndDigits;
+                }
+            }
+            switch (b) {
+                case 0x40: ++nbOfEbcdicSpaces; break;
+                case 0xBA: case 0xBB: ++nbOfIbm037Brackets; break;
+                case 0xAD: case 0xBD: ++nbOfIbm1047Brackets; break;
+                default: break;
+            }
+            boolean isCyrillicLetter = b >= 0xC0;
+            if (b >= 0x80) {
+                ++nbOfHighBytes;
+                if (isCyrillicLetter) {
+                    ++nbOfCyrillicLetters;
+                    if (previousIsCyrillicLetter) {
+                        ++nbOfCyrillicLetterRuns;
+                    }
+                } else if ((byteClasses & WINDOWS_1252_CHARACTER) != 0) {
+                    ++nbOfWindows1252Characters;
+                } else if (b < 0xA0) {
+                    ++nbOfBytesUndefinedInWindows1252;
+                }
+            }
+            previousIsCyrillicLetter = isCyrillicLetter;
+        }
+
+        // EBCDIC: letters, digits and spaces, whose bytes are >= 0x40, whereas the spaces, digits
+        // and most of the punctuations of ASCII, in 0x20-0x3F, are control characters of EBCDIC
+        if (nbOfEbcdicTextBytes >= THRESHOLD_DENSITY_OF_EBCDIC_TEXT * sampleLength
+                && nbOfEbcdicSpaces >= THRESHOLD_DENSITY_OF_EBCDIC_SPACES * sampleLength
+                && nbOfEbcdicLettersAndDigits >= THRESHOLD_DENSITY_OF_EBCDIC_LETTERS_AND_DIGITS * sampleLength) {
+            // The brackets are the most frequent characters told apart by the two code pages
+            return nbOfIbm1047Brackets > nbOfIbm037Brackets ? IBM_1047 : IBM_037;
+        }
+        if (nbOfHighBytes == 0) {
+            return null;
+        }
+
+        // Multi-bytes encodings, whose characters are mostly those of the same few lead bytes
+        if (getDensityOfFrequentEucKrCharacters(sampleBytes, sampleLength, endOfInput) >= THRESHOLD_DENSITY_OF_FREQUENT_CHARACTERS) {
+            return EUC_KR;
+        }
+        if (getDensityOfFrequentShiftJisCharacters(sampleBytes, sampleLength, endOfInput) >= THRESHOLD_DENSITY_OF_FREQUENT_CHARACTERS) {
+            return SHIFT_JIS;
+        }
+
+        // Cyrillic words are made of runs of bytes >= 0xC0, whereas the accented letters of
+        // windows-1252 and ISO-8859-1 are mostly single letters among ASCII letters
+        if (nbOfCyrillicLetters >= THRESHOLD_DENSITY_OF_CYRILLIC_LETTERS * nbOfHighBytes
+                && nbOfCyrillicLetterRuns >= THRESHOLD_DENSITY_OF_CYRILLIC_LETTER_RUNS * nbOfCyrillicLetters) {
+            return WINDOWS_1251;
+        }
+        // The typographic quotes, dashes, ellipsis, euro sign & al. of windows-1252 are C1 control
+        // characters of ISO-8859-1, which are never met in text files
+        return nbOfWindows1252Characters != 0 && nbOfBytesUndefinedInWindows1252 == 0 ? WINDOWS_1252 : null;
+    }
+
+    /**
+     * @return 0 if the sample is not EUC-KR encoded, or else the density of the characters
+     * of 2 bytes whose lead byte is that of the Hangul syllables (0xB0-0xC8) among all of them.
+     */
+    private static float getDensityOfFrequentEucKrCharacters(byte[] sampleBytes, int sampleLength, boolean endOfInput) {
+        int nbOfDoubleByteCharacters = 0;
+        int nbOfHangulSyllables = 0;
+        for (int i = 0; i != sampleLength; ++i) {
+            int lead = sampleBytes[i] & 0xFF;
+            if (lead < 0x80) {
+                continue;
+            }
+            if (lead < 0xA1 || lead == 0xFF) {
+                return 0;
+            }
+            if (++i == sampleLength) {
+                // Lead byte cut by the end of the sample
+                if (endOfInput) {
+                    return 0;
+                }
+                break;
+            }
+            int trail = sampleBytes[i] & 0xFF;
+            if (trail < 0xA1 || trail == 0xFF) {
+                return 0;
+            }
+            ++nbOfDoubleByteCharacters;
+            if (lead >= 0xB0 && lead <= 0xC8) {
+                ++nbOfHangulSyllables;
+            }
+        }
+        return nbOfDoubleByteCharacters != 0 ? (float) nbOfHangulSyllables / nbOfDoubleByteCharacters : 0;
+    }
+
+    /**
+     * @return 0 if the sample is not Shift_JIS encoded, or else the density of the characters
+     * of 2 bytes whose lead byte is that of the symbols, kana and level 1 kanji (0x81-0x9F)
+     * among all of them, the half-width katakana of a single byte (0xA1-0xDF) having to be less
+     * frequent than the characters of 2 bytes, as they are in Japanese text.
+     */
+    private static float getDensityOfFrequentShiftJisCharacters(byte[] sampleBytes, int sampleLength, boolean endOfInput) {
+        int nbOfDoubleByteCharacters = 0;
+        int nbOfFrequentCharacters = 0;
+        int nbOfHalfWidthKatakana = 0;
+        for (int i = 0; i != sampleLength; ++i) {
+            int lead = sampleBytes[i] & 0xFF;
+            if (lead < 0x80) {
+                continue;
+            }
+            if (lead >= 0xA1 && lead <= 0xDF) {
+                ++nbOfHalfWidthKatakana;
+                continue;
+            }
+            if (lead == 0x80 || lead == 0xA0 || lead > 0xFC) {
+                return 0;
+            }
+            if (++i == sampleLength) {
+                // Lead byte cut by the end of the sample
+                if (endOfInput) {
+                    return 0;
+                }
+                break;
+            }
+            int trail = sampleBytes[i] & 0xFF;
+            if (trail < 0x40 || trail == 0x7F || trail > 0xFC) {
+                return 0;
+            }
+            ++nbOfDoubleByteCharacters;
+            if (lead <= 0x9F) {
+                ++nbOfFrequentCharacters;
+            }
+        }
+        return nbOfDoubleByteCharacters != 0 && nbOfHalfWidthKatakana <= nbOfDoubleByteCharacters
+                ? (float) nbOfFrequentCharacters / nbOfDoubleByteCharacters : 0;
+    }
+
+    /**
+     * @return whether the {@code length} first bytes of {@code bytes} are UTF-8 encoded, as told
+     * by the UTF-8 decoder of the JDK: a sequence of bytes cut by the end of the bytes is
+     * well-formed unless {@code endOfInput}, i.e. unless the bytes make the whole file.
+     */
+    static boolean isValidUtf8(byte[] bytes, int length, boolean endOfInput) {
+        return countUtf8MultiByteSequences(bytes, length, endOfInput) >= 0;
+    }
+
+    /**
+     * @return the number of multi-bytes sequences, i.e. of non-ASCII characters, of the {@code length}
+     * first bytes of {@code bytes} if they are UTF-8 encoded as told by isValidUtf8(...), a sequence
+     * cut by the end of the bytes included, or else -1.
+     */
+    private static int countUtf8MultiByteSequences(byte[] bytes, int length, boolean endOfInput) {
+        int nbOfMultiByteSequences = 0;
+        int i = 0;
+        while (i != length) {
+            // ASCII fast path, 8 bytes per step, which validates most of the bytes of source files
+            while (i <= length - 8 && ((long) LONG_VIEW.get(bytes, i) & HIGH_BIT_OF_EVERY_BYTE) == 0) {
+                i += 8;
+            }
+            if (i == length) {
+                break;
+            }
+            int lead = bytes[i] & 0xFF;
+            if (lead < 0x80) {
+                ++i;
+                continue;
+            }
+            int sequenceLength = UTF_8_SEQUENCE_LENGTHS[lead];
+            if (sequenceLength == 0) {
+                return -1;
+            }
+            ++nbOfMultiByteSequences;
+            int nbOfAvailableBytes = Math.min(sequenceLength, length - i);
+            if (nbOfAvailableBytes > 1) {
+                int secondByte = bytes[i + 1] & 0xFF;
+                // Unlike a whole sequence, a cut one starting with 0xED is not checked to encode
+                // a surrogate by the JDK, and neither is it here, for giving the same results
+                int maxSecondByte = nbOfAvailableBytes < sequenceLength && lead == 0xED ? 0xBF : UTF_8_MAX_SECOND_BYTES[lead];
+                if (secondByte < UTF_8_MIN_SECOND_BYTES[lead] || secondByte > maxSecondByte) {
+                    return -1;
+                }
+                for (int j = 2; j < nbOfAvailableBytes; ++j) {
+                    if ((bytes[i + j] & 0xC0) != 0x80) {
+                        return -1;
+                    }
+                }
+            }
+            if (nbOfAvailableBytes < sequenceLength) {
+                return endOfInput ? -1 : nbOfMultiByteSequences;
+            }
+            i += sequenceLength;
+        }
+        return nbOfMultiByteSequences;
+    }
+
+    /**
+     * @return whether the {@code length} first bytes of {@code bytes} are UTF-16 encoded, as
+     * told by the UTF-16BE or UTF-16LE decoder of the JDK: unpaired surrogates are malformed,
+     * whereas a code unit or a surrogate pair cut by the end of the bytes is not, unless
+     * {@code endOfInput}.
+     */
+    static boolean isValidUtf16(byte[] bytes, int length, boolean bigEndian, boolean endOfInput) {
+        VarHandle charView = bigEndian ? CHAR_VIEW_BE : CHAR_VIEW_LE;
+        int end = length & ~1;
+        for (int i = 0; i != end; i += 2) {
+            char c = (char) charView.get(bytes, i);
+            if (Character.isSurrogate(c)) {
+                if (Character.isLowSurrogate(c)) {
+                    return false;
+                }
+                if (i + 2 == end) {
+                    return !endOfInput;
+                }
+                i += 2;
+                if (!Character.isLowSurrogate((char) charView.get(bytes, i))) {
+                    return false;
+                }
+            }
+        }
+        return end == length || !endOfInput;
+    }
+
+    /**
+     * @return whether the {@code length} first bytes of {@code bytes} are UTF-32 encoded, as
+     * told by the UTF-32BE or UTF-32LE decoder of the JDK: code points beyond U+10FFFF are
+     * malformed, whereas a code unit cut by the end of the bytes is not, unless {@code endOfInput}.
+     */
+    static boolean isValidUtf32(byte[] bytes, int length, boolean bigEndian, boolean endOfInput) {
+        VarHandle intView = bigEndian ? INT_VIEW_BE : INT_VIEW_LE;
+        int end = length & ~3;
+        for (int i = 0; i != end; i += 4) {
+            if (Integer.compareUnsigned((int) intView.get(bytes, i), Character.MAX_CODE_POINT) > 0) {
+                return false;
+            }
+        }
+        return end == length || !endOfInput;
     }
 
     /**
-     * @return whether the bytes in {@code inputBytes} can be encoded into a certain encoding.<p>
-     * Note: if {@code triedEncoding} is a multi-bytes encoding, if the last character of the sample
+     * @return whether the bytes in {@code inputBytes} can be encoded into a certain encoding,
+     * that of the (pooled) {@code decoder}.<p>
+     * Note: if the tried encoding is a multi-bytes encoding, if the last character of the sample
      * has its sequence of bytes that is cut because of the buffer boundaries, then this method will
      * however return {@code true} because supplied {@code sampleMakesTheWholeFile} is {@code false}.
      */
-    private static boolean isEncodingSuccessful(Charset triedEncoding, ByteBuffer inputBytes, CharBuffer reusableSink, boolean sampleMakesTheWholeFile) {
-        inputBytes.clear();   // decoding will restart from the 1st byte; clear() does not actually erase the data in the buffer
+    private static boolean isEncodingSuccessful(CharsetDecoder decoder, ByteBuffer inputBytes, CharBuffer reusableSink, boolean sampleMakesTheWholeFile) {
         reusableSink.clear(); // necessary for being ready to receive some output issued from a new decoding attempt
-        CharsetDecoder decoder = triedEncoding.newDecoder().onUnmappableCharacter(CodingErrorAction.REPORT);
+        // Pooled decoders replace malformed input by default, whereas here any error must be reported
+        decoder.onMalformedInput(CodingErrorAction.REPORT).onUnmappableCharacter(CodingErrorAction.REPORT);
         CoderResult cr = decoder.decode(inputBytes, reusableSink, sampleMakesTheWholeFile);
         return !cr.isError(); // means "no malformed or unmappable characters were encountered"
     }
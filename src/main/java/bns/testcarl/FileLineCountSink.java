@@ -0,0 +1,22 @@
+package bns.testcarl;
+
+import java.io.File;
+import java.nio.charset.Charset;
+
+/**
+ * Sink to which {@link LineCountUtils} emits a record for each file whose lines have been
+ * counted, or whose count has failed ({@code lineCount} being -1 then), so that per-file
+ * results can be kept for millions of files without being held on the heap or logged
+ * (q.v. {@link ColumnarLineCountWriter}). It is called by the threads counting lines,
+ * and so must be thread-safe and return fast; the files left out because the counting
+ * has been stopped are not emitted.<p>
+ * {@code encoding} is null if unknown, {@code encodingConfidence} is the confidence, from 0 to 1,
+ * in the encoding (q.v. FileEncodingUtils.getOrGuessEncoding(...)), 0 if unknown, and
+ * {@code durationNanos} is the time spent on the file, from the lookup of its encoding to
+ * the count of its lines.
+ */
+@FunctionalInterface
+public interface FileLineCountSink {
+
+    void onFileCounted(File file, long fileLength, Charset encoding, boolean isEncodingCertain, float encodingConfidence, int bomLength, long lineCount, long durationNanos);
+}
@@ -0,0 +1,199 @@
+package bns.testcarl;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Rules telling which files and directories of the tree walked by
+ * {@link LineCountUtils#countCodeLines(Path, Long)} are left out, written as the patterns of
+ * .gitignore files: a pattern without slash (but a trailing one) matches the name of a file
+ * or directory at any depth, whereas a pattern holding a slash matches the path relative to
+ * the directory of the rules; {@code *}, {@code ?}, {@code [...]} and {@code **} are
+ * supported, a trailing slash matches directories only, and a leading {@code !} includes
+ * again what a previous pattern left out. As for git, the last matching pattern wins, the
+ * rules of a .gitignore file win over those of its parent directories, and nothing can be
+ * included again below a directory left out, since the directories left out are not listed.
+ */
+public final class IgnoreRules {
+
+    // Directories of dependencies, of the metadata of tools and of the output of builds, whose
+    // files are not source code of the walked tree, but may hold more bytes than the source code
+    public static final IgnoreRules VENDOR_AND_BUILD_OUTPUT = IgnoreRules.of(
+            "node_modules/", "bower_components/", "jspm_packages/", "vendor/", "third_party/",
+            ".git/", ".svn/", ".hg/", ".idea/", ".vscode/", ".gradle/", ".mvn/",
+            "target/", "build/", "dist/", "out/", "bin/", "obj/",
+            "__pycache__/", ".tox/", ".venv/", "venv/",
+            "*.min.js", "*.min.css", "*.map");
+
+    // Files whose extension tells that they are binary, which are thus not even sampled (q.v.
+    // LineCountUtils#setSkipBinaryFiles(boolean) for the binary files having other extensions)
+    public static final IgnoreRules BINARY_FILES = IgnoreRules.of(
+            "*.jar", "*.war", "*.ear", "*.zip", "*.gz", "*.tgz", "*.bz2", "*.xz", "*.7z", "*.rar",
+            "*.class", "*.dll", "*.exe", "*.so", "*.dylib", "*.o", "*.obj", "*.a", "*.lib", "*.pyc",
+            "*.png", "*.jpg", "*.jpeg", "*.gif", "*.bmp", "*.ico", "*.tif", "*.tiff", "*.webp",
+            "*.pdf", "*.woff", "*.woff2", "*.ttf", "*.otf", "*.eot", "*.mp3", "*.mp4", "*.avi", "*.mov");
+
+    private final IgnoreRules parent;   // null or rules of the parent directories, which this rules win over
+    private final String directory;     // Path of the directory of these rules relative to the walked root, "" for the root
+    private final Rule[] rules;
+
+    private static final class Rule {
+        private final Pattern pattern;
+        private final boolean negated;         // Whether the pattern includes again what it matches
+        private final boolean directoryOnly;   // Whether the pattern ends with a slash
+        private final boolean matchesName;     // Whether the pattern has no slash, and so matches names at any depth
+
+        private Rule(Pattern pattern, boolean negated, boolean directoryOnly, boolean matchesName) {
+            this.pattern = pattern;
+            this.negated = negated;
+            this.directoryOnly = directoryOnly;
+            this.matchesName = matchesName;
+        }
+    }
+
+    private IgnoreRules(IgnoreRules parent, String directory, Rule[] rules) {
+        this.parent = parent;
+        this.directory = directory;
+        this.rules = rules;
+    }
+
+    /**
+     * @return the rules of {@code patterns}, written as the lines of a .gitignore file of the walked root.
+     */
+    public static IgnoreRules of(String... patterns) {
+        return new IgnoreRules(null, "", parse(Arrays.asList(patterns)));
+    }
+
+    /**
+     * @return the rules of this and then of {@code other}, as if the patterns of {@code other}
+     * were appended to those of this, for e.g. for adding patterns of its own to a preset.
+     */
+    public IgnoreRules plus(IgnoreRules other) {
+        Rule[] mergedRules = Arrays.copyOf(rules, rules.length + other.rules.length);
+        System.arraycopy(other.rules, 0, mergedRules, rules.length, other.rules.length);
+        return new IgnoreRules(parent, directory, mergedRules);
+    }
+
+    /**
+     * @return the rules applying below {@code directory}, whose path relative to the walked root
+     * is {@code relativeDirectory}, i.e. these rules and then those of the .gitignore file of
+     * {@code directory}, or these rules only if it has none, or if it cannot be read.
+     */
+    IgnoreRules withGitignoreFileOf(Path directory, String relativeDirectory) {
+        Path gitignoreFile = directory.resolve(".gitignore");
+        if (!Files.isRegularFile(gitignoreFile)) {
+            return this;
+        }
+        try {
+            Rule[] gitignoreRules = parse(Files.readAllLines(gitignoreFile, StandardCharsets.UTF_8));
+            return gitignoreRules.length != 0 ? new IgnoreRules(this, relativeDirectory, gitignoreRules) : this;
+        } catch (IOException | RuntimeException e) {
+            // RuntimeException for the malformed input of a file that is not UTF-8 encoded
+            return this;
+        }
+    }
+
+    /**
+     * @return whether the file or directory whose path relative to the walked root, with slashes
+     * as separators, is {@code relativePath} is left out, its parent directory being not.
+     */
+    public boolean isIgnored(String relativePath, boolean isDirectory) {
+        for (IgnoreRules level = this; level != null; level = level.parent) {
+            String pathInDirectory = level.directory.isEmpty() ? relativePath : relativePath.substring(level.directory.length() + 1);
+            String name = pathInDirectory.substring(pathInDirectory.lastIndexOf('/') + 1);
+            for (int i = level.rules.length - 1; i >= 0; --i) {
+                Rule rule = level.rules[i];
+                if ((isDirectory || !rule.directoryOnly)
+                        && rule.pattern.matcher(rule.matchesName ? name : pathInDirectory).matches()) {
+                    return !rule.negated;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static Rule[] parse(List<String> lines) {
+        List<Rule> rules = new ArrayList<>(lines.size());
+        for (String line : lines) {
+            String pattern = line.strip();
+            if (pattern.isEmpty() || pattern.startsWith("#")) {
+                continue;
+            }
+            boolean negated = pattern.startsWith("!");
+            if (negated) {
+                pattern = pattern.substring(1);
+            } else if (pattern.startsWith("\\#") || pattern.startsWith("\\!")) {
+                pattern = pattern.substring(1);
+            }
+            boolean directoryOnly = pattern.endsWith("/");
+            if (directoryOnly) {
+                pattern = pattern.substring(0, pattern.length() - 1);
+            }
+            boolean matchesName = pattern.indexOf('/') < 0;
+            if (pattern.startsWith("/")) {
+                pattern = pattern.substring(1);
+            }
+            if (!pattern.isEmpty()) {
+                rules.add(new Rule(Pattern.compile(toRegex(pattern)), negated, directoryOnly, matchesName));
+            }
+        }
+        return rules.toArray(new Rule[0]);
+    }
+
+    /**
+     * @return the regular expression matching the same paths as the glob {@code pattern}.
+     */
+    private static String toRegex(String pattern) {
+        StringBuilder regex = new StringBuilder(pattern.length() * 2);
+        for (int i = 0; i < pattern.length(); ++i) {
+            char c = pattern.charAt(i);
+            switch (c) {
+                case '*':
+                    if (i + 1 < pattern.length() && pattern.charAt(i + 1) == '*') {
+                        if (i + 2 < pattern.length() && pattern.charAt(i + 2) == '/') {
+                            // "**/": any number of directories, none included
+                            regex.append("(?:.*/)?");
+                            i += 2;
+                        } else {
+                            regex.append(".*");
+                            ++i;
+                        }
+                    } else {
+                        regex.append("[^/]*");
+                    }
+                    break;
+                case '?':
+                    regex.append("[^/]");
+                    break;
+                case '[':
+                    int end = pattern.indexOf(']', i + 2);
+                    if (end < 0) {
+                        regex.append("\\[");
+                    } else {
+                        String characters = pattern.substring(i + 1, end);
+                        if (characters.startsWith("!")) {
+                            characters = "^" + characters.substring(1);
+                        }
+                        regex.append('[').append(characters.replace("\\", "\\\\").replace("[", "\\[")).append(']');
+                        i = end;
+                    }
+                    break;
+                case '\\':
+                    if (i + 1 < pattern.length()) {
+                        regex.append(Pattern.quote(String.valueOf(pattern.charAt(++i))));
+                    }
+                    break;
+                default:
+                    regex.append(Pattern.quote(String.valueOf(c)));
+                    break;
+            }
+        }
+        return regex.toString();
+    }
+}
@@ -0,0 +1,149 @@
+package bns.testcarl;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Pool of the buffers used for reading files and decoding their bytes, so that counting
+ * the lines of millions of files doesn't allocate new buffers for each of them.<p>
+ * Each worker acquires a set of {@link Buffers} for the duration of the processing of a
+ * file, then releases it (thanks to try-with-resources) so that the next file processed
+ * by whatever worker reuses it: in the steady state there are as many sets of buffers
+ * as workers processing files at the same time, each set growing to the biggest size
+ * requested so far. The buffers must not be used anymore once their set is released.
+ */
+public final class IoBufferPool {
+
+    // Sets of buffers in excess of this capacity, if any, are left to the garbage collector
+    private static final int POOL_CAPACITY = Math.max(8, 4 * Runtime.getRuntime().availableProcessors());
+
+    // Array-based queue, so that acquiring and releasing a set of buffers does not allocate memory
+    private static final ArrayBlockingQueue<Buffers> POOL = new ArrayBlockingQueue<>(POOL_CAPACITY);
+
+    private IoBufferPool() {
+    }
+
+    /**
+     * @return a set of buffers for the exclusive use of the caller until it is closed.
+     */
+    public static Buffers acquire() {
+        Buffers buffers = POOL.poll();
+        return buffers != null ? buffers : new Buffers();
+    }
+
+    /**
+     * Set of reusable buffers acquired from {@link IoBufferPool}, whose getters return buffers
+     * that may be bigger than requested and that hold the data left by their previous user.
+     */
+    public static final class Buffers implements AutoCloseable {
+
+        private static final byte[] NO_BYTES = new byte[0];
+        private static final char[] NO_CHARS = new char[0];
+
+        private byte[] bytes = NO_BYTES;
+        private byte[] sampleBytes = NO_BYTES;
+        private char[] chars = NO_CHARS;
+        private ByteBuffer byteBuffer = ByteBuffer.wrap(NO_BYTES);
+        private ByteBuffer directByteBuffer = ByteBuffer.allocateDirect(0);
+        private CharBuffer charBuffer = CharBuffer.wrap(NO_CHARS);
+
+        // One decoder per encoding met, reset before each reuse
+        private final Map<Charset, CharsetDecoder> decoders = new HashMap<>();
+
+        private Buffers() {
+        }
+
+        /**
+         * @return a byte[] whose length is at least {@code minLength} bytes.
+         */
+        public byte[] byteArray(int minLength) {
+            if (bytes.length < minLength) {
+                bytes = new byte[minLength];
+            }
+            return bytes;
+        }
+
+        /**
+         * @return a byte[] whose length is at least {@code minLength} bytes, distinct from the one
+         * returned by byteArray(...) so that a sample of a file can be held along with its content.
+         */
+        public byte[] sampleByteArray(int minLength) {
+            if (sampleBytes.length < minLength) {
+                sampleBytes = new byte[minLength];
+            }
+            return sampleBytes;
+        }
+
+        /**
+         * @return a char[] whose length is at least {@code minLength} chars.
+         */
+        public char[] charArray(int minLength) {
+            if (chars.length < minLength) {
+                chars = new char[minLength];
+            }
+            return chars;
+        }
+
+        /**
+         * @return a cleared heap ByteBuffer whose capacity is at least {@code minCapacity} bytes.
+         */
+        public ByteBuffer byteBuffer(int minCapacity) {
+            if (byteBuffer.capacity() < minCapacity) {
+                byteBuffer = ByteBuffer.allocate(minCapacity);
+            }
+            return byteBuffer.clear();
+        }
+
+        /**
+         * @return a cleared direct (off-heap) ByteBuffer whose capacity is at least {@code minCapacity}
+         * bytes, for reading a FileChannel without the copy from an internal temporary direct buffer
+         * that the JDK does when the destination is a heap buffer.
+         */
+        public ByteBuffer directByteBuffer(int minCapacity) {
+            if (directByteBuffer.capacity() < minCapacity) {
+                directByteBuffer = ByteBuffer.allocateDirect(minCapacity);
+            }
+            return directByteBuffer.clear();
+        }
+
+        /**
+         * @return a cleared CharBuffer whose capacity is at least {@code minCapacity} chars.
+         */
+        public CharBuffer charBuffer(int minCapacity) {
+            if (charBuffer.capacity() < minCapacity) {
+                charBuffer = CharBuffer.allocate(minCapacity);
+            }
+            return charBuffer.clear();
+        }
+
+        /**
+         * @return a decoder for {@code charset} that has been reset, replacing malformed
+         * input and unmappable characters as done by {@link java.io.InputStreamReader}.
+         * Callers needing another behavior must set it up each time they get the decoder.
+         */
+        public CharsetDecoder decoder(Charset charset) {
+            CharsetDecoder decoder = decoders.get(charset);
+            if (decoder == null) {
+                decoder = charset.newDecoder();
+                decoders.put(charset, decoder);
+            }
+            return decoder.reset()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+
+        /**
+         * Releases this set of buffers to the pool.
+         */
+        @Override
+        public void close() {
+            POOL.offer(this);
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package bns.testcarl;
+
+import lombok.Value;
+
+import java.util.Map;
+
+/**
+ * Outcome of a single call to {@link LineCountUtils#countCodeLinesPerLanguage(Map, Long)}: the
+ * counts of each language, and the result of the scan of all their files, which is that of this
+ * very call, whereas {@link LineCountUtils#getLastResult()} may be that of another thread's scan.
+ */
+@Value
+public class LanguageLineCountResult {
+
+    // Immutable counts of lines, bytes and files bound to the name of each language
+    Map<String, LineCountUtils.LanguageLineCount> languageLineCounts;
+
+    LineCountResult lineCountResult;
+}
@@ -0,0 +1,454 @@
+package bns.testcarl;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Utility class counting the line breaks found in a range of bytes, for encodings where
+ * CR/LF can be found unambiguously when searched as "byte" (q.v. the method named
+ * {@link LineCountUtils#canSearchLineBreakAsByte(java.nio.charset.Charset)}).<p>
+ * A line break is either a CR, or a LF, or a CR immediately followed by a LF, this last
+ * sequence counting for a single line break, even if the CR and the LF are separated by
+ * the boundary of two successive ranges (see {@code previousByteIsCR}), which gives the
+ * same counts as the byte lookup done by {@link LineCountUtils#countLinesWithByteLookup}.<p>
+ * Several bytes are compared at once against CR and LF: using the JDK Vector API when the
+ * module {@code jdk.incubator.vector} has been added to this JVM (command-line option
+ * "--add-modules jdk.incubator.vector"), or else 8 bytes at a time packed in a {@code long}
+ * (aka SWAR, for "SIMD Within A Register").<p>
+ * The overloads taking a {@link CodeUnitLayout} count the line breaks of encodings whose CR/LF
+ * are encoded on a single code unit of 2 or 4 bytes (UTF-16 and UTF-32 in both Endianness),
+ * comparing whole code units to CR/LF in the raw bytes, so that no decoding is needed, and
+ * those of the EBCDIC code pages of mainframes, whose line breaks are other bytes.
+ */
+@Slf4j
+public final class LineBreakScanner {
+
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+
+    // Each of the 8 bytes of a long set to the same value
+    private static final long CR_IN_EVERY_BYTE = 0x0D0D0D0D0D0D0D0DL;
+    private static final long LF_IN_EVERY_BYTE = 0x0A0A0A0A0A0A0A0AL;
+    private static final long LOW_7_BITS_OF_EVERY_BYTE = 0x7F7F7F7F7F7F7F7FL;
+
+    // Line breaks of EBCDIC: CR is 0x0D as in ASCII, whereas LF is 0x25 and NL (aka NEL, next
+    // line) is 0x15, both ending lines since mainframe files are written with either of them,
+    // the code pages not even agreeing on which of them is decoded as U+000A (q.v. IBM1047)
+    private static final int EBCDIC_LF = 0x25;
+    private static final int EBCDIC_NL = 0x15;
+    private static final long EBCDIC_LF_IN_EVERY_BYTE = 0x2525252525252525L;
+    private static final long EBCDIC_NL_IN_EVERY_BYTE = 0x1515151515151515L;
+
+    // Each of the 4 UTF-16 code units of a long read as little-endian set to the same value,
+    // the bytes of the code units being swapped for UTF-16BE
+    private static final long CR_IN_EVERY_UTF_16LE_UNIT = 0x000D000D000D000DL;
+    private static final long LF_IN_EVERY_UTF_16LE_UNIT = 0x000A000A000A000AL;
+    private static final long CR_IN_EVERY_UTF_16BE_UNIT = 0x0D000D000D000D00L;
+    private static final long LF_IN_EVERY_UTF_16BE_UNIT = 0x0A000A000A000A00L;
+    private static final long LOW_15_BITS_OF_EVERY_UTF_16_UNIT = 0x7FFF7FFF7FFF7FFFL;
+
+    // Reads 8 bytes of a byte[] as a long, byte at index i being bits 0-7, byte at i+1 bits 8-15, etc.
+    private static final VarHandle LONG_VIEW = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    // Same for a ByteBuffer, whatever its own byte order and whether it is a heap/direct/mapped buffer
+    private static final VarHandle BUFFER_LONG_VIEW = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    // Read the UTF-32 code units of a byte[] or of a ByteBuffer in both Endianness
+    private static final VarHandle INT_VIEW_LE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle INT_VIEW_BE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle BUFFER_INT_VIEW_LE = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle BUFFER_INT_VIEW_BE = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+    // Whether the Vector API can be used; checked once because it depends on the JVM options
+    private static final boolean VECTOR_API_AVAILABLE = checkVectorApiAvailability();
+    // Checked apart because loading vectors from a ByteBuffer is not supported by all JDK releases
+    private static final boolean VECTOR_API_AVAILABLE_FOR_BYTE_BUFFERS = VECTOR_API_AVAILABLE && checkVectorApiAvailabilityForByteBuffers();
+
+    /**
+     * Layout of the code units of the encodings where CR/LF are each encoded on a single code
+     * unit that can never be part of the encoding of another character, so that a code unit
+     * whose value is 0x0D or 0x0A is a CR or a LF whatever the code units around it: for
+     * e.g. the bytes of the multi-bytes characters of UTF-8 are all >= 0x80, and the high and
+     * low surrogates of UTF-16 are in 0xD800-0xDFFF.
+     */
+    public enum CodeUnitLayout {
+        SINGLE_BYTE(1, ByteOrder.LITTLE_ENDIAN), // ISO-8859-N, windows-125x, UTF-8, and the multi-bytes legacy encodings whose multi-bytes characters are made of bytes >= 0x30
+        EBCDIC(1, ByteOrder.LITTLE_ENDIAN),      // EBCDIC code pages, whose line breaks are CR, LF and NL (q.v. EBCDIC_NL)
+        UTF_16LE(2, ByteOrder.LITTLE_ENDIAN),
+        UTF_16BE(2, ByteOrder.BIG_ENDIAN),
+        UTF_32LE(4, ByteOrder.LITTLE_ENDIAN),
+        UTF_32BE(4, ByteOrder.BIG_ENDIAN);
+
+        // Number of bytes of a code unit
+        @Getter
+        private final int width;
+        @Getter
+        private final ByteOrder byteOrder;
+
+        CodeUnitLayout(int width, ByteOrder byteOrder) {
+            this.width = width;
+            this.byteOrder = byteOrder;
+        }
+
+        /**
+         * @return the layout of the code units of {@code charset}, or {@code null} if CR/LF
+         * cannot be searched in the bytes of a file encoded with {@code charset}. "UTF-16" and
+         * "UTF-32" have no layout because their Endianness depends on the BOM of each file.
+         */
+        public static CodeUnitLayout of(Charset charset) {
+            if (charset.equals(StandardCharsets.UTF_8) || charset.equals(StandardCharsets.ISO_8859_1)) {
+                return SINGLE_BYTE;
+            }
+            String name = charset.name();
+            switch (name) {
+                case "UTF-16LE":
+                    return UTF_16LE;
+                case "UTF-16BE":
+                    return UTF_16BE;
+                case "UTF-32LE":
+                    return UTF_32LE;
+                case "UTF-32BE":
+                    return UTF_32BE;
+                case "US-ASCII":
+                case "KOI8-R":
+                case "KOI8-U":
+                // The lead bytes of the multi-bytes characters of these encodings are >= 0x80
+                // and their trail bytes >= 0x30 (GB18030), 0x40 (Shift_JIS, GBK, Big5), 0x41
+                // (windows-949) or 0xA1 (EUC-KR, EUC-JP), so 0x0D and 0x0A are always CR/LF
+                case "Shift_JIS":
+                case "windows-31j":
+                case "EUC-JP":
+                case "EUC-KR":
+                case "x-windows-949":
+                case "GBK":
+                case "GB2312":
+                case "GB18030":
+                case "Big5":
+                    return SINGLE_BYTE;
+                case "IBM037":
+                case "IBM273":
+                case "IBM277":
+                case "IBM278":
+                case "IBM280":
+                case "IBM284":
+                case "IBM285":
+                case "IBM297":
+                case "IBM500":
+                case "IBM1047":
+                    return EBCDIC;
+                default:
+                    if (name.startsWith("IBM0114")) {
+                        return EBCDIC; // IBM01140 to IBM01149, i.e. IBM037 & al. with the euro sign
+                    }
+                    return name.startsWith("ISO-8859-") || name.startsWith("windows-125") ? SINGLE_BYTE : null;
+            }
+        }
+
+        /**
+         * @return whether the code unit {@code unit} is a line break when not preceded by a CR,
+         * i.e. a LF, or a LF or a NL for EBCDIC.
+         */
+        public boolean isLineFeed(int unit) {
+            return this == EBCDIC ? unit == EBCDIC_LF || unit == EBCDIC_NL : unit == LF;
+        }
+
+        /**
+         * @return the value of the code unit whose 1st byte is at index {@code i} of {@code bytes}.
+         */
+        public int codeUnitAt(byte[] bytes, int i) {
+            switch (width) {
+                case 1:
+                    return bytes[i] & 0xFF;
+                case 2:
+                    return byteOrder == ByteOrder.LITTLE_ENDIAN
+                            ? (bytes[i] & 0xFF) | (bytes[i + 1] & 0xFF) << 8
+                            : (bytes[i] & 0xFF) << 8 | (bytes[i + 1] & 0xFF);
+                default:
+                    return (int) (byteOrder == ByteOrder.LITTLE_ENDIAN ? INT_VIEW_LE : INT_VIEW_BE).get(bytes, i);
+            }
+        }
+
+        /**
+         * @return the value of the code unit whose 1st byte is at index {@code i} of {@code buffer},
+         * whatever the byte order of the buffer.
+         */
+        public int codeUnitAt(ByteBuffer buffer, int i) {
+            switch (width) {
+                case 1:
+                    return buffer.get(i) & 0xFF;
+                case 2:
+                    return byteOrder == ByteOrder.LITTLE_ENDIAN
+                            ? (buffer.get(i) & 0xFF) | (buffer.get(i + 1) & 0xFF) << 8
+                            : (buffer.get(i) & 0xFF) << 8 | (buffer.get(i + 1) & 0xFF);
+                default:
+                    return (int) (byteOrder == ByteOrder.LITTLE_ENDIAN ? BUFFER_INT_VIEW_LE : BUFFER_INT_VIEW_BE).get(buffer, i);
+            }
+        }
+    }
+
+    private LineBreakScanner() {
+    }
+
+    /**
+     * @return whether the line breaks are searched using the JDK Vector API
+     * rather than using the SWAR fallback, 8 bytes at a time.
+     */
+    public static boolean isVectorApiAvailable() {
+        return VECTOR_API_AVAILABLE;
+    }
+
+    /**
+     * @return the number of line breaks found in {@code bytes} from index {@code from}
+     * (inclusive) to index {@code to} (exclusive). If {@code previousByteIsCR} is true,
+     * then a LF found at index {@code from} is not counted because it belongs to the
+     * CR/LF sequence whose CR has been counted with the previous range of bytes.
+     */
+    public static long countLineBreaks(byte[] bytes, int from, int to, boolean previousByteIsCR) {
+        return VECTOR_API_AVAILABLE
+                ? VectorizedLineBreakScanner.countLineBreaks(bytes, from, to, previousByteIsCR)
+                : countLineBreaksSwar(bytes, from, to, previousByteIsCR);
+    }
+
+    /**
+     * Same as {@link LineBreakScanner#countLineBreaks(byte[], int, int, boolean)}, but for the
+     * bytes of {@code buffer} from index {@code from} (inclusive) to index {@code to} (exclusive)
+     * whatever the position and the limit of the buffer, which are left unchanged. Typically
+     * used for direct or memory-mapped buffers, whose bytes are not copied in a byte[].
+     */
+    public static long countLineBreaks(ByteBuffer buffer, int from, int to, boolean previousByteIsCR) {
+        if (buffer.hasArray()) {
+            return countLineBreaks(buffer.array(), buffer.arrayOffset() + from, buffer.arrayOffset() + to, previousByteIsCR);
+        }
+        return VECTOR_API_AVAILABLE_FOR_BYTE_BUFFERS
+                ? VectorizedLineBreakScanner.countLineBreaks(buffer, from, to, previousByteIsCR)
+                : countLineBreaksSwar(buffer, from, to, previousByteIsCR);
+    }
+
+    /**
+     * Same as {@link LineBreakScanner#countLineBreaks(byte[], int, int, boolean)}, but for the
+     * code units of {@code layout}, {@code to - from} having to be a multiple of their width.
+     * If {@code previousUnitIsCR} is true, then a LF found at index {@code from} is not counted.
+     */
+    public static long countLineBreaks(CodeUnitLayout layout, byte[] bytes, int from, int to, boolean previousUnitIsCR) {
+        switch (layout) {
+            case SINGLE_BYTE:
+                return countLineBreaks(bytes, from, to, previousUnitIsCR);
+            case EBCDIC:
+                return countEbcdicLineBreaksSwar(bytes, from, to, previousUnitIsCR);
+            case UTF_16LE:
+            case UTF_16BE:
+                return countUtf16LineBreaksSwar(layout, bytes, from, to, previousUnitIsCR);
+            default:
+                // A UTF-32 code unit is compared at once as an int
+                return countLineBreaksScalar(layout, bytes, from, to, previousUnitIsCR);
+        }
+    }
+
+    /**
+     * Same as {@link LineBreakScanner#countLineBreaks(ByteBuffer, int, int, boolean)}, but for the
+     * code units of {@code layout}, {@code to - from} having to be a multiple of their width.
+     */
+    public static long countLineBreaks(CodeUnitLayout layout, ByteBuffer buffer, int from, int to, boolean previousUnitIsCR) {
+        if (layout == CodeUnitLayout.SINGLE_BYTE) {
+            return countLineBreaks(buffer, from, to, previousUnitIsCR);
+        } else if (buffer.hasArray()) {
+            return countLineBreaks(layout, buffer.array(), buffer.arrayOffset() + from, buffer.arrayOffset() + to, previousUnitIsCR);
+        }
+        int width = layout.getWidth();
+        long count = 0;
+        for (int i = from; to - i >= width; i += width) {
+            int unit = layout.codeUnitAt(buffer, i);
+            if (unit == CR || (!previousUnitIsCR && layout.isLineFeed(unit))) {
+                ++count;
+            }
+            previousUnitIsCR = unit == CR;
+        }
+        return count;
+    }
+
+    /**
+     * Same as {@link LineBreakScanner#countLineBreaks(CodeUnitLayout, byte[], int, int, boolean)}
+     * for UTF-16, except that the code units are compared to CR/LF 4 at a time packed in a long.
+     */
+    static long countUtf16LineBreaksSwar(CodeUnitLayout layout, byte[] bytes, int from, int to, boolean previousUnitIsCR) {
+        // The long is read as little-endian whatever the layout, so for UTF-16BE the bytes
+        // of each code unit are swapped, and so are those of the values compared with it.
+        boolean isLittleEndian = layout.getByteOrder() == ByteOrder.LITTLE_ENDIAN;
+        long crInEveryUnit = isLittleEndian ? CR_IN_EVERY_UTF_16LE_UNIT : CR_IN_EVERY_UTF_16BE_UNIT;
+        long lfInEveryUnit = isLittleEndian ? LF_IN_EVERY_UTF_16LE_UNIT : LF_IN_EVERY_UTF_16BE_UNIT;
+        long count = 0;
+        // Bit 15 set if the code unit preceding the current word is a CR
+        long crCarry = previousUnitIsCR ? 0x8000L : 0L;
+        int i = from;
+        for (; to - i >= Long.BYTES; i += Long.BYTES) {
+            long word = (long) LONG_VIEW.get(bytes, i);
+            long crFlags = flagZeroUtf16Units(word ^ crInEveryUnit);
+            long lfFlags = flagZeroUtf16Units(word ^ lfInEveryUnit);
+            if ((crFlags | lfFlags | crCarry) != 0L) {
+                long lfFollowingCrFlags = ((crFlags << 16) | crCarry) & lfFlags;
+                count += Long.bitCount(crFlags) + Long.bitCount(lfFlags) - Long.bitCount(lfFollowingCrFlags);
+                crCarry = (crFlags >>> 48) & 0x8000L;
+            }
+        }
+        return count + countLineBreaksScalar(layout, bytes, i, to, i != from ? layout.codeUnitAt(bytes, i - 2) == CR : previousUnitIsCR);
+    }
+
+    /**
+     * Same as {@link LineBreakScanner#countLineBreaks(CodeUnitLayout, byte[], int, int, boolean)}
+     * for EBCDIC, except that the bytes are compared to CR, LF and NL 8 at a time packed in a long.
+     */
+    static long countEbcdicLineBreaksSwar(byte[] bytes, int from, int to, boolean previousByteIsCR) {
+        long count = 0;
+        long crCarry = previousByteIsCR ? 0x80L : 0L;
+        int i = from;
+        for (; to - i >= Long.BYTES; i += Long.BYTES) {
+            long word = (long) LONG_VIEW.get(bytes, i);
+            long crFlags = flagZeroBytes(word ^ CR_IN_EVERY_BYTE);
+            long lfFlags = flagZeroBytes(word ^ EBCDIC_LF_IN_EVERY_BYTE) | flagZeroBytes(word ^ EBCDIC_NL_IN_EVERY_BYTE);
+            if ((crFlags | lfFlags | crCarry) != 0L) {
+                long lfFollowingCrFlags = ((crFlags << 8) | crCarry) & lfFlags;
+                count += Long.bitCount(crFlags) + Long.bitCount(lfFlags) - Long.bitCount(lfFollowingCrFlags);
+                crCarry = (crFlags >>> 56) & 0x80L;
+            }
+        }
+        return count + countLineBreaksScalar(CodeUnitLayout.EBCDIC, bytes, i, to, i != from ? bytes[i - 1] == CR : previousByteIsCR);
+    }
+
+    /**
+     * Same as {@link LineBreakScanner#countLineBreaks(CodeUnitLayout, byte[], int, int, boolean)},
+     * except that the code units are compared to CR/LF one at a time.
+     */
+    static long countLineBreaksScalar(CodeUnitLayout layout, byte[] bytes, int from, int to, boolean previousUnitIsCR) {
+        int width = layout.getWidth();
+        long count = 0;
+        for (int i = from; to - i >= width; i += width) {
+            int unit = layout.codeUnitAt(bytes, i);
+            if (unit == CR || (!previousUnitIsCR && layout.isLineFeed(unit))) {
+                ++count;
+            }
+            previousUnitIsCR = unit == CR;
+        }
+        return count;
+    }
+
+    /**
+     * Same as {@link LineBreakScanner#countLineBreaks(byte[], int, int, boolean)},
+     * except that the bytes are compared to CR/LF 8 at a time packed in a long.
+     */
+    static long countLineBreaksSwar(byte[] bytes, int from, int to, boolean previousByteIsCR) {
+        long count = 0;
+        // Bit 7 set if the byte preceding the current word is a CR: once shifted
+        // the CR flags of a word are aligned with the LF flags of the next bytes.
+        long crCarry = previousByteIsCR ? 0x80L : 0L;
+        int i = from;
+        for (; to - i >= Long.BYTES; i += Long.BYTES) {
+            long word = (long) LONG_VIEW.get(bytes, i);
+            long crFlags = flagZeroBytes(word ^ CR_IN_EVERY_BYTE);
+            long lfFlags = flagZeroBytes(word ^ LF_IN_EVERY_BYTE);
+            if ((crFlags | lfFlags | crCarry) != 0L) {
+                long lfFollowingCrFlags = ((crFlags << 8) | crCarry) & lfFlags;
+                count += Long.bitCount(crFlags) + Long.bitCount(lfFlags) - Long.bitCount(lfFollowingCrFlags);
+                crCarry = (crFlags >>> 56) & 0x80L;
+            }
+        }
+        return count + countLineBreaksScalar(bytes, i, to, i != from ? bytes[i - 1] == CR : previousByteIsCR);
+    }
+
+    /**
+     * Same as {@link LineBreakScanner#countLineBreaks(ByteBuffer, int, int, boolean)},
+     * except that the bytes are compared to CR/LF 8 at a time packed in a long.
+     */
+    static long countLineBreaksSwar(ByteBuffer buffer, int from, int to, boolean previousByteIsCR) {
+        long count = 0;
+        long crCarry = previousByteIsCR ? 0x80L : 0L;
+        int i = from;
+        for (; to - i >= Long.BYTES; i += Long.BYTES) {
+            long word = (long) BUFFER_LONG_VIEW.get(buffer, i);
+            long crFlags = flagZeroBytes(word ^ CR_IN_EVERY_BYTE);
+            long lfFlags = flagZeroBytes(word ^ LF_IN_EVERY_BYTE);
+            if ((crFlags | lfFlags | crCarry) != 0L) {
+                long lfFollowingCrFlags = ((crFlags << 8) | crCarry) & lfFlags;
+                count += Long.bitCount(crFlags) + Long.bitCount(lfFlags) - Long.bitCount(lfFollowingCrFlags);
+                crCarry = (crFlags >>> 56) & 0x80L;
+            }
+        }
+        boolean previousIsCR = i != from ? buffer.get(i - 1) == CR : previousByteIsCR;
+        for (; i != to; ++i) {
+            byte b = buffer.get(i);
+            if (b == CR || (b == LF && !previousIsCR)) {
+                ++count;
+            }
+            previousIsCR = b == CR;
+        }
+        return count;
+    }
+
+    /**
+     * Same as {@link LineBreakScanner#countLineBreaks(byte[], int, int, boolean)},
+     * except that the bytes are compared to CR/LF one at a time; used for the tail
+     * of the ranges that are too short for being processed several bytes at once.
+     */
+    static long countLineBreaksScalar(byte[] bytes, int from, int to, boolean previousByteIsCR) {
+        long count = 0;
+        for (int i = from; i != to; ++i) {
+            byte b = bytes[i];
+            if (b == CR || (b == LF && !previousByteIsCR)) {
+                ++count;
+            }
+            previousByteIsCR = b == CR;
+        }
+        return count;
+    }
+
+    /**
+     * @return a long having the bit 7 of each of its bytes set if the byte at the same
+     * position in {@code x} is 0x0, all the other bits being cleared. Contrary to the
+     * well-known "(x - 0x01..01) & ~x & 0x80..80", this formula never produces a false
+     * positive for a byte 0x01 that follows a byte 0x0, so the flags can be counted.
+     */
+    private static long flagZeroBytes(long x) {
+        long t = (x & LOW_7_BITS_OF_EVERY_BYTE) + LOW_7_BITS_OF_EVERY_BYTE;
+        return ~(t | x | LOW_7_BITS_OF_EVERY_BYTE);
+    }
+
+    /**
+     * @return a long having the bit 15 of each of its 4 code units of 16 bits set if the code unit
+     * at the same position in {@code x} is 0x0, all the other bits being cleared; this is the
+     * formula of flagZeroBytes(...) applied to lanes of 16 bits.
+     */
+    private static long flagZeroUtf16Units(long x) {
+        long t = (x & LOW_15_BITS_OF_EVERY_UTF_16_UNIT) + LOW_15_BITS_OF_EVERY_UTF_16_UNIT;
+        return ~(t | x | LOW_15_BITS_OF_EVERY_UTF_16_UNIT);
+    }
+
+    private static boolean checkVectorApiAvailability() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+            log.debug("Module jdk.incubator.vector not found: line breaks will be searched 8 bytes at a time");
+            return false;
+        }
+        try {
+            // Also loads and links the class, which fails if the JVM cannot use the Vector API
+            byte[] probe = {'a', CR, LF, 'b', LF, CR};
+            return VectorizedLineBreakScanner.countLineBreaks(probe, 0, probe.length, false) == 3;
+        } catch (LinkageError | RuntimeException e) {
+            log.debug("Vector API unusable: line breaks will be searched 8 bytes at a time", e);
+            return false;
+        }
+    }
+
+    private static boolean checkVectorApiAvailabilityForByteBuffers() {
+        try {
+            ByteBuffer probe = ByteBuffer.allocateDirect(6).put(new byte[]{'a', CR, LF, 'b', LF, CR});
+            return VectorizedLineBreakScanner.countLineBreaks(probe, 0, probe.capacity(), false) == 3;
+        } catch (LinkageError | RuntimeException e) {
+            log.debug("Vector API unusable for ByteBuffers: line breaks will be searched 8 bytes at a time", e);
+            return false;
+        }
+    }
+}
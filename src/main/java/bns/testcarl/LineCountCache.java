@@ -0,0 +1,452 @@
+package bns.testcarl;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * On-disk cache of the line counts of files, so that counting again the lines of the same
+ * collection of files (for e.g. every night) only reads the files that have changed since.
+ * A file is said unchanged if its absolute path, its length and its last modification time
+ * are the same as those stored with its count of lines, its encoding and its BOM length.<p>
+ * The cache file is made of fixed-length records sorted by the hash of their path, followed
+ * by the UTF-8 bytes of the paths and of the encoding names; it is memory-mapped and searched
+ * in place by binary search, so that loading a cache of millions of entries costs nothing but
+ * the mapping. The entries of a run are written to a temporary file that replaces the cache
+ * file atomically, so that a run that is interrupted leaves the previous cache file intact,
+ * and a file modified while its lines are counted is not stored (q.v. LineCountUtils).<p>
+ * The methods get(...) and put(...) can be called concurrently; save() must be called once
+ * all of them have returned, after which this instance must not be used anymore.
+ */
+@Slf4j
+public final class LineCountCache {
+
+    private static final int MAGIC = 0x4C434331; // "LCC1"
+    private static final int VERSION = 3;
+
+    // Header: magic, version, ordinal of the line counting method, number of records,
+    // offset of the strings area, number of encoding names (first strings of the area),
+    // options (OPTION_BINARY_FILES_SKIPPED), version of the detection of the encodings
+    // (FileEncodingUtils.DETECTION_VERSION), padding (4)
+    static final int HEADER_SIZE = 40;
+
+    // Record: hash of the path (8), file length (8), last modification time (8), count of lines (8),
+    // offset of the path in the strings area (4), length of the path in bytes (4), index of the
+    // encoding name or -1 if unknown (2), BOM length (1), flags (1), confidence in the encoding (4)
+    private static final int RECORD_SIZE = 48;
+    private static final int HASH = 0;
+    private static final int LENGTH = 8;
+    private static final int LAST_MODIFIED = 16;
+    private static final int LINE_COUNT = 24;
+    private static final int PATH_OFFSET = 32;
+    private static final int PATH_LENGTH = 36;
+    static final int ENCODING_INDEX = 40;
+    private static final int BOM_LENGTH = 42;
+    private static final int FLAGS = 43;
+    private static final int ENCODING_CONFIDENCE = 44;
+    private static final int FLAG_ENCODING_IS_CERTAIN = 0x1;
+    private static final int OPTION_BINARY_FILES_SKIPPED = 0x1;
+
+    private static final HashFunction PATH_HASH_FUNCTION = Hashing.murmur3_128();
+
+    private final Path cacheFile;
+    private final LineCountUtils.LineCountingMethod lineCountingMethod;
+    private final int options;
+
+    // Records and strings of the cache file as loaded, or null if the cache was empty/invalid
+    private MappedByteBuffer mappedCacheFile;
+    private final int nbOfRecords;
+    private final int stringsOffset;
+    private final String[] encodingNames;
+
+    // Bit i set if record #i has been found unchanged, or has been replaced by a new entry
+    private final AtomicLongArray hitRecords;
+    private final AtomicLongArray replacedRecords;
+
+    // Entries of the files whose lines have been counted during this run
+    private final Map<String, Entry> newEntries = new ConcurrentHashMap<>();
+
+    /**
+     * Count of lines of a file, along with what identifies the content of the file and
+     * what was found about its encoding ({@code encodingName} is null if unknown), the
+     * count of lines being -1 for a binary file left out of a run skipping binary files.
+     */
+    @Value
+    public static class Entry {
+        String path;
+        long length;
+        long lastModified;
+        String encodingName;
+        boolean encodingCertain;
+        float encodingConfidence;
+        int bomLength;
+        long lineCount;
+
+        /**
+         * @return the encoding of the file, or {@code null} if unknown or not supported by this JVM.
+         */
+        public Charset getEncoding() {
+            return encodingName != null && Charset.isSupported(encodingName) ? Charset.forName(encodingName) : null;
+        }
+    }
+
+    private LineCountCache(Path cacheFile, LineCountUtils.LineCountingMethod lineCountingMethod, int options, MappedByteBuffer mappedCacheFile) {
+        this.cacheFile = cacheFile;
+        this.lineCountingMethod = lineCountingMethod;
+        this.options = options;
+        this.mappedCacheFile = mappedCacheFile;
+        if (mappedCacheFile != null) {
+            nbOfRecords = mappedCacheFile.getInt(12);
+            stringsOffset = (int) mappedCacheFile.getLong(16);
+            encodingNames = new String[mappedCacheFile.getInt(24)];
+            for (int i = 0, offset = stringsOffset; i != encodingNames.length; ++i) {
+                int nameLength = mappedCacheFile.getShort(offset);
+                encodingNames[i] = readString(offset + Short.BYTES, nameLength);
+                offset += Short.BYTES + nameLength;
+            }
+        } else {
+            nbOfRecords = 0;
+            stringsOffset = HEADER_SIZE;
+            encodingNames = new String[0];
+        }
+        hitRecords = new AtomicLongArray((nbOfRecords + 63) / 64);
+        replacedRecords = new AtomicLongArray((nbOfRecords + 63) / 64);
+    }
+
+    /**
+     * @return the cache stored in {@code cacheFile}, which is empty if this file does not exist,
+     * is not a valid cache file, or holds counts done with another {@code lineCountingMethod}.
+     */
+    public static LineCountCache load(Path cacheFile, LineCountUtils.LineCountingMethod lineCountingMethod) {
+        return load(cacheFile, lineCountingMethod, false);
+    }
+
+    /**
+     * Same as above, the cache being also empty if its counts were done by a run that did not skip
+     * binary files whereas {@code skipBinaryFiles}, or the other way round, since the lines of the
+     * binary files are counted by the former, whereas the latter stores them with -1 lines.
+     */
+    public static LineCountCache load(Path cacheFile, LineCountUtils.LineCountingMethod lineCountingMethod, boolean skipBinaryFiles) {
+        int options = skipBinaryFiles ? OPTION_BINARY_FILES_SKIPPED : 0;
+        if (!Files.isRegularFile(cacheFile)) {
+            return new LineCountCache(cacheFile, lineCountingMethod, options, null);
+        }
+        try (FileChannel channel = FileChannel.open(cacheFile, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+                throw new IOException("invalid size " + size);
+            }
+            // The mapping remains valid once the channel is closed
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION) {
+                throw new IOException("not a line count cache file of version " + VERSION);
+            }
+            long recordsEnd = HEADER_SIZE + (long) mapped.getInt(12) * RECORD_SIZE;
+            if (mapped.getInt(12) < 0 || recordsEnd > mapped.getLong(16) || mapped.getLong(16) > size) {
+                throw new IOException("truncated or corrupted file");
+            }
+            if (mapped.getInt(8) != lineCountingMethod.ordinal()) {
+                log.info("Line count cache {} ignored: its counts were done with another line counting method", cacheFile);
+                LineCountUtils.unmap(mapped);
+                return new LineCountCache(cacheFile, lineCountingMethod, options, null);
+            }
+            if (mapped.getInt(28) != options) {
+                log.info("Line count cache {} ignored: its counts were done {} binary files", cacheFile, skipBinaryFiles ? "including" : "skipping");
+                LineCountUtils.unmap(mapped);
+                return new LineCountCache(cacheFile, lineCountingMethod, options, null);
+            }
+            if (mapped.getInt(32) != FileEncodingUtils.DETECTION_VERSION) {
+                // The encodings and the binary files would not all be found the same
+                log.info("Line count cache {} ignored: its counts were done with another version of the detection of encodings", cacheFile);
+                LineCountUtils.unmap(mapped);
+                return new LineCountCache(cacheFile, lineCountingMethod, options, null);
+            }
+            return new LineCountCache(cacheFile, lineCountingMethod, options, mapped);
+        } catch (IOException | RuntimeException e) {
+            log.warn(String.format("Line count cache %s ignored: it cannot be loaded", cacheFile), e);
+            return new LineCountCache(cacheFile, lineCountingMethod, options, null);
+        }
+    }
+
+    /**
+     * @return the number of entries loaded from the cache file.
+     */
+    public int size() {
+        return nbOfRecords;
+    }
+
+    /**
+     * @return the entry of the file whose absolute path is {@code path} if its {@code length}
+     * and {@code lastModified} time are those stored in the cache, or else {@code null}.
+     */
+    public Entry get(String path, long length, long lastModified) {
+        byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+        int r = findRecord(pathBytes);
+        if (r < 0) {
+            return null;
+        }
+        int recordOffset = HEADER_SIZE + r * RECORD_SIZE;
+        if (mappedCacheFile.getLong(recordOffset + LENGTH) != length || mappedCacheFile.getLong(recordOffset + LAST_MODIFIED) != lastModified) {
+            return null;
+        }
+        int encodingIndex = mappedCacheFile.getShort(recordOffset + ENCODING_INDEX);
+        if (encodingIndex < -1 || encodingIndex >= encodingNames.length) {
+            // Corrupted record, which is dropped by save(...) since not hit
+            return null;
+        }
+        setBit(hitRecords, r);
+        return new Entry(path, length, lastModified,
+                encodingIndex >= 0 ? encodingNames[encodingIndex] : null,
+                (mappedCacheFile.get(recordOffset + FLAGS) & FLAG_ENCODING_IS_CERTAIN) != 0,
+                mappedCacheFile.getFloat(recordOffset + ENCODING_CONFIDENCE),
+                mappedCacheFile.get(recordOffset + BOM_LENGTH),
+                mappedCacheFile.getLong(recordOffset + LINE_COUNT));
+    }
+
+    /**
+     * Stores {@code entry}, replacing the entry of the same path if any.
+     */
+    public void put(Entry entry) {
+        int r = findRecord(entry.getPath().getBytes(StandardCharsets.UTF_8));
+        if (r >= 0) {
+            setBit(replacedRecords, r);
+        }
+        newEntries.put(entry.getPath(), entry);
+    }
+
+    /**
+     * Writes the entries put during this run along with those found unchanged by get(...), plus,
+     * if {@code retainUnvisitedEntries}, those of the files that were neither (for e.g. because
+     * the run stopped before counting all the files), into a temporary file that then replaces
+     * the cache file. This instance must not be used anymore once this method has been called.
+     */
+    public void save(boolean retainUnvisitedEntries) throws IOException {
+        // Pending records: either a record of the loaded cache file, or a new entry
+        List<PendingRecord> pendingRecords = new ArrayList<>(newEntries.size() + nbOfRecords);
+        for (int r = 0; r != nbOfRecords; ++r) {
+            if (!isBitSet(replacedRecords, r) && (retainUnvisitedEntries || isBitSet(hitRecords, r))) {
+                int recordOffset = HEADER_SIZE + r * RECORD_SIZE;
+                int encodingIndex = mappedCacheFile.getShort(recordOffset + ENCODING_INDEX);
+                if (encodingIndex < -1 || encodingIndex >= encodingNames.length) {
+                    continue;
+                }
+                pendingRecords.add(new PendingRecord(mappedCacheFile.getLong(recordOffset + HASH), r, null, null,
+                        encodingIndex >= 0 ? encodingNames[encodingIndex] : null));
+            }
+        }
+        for (Entry entry : newEntries.values()) {
+            byte[] pathBytes = entry.getPath().getBytes(StandardCharsets.UTF_8);
+            pendingRecords.add(new PendingRecord(hash(pathBytes), -1, entry, pathBytes, entry.getEncodingName()));
+        }
+        pendingRecords.sort(Comparator.comparingLong(pendingRecord -> pendingRecord.hash));
+
+        // Encoding names are stored once, first in the strings area, then the paths
+        Map<String, Integer> encodingIndexes = new HashMap<>();
+        List<byte[]> encodingNameBytes = new ArrayList<>();
+        int encodingNamesSize = 0;
+        for (PendingRecord pendingRecord : pendingRecords) {
+            if (pendingRecord.encodingName != null && !encodingIndexes.containsKey(pendingRecord.encodingName)) {
+                encodingIndexes.put(pendingRecord.encodingName, encodingIndexes.size());
+                byte[] nameBytes = pendingRecord.encodingName.getBytes(StandardCharsets.US_ASCII);
+                encodingNameBytes.add(nameBytes);
+                encodingNamesSize += Short.BYTES + nameBytes.length;
+            }
+        }
+
+        // Each save writes its own temporary file, so that the runs sharing a cache file can save
+        // it at once, the last one replacing the cache file saved by the others
+        Path temporaryFile = Files.createTempFile(cacheFile.toAbsolutePath().getParent(), cacheFile.getFileName() + ".", ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryFile), 1 << 16))) {
+            long recordsEnd = HEADER_SIZE + (long) pendingRecords.size() * RECORD_SIZE;
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(lineCountingMethod.ordinal());
+            out.writeInt(pendingRecords.size());
+            out.writeLong(recordsEnd);
+            out.writeInt(encodingIndexes.size());
+            out.writeInt(options);
+            out.writeInt(FileEncodingUtils.DETECTION_VERSION);
+            out.writeInt(0);
+
+            long pathOffset = encodingNamesSize;
+            for (PendingRecord pendingRecord : pendingRecords) {
+                int pathLength;
+                if (pendingRecord.entry != null) {
+                    Entry entry = pendingRecord.entry;
+                    pathLength = pendingRecord.pathBytes.length;
+                    out.writeLong(pendingRecord.hash);
+                    out.writeLong(entry.getLength());
+                    out.writeLong(entry.getLastModified());
+                    out.writeLong(entry.getLineCount());
+                    out.writeInt((int) pathOffset);
+                    out.writeInt(pathLength);
+                    out.writeShort(entry.getEncodingName() != null ? encodingIndexes.get(entry.getEncodingName()) : -1);
+                    out.writeByte(entry.getBomLength());
+                    out.writeByte(entry.isEncodingCertain() ? FLAG_ENCODING_IS_CERTAIN : 0);
+                    out.writeFloat(entry.getEncodingConfidence());
+                } else {
+                    int recordOffset = HEADER_SIZE + pendingRecord.recordIndex * RECORD_SIZE;
+                    pathLength = mappedCacheFile.getInt(recordOffset + PATH_LENGTH);
+                    out.writeLong(pendingRecord.hash);
+                    out.writeLong(mappedCacheFile.getLong(recordOffset + LENGTH));
+                    out.writeLong(mappedCacheFile.getLong(recordOffset + LAST_MODIFIED));
+                    out.writeLong(mappedCacheFile.getLong(recordOffset + LINE_COUNT));
+                    out.writeInt((int) pathOffset);
+                    out.writeInt(pathLength);
+                    out.writeShort(pendingRecord.encodingName != null ? encodingIndexes.get(pendingRecord.encodingName) : -1);
+                    out.writeByte(mappedCacheFile.get(recordOffset + BOM_LENGTH));
+                    out.writeByte(mappedCacheFile.get(recordOffset + FLAGS));
+                    out.writeFloat(mappedCacheFile.getFloat(recordOffset + ENCODING_CONFIDENCE));
+                }
+                pathOffset += pathLength;
+            }
+            if (recordsEnd + pathOffset > Integer.MAX_VALUE) {
+                throw new IOException("Too many entries for a line count cache file");
+            }
+
+            for (byte[] nameBytes : encodingNameBytes) {
+                out.writeShort(nameBytes.length);
+                out.write(nameBytes);
+            }
+            byte[] copyBuffer = new byte[4096];
+            for (PendingRecord pendingRecord : pendingRecords) {
+                if (pendingRecord.entry != null) {
+                    out.write(pendingRecord.pathBytes);
+                } else {
+                    int recordOffset = HEADER_SIZE + pendingRecord.recordIndex * RECORD_SIZE;
+                    int offset = stringsOffset + mappedCacheFile.getInt(recordOffset + PATH_OFFSET);
+                    int pathLength = mappedCacheFile.getInt(recordOffset + PATH_LENGTH);
+                    for (int copied = 0; copied != pathLength; ) {
+                        int n = Math.min(copyBuffer.length, pathLength - copied);
+                        mappedCacheFile.get(offset + copied, copyBuffer, 0, n);
+                        out.write(copyBuffer, 0, n);
+                        copied += n;
+                    }
+                }
+            }
+        }
+
+        // The old cache file is unmapped first, since mapped files cannot be replaced on Windows
+        if (mappedCacheFile != null) {
+            LineCountUtils.unmap(mappedCacheFile);
+            mappedCacheFile = null;
+        }
+        try {
+            Files.move(temporaryFile, cacheFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporaryFile, cacheFile, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temporaryFile);
+        }
+    }
+
+    /**
+     * Record to be written by save(...): {@code recordIndex} is the index of a record of the
+     * loaded cache file if {@code entry} is null.
+     */
+    private static final class PendingRecord {
+        private final long hash;
+        private final int recordIndex;
+        private final Entry entry;
+        private final byte[] pathBytes;
+        private final String encodingName;
+
+        private PendingRecord(long hash, int recordIndex, Entry entry, byte[] pathBytes, String encodingName) {
+            this.hash = hash;
+            this.recordIndex = recordIndex;
+            this.entry = entry;
+            this.pathBytes = pathBytes;
+            this.encodingName = encodingName;
+        }
+    }
+
+    /**
+     * @return the index of the record whose path is {@code pathBytes}, or -1 if there is none.
+     */
+    private int findRecord(byte[] pathBytes) {
+        if (nbOfRecords == 0) {
+            return -1;
+        }
+        long hash = hash(pathBytes);
+        int low = 0;
+        int high = nbOfRecords - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long middleHash = mappedCacheFile.getLong(HEADER_SIZE + middle * RECORD_SIZE + HASH);
+            if (middleHash < hash) {
+                low = middle + 1;
+            } else if (middleHash > hash) {
+                high = middle - 1;
+            } else {
+                // Paths having the same hash, if any, are neighbors
+                for (int r = middle; r >= 0 && hashOfRecord(r) == hash; --r) {
+                    if (isPathOfRecord(r, pathBytes)) {
+                        return r;
+                    }
+                }
+                for (int r = middle + 1; r < nbOfRecords && hashOfRecord(r) == hash; ++r) {
+                    if (isPathOfRecord(r, pathBytes)) {
+                        return r;
+                    }
+                }
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private long hashOfRecord(int r) {
+        return mappedCacheFile.getLong(HEADER_SIZE + r * RECORD_SIZE + HASH);
+    }
+
+    private boolean isPathOfRecord(int r, byte[] pathBytes) {
+        int recordOffset = HEADER_SIZE + r * RECORD_SIZE;
+        if (mappedCacheFile.getInt(recordOffset + PATH_LENGTH) != pathBytes.length) {
+            return false;
+        }
+        int offset = stringsOffset + mappedCacheFile.getInt(recordOffset + PATH_OFFSET);
+        return mappedCacheFile.slice(offset, pathBytes.length).equals(ByteBuffer.wrap(pathBytes));
+    }
+
+    private String readString(int offset, int length) {
+        byte[] bytes = new byte[length];
+        mappedCacheFile.get(offset, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static long hash(byte[] pathBytes) {
+        return PATH_HASH_FUNCTION.hashBytes(pathBytes).asLong();
+    }
+
+    private static void setBit(AtomicLongArray bits, int i) {
+        long mask = 1L << (i & 63);
+        bits.accumulateAndGet(i >>> 6, mask, (word, m) -> word | m);
+    }
+
+    private static boolean isBitSet(AtomicLongArray bits, int i) {
+        return (bits.get(i >>> 6) & (1L << (i & 63))) != 0;
+    }
+}
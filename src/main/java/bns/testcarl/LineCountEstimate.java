@@ -0,0 +1,48 @@
+package bns.testcarl;
+
+import lombok.Value;
+
+/**
+ * Estimate of the count of lines of a collection of files built by
+ * {@link LineCountUtils#estimateCodeLines(java.util.Collection, double, long)}
+ * from the exact count of the lines of a random sample of these files.
+ */
+@Value
+public class LineCountEstimate {
+
+    // Estimated overall count of lines
+    long lineCount;
+
+    // Half-width of the 95% confidence interval of lineCount (0 if all the files have been counted)
+    long marginOfError;
+
+    int nbOfSampledFiles;
+    int nbOfFiles;
+    long nbOfSampledBytes;
+    long nbOfBytes;
+
+    /**
+     * @return the margin of error relative to the estimated count of lines, for e.g. 0.01 for +/-1%.
+     */
+    public double getRelativeError() {
+        if (marginOfError == 0) {
+            return 0d;
+        }
+        return lineCount != 0 ? (double) marginOfError / lineCount : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * @return whether the lines of all the files have been counted, lineCount being exact then.
+     */
+    public boolean isExact() {
+        return nbOfSampledFiles == nbOfFiles;
+    }
+
+    public long getLowerBound() {
+        return Math.max(0L, lineCount - marginOfError);
+    }
+
+    public long getUpperBound() {
+        return lineCount + marginOfError;
+    }
+}
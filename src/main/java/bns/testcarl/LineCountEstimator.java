@@ -0,0 +1,261 @@
+package bns.testcarl;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Stratified sampling of files for estimating their overall count of lines without counting
+ * the lines of all of them, as done by {@link LineCountUtils#estimateCodeLines(java.util.Collection, double, long)}.<p>
+ * The files are split into strata of files having the same extension and about the same
+ * length (within a factor of 4), in which the number of lines per byte varies much less than
+ * over all the files. The count of lines of each stratum is estimated by a ratio estimator,
+ * i.e. the lines per byte of the files sampled in the stratum times the bytes of all of its
+ * files, whose variance is estimated from the deviations of the sampled files from this ratio.
+ * The next files to sample are taken from the strata where they reduce the variance the most.
+ */
+final class LineCountEstimator {
+
+    // Quantile of the normal distribution for 95% confidence intervals
+    private static final double Z_95 = 1.96;
+
+    // Strata of fewer files are merged into the stratum of the files of any extension having the
+    // same length class, so that thousands of rare extensions do not make as many strata to sample.
+    private static final int MIN_NB_OF_FILES_PER_EXTENSION_STRATUM = 8;
+
+    // Minimal number of files sampled per stratum for estimating its variance
+    private static final int MIN_NB_OF_SAMPLES_PER_STRATUM = 2;
+
+    private final List<Stratum> strata = new ArrayList<>();
+    private int nbOfFiles;
+    private long nbOfBytes;
+
+    /**
+     * Files of the same extension and length class, shuffled so that sampling them in
+     * order is sampling them at random, along with the sums over the files sampled so far.
+     */
+    private static final class Stratum {
+        private final List<File> files = new ArrayList<>();
+        private final List<Long> lengths = new ArrayList<>();
+        private long nbOfBytes;        // Bytes of the files of the stratum whose lines can be counted
+        private int nbOfFiles;         // Files of the stratum whose lines can be counted
+        private int nbOfSampledFiles;  // Next files[] to sample, whether its count succeeded, failed or was cancelled
+        private int nbOfCountedFiles;
+        private double sumOfLines;
+        private double sumOfBytes;
+        private double sumOfSquaredLines;
+        private double sumOfLinesTimesBytes;
+        private double sumOfSquaredBytes;
+
+        private void add(File file, long length) {
+            files.add(file);
+            lengths.add(length);
+            nbOfBytes += length;
+            ++nbOfFiles;
+        }
+
+        // Whether the lines of all the files of the stratum have been counted, failed files aside
+        private boolean isExhausted() {
+            return nbOfCountedFiles == nbOfFiles;
+        }
+
+        // Samples whose counting has been cancelled are neither counted nor failed, and so are
+        // just left out: the stratum may have no file left to sample without being exhausted.
+        private boolean hasFilesToSample() {
+            return nbOfSampledFiles != files.size();
+        }
+
+        private double getRatio() {
+            return sumOfBytes != 0 ? sumOfLines / sumOfBytes : 0d;
+        }
+
+        private double getLineCount() {
+            return isExhausted() ? sumOfLines : getRatio() * nbOfBytes;
+        }
+
+        /**
+         * @return the variance of the residuals of the sampled files from the ratio estimator.
+         */
+        private double getResidualVariance() {
+            if (nbOfCountedFiles < MIN_NB_OF_SAMPLES_PER_STRATUM) {
+                return 0d;
+            }
+            double ratio = getRatio();
+            double sumOfSquaredResiduals = sumOfSquaredLines - 2 * ratio * sumOfLinesTimesBytes + ratio * ratio * sumOfSquaredBytes;
+            return Math.max(0d, sumOfSquaredResiduals) / (nbOfCountedFiles - 1);
+        }
+
+        /**
+         * @return the variance of getLineCount() if {@code n} files of the stratum were counted.
+         */
+        private double getVariance(int n) {
+            if (n >= nbOfFiles || n == 0) {
+                return 0d;
+            }
+            return (double) nbOfFiles * nbOfFiles * (1d - (double) n / nbOfFiles) * getResidualVariance() / n;
+        }
+    }
+
+    /**
+     * Splits {@code files}, whose lengths are {@code lengths}, into strata shuffled using {@code random}.
+     */
+    LineCountEstimator(List<File> files, long[] lengths, Random random) {
+        Map<String, List<Integer>> extensionAndLengthClassToFiles = new HashMap<>();
+        for (int i = 0; i != files.size(); ++i) {
+            String key = getExtension(files.get(i)) + '/' + getLengthClass(lengths[i]);
+            extensionAndLengthClassToFiles.computeIfAbsent(key, k -> new ArrayList<>()).add(i);
+        }
+        Map<Integer, Stratum> lengthClassToMergedStratum = new HashMap<>();
+        extensionAndLengthClassToFiles.values().forEach(indexes -> {
+            Stratum stratum;
+            if (indexes.size() >= MIN_NB_OF_FILES_PER_EXTENSION_STRATUM) {
+                stratum = new Stratum();
+                strata.add(stratum);
+            } else {
+                stratum = lengthClassToMergedStratum.computeIfAbsent(getLengthClass(lengths[indexes.get(0)]), lengthClass -> {
+                    Stratum mergedStratum = new Stratum();
+                    strata.add(mergedStratum);
+                    return mergedStratum;
+                });
+            }
+            for (int i : indexes) {
+                stratum.add(files.get(i), lengths[i]);
+            }
+        });
+        for (Stratum stratum : strata) {
+            // Same permutation for the files and their lengths
+            long seed = random.nextLong();
+            Collections.shuffle(stratum.files, new Random(seed));
+            Collections.shuffle(stratum.lengths, new Random(seed));
+            nbOfFiles += stratum.nbOfFiles;
+            nbOfBytes += stratum.nbOfBytes;
+        }
+        // Strata sorted by descending bytes, so that the 1st samples are taken from the largest
+        strata.sort((s1, s2) -> Long.compare(s2.nbOfBytes, s1.nbOfBytes));
+    }
+
+    private static String getExtension(File file) {
+        String name = file.getName();
+        int dotIndex = name.lastIndexOf('.');
+        return dotIndex > 0 ? name.substring(dotIndex + 1).toLowerCase(Locale.ROOT) : "";
+    }
+
+    private static int getLengthClass(long length) {
+        // Lengths within a factor of 4 have the same class
+        return (64 - Long.numberOfLeadingZeros(length)) / 2;
+    }
+
+    /**
+     * @return the next {@code nbOfFiles} files to sample (fewer if all the files have been sampled),
+     * to be passed back to {@link #addSample(Sample, long)} along with their counts of lines.
+     */
+    List<Sample> nextSamples(int nbOfFiles) {
+        List<Sample> samples = new ArrayList<>(nbOfFiles);
+        // Files being sampled are accounted as if already counted, so that the variance
+        // decrease of the strata they belong to accounts for them.
+        Map<Stratum, Integer> nbOfPendingSamples = new HashMap<>();
+        while (samples.size() != nbOfFiles) {
+            Stratum bestStratum = null;
+            double bestVarianceDecrease = Double.NEGATIVE_INFINITY;
+            for (Stratum stratum : strata) {
+                int pending = nbOfPendingSamples.getOrDefault(stratum, 0);
+                if (!stratum.hasFilesToSample()) {
+                    continue;
+                }
+                double varianceDecrease;
+                if (stratum.nbOfCountedFiles + pending < MIN_NB_OF_SAMPLES_PER_STRATUM) {
+                    varianceDecrease = Double.POSITIVE_INFINITY;
+                } else if (stratum.nbOfCountedFiles < MIN_NB_OF_SAMPLES_PER_STRATUM) {
+                    // Its variance is unknown until its 1st samples are counted
+                    varianceDecrease = -1d;
+                } else {
+                    varianceDecrease = stratum.getVariance(stratum.nbOfCountedFiles + pending) - stratum.getVariance(stratum.nbOfCountedFiles + pending + 1);
+                }
+                if (bestStratum == null || varianceDecrease > bestVarianceDecrease) {
+                    bestStratum = stratum;
+                    bestVarianceDecrease = varianceDecrease;
+                }
+            }
+            if (bestStratum == null) {
+                break;
+            }
+            int i = bestStratum.nbOfSampledFiles++;
+            samples.add(new Sample(bestStratum, bestStratum.files.get(i), bestStratum.lengths.get(i)));
+            nbOfPendingSamples.merge(bestStratum, 1, Integer::sum);
+        }
+        return samples;
+    }
+
+    /**
+     * File to be counted, returned by {@link #nextSamples(int)}.
+     */
+    static final class Sample {
+        private final Stratum stratum;
+        final File file;
+        final long length;
+
+        private Sample(Stratum stratum, File file, long length) {
+            this.stratum = stratum;
+            this.file = file;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Accounts the count of lines of the file of {@code sample}, or -1 if its lines could not be
+     * counted, in which case the file is removed from the files whose lines are estimated.
+     */
+    void addSample(Sample sample, long lineCount) {
+        Stratum stratum = sample.stratum;
+        if (lineCount < 0) {
+            stratum.nbOfBytes -= sample.length;
+            --stratum.nbOfFiles;
+            nbOfBytes -= sample.length;
+            --nbOfFiles;
+            return;
+        }
+        double lines = lineCount;
+        double bytes = sample.length;
+        ++stratum.nbOfCountedFiles;
+        stratum.sumOfLines += lines;
+        stratum.sumOfBytes += bytes;
+        stratum.sumOfSquaredLines += lines * lines;
+        stratum.sumOfLinesTimesBytes += lines * bytes;
+        stratum.sumOfSquaredBytes += bytes * bytes;
+    }
+
+    /**
+     * @return whether each stratum has enough counted files for estimating its variance.
+     */
+    boolean isVarianceEstimable() {
+        for (Stratum stratum : strata) {
+            if (stratum.nbOfCountedFiles < Math.min(MIN_NB_OF_SAMPLES_PER_STRATUM, stratum.nbOfFiles) && !stratum.isExhausted()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the estimate built from the files counted so far.
+     */
+    LineCountEstimate getEstimate() {
+        double lineCount = 0d;
+        double variance = 0d;
+        int nbOfSampledFiles = 0;
+        long nbOfSampledBytes = 0;
+        for (Stratum stratum : strata) {
+            lineCount += stratum.getLineCount();
+            variance += stratum.isExhausted() ? 0d : stratum.getVariance(stratum.nbOfCountedFiles);
+            nbOfSampledFiles += stratum.nbOfCountedFiles;
+            nbOfSampledBytes += (long) stratum.sumOfBytes;
+        }
+        return new LineCountEstimate(Math.round(lineCount), (long) Math.ceil(Z_95 * Math.sqrt(variance)),
+                nbOfSampledFiles, nbOfFiles, nbOfSampledBytes, nbOfBytes);
+    }
+}
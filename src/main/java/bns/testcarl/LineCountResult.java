@@ -0,0 +1,112 @@
+package bns.testcarl;
+
+import lombok.Value;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable outcome of a single call to {@link LineCountUtils#scanCodeLines(java.util.Collection, Long)}
+ * (or to any other counting method of LineCountUtils), so that a LineCountUtils can run several
+ * counts at once, each of them getting its own totals, encoding statistics, failures and timings.
+ */
+@Value
+public class LineCountResult {
+
+    // Overall count of lines of the files whose lines could successfully be counted
+    long lineCount;
+
+    // null or counts of the lines of lineCount by kind, if they have been classified (q.v. LineMetricsScanner)
+    LineMetrics lineMetrics;
+
+    LineCountUtils.LineCountingMethod lineCountingMethod;
+
+    // Whether all the files have been processed, or why the count is partial otherwise
+    LineCountUtils.CountingOutcome countingOutcome;
+
+    int nbOfFilesInSuccess;
+    int nbOfFilesInError;
+
+    // Files for which the count of lines has resulted into an exception, in no particular order
+    List<Failure> failures;
+
+    // Sum of the length of all files whose lines could successfully be counted
+    long nbOfProcessedBytes;
+
+    // null or sum of the bytes allocated by the threads while counting the lines of each file
+    Long nbOfAllocatedBytes;
+
+    // null or number of threads involved in line counting
+    Integer nbOfWorkingThreads;
+
+    // null or cache file the counts of lines of unchanged files have been taken from
+    Path lineCountCacheFile;
+    int nbOfCacheHits;
+
+    // Paths whose lines have not been read but attributed from the file they are duplicates of,
+    // because deduplicateFiles is set (q.v. FileDeduplicator), which are counted in the totals
+    // above as if they had been read, along with their bytes and the lines counted more than once
+    int nbOfDuplicateFiles;
+    long nbOfSkippedBytes;
+    long nbOfDuplicateLines;
+
+    // Files left out because classified binary from their first bytes, if skipBinaryFiles is set,
+    // along with their length, and files and directories left out of a walk by the ignore rules
+    int nbOfBinaryFiles;
+    long nbOfBinaryBytes;
+    int nbOfIgnoredPaths;
+
+    // Archives whose entries have been counted as files (and reported as "<archive>!/<entry path>"),
+    // if countArchiveEntries is set
+    int nbOfArchives;
+
+    // Null if encoding statistics have not been built, or else bind the name of each encoding
+    // met to the count of files whose encoding is certain thanks to the recognition of a BOM
+    // (or by convention because the file is empty), guessed with much confidence thanks to
+    // file sampling, or doubtful (unknown encodings and those hoped to have been guessed right)
+    Map<String, Integer> nbOfFilesPerCertainEncoding;
+    Map<String, Integer> nbOfFilesPerGuessedEncoding;
+    Map<String, Integer> nbOfFilesPerDoubtfulEncoding;
+
+    // Null if encoding statistics have not been built, or else bind the name of each encoding met
+    // to the mean of the confidences, from 0 to 1, in the encoding of its files (q.v. FileLineCountSink)
+    Map<String, Float> meanConfidencePerEncoding;
+
+    long countingDurationNanos; // Wall-clock duration of the count
+    long tailWaitNanos;         // Part of countingDurationNanos elapsed after the last file has started to be counted
+    long encodingDetectionNanos; // Sum of the time spent by all the threads getting the encoding of files
+    long lineCountingNanos;     // Sum of the time spent by all the threads counting the lines of files
+
+    /**
+     * File whose count of lines has failed, along with the exception thrown, as a string.
+     */
+    @Value
+    public static class Failure {
+        File file;
+        String reason;
+    }
+
+    /**
+     * @return whether all the files have been processed (q.v. {@link LineCountUtils.CountingOutcome#isComplete()}).
+     */
+    public boolean isComplete() {
+        return countingOutcome.isComplete();
+    }
+
+    /**
+     * @return null if encoding statistics have not been built, or else the count of files of each
+     * encoding, whether the encoding is certain, guessed or doubtful.
+     */
+    public Map<String, Integer> getNbOfFilesPerEncoding() {
+        if (nbOfFilesPerCertainEncoding == null) {
+            return null;
+        }
+        Map<String, Integer> nbOfFilesPerEncoding = new HashMap<>(nbOfFilesPerCertainEncoding);
+        nbOfFilesPerGuessedEncoding.forEach((encodingName, nbOfFiles) -> nbOfFilesPerEncoding.merge(encodingName, nbOfFiles, Integer::sum));
+        nbOfFilesPerDoubtfulEncoding.forEach((encodingName, nbOfFiles) -> nbOfFilesPerEncoding.merge(encodingName, nbOfFiles, Integer::sum));
+        return nbOfFilesPerEncoding;
+    }
+}
@@ -0,0 +1,914 @@
+package bns.testcarl;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteSource;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.lang.reflect.Array;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * State of a single call to countCodeLines(...), scanCodeLines(...) & al. of {@link LineCountUtils},
+ * so that the calls done at once by several threads, possibly sharing countingExecutor, neither
+ * reset nor mix the counters of each other: the settings of the LineCountUtils are read by each
+ * scan, which should thus not be changed while counting, whereas its counters are its own.<p>
+ * The files are counted using one virtual thread per file, the threads of countingExecutor or of
+ * a dedicated pool, or the ForkJoin common pool, or while a {@link TreeWalk} walks their tree.
+ */
+@Slf4j
+final class LineCountScan {
+    private final LineCountUtils utils;           // Settings of this scan, and holder of its result once done
+    final AtomicInteger nbOfFilesToProcess; // Number of files whose lines have to be counted (so far if walking a tree)
+    private final AtomicLong overallLineCount = new AtomicLong(); // Sum of lines for all files whose lines could successfully be counted
+    private final long stopCountThreshold;        // Line counting halts as soon as overallLineCount >= stopCountThreshold
+    private final AtomicLong nbProcessedBytes = new AtomicLong(); // Sum of the length of all files whose lines could successfully be counted
+    private final AtomicReference<LineMetrics> lineMetrics; // null or sum of the line metrics of all files whose lines could successfully be counted
+    private final AtomicInteger nbFilesInSuccess = new AtomicInteger(); // Number of files whose lines could successfully be counted
+    private final AtomicInteger nbFilesInError = new AtomicInteger();   // Number of files for which count of lines has resulted into an exception
+    private final Queue<LineCountResult.Failure> failures = new ConcurrentLinkedQueue<>(); // Files counted in nbFilesInError
+    private final AtomicLong nbAllocatedBytes;    // null or sum of the bytes allocated by the threads while counting the lines of each file
+    private final Set<Long> workingThreadIdsSet;  // null or set holding IDs of all the threads involved in line counting
+    private final long countingStartNanos;        // System.nanoTime() when this scan has started
+    private final AtomicLong lastFileStartNanos;  // System.nanoTime() when the count of the lines of the last file has started
+    private final LineCountCache lineCountCache;  // null or cache loaded from lineCountCacheFile
+    private final AtomicInteger nbCacheHits = new AtomicInteger(); // Number of files whose count of lines has been taken from lineCountCache
+    FileDeduplicator deduplicator;         // null or duplicates of the files to count, if deduplicateFiles
+    private final AtomicInteger nbOfDuplicateFiles = new AtomicInteger(); // Number of duplicates the count of lines of a file has been attributed to
+    private final AtomicLong nbOfSkippedBytes = new AtomicLong(); // Sum of the length of these duplicates
+    private final AtomicLong nbOfDuplicateLines = new AtomicLong(); // Sum of the lines of these duplicates
+    private final AtomicInteger nbOfBinaryFiles = new AtomicInteger(); // Number of files left out because classified binary, if skipBinaryFiles
+    private final AtomicLong nbOfBinaryBytes = new AtomicLong();  // Sum of the length of these files
+    final AtomicInteger nbOfIgnoredPaths = new AtomicInteger(); // Number of files and directories left out of the walk by the ignore rules
+    private final AtomicInteger nbOfArchives = new AtomicInteger(); // Number of archives whose entries have been counted as files, if countArchiveEntries
+    private final CancellationToken runToken;     // Child of cancellationToken, also cancelled once the threshold is reached
+    volatile boolean countingStopped;     // Whether files have been left out because the counting has been stopped
+    private final AtomicInteger nbOfStartedFiles = new AtomicInteger(); // Number of files whose lines have started to be counted
+    private final AtomicInteger nbOfActiveThreads = new AtomicInteger(); // Number of threads counting the lines of a file right now
+    final AtomicLong nbOfBytesToProcess = new AtomicLong(-1L); // Sum of the lengths of the files to process (so far if walking a tree), or -1 if unknown
+    volatile boolean walkInProgress;      // Whether the tree of scanCodeLines(Path, Long) is still being walked
+    private final LongAdder encodingDetectionNanos = new LongAdder(); // Sum of the time spent by all the threads getting the encoding of files
+    private final LongAdder lineCountingNanos = new LongAdder(); // Sum of the time spent by all the threads counting the lines of files
+    private ScheduledExecutorService progressReporter; // null or thread reporting the progress to progressListener
+    private LineCountingProgress lastProgress;    // null or the last snapshot reported to progressListener
+    Map<File, Long> lineCountPerFile;     // null or bind each file counted to its count of lines (-1 if not counted), for estimateCodeLines(...)
+
+    // Permits of the threads searching CR/LF (or scanning line metrics) in the bytes of a file, held
+    // from the end of the detection of its encoding to the end of its count of lines, so that at most
+    // AVAILABLE_NUMBER_OF_CORES threads are busy with CPU whatever the number of threads opening files
+    // and getting their metadata, for instance the platform threads used when ioConcurrency is set and
+    // this JVM has no virtual threads, or the countingThreadCount threads of a pool sized for I/O.
+    private final Semaphore cpuPermits = new Semaphore(LineCountUtils.AVAILABLE_NUMBER_OF_CORES);
+
+    // Null or bind the name of each encoding met to the counts of files having this encoding:
+    // -index 0 is for encodings which are certain thanks to the recognition of a BOM,
+    //  or by convention said to be certain because the length of the file is 0 bytes,
+    // -index 1 is for encoding guessed with much confidence thanks to file sampling,
+    // -index 2 is for unknown encodings and those hoped to have been guessed right...
+    private final Map<String, AtomicInteger>[] encodingNameToFileCountMaps;
+
+    // Null or bind the name of each encoding met to the sum of the confidences in the encoding
+    // of its files, whatever their index in encodingNameToFileCountMaps
+    private final Map<String, DoubleAdder> encodingNameToConfidenceSums;
+
+    // Null or bind the name of each language to its counters, and each file to the counters
+    // of the languages it belongs to, for a scan of countCodeLinesPerLanguage(...)
+    private final Map<String, LanguageCounter> languageCounters;
+    final Map<File, List<LanguageCounter>> fileToLanguageCounters;
+
+    /**
+     * Initializes the state of a scan of {@code nbOfFilesToProcess} files (so far if walking
+     * a tree), or of the files of {@code filesPerLanguage} if not null, the counting starting now,
+     * unless settings of {@code utils} cannot be applied together (q.v. LineCountUtils#checkOptions()).
+     */
+    LineCountScan(LineCountUtils utils, int nbOfFilesToProcess, Long lineCountThreshold, Map<String, ? extends Collection<File>> filesPerLanguage) {
+        utils.checkOptions();
+        this.utils = utils;
+        if (filesPerLanguage != null) {
+            languageCounters = new HashMap<>();
+            fileToLanguageCounters = new HashMap<>();
+            filesPerLanguage.forEach((language, files) -> {
+                LanguageCounter languageCounter = new LanguageCounter();
+                languageCounters.put(language, languageCounter);
+                for (File file : files) {
+                    fileToLanguageCounters.computeIfAbsent(file, f -> new ArrayList<>(1)).add(languageCounter);
+                }
+            });
+            nbOfFilesToProcess = fileToLanguageCounters.size();
+        } else {
+            languageCounters = null;
+            fileToLanguageCounters = null;
+        }
+        this.nbOfFilesToProcess = new AtomicInteger(nbOfFilesToProcess);
+        stopCountThreshold = lineCountThreshold != null ? lineCountThreshold : Long.MAX_VALUE;
+        lineMetrics = utils.countLineMetrics ? new AtomicReference<>(LineMetrics.ZERO) : null;
+        nbAllocatedBytes = utils.measureAllocatedBytes && LineCountUtils.isThreadAllocatedMemoryMeasurable() ? new AtomicLong() : null;
+        workingThreadIdsSet = utils.countWorkingThreads ? ConcurrentHashMap.newKeySet(LineCountUtils.AVAILABLE_NUMBER_OF_CORES) : null;
+        if (utils.buildEncodingStatistics) {
+            encodingNameToFileCountMaps = (ConcurrentHashMap[]) Array.newInstance(ConcurrentHashMap.class, 3);
+            for (int i = 0; i != encodingNameToFileCountMaps.length; ++i) {
+                encodingNameToFileCountMaps[i] = new ConcurrentHashMap<>(7);
+            }
+            encodingNameToConfidenceSums = new ConcurrentHashMap<>(7);
+        } else {
+            encodingNameToFileCountMaps = null;
+            encodingNameToConfidenceSums = null;
+        }
+
+        countingStartNanos = System.nanoTime();
+        lastFileStartNanos = new AtomicLong(countingStartNanos);
+        lineCountCache = utils.lineCountCacheFile != null ? LineCountCache.load(utils.lineCountCacheFile, utils.lineCountingMethod, utils.skipBinaryFiles) : null;
+        runToken = utils.cancellationToken != null ? utils.cancellationToken.newChild() : new CancellationToken();
+        if (utils.progressListener != null) {
+            long intervalMillis = Math.max(1L, utils.progressReportIntervalMillis);
+            progressReporter = Executors.newSingleThreadScheduledExecutor(LineCountUtils.newDaemonThreadFactory("line-counting-progress-"));
+            progressReporter.scheduleAtFixedRate(() -> reportProgress(false), intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return the result of this scan, once its counting is done, which is also
+     * made the last result of this LineCountUtils.
+     */
+    LineCountResult finish() {
+        // Once the last file has started to be counted, the threads that are done have nothing
+        // left to do, so the wall-clock time is set by the thread(s) still counting the lines of
+        // the files that were started last: this is why the biggest files are started first.
+        long countingEndNanos = System.nanoTime();
+        long countingDurationNanos = countingEndNanos - countingStartNanos;
+        long tailWaitNanos = countingEndNanos - lastFileStartNanos.get();
+        if (progressReporter != null) {
+            // The last snapshot is reported once the periodic reports are over, so that
+            // the listener is never called by 2 threads at once
+            progressReporter.shutdown();
+            try {
+                progressReporter.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            progressReporter = null;
+            reportProgress(true);
+        }
+        LineCountUtils.CountingOutcome countingOutcome;
+        if (!countingStopped) {
+            countingOutcome = LineCountUtils.CountingOutcome.COMPLETE;
+        } else if (utils.cancellationToken != null && utils.cancellationToken.isDeadlineExceeded()) {
+            countingOutcome = LineCountUtils.CountingOutcome.DEADLINE_EXCEEDED;
+        } else if (utils.cancellationToken != null && utils.cancellationToken.isCancelled()) {
+            countingOutcome = LineCountUtils.CountingOutcome.CANCELLED;
+        } else {
+            countingOutcome = LineCountUtils.CountingOutcome.THRESHOLD_REACHED;
+        }
+        if (lineCountCache != null) {
+            // The entries of the files that have not been counted because the counting has been
+            // stopped are kept, whereas those of files that no longer exist are dropped otherwise.
+            try {
+                lineCountCache.save(countingStopped);
+            } catch (IOException e) {
+                log.warn(String.format("Unable to save the line count cache %s", utils.lineCountCacheFile), e);
+            }
+        }
+        LineCountResult result = new LineCountResult(overallLineCount.get(), lineMetrics != null ? lineMetrics.get() : null, utils.lineCountingMethod, countingOutcome,
+                nbFilesInSuccess.get(), nbFilesInError.get(), ImmutableList.copyOf(failures),
+                nbProcessedBytes.get(), nbAllocatedBytes != null ? nbAllocatedBytes.get() : null,
+                workingThreadIdsSet != null ? workingThreadIdsSet.size() : null,
+                lineCountCache != null ? utils.lineCountCacheFile : null, nbCacheHits.get(),
+                nbOfDuplicateFiles.get(), nbOfSkippedBytes.get(), nbOfDuplicateLines.get(),
+                nbOfBinaryFiles.get(), nbOfBinaryBytes.get(), nbOfIgnoredPaths.get(), nbOfArchives.get(),
+                getEncodingStatistics(0), getEncodingStatistics(1), getEncodingStatistics(2), getMeanConfidencePerEncoding(),
+                countingDurationNanos, tailWaitNanos, encodingDetectionNanos.sum(), lineCountingNanos.sum());
+        utils.lastResult = result;
+        return result;
+    }
+
+    /**
+     * @return null if encoding statistics are not built, or else an immutable copy of
+     * the counts of files per encoding held by encodingNameToFileCountMaps[encodingCountIndex].
+     */
+    private Map<String, Integer> getEncodingStatistics(int encodingCountIndex) {
+        if (encodingNameToFileCountMaps == null) {
+            return null;
+        }
+        ImmutableMap.Builder<String, Integer> nbOfFilesPerEncoding = ImmutableMap.builder();
+        encodingNameToFileCountMaps[encodingCountIndex].forEach((encodingName, fileCount) -> nbOfFilesPerEncoding.put(encodingName, fileCount.get()));
+        return nbOfFilesPerEncoding.build();
+    }
+
+    /**
+     * @return null if encoding statistics are not built, or else the mean of the confidences
+     * in the encoding of the files of each encoding, from encodingNameToConfidenceSums.
+     */
+    private Map<String, Float> getMeanConfidencePerEncoding() {
+        if (encodingNameToConfidenceSums == null) {
+            return null;
+        }
+        ImmutableMap.Builder<String, Float> meanConfidencePerEncoding = ImmutableMap.builder();
+        encodingNameToConfidenceSums.forEach((encodingName, confidenceSum) -> {
+            int nbOfFiles = 0;
+            for (Map<String, AtomicInteger> encodingNameToFileCountMap : encodingNameToFileCountMaps) {
+                AtomicInteger fileCount = encodingNameToFileCountMap.get(encodingName);
+                nbOfFiles += fileCount != null ? fileCount.get() : 0;
+            }
+            meanConfidencePerEncoding.put(encodingName, nbOfFiles != 0 ? (float) (confidenceSum.sum() / nbOfFiles) : 0f);
+        });
+        return meanConfidencePerEncoding.build();
+    }
+
+    /**
+     * @return an immutable copy of the counts of languageCounters, once the counting is done.
+     */
+    Map<String, LineCountUtils.LanguageLineCount> getLanguageLineCounts() {
+        ImmutableMap.Builder<String, LineCountUtils.LanguageLineCount> languageLineCounts = ImmutableMap.builder();
+        languageCounters.forEach((language, languageCounter) -> languageLineCounts.put(language, languageCounter.toLanguageLineCount()));
+        return languageLineCounts.build();
+    }
+
+    /**
+     * Counts of lines, bytes and files of a language, added to by the threads counting
+     * the lines of its files.
+     */
+    private static final class LanguageCounter {
+        private final AtomicLong nbOfLines = new AtomicLong();
+        private final AtomicLong nbOfBytes = new AtomicLong();
+        private final AtomicInteger nbOfFiles = new AtomicInteger();
+        private final AtomicLong nbOfBlankLines = new AtomicLong();
+        private final AtomicLong nbOfCommentLines = new AtomicLong();
+        private final AtomicLong nbOfCodeLines = new AtomicLong();
+
+        private void add(long lineCount, long fileLength, LineMetrics lineMetrics) {
+            nbOfLines.addAndGet(lineCount);
+            nbOfBytes.addAndGet(fileLength);
+            nbOfFiles.incrementAndGet();
+            if (lineMetrics != null) {
+                nbOfBlankLines.addAndGet(lineMetrics.getNbOfBlankLines());
+                nbOfCommentLines.addAndGet(lineMetrics.getNbOfCommentLines());
+                nbOfCodeLines.addAndGet(lineMetrics.getNbOfCodeLines());
+            }
+        }
+
+        private LineCountUtils.LanguageLineCount toLanguageLineCount() {
+            return new LineCountUtils.LanguageLineCount(nbOfLines.get(), nbOfBytes.get(), nbOfFiles.get(),
+                    nbOfBlankLines.get(), nbOfCommentLines.get(), nbOfCodeLines.get());
+        }
+    }
+
+    /**
+     * Counts the lines of {@code file} whose length is {@code fileLength}, adding them to the
+     * overall count of lines unless the threshold of this scan is already reached.
+     * @return the count of lines of the file, or -1 if not counted (threshold or failure).
+     */
+    private long countFileLines(File file, long fileLength) {
+        long lineCount = countFileLines(file, fileLength, null);
+        if (lineCountPerFile != null) {
+            lineCountPerFile.put(file, lineCount);
+        }
+        return lineCount;
+    }
+
+    /**
+     * Same as above, {@code lastModifiedTime} being the last modification time of {@code file}
+     * got along with its length, or {@code null} for getting it when needed.
+     */
+    private long countFileLines(File file, long fileLength, Long lastModifiedTime) {
+        ArchiveReader.Format archiveFormat = utils.countArchiveEntries ? ArchiveReader.formatOf(file) : null;
+        if (archiveFormat != null) {
+            return countArchiveLines(file, fileLength, archiveFormat);
+        }
+        if (!isCountingStopped()) {
+            // This MUST remain the 1st line of this block so that decreasing this value
+            // in case of exception is valid: we get the increased file# now so that no
+            // trace, if any, will show the same file# because of multi-threading.
+            int fileNumber = nbFilesInSuccess.incrementAndGet();
+            long allocatedBytesBefore = nbAllocatedBytes != null ? LineCountUtils.getCurrentThreadAllocatedBytes() : 0L;
+            long fileStartNanos = System.nanoTime();
+            lastFileStartNanos.accumulateAndGet(fileStartNanos, Math::max);
+            // Checked by the loops reading the file between two buffers
+            CancellationToken previousToken = CancellationToken.setCurrent(runToken);
+            nbOfActiveThreads.incrementAndGet();
+            try {
+                if (workingThreadIdsSet != null) {
+                    workingThreadIdsSet.add(Thread.currentThread().getId());
+                }
+                // Each file gets its own number, so that progress is logged exactly once per
+                // countingProgressLogFrequency files, whatever the number of threads
+                int nbOfStartedFiles = this.nbOfStartedFiles.incrementAndGet();
+                if (utils.countingProgressLogFrequency != null) {
+                    logLineCountingProgress(nbOfStartedFiles);
+                }
+
+                // The last modification time is got before the file is read, so that a file modified
+                // while being counted has a different one in the next run, and is counted again.
+                long lastModified = lineCountCache == null ? 0L : lastModifiedTime != null ? lastModifiedTime : file.lastModified();
+                LineCountCache.Entry cachedEntry = lineCountCache != null && !utils.countLineMetrics ? lineCountCache.get(file.getAbsolutePath(), fileLength, lastModified) : null;
+
+                boolean[] isEncodingCertain = new boolean[1];
+                float[] encodingConfidence = new float[1];
+                int[] bomLength = new int[1];
+                boolean[] isBinary = utils.skipBinaryFiles ? new boolean[1] : null; // null unless skipBinaryFiles
+                Charset fileEncoding;
+                Charset detectedEncoding; // null if unknown
+                long lineCount;
+                LineMetrics fileLineMetrics = null; // null unless countLineMetrics
+                if (cachedEntry != null && cachedEntry.getLineCount() < 0) {
+                    // Classified binary by a previous run skipping binary files as well
+                    nbCacheHits.incrementAndGet();
+                    return skipBinaryFile(file, fileLength, null);
+                } else if (cachedEntry != null) {
+                    nbCacheHits.incrementAndGet();
+                    detectedEncoding = cachedEntry.getEncoding();
+                    isEncodingCertain[0] = cachedEntry.isEncodingCertain();
+                    encodingConfidence[0] = cachedEntry.getEncodingConfidence();
+                    bomLength[0] = cachedEntry.getBomLength();
+                    lineCount = cachedEntry.getLineCount();
+                    recordEncodingStatistics(detectedEncoding, fileLength, isEncodingCertain[0], encodingConfidence[0], bomLength[0]);
+                    fileEncoding = detectedEncoding != null ? detectedEncoding : Charset.defaultCharset();
+                } else if (utils.isSinglePassEncodingDetectionApplicable(fileLength)) {
+                    Charset[] singlePassEncoding = new Charset[1];
+                    cpuPermits.acquireUninterruptibly();
+                    try {
+                        lineCount = LineCountUtils.countLinesWithSinglePassEncodingDetection(file, fileLength, utils.fileReadBufferSize, singlePassEncoding, isEncodingCertain, bomLength, isBinary, encodingConfidence);
+                    } finally {
+                        cpuPermits.release();
+                    }
+                    lineCountingNanos.add(System.nanoTime() - fileStartNanos);
+                    if (isBinary != null && isBinary[0]) {
+                        return skipBinaryFile(file, fileLength, lastModified);
+                    }
+                    fileEncoding = singlePassEncoding[0];
+                    recordEncodingStatistics(fileEncoding, fileLength, isEncodingCertain[0], encodingConfidence[0], bomLength[0]);
+                    detectedEncoding = fileEncoding;
+                    if (fileEncoding == null) {
+                        // The lines have been counted using the default charset of this JVM
+                        fileEncoding = Charset.defaultCharset();
+                    }
+                } else {
+                    fileEncoding = utils.getFileEncoding(file, fileLength, isEncodingCertain, bomLength, isBinary, encodingConfidence);
+                    if (isBinary != null && isBinary[0]) {
+                        encodingDetectionNanos.add(System.nanoTime() - fileStartNanos);
+                        return skipBinaryFile(file, fileLength, lastModified);
+                    }
+                    recordEncodingStatistics(fileEncoding, fileLength, isEncodingCertain[0], encodingConfidence[0], bomLength[0]);
+                    detectedEncoding = fileEncoding;
+                    if (fileEncoding == null) {
+                        fileEncoding = Charset.defaultCharset(); // default charset of this JVM
+                        isEncodingCertain[0] = false;
+                        bomLength[0] = 0;
+                    }
+                    long encodingEndNanos = System.nanoTime();
+                    encodingDetectionNanos.add(encodingEndNanos - fileStartNanos);
+                    cpuPermits.acquireUninterruptibly();
+                    try {
+                        if (utils.countLineMetrics) {
+                            fileLineMetrics = LineMetricsScanner.scan(file, utils.fileReadBufferSize, bomLength[0], fileEncoding, CommentSyntax.forFile(file));
+                            lineCount = fileLineMetrics.getNbOfLines();
+                        } else {
+                            // Qualified, the countFileLines(...) of this scan hiding those of LineCountUtils
+                            lineCount = utils.countFileLines(file, fileLength, bomLength[0], fileEncoding);
+                        }
+                    } finally {
+                        cpuPermits.release();
+                    }
+                    lineCountingNanos.add(System.nanoTime() - encodingEndNanos);
+                }
+
+                if (cachedEntry == null && lineCountCache != null && lastModified != 0L
+                        && file.length() == fileLength && file.lastModified() == lastModified) {
+                    // Files modified while being counted are not stored, since their count of lines
+                    // may be that of neither version of their content.
+                    lineCountCache.put(new LineCountCache.Entry(file.getAbsolutePath(), fileLength, lastModified,
+                            detectedEncoding != null ? detectedEncoding.name() : null, isEncodingCertain[0], encodingConfidence[0], bomLength[0], lineCount));
+                }
+                addFileLineCount(file, fileLength, fileNumber, fileEncoding, detectedEncoding, isEncodingCertain[0], encodingConfidence[0], bomLength[0], lineCount, fileLineMetrics, fileStartNanos);
+                if (nbAllocatedBytes != null) {
+                    nbAllocatedBytes.addAndGet(LineCountUtils.getCurrentThreadAllocatedBytes() - allocatedBytesBefore);
+                }
+                return lineCount;
+            } catch (CancellationException e) {
+                // The lines of the file are left out of the count, which is not a failure
+                nbFilesInSuccess.decrementAndGet();
+                countingStopped = true;
+            } catch (Exception e) {
+                nbFilesInSuccess.decrementAndGet();
+                recordFailure(file, fileLength, e, fileStartNanos);
+            } finally {
+                nbOfActiveThreads.decrementAndGet();
+                CancellationToken.setCurrent(previousToken);
+            }
+        }
+        return -1L;
+    }
+
+    /**
+     * Counts the lines of the entries of {@code archive} as files, the entries of a zip archive
+     * being counted in parallel, and those of its duplicates as well, if any.
+     * @return the count of lines of the entries of the archive whose lines have been counted.
+     */
+    private long countArchiveLines(File archive, long archiveLength, ArchiveReader.Format archiveFormat) {
+        if (isCountingStopped()) {
+            return -1L;
+        }
+        long archiveStartNanos = System.nanoTime();
+        AtomicLong archiveLineCount = new AtomicLong();
+        try {
+            ArchiveReader.forEachEntry(archive, archiveFormat, true, (entryName, entryLength, content) -> {
+                long lineCount = countEntryLines(ArchiveReader.entryFile(archive, entryName), entryLength, content);
+                if (lineCount > 0) {
+                    archiveLineCount.addAndGet(lineCount);
+                }
+                return !isCountingStopped();
+            });
+            nbOfArchives.incrementAndGet();
+        } catch (IOException | RuntimeException e) {
+            // The entries counted before the archive was found corrupted, if any, are kept
+            recordFailure(archive, archiveLength, e, archiveStartNanos);
+            return archiveLineCount.get();
+        }
+        if (deduplicator != null) {
+            // The entries of an archive are not attributed, since they are not files of the collection
+            for (File duplicate : deduplicator.getDuplicates(archive)) {
+                archiveLineCount.addAndGet(Math.max(0L, countArchiveLines(duplicate, archiveLength, archiveFormat)));
+            }
+        }
+        return archiveLineCount.get();
+    }
+
+    /**
+     * Counts the lines of the entry of an archive reported as {@code entryFile}, whose content is
+     * {@code entryLength} bytes long, as done by countFileLines(...) for files, except that the
+     * encoding is always detected from the 1st buffer read (q.v. singlePassEncodingDetection).
+     * @return the count of lines of the entry, or -1 if not counted (threshold, binary or failure).
+     */
+    private long countEntryLines(File entryFile, long entryLength, ByteSource content) {
+        if (isCountingStopped()) {
+            return -1L;
+        }
+        // As in countFileLines(...), this MUST remain the 1st line of this block
+        int fileNumber = nbFilesInSuccess.incrementAndGet();
+        long allocatedBytesBefore = nbAllocatedBytes != null ? LineCountUtils.getCurrentThreadAllocatedBytes() : 0L;
+        long fileStartNanos = System.nanoTime();
+        lastFileStartNanos.accumulateAndGet(fileStartNanos, Math::max);
+        CancellationToken previousToken = CancellationToken.setCurrent(runToken);
+        nbOfActiveThreads.incrementAndGet();
+        try (InputStream inputStream = content.openStream()) {
+            if (workingThreadIdsSet != null) {
+                workingThreadIdsSet.add(Thread.currentThread().getId());
+            }
+            int nbOfStartedFiles = this.nbOfStartedFiles.incrementAndGet();
+            if (utils.countingProgressLogFrequency != null) {
+                logLineCountingProgress(nbOfStartedFiles);
+            }
+
+            boolean[] isEncodingCertain = new boolean[1];
+            float[] encodingConfidence = new float[1];
+            int[] bomLength = new int[1];
+            boolean[] isBinary = utils.skipBinaryFiles ? new boolean[1] : null; // null unless skipBinaryFiles
+            Charset detectedEncoding; // null if unknown
+            long lineCount;
+            LineMetrics fileLineMetrics = null; // null unless countLineMetrics
+            // The entries are decompressed by the thread counting their lines, so the
+            // permit is held from the 1st byte read since both are CPU-bound
+            cpuPermits.acquireUninterruptibly();
+            try {
+                if (utils.countLineMetrics) {
+                    // The sample is read again by the scanner, the stream being reset to its beginning
+                    BufferedInputStream bufferedStream = new BufferedInputStream(inputStream, FileEncodingUtils.SAMPLING_READ_NUMBER_OF_BYTES);
+                    bufferedStream.mark(FileEncodingUtils.SAMPLING_READ_NUMBER_OF_BYTES);
+                    byte[] sample = bufferedStream.readNBytes(FileEncodingUtils.SAMPLING_READ_NUMBER_OF_BYTES);
+                    bufferedStream.reset();
+                    detectedEncoding = FileEncodingUtils.getOrGuessEncoding(sample, sample.length, null, entryLength, isEncodingCertain, bomLength, isBinary, encodingConfidence);
+                    if (detectedEncoding == null) {
+                        isEncodingCertain[0] = false;
+                        bomLength[0] = 0;
+                    }
+                    if (isBinary != null && isBinary[0]) {
+                        lineCount = -1L;
+                    } else {
+                        fileLineMetrics = LineMetricsScanner.scan(bufferedStream, entryLength, utils.fileReadBufferSize, bomLength[0],
+                                detectedEncoding != null ? detectedEncoding : Charset.defaultCharset(), CommentSyntax.forFile(entryFile));
+                        lineCount = fileLineMetrics.getNbOfLines();
+                    }
+                } else {
+                    Charset[] singlePassEncoding = new Charset[1];
+                    lineCount = LineCountUtils.countLinesWithSinglePassEncodingDetection(inputStream, entryLength, utils.fileReadBufferSize, singlePassEncoding, isEncodingCertain, bomLength, isBinary, encodingConfidence);
+                    detectedEncoding = singlePassEncoding[0];
+                }
+            } finally {
+                cpuPermits.release();
+            }
+            lineCountingNanos.add(System.nanoTime() - fileStartNanos);
+            if (isBinary != null && isBinary[0]) {
+                return skipBinaryFile(entryFile, entryLength, null);
+            }
+            recordEncodingStatistics(detectedEncoding, entryLength, isEncodingCertain[0], encodingConfidence[0], bomLength[0]);
+            Charset fileEncoding = detectedEncoding != null ? detectedEncoding : Charset.defaultCharset();
+            addFileLineCount(entryFile, entryLength, fileNumber, fileEncoding, detectedEncoding, isEncodingCertain[0], encodingConfidence[0], bomLength[0], lineCount, fileLineMetrics, fileStartNanos);
+            if (nbAllocatedBytes != null) {
+                nbAllocatedBytes.addAndGet(LineCountUtils.getCurrentThreadAllocatedBytes() - allocatedBytesBefore);
+            }
+            return lineCount;
+        } catch (CancellationException e) {
+            nbFilesInSuccess.decrementAndGet();
+            countingStopped = true;
+        } catch (Exception e) {
+            nbFilesInSuccess.decrementAndGet();
+            recordFailure(entryFile, entryLength, e, fileStartNanos);
+        } finally {
+            nbOfActiveThreads.decrementAndGet();
+            CancellationToken.setCurrent(previousToken);
+        }
+        return -1L;
+    }
+
+    /**
+     * Adds the count of lines of {@code file}, counted by the current thread since {@code fileStartNanos},
+     * to the totals of this scan, and attributes it to its duplicates, if any.
+     */
+    private void addFileLineCount(File file, long fileLength, int fileNumber, Charset fileEncoding, Charset detectedEncoding,
+                                  boolean isEncodingCertain, float encodingConfidence, int bomLength, long lineCount, LineMetrics fileLineMetrics, long fileStartNanos) {
+        if (utils.logPerFileInfo) {
+            logPerFileInformation(file, fileLength, fileNumber, fileEncoding, isEncodingCertain, encodingConfidence, bomLength, lineCount);
+        }
+        if (utils.fileLineCountSink != null) {
+            emitFileLineCount(file, fileLength, detectedEncoding, isEncodingCertain, encodingConfidence, bomLength, lineCount, System.nanoTime() - fileStartNanos);
+        }
+        if (overallLineCount.addAndGet(lineCount) >= stopCountThreshold) {
+            // The files being read by the other threads are not needed anymore
+            runToken.cancel();
+        }
+        nbProcessedBytes.addAndGet(fileLength);
+        if (fileLineMetrics != null) {
+            lineMetrics.accumulateAndGet(fileLineMetrics, LineMetrics::plus);
+        }
+        if (fileToLanguageCounters != null) {
+            for (LanguageCounter languageCounter : fileToLanguageCounters.getOrDefault(file, Collections.emptyList())) {
+                languageCounter.add(lineCount, fileLength, fileLineMetrics);
+            }
+        }
+        if (deduplicator != null) {
+            attributeToDuplicates(file, fileLength, fileEncoding, detectedEncoding, isEncodingCertain, encodingConfidence, bomLength, lineCount, fileLineMetrics);
+        }
+    }
+
+    /**
+     * Records the failure of the count of the lines of {@code file}, and of its duplicates, if any,
+     * whose number must have been decreased from nbFilesInSuccess already.
+     */
+    private void recordFailure(File file, long fileLength, Exception e, long fileStartNanos) {
+        nbFilesInError.incrementAndGet();
+        failures.add(new LineCountResult.Failure(file, e.toString()));
+        log.error(String.format("Line counting failed for file \"%s\" (#failures = %d, #success = %d).", file.getAbsolutePath(), nbFilesInError.get(), nbFilesInSuccess.get()), e);
+        if (utils.fileLineCountSink != null) {
+            emitFileLineCount(file, fileLength, null, false, 0f, 0, -1L, System.nanoTime() - fileStartNanos);
+        }
+        if (deduplicator != null) {
+            // Duplicates of the file would have failed the same way
+            for (File duplicate : deduplicator.getDuplicates(file)) {
+                nbFilesInError.incrementAndGet();
+                failures.add(new LineCountResult.Failure(duplicate, e.toString()));
+                if (utils.fileLineCountSink != null) {
+                    emitFileLineCount(duplicate, fileLength, null, false, 0f, 0, -1L, 0L);
+                }
+            }
+        }
+    }
+
+    /**
+     * Leaves out {@code file}, classified binary from its first bytes, along with its duplicates if
+     * any, the classification being cached unless {@code lastModified} is null (or 0 if no cache).
+     * @return -1, as for the files whose lines are not counted.
+     */
+    private long skipBinaryFile(File file, long fileLength, Long lastModified) {
+        // Decreased as done for the files whose count of lines fails
+        nbFilesInSuccess.decrementAndGet();
+        int nbOfFiles = 1 + (deduplicator != null ? deduplicator.getDuplicates(file).size() : 0);
+        nbOfBinaryFiles.addAndGet(nbOfFiles);
+        nbOfBinaryBytes.addAndGet(nbOfFiles * fileLength);
+        if (lineCountCache != null && lastModified != null && lastModified != 0L
+                && file.length() == fileLength && file.lastModified() == lastModified) {
+            lineCountCache.put(new LineCountCache.Entry(file.getAbsolutePath(), fileLength, lastModified, null, false, 0f, 0, -1L));
+        }
+        return -1L;
+    }
+
+    /**
+     * Attributes the count of lines of {@code file} to each of its duplicates found by the
+     * deduplicator, whose lines are thus added to the totals without being read.
+     */
+    private void attributeToDuplicates(File file, long fileLength, Charset fileEncoding, Charset detectedEncoding, boolean isEncodingCertain, float encodingConfidence,
+                                       int bomLength, long lineCount, LineMetrics fileLineMetrics) {
+        List<File> duplicates = deduplicator.getDuplicates(file);
+        if (duplicates.isEmpty()) {
+            return;
+        }
+        for (File duplicate : duplicates) {
+            int fileNumber = nbFilesInSuccess.incrementAndGet();
+            recordEncodingStatistics(detectedEncoding, fileLength, isEncodingCertain, encodingConfidence, bomLength);
+            if (utils.logPerFileInfo) {
+                logPerFileInformation(duplicate, fileLength, fileNumber, fileEncoding, isEncodingCertain, encodingConfidence, bomLength, lineCount);
+            }
+            if (utils.fileLineCountSink != null) {
+                emitFileLineCount(duplicate, fileLength, detectedEncoding, isEncodingCertain, encodingConfidence, bomLength, lineCount, 0L);
+            }
+            if (fileLineMetrics != null) {
+                lineMetrics.accumulateAndGet(fileLineMetrics, LineMetrics::plus);
+            }
+            if (fileToLanguageCounters != null) {
+                for (LanguageCounter languageCounter : fileToLanguageCounters.getOrDefault(duplicate, Collections.emptyList())) {
+                    languageCounter.add(lineCount, fileLength, fileLineMetrics);
+                }
+            }
+        }
+        nbOfDuplicateFiles.addAndGet(duplicates.size());
+        nbOfSkippedBytes.addAndGet(duplicates.size() * fileLength);
+        nbOfDuplicateLines.addAndGet(duplicates.size() * lineCount);
+        nbProcessedBytes.addAndGet(duplicates.size() * fileLength);
+        if (overallLineCount.addAndGet(duplicates.size() * lineCount) >= stopCountThreshold) {
+            runToken.cancel();
+        }
+    }
+
+    /**
+     * Emits the record of {@code file} to fileLineCountSink, {@code lineCount} being -1 if failed.
+     */
+    private void emitFileLineCount(File file, long fileLength, Charset encoding, boolean isEncodingCertain, float encodingConfidence, int bomLength, long lineCount, long durationNanos) {
+        try {
+            utils.fileLineCountSink.onFileCounted(file, fileLength, encoding, isEncodingCertain, encodingConfidence, bomLength, lineCount, durationNanos);
+        } catch (RuntimeException e) {
+            // A failing sink must neither make the file a failure nor stop the counting
+            log.warn(String.format("Per-file line count sink failed for file \"%s\"", file.getAbsolutePath()), e);
+        }
+    }
+
+    /**
+     * @return whether no more file must be counted, because the threshold is reached, or because
+     * the counting has been cancelled or its deadline has passed, in which case the file about to
+     * be counted is left out, and so the count is flagged as partial.
+     */
+    boolean isCountingStopped() {
+        if (overallLineCount.get() >= stopCountThreshold || runToken.isCancelled()) {
+            countingStopped = true;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Counts the lines of {@code files} using one virtual thread per file if ioConcurrency is set,
+     * the threads of countingExecutor or of a dedicated pool of countingThreadCount threads if
+     * either is set, or else the threads of the ForkJoin common pool.
+     */
+    void countLines(Collection<File> files) throws IOException {
+        if (utils.ioConcurrency != null) {
+            countLinesUsingVirtualThreads(files);
+        } else if (utils.countingExecutor == null && utils.countingThreadCount == null) {
+            // Once stopped, the existence of the remaining files is not even checked
+            files.parallelStream().filter(f -> !isCountingStopped() && Files.exists(f.toPath())).forEach(file -> countFileLines(file, file.length()));
+        } else {
+            countLinesUsingDedicatedExecutor(files);
+        }
+    }
+
+    /**
+     * Counts the lines of {@code files} using the threads of {@code countingExecutor} or of a
+     * dedicated pool of {@code countingThreadCount} threads, the files being counted in the
+     * descending order of their lengths so that the biggest ones do not start late and leave
+     * the other threads idle while they are counted at the end.
+     */
+    private void countLinesUsingDedicatedExecutor(Collection<File> files) throws IOException {
+        LineCountUtils.SizedFile[] sizedFiles = LineCountUtils.sortByDescendingLength(files);
+        nbOfBytesToProcess.set(Arrays.stream(sizedFiles).mapToLong(sizedFile -> sizedFile.length).sum());
+        int nbOfThreads = Math.max(1, utils.countingThreadCount != null ? utils.countingThreadCount : LineCountUtils.AVAILABLE_NUMBER_OF_CORES);
+        ExecutorService executor = utils.countingExecutor != null ? utils.countingExecutor : Executors.newFixedThreadPool(nbOfThreads, LineCountUtils.newCountingThreadFactory());
+        try {
+            // Each task counts the next file not yet counted until there is none left, rather than
+            // one task being submitted per file, so the largest-first order does not depend on the
+            // queue of the executor and millions of files do not make as many futures.
+            AtomicInteger nextFileIndex = new AtomicInteger();
+            List<Future<?>> tasks = new ArrayList<>(nbOfThreads);
+            for (int t = 0; t != nbOfThreads; ++t) {
+                tasks.add(executor.submit(() -> {
+                    for (int i = nextFileIndex.getAndIncrement(); i < sizedFiles.length && !isCountingStopped(); i = nextFileIndex.getAndIncrement()) {
+                        countFileLines(sizedFiles[i].file, sizedFiles[i].length);
+                    }
+                }));
+            }
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Line counting interrupted");
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Line counting thread failed", e.getCause());
+        } finally {
+            if (utils.countingExecutor == null) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Counts the lines of {@code files} using one virtual thread per file, {@code ioConcurrency}
+     * files at most being processed at once, from the check of their existence to the count of
+     * their lines, whereas the search of CR/LF is done by {@code AVAILABLE_NUMBER_OF_CORES}
+     * threads at most, bounded by {@link #cpuPermits} rather than by the carrier threads of the
+     * virtual threads. If this JVM has no virtual threads, {@code MAX_NB_OF_PLATFORM_IO_THREADS}
+     * platform threads at most are used, most of them waiting for I/O or for a permit.
+     */
+    private void countLinesUsingVirtualThreads(Collection<File> files) throws IOException {
+        int maxNbOfFilesInProgress = Math.max(1, utils.ioConcurrency);
+        ExecutorService executor = LineCountUtils.newVirtualThreadPerTaskExecutor();
+        if (executor == null) {
+            maxNbOfFilesInProgress = Math.min(maxNbOfFilesInProgress, LineCountUtils.MAX_NB_OF_PLATFORM_IO_THREADS);
+            log.warn("Virtual threads unavailable: {} platform threads are used for counting lines instead of an I/O concurrency of {}",
+                    maxNbOfFilesInProgress, utils.ioConcurrency);
+            executor = Executors.newFixedThreadPool(maxNbOfFilesInProgress, LineCountUtils.newCountingThreadFactory());
+        }
+        Semaphore ioPermits = new Semaphore(maxNbOfFilesInProgress);
+        try {
+            for (File file : files) {
+                if (isCountingStopped()) {
+                    break;
+                }
+                // Blocks while too many files are in progress, so that millions of files
+                // do not make as many tasks waiting in the queue of the executor.
+                ioPermits.acquire();
+                executor.execute(() -> {
+                    try {
+                        // The metadata of the file are got by its own thread, since on
+                        // network shares this costs as many round-trips as opening it.
+                        if (Files.exists(file.toPath())) {
+                            countFileLines(file, file.length());
+                        }
+                    } finally {
+                        ioPermits.release();
+                    }
+                });
+            }
+            // All the files have been counted once all the permits are back
+            ioPermits.acquire(maxNbOfFilesInProgress);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Line counting interrupted");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Counts the lines of the regular files of the tree rooted at {@code root} while the tree is
+     * walked by {@code walkingThreadCount} threads, each listing a directory at a time, the files
+     * found being passed through a queue of {@code walkedFileQueueCapacity} files at most to the
+     * threads counting their lines, so that the walk blocks when it is ahead of the counting.
+     */
+    void countLinesWhileWalking(Path root) throws IOException {
+        int nbOfThreads = Math.max(1, utils.countingThreadCount != null ? utils.countingThreadCount : LineCountUtils.AVAILABLE_NUMBER_OF_CORES);
+        BasicFileAttributes rootAttributes = Files.readAttributes(root, BasicFileAttributes.class);
+        TreeWalk treeWalk = new TreeWalk(this, nbOfThreads, utils.walkingThreadCount, utils.walkedFileQueueCapacity, utils.ignoreRules, utils.readGitignoreFiles);
+        nbOfBytesToProcess.set(0L);
+        walkInProgress = true;
+        ExecutorService executor = utils.countingExecutor != null ? utils.countingExecutor : Executors.newFixedThreadPool(nbOfThreads, LineCountUtils.newCountingThreadFactory());
+        List<Future<?>> tasks = new ArrayList<>(nbOfThreads);
+        try {
+            for (int t = 0; t != nbOfThreads; ++t) {
+                tasks.add(executor.submit(() -> {
+                    for (LineCountUtils.SizedFile sizedFile = treeWalk.walkedFiles.take(); sizedFile != TreeWalk.END_OF_WALK; sizedFile = treeWalk.walkedFiles.take()) {
+                        countFileLines(sizedFile.file, sizedFile.length, sizedFile.lastModified);
+                    }
+                    return null;
+                }));
+            }
+            treeWalk.start(root, rootAttributes);
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Line counting interrupted");
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Line counting thread failed", e.getCause());
+        } finally {
+            treeWalk.walkingExecutor.shutdownNow();
+            // The tasks still waiting for files, if any, must not be left blocked in countingExecutor
+            tasks.forEach(task -> task.cancel(true));
+            if (utils.countingExecutor == null) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Can be called for logging how many files have been processed so far, how many
+     * files remains to be processed, how many lines have been counted overall, etc.
+     */
+    private void logLineCountingProgress(int nbOfProcessedFiles) {
+        if (nbOfProcessedFiles % utils.countingProgressLogFrequency == 0) {
+            String nbOfThreadsInfo = workingThreadIdsSet != null ? String.format(", using %d threads", workingThreadIdsSet.size()) : "";
+            log.info("Counted {} kLines in {} / {} files so far (#failures = {}){}...", (overallLineCount.get() / 1000), nbOfProcessedFiles, nbOfFilesToProcess.get(), nbFilesInError.get(), nbOfThreadsInfo);
+        }
+    }
+
+    /**
+     * Reports a snapshot of the progress of the counting to progressListener, the throughput
+     * since the previous snapshot being computed from the counts of the latter.
+     */
+    private void reportProgress(boolean done) {
+        long elapsedNanos = System.nanoTime() - countingStartNanos;
+        int nbOfFailedFiles = nbFilesInError.get();
+        int nbOfActiveThreads = this.nbOfActiveThreads.get();
+        int nbOfProcessedFiles = Math.max(0, nbFilesInSuccess.get() + nbOfFailedFiles - nbOfActiveThreads);
+        long nbOfProcessedBytes = nbProcessedBytes.get();
+        double elapsedSeconds = Math.max(1L, elapsedNanos) / 1e9;
+        double intervalSeconds = Math.max(1L, elapsedNanos - (lastProgress != null ? lastProgress.getElapsedNanos() : 0L)) / 1e9;
+        long previousNbOfBytes = lastProgress != null ? lastProgress.getNbOfProcessedBytes() : 0L;
+        int previousNbOfFiles = lastProgress != null ? lastProgress.getNbOfProcessedFiles() : 0;
+        LineCountingProgress progress = new LineCountingProgress(elapsedNanos, done, walkInProgress,
+                nbOfProcessedFiles, nbOfFailedFiles, nbOfFilesToProcess.get(), nbOfProcessedBytes, nbOfBytesToProcess.get(),
+                overallLineCount.get(), nbOfActiveThreads,
+                (nbOfProcessedBytes - previousNbOfBytes) / intervalSeconds, (nbOfProcessedFiles - previousNbOfFiles) / intervalSeconds,
+                nbOfProcessedBytes / elapsedSeconds, nbOfProcessedFiles / elapsedSeconds,
+                encodingDetectionNanos.sum(), lineCountingNanos.sum());
+        lastProgress = progress;
+        try {
+            utils.progressListener.onProgress(progress);
+        } catch (RuntimeException e) {
+            // A failing listener must neither stop the counting nor the next reports
+            log.warn("Line counting progress listener failed", e);
+        }
+    }
+
+    /**
+     * Can be called for logging which thread has processed which file, what encoding
+     * has been found or guessed for it, how many lines have been counted in it, etc.
+     */
+    private void logPerFileInformation(File file, long fileLength, int fileNumber, Charset fileEncoding, boolean isEncodingCertain, float encodingConfidence, int bomLength, long lineCount) {
+        int encodingCountIndex = LineCountUtils.getEncodingCountIndex(fileLength, isEncodingCertain, bomLength);
+        String encodingCertainty = encodingCountIndex == 0 ? " (certain)"
+                : String.format(encodingCountIndex == 1 ? " (guessed, confidence = %.3f)" : " (doubtful/unknown, confidence = %.3f)", encodingConfidence);
+        String encodingName = fileEncoding != null ? fileEncoding.name() : LineCountUtils.NAME_FOR_UNKNOWN_ENCODINGS;
+        String encodingUseCount = encodingNameToFileCountMaps != null
+                ? String.format(" (#use = %d)", encodingNameToFileCountMaps[encodingCountIndex].get(encodingName).get())
+                : "";
+        String bomLengthInBytes = bomLength != 0 ? String.format(" - BOM length = %d bytes", bomLength) : "";
+        log.info(String.format("thread 0x%02x: counted %d lines in file #%06d \"%s\" with encoding %s%s%s%s",
+                (int) (Thread.currentThread().getId() % 0xFF),
+                lineCount, fileNumber, file.getName(),
+                encodingName, encodingCertainty, encodingUseCount, bomLengthInBytes));
+    }
+
+    /**
+     * Increments the count of files having the encoding {@code fileEncoding}
+     * ({@code null} if unknown), and adds {@code encodingConfidence} to the sum
+     * of their confidences, if encoding statistics have to be built.
+     */
+    private void recordEncodingStatistics(Charset fileEncoding, long fileLength, boolean isEncodingCertain, float encodingConfidence, int bomLength) {
+        if (encodingNameToFileCountMaps != null) {
+            String encodingName = fileEncoding != null ? fileEncoding.name() : LineCountUtils.NAME_FOR_UNKNOWN_ENCODINGS;
+            int encodingCountIndex = LineCountUtils.getEncodingCountIndex(fileLength, isEncodingCertain, bomLength);
+            AtomicInteger fileEncodingCount = encodingNameToFileCountMaps[encodingCountIndex].get(encodingName);
+            if (fileEncodingCount == null) {
+                synchronized (encodingNameToFileCountMaps) {
+                    fileEncodingCount = encodingNameToFileCountMaps[encodingCountIndex].get(encodingName);
+                    if (fileEncodingCount == null) {
+                        fileEncodingCount = new AtomicInteger();
+                        encodingNameToFileCountMaps[encodingCountIndex].put(encodingName, fileEncodingCount);
+                    }
+                }
+            }
+            fileEncodingCount.incrementAndGet();
+            encodingNameToConfidenceSums.computeIfAbsent(encodingName, name -> new DoubleAdder()).add(encodingConfidence);
+        }
+    }
+}
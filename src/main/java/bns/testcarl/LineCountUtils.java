@@ -1,32 +1,43 @@
 //package com.castsoftware.webi.common.utils;
 package bns.testcarl;
-import com.google.common.collect.ImmutableList;
 import lombok.Getter;
 import lombok.Setter;
+import lombok.Value;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.RandomAccessFile;
 import java.io.Reader;
-import java.lang.reflect.Array;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
 import java.nio.file.Files;
-import java.util.Arrays;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -41,10 +52,18 @@ import java.util.stream.Stream;
 public class LineCountUtils {
 
     @Getter
-    private static final int AVAILABLE_NUMBER_OF_CORES = Runtime.getRuntime().availableProcessors();
+    static final int AVAILABLE_NUMBER_OF_CORES = Runtime.getRuntime().availableProcessors();
+
+    // Maximal number of platform threads counting lines at once when ioConcurrency is set but this
+    // JVM has no virtual threads, each of them costing a stack of its own (1 MB by default)
+    static final int MAX_NB_OF_PLATFORM_IO_THREADS = 256;
 
     // Used for encodings that could neither be determined thanks to file BOM nor guessed thanks to sampling
-    private static final String NAME_FOR_UNKNOWN_ENCODINGS = "*UNKNOWN*";
+    static final String NAME_FOR_UNKNOWN_ENCODINGS = "*UNKNOWN*";
+
+    // Method handle on sun.misc.Unsafe.invokeCleaner(ByteBuffer) bound to the Unsafe instance,
+    // or null if not accessible, in which case the mapped buffers are released by the GC only.
+    private static final MethodHandle INVOKE_CLEANER = findInvokeCleaner();
 
     public enum LineCountingMethod {
         // Provides an exact count of lines provided the file encoding could be found
@@ -56,166 +75,486 @@ public class LineCountUtils {
         // for counting lines in dozens of GB of files.
         CHAR_OR_BYTE_LOOKUP,
 
+        // Same counts as CHAR_OR_BYTE_LOOKUP, but CR/LF are searched in the bytes
+        // of the file by LineBreakScanner, comparing many bytes at once using the
+        // Vector API, or 8 bytes at once if the JVM lacks module jdk.incubator.vector.
+        // UTF-16/UTF-32 code units are compared to CR/LF in the bytes as well, whereas
+        // other multi-bytes encodings are still counted using countLinesWithCharLookup(...).
+        VECTORIZED_BYTE_LOOKUP,
+
+        // Same counts as CHAR_OR_BYTE_LOOKUP, but the bytes of files whose encoding
+        // allows searching CR/LF as "byte" are read through a memory-mapped window
+        // sliding over the file, so neither copied in a byte[] nor decoded in chars.
+        MEMORY_MAPPED_BYTE_LOOKUP,
+
         // Whatever the method, the count of lines will be approximate inherently
         // to the behavior or lack of accuracy of the methods listed below, even
         // if the encoding of the file would be perfectly guessed. These 3 items
         // remain available for future non-regression tests if needed one day...
         GENUINE_BUFFERED_READER_READLINE,    // BufferedReader.readLine()
         CUSTOM_BUFFERED_READER_READLINE,     // CustomBufferedReader.readLine()
-        CUSTOM_BUFFERED_READER_HAS_NEXT_LINE // CustomBufferedReader.hasNextLine()
+        CUSTOM_BUFFERED_READER_HAS_NEXT_LINE; // CustomBufferedReader.hasNextLine()
+
+        /**
+         * @return whether this method provides an exact count of lines, provided
+         * the encoding of the file could be found or guessed accurately.
+         */
+        public boolean isExact() {
+            return this == CHAR_OR_BYTE_LOOKUP || this == VECTORIZED_BYTE_LOOKUP || this == MEMORY_MAPPED_BYTE_LOOKUP;
+        }
+    }
+
+    public enum CountingOutcome {
+        COMPLETE,           // The lines of all the files have been counted (or have failed to be)
+        THRESHOLD_REACHED,  // The count stopped because the threshold has been reached
+        CANCELLED,          // The count stopped because cancellationToken has been cancelled
+        DEADLINE_EXCEEDED;  // The count stopped because the deadline of cancellationToken has passed
+
+        /**
+         * @return whether all the files have been processed, the count being partial otherwise.
+         */
+        public boolean isComplete() {
+            return this == COMPLETE;
+        }
     }
 
     @Setter
-    private LineCountingMethod lineCountingMethod = LineCountingMethod.CHAR_OR_BYTE_LOOKUP;
+    LineCountingMethod lineCountingMethod = LineCountingMethod.CHAR_OR_BYTE_LOOKUP;
 
     // Q.v. field BufferedReader.defaultCharBufferSize: at most 8K as it is the buffer size used
     // internally by the JVM; if bigger, reading a file will allocate a buffer at each read call!
     @Setter
-    private int fileReadBufferSize = 4096; // 4K is faster than 2K and 8K
+    int fileReadBufferSize = 4096; // 4K is faster than 2K and 8K
+
+    // Size of the window mapped in memory by countLinesWithMemoryMappedByteLookup(...), at most 2 GB
+    // as disallowed by FileChannel.map(); the size of the memory used by each file being counted
+    // depends only on this value (and not on the size of the file), since the window is unmapped
+    // as soon as its bytes have been processed, before the next window is mapped.
+    @Setter
+    private int memoryMappingWindowSize = 64 << 20; // 64 MB
 
     // Whether the count of threads used in parallel to count lines has to be remembered
     @Setter
-    private boolean countWorkingThreads = false;
+    boolean countWorkingThreads = false;
 
     // Whether the count of files per encoding has to be remembered,
     // along with whether each recognition was certain or else guessed
     @Setter
-    private boolean buildEncodingStatistics = false;
+    boolean buildEncodingStatistics = false;
+
+    // Whether the encoding of each file is found from the 1st buffer read for counting its lines,
+    // the file being then opened and read only once, rather than opened a 1st time by
+    // FileEncodingUtils for reading its BOM and a sample, then a 2nd time for counting
+    // its lines; only applies to CHAR_OR_BYTE_LOOKUP and VECTORIZED_BYTE_LOOKUP methods.
+    @Setter
+    private boolean singlePassEncodingDetection = false;
+
+    // Whether the bytes allocated on the heap by the threads counting lines have to be measured,
+    // so that the efficiency of the buffer pooling done by IoBufferPool can be checked: in the
+    // steady state, counting the lines of a file should allocate a few hundreds of bytes only
+    // whatever its size, instead of buffers of fileReadBufferSize bytes or chars per file.
+    @Setter
+    boolean measureAllocatedBytes = false;
 
     // Tells that information about each file that has been processed must be logged
     @Setter
-    private boolean logPerFileInfo = false;
+    boolean logPerFileInfo = false;
+
+    // Whether the lines of each file are classified as blank, comment or code lines, according to
+    // the CommentSyntax of its extension, by LineMetricsScanner in the pass counting them, whatever
+    // lineCountingMethod, the counts of lines taken from lineCountCacheFile lacking these metrics
+    @Setter
+    boolean countLineMetrics = false;
+
+    // Sink to which a record is emitted for each file that has been processed, for e.g. a
+    // ColumnarLineCountWriter keeping the results of millions of files in a compact file
+    // rather than in logs as logPerFileInfo does / null for no per-file records
+    @Setter
+    FileLineCountSink fileLineCountSink = null;
+
+    // Files bigger than this number of bytes are split into ranges of intraFileRangeSize bytes
+    // whose lines are counted in parallel, so that a huge file counted last does not leave
+    // the other cores idle / null for counting the lines of each file using a single thread.
+    // Only applies to CHAR_OR_BYTE_LOOKUP and VECTORIZED_BYTE_LOOKUP methods, the counting
+    // failing with an IllegalStateException if set along with another method.
+    @Setter
+    private Long intraFileParallelismThreshold = null;
+
+    // Size of the ranges of bytes counted in parallel for files bigger than the threshold above
+    @Setter
+    private long intraFileRangeSize = 16L << 20; // 16 MB
+
+    // Executor running the threads counting lines, used instead of the ForkJoin common pool of
+    // parallelStream() which can neither be sized nor isolated from the other parallel tasks of
+    // the JVM; it is not shut down by this class, so it can be reused from a call to another.
+    @Setter
+    ExecutorService countingExecutor = null;
+
+    // Number of threads counting lines in parallel: if countingExecutor is null, a dedicated pool
+    // of that many threads is created (and shut down) by each call to countCodeLines(...); null
+    // for AVAILABLE_NUMBER_OF_CORES threads with countingExecutor, or for the ForkJoin common pool.
+    @Setter
+    Integer countingThreadCount = null;
+
+    // Maximal number of files being counted at once, each by its own virtual thread, for filesystems
+    // (like network shares) where the time spent per file is mostly the latency of opening it and
+    // of getting its metadata rather than CPU: thousands of files can then be opened at once,
+    // whereas the searching of CR/LF remains done by AVAILABLE_NUMBER_OF_CORES threads at most,
+    // as in every mode (q.v. LineCountScan#cpuPermits). On JDKs without virtual threads, at most
+    // MAX_NB_OF_PLATFORM_IO_THREADS platform threads are used instead. Null for counting
+    // using countingExecutor / countingThreadCount, or the ForkJoin common pool, which cannot
+    // be set along with ioConcurrency (the counting failing with an IllegalStateException).
+    @Setter
+    Integer ioConcurrency = null;
+
+    // File of the LineCountCache holding the counts of lines of a previous run, so that only the
+    // files whose length or last modification time have changed since are read / null for no cache
+    @Setter
+    Path lineCountCacheFile = null;
+
+    // Whether the files of countCodeLines(Collection, Long) & al. are deduplicated before any of them is
+    // read (q.v. FileDeduplicator): the lines of a file reached through several paths (hard links or
+    // symbolic links) or of a content copied into several files are counted once, and attributed to
+    // every path. Not applicable to countCodeLines(Path, Long), whose walk does not follow links.
+    @Setter
+    private boolean deduplicateFiles = false;
+
+    // Whether the files classified as binary (executables, images, archives...) from the sample of
+    // their first bytes read for guessing their encoding are left out before the rest of them is
+    // read (q.v. FileEncodingUtils#isBinarySample(byte[], int, Charset)), instead of being counted
+    @Setter
+    boolean skipBinaryFiles = false;
+
+    // Whether the entries of the zip, jar, war, ear, tar and tar.gz archives met among the files to
+    // count are counted as files, read from the archives without being extracted (q.v. ArchiveReader),
+    // instead of counting the lines of the archives themselves. Their lines are counted with the
+    // single-pass encoding detection, and their results are reported as "<archive>!/<entry path>"
+    @Setter
+    boolean countArchiveEntries = false;
+
+    // Rules telling the files and the whole subtrees left out of the walk of countCodeLines(Path, Long),
+    // for e.g. IgnoreRules.VENDOR_AND_BUILD_OUTPUT / null for walking every directory
+    @Setter
+    IgnoreRules ignoreRules = null;
+
+    // Whether the patterns of the .gitignore files found by the walk of countCodeLines(Path, Long)
+    // leave out files and directories as done by git, in addition to ignoreRules
+    @Setter
+    boolean readGitignoreFiles = false;
+
+    // Number of threads listing the directories walked by countCodeLines(Path, Long), which is mostly
+    // I/O latency, so that more threads than cores help on network shares or cold filesystem caches
+    @Setter
+    int walkingThreadCount = AVAILABLE_NUMBER_OF_CORES;
+
+    // Maximal number of files found by the walk of countCodeLines(Path, Long) whose lines are not
+    // being counted yet, which bounds the memory used when the walk is ahead of the counting
+    @Setter
+    int walkedFileQueueCapacity = 10_000;
+
+    // Seed of the random sampling of estimateCodeLines(...), for reproducible estimates / null for a random seed
+    @Setter
+    private Long samplingSeed = null;
+
+    // Token allowing to stop counting from another thread or once its deadline has passed, in which
+    // case countCodeLines(...) returns the count of the files whose lines have been counted so far
+    // and the outcome of its result tells why the count is partial / null for counting until done
+    @Setter
+    CancellationToken cancellationToken = null;
 
     // Line counting progress display frequency > 0 (for e.g. 10000) / null for "mute" mode
     @Setter
-    private Integer countingProgressLogFrequency = null;
+    Integer countingProgressLogFrequency = null;
 
-    private int nbOfFilesToProcess;         // Number of files whose lines have to be counted
-    private AtomicLong overallLineCount;    // Sum of lines for all files whose lines could successfully be counted
-    private long stopCountThreshold;        // Line counting halts as soon as overallLineCount >= stopCountThreshold
+    // Listener to which snapshots of the progress of countCodeLines(...) are reported every
+    // progressReportIntervalMillis by a thread of its own, so that the threads counting lines
+    // only update the counters they already update anyway / null for no reports
+    @Setter
+    LineCountingProgressListener progressListener = null;
+
+    @Setter
+    long progressReportIntervalMillis = 1000;
+
+    // Result of the last call to countCodeLines(...) or scanCodeLines(...) that is done, whatever
+    // the thread that has called it, logged by logReport() / null until a call is done
     @Getter
-    private AtomicLong nbProcessedBytes;    // Sum of the length of all files whose lines could successfully be counted
-    private AtomicInteger nbFilesInSuccess; // Number of files whose lines could successfully be counted
-    private AtomicInteger nbFilesInError;   // Number of files for which count of lines has resulted into an exception
-    private Set<Long> workingThreadIdsSet;  // null or set holding IDs of all the threads involved in line counting
+    volatile LineCountResult lastResult;
 
-    // Bind the name of each encoding met to the counts of files having this encoding:
-    // -index 0 is for encodings which are certain thanks to the recognition of a BOM,
-    //  or by convention said to be certain because the length of the file is 0 bytes,
-    // -index 1 is for encoding guessed with much confidence thanks to file sampling,
-    // -index 2 is for unknown encodings and those hoped to have been guessed right...
-    private Map<String, AtomicInteger>[] encodingNameToFileCountMaps;
+    /**
+     * Counts of lines, bytes and files of a language (or of any other group of files)
+     * built by {@link #countCodeLinesPerLanguage(Map, Long)} once its scan is done.
+     */
+    @Value
+    public static class LanguageLineCount {
+        long nbOfLines;
+        long nbOfBytes;
+        int nbOfFiles;
+
+        // Lines of nbOfLines by kind, if countLineMetrics is set
+        long nbOfBlankLines;
+        long nbOfCommentLines;
+        long nbOfCodeLines;
+    }
 
     /**
      * @return the overall number of lines that have been counted in all
      * files contained in the provided collection of {@link File}, or that
      * have been counted before the count stopped because the threshold
      * supplied in {@code lineCountThreshold}, when not {@code null}, has
-     * been reached.
+     * been reached, the other outcomes of the count being those of
+     * {@link #getLastResult()} once done (q.v. {@link #scanCodeLines(Collection, Long)}).
      * <p>WARNING: The current implementation only counts CR and/or LF,
      * not U+0085 (aka NEXT LINE, aka NEL) and neither U+2028 nor U+2029
-     * (respectively aka LINE SEPARATOR and aka PARAGRAPH SEPARATOR).
+     * (respectively aka LINE SEPARATOR and aka PARAGRAPH SEPARATOR), except
+     * for the files encoded in EBCDIC, whose NL byte always ends a line.
      */
     public long countCodeLines(Collection<File> files, Long lineCountThreshold) throws IOException {
-        nbOfFilesToProcess = files.size();
-        overallLineCount = new AtomicLong();
-        stopCountThreshold = lineCountThreshold != null ? lineCountThreshold : Long.MAX_VALUE;
-        nbProcessedBytes = new AtomicLong();
-        nbFilesInSuccess = new AtomicInteger();
-        nbFilesInError = new AtomicInteger();
-        workingThreadIdsSet = countWorkingThreads ? ConcurrentHashMap.newKeySet(AVAILABLE_NUMBER_OF_CORES) : null;
-        if (buildEncodingStatistics) {
-            encodingNameToFileCountMaps = (ConcurrentHashMap[]) Array.newInstance(ConcurrentHashMap.class, 3);
-            for (int i = 0; i != encodingNameToFileCountMaps.length; ++i) {
-                encodingNameToFileCountMaps[i] = new ConcurrentHashMap<>(7);
-            }
-        }
-
-        files.parallelStream().filter(f -> Files.exists(f.toPath())).forEach(file -> {
-            if (overallLineCount.get() < this.stopCountThreshold) {
-                // This MUST remain the 1st line of this block so that decreasing this value
-                // in case of exception is valid: we get the increased file# now so that no
-                // trace, if any, will show the same file# because of multi-threading.
-                int fileNumber = nbFilesInSuccess.incrementAndGet();
-                try {
-                    if (workingThreadIdsSet != null) {
-                        workingThreadIdsSet.add(Thread.currentThread().getId());
-                    }
-                    if (countingProgressLogFrequency != null) {
-                        logLineCountingProgress(nbFilesInSuccess.get() + nbFilesInError.get());
-                    }
-
-                    boolean[] isEncodingCertain = new boolean[1];
-                    int[] bomLength = new int[1];
-                    Charset fileEncoding = getFileEncoding(file, isEncodingCertain, bomLength);
-                    if (fileEncoding == null) {
-                        fileEncoding = Charset.defaultCharset(); // default charset of this JVM
-                        isEncodingCertain[0] = false;
-                        bomLength[0] = 0;
-                    }
-
-                    long lineCount = lineCountingMethod != LineCountingMethod.CHAR_OR_BYTE_LOOKUP
-                            // count lines using BufferedReader or CustomBufferedReader
-                            ? countLinesWithBufferedReader(file, bomLength[0], fileEncoding)
-                            : canSearchLineBreakAsByte(fileEncoding)
-                            // single-byte encoding or UTF-8 => CR/LF can unambiguously be searched in a byte[]
-                            ? countLinesWithByteLookup(file, fileReadBufferSize, bomLength[0])
-                            // multi-bytes encoding => CR/LF must be searched in a char[] rebuilt from the file bytes
-                            : countLinesWithCharLookup(file, fileReadBufferSize, bomLength[0], fileEncoding);
-
-                    if (logPerFileInfo) {
-                        logPerFileInformation(file, fileNumber, fileEncoding, isEncodingCertain[0], bomLength[0], lineCount);
-                    }
-                    overallLineCount.addAndGet(lineCount);
-                    nbProcessedBytes.addAndGet(file.length());
-                } catch (Exception e) {
-                    nbFilesInSuccess.decrementAndGet();
-                    nbFilesInError.incrementAndGet();
-                    log.error(String.format("Line counting failed for file \"%s\" (#failures = %d, #success = %d).", file.getAbsolutePath(), nbFilesInError.get(), nbFilesInSuccess.get()), e);
-                }
+        return scanCodeLines(files, lineCountThreshold).getLineCount();
+    }
+
+    /**
+     * @return the result of counting the lines of the files contained in the provided collection
+     * of {@link File} as done by {@link #countCodeLines(Collection, Long)}, this method being
+     * thread-safe: several threads can scan at once using the same LineCountUtils, and so the
+     * same countingExecutor, each getting the totals, failures and timings of its own files.
+     */
+    public LineCountResult scanCodeLines(Collection<File> files, Long lineCountThreshold) throws IOException {
+        return scanCodeLines(new LineCountScan(this, files.size(), lineCountThreshold, null), files);
+    }
+
+    private LineCountResult scanCodeLines(LineCountScan scan, Collection<File> files) throws IOException {
+        if (deduplicateFiles) {
+            scan.deduplicator = FileDeduplicator.deduplicate(files, fileReadBufferSize);
+            files = scan.deduplicator.getUniqueFiles();
+        }
+        scan.countLines(files);
+        return scan.finish();
+    }
+
+    /**
+     * @return the counts of lines, bytes and files of each language of {@code filesPerLanguage},
+     * which binds the name of each language to the files written in this language, along with the
+     * result of the scan, the lines of all the files being counted at once as done by
+     * {@link #scanCodeLines(Collection, Long)}, and those of a file listed for several languages
+     * being counted once but added to each.
+     */
+    public LanguageLineCountResult countCodeLinesPerLanguage(Map<String, ? extends Collection<File>> filesPerLanguage, Long lineCountThreshold) throws IOException {
+        LineCountScan scan = new LineCountScan(this, 0, lineCountThreshold, filesPerLanguage);
+        LineCountResult result = scanCodeLines(scan, scan.fileToLanguageCounters.keySet());
+        return new LanguageLineCountResult(scan.getLanguageLineCounts(), result);
+    }
+
+    /**
+     * @return an estimate of the overall number of lines of all the files contained in the
+     * provided collection of {@link File}, extrapolated from the exact count of the lines of
+     * random files sampled by {@link LineCountEstimator}, the sampling stopping as soon as the
+     * margin of error relative to the estimate is at most {@code targetRelativeError} (for e.g.
+     * 0.01 for +/-1% with 95% confidence), or once {@code timeBudgetMillis} have elapsed.
+     * <p>Contrary to the count truncated by a threshold in countCodeLines(...), the estimate is
+     * unbiased. The encodings and the counters of {@link #getLastResult()} are those of the
+     * sampled files.
+     */
+    public LineCountEstimate estimateCodeLines(Collection<File> files, double targetRelativeError, long timeBudgetMillis) {
+        long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeBudgetMillis);
+        List<File> existingFiles = files.stream().filter(f -> Files.exists(f.toPath())).collect(Collectors.toList());
+        long[] lengths = existingFiles.stream().mapToLong(File::length).toArray();
+        LineCountEstimator estimator = new LineCountEstimator(existingFiles, lengths, samplingSeed != null ? new Random(samplingSeed) : new Random());
+
+        LineCountScan scan = new LineCountScan(this, existingFiles.size(), null, null);
+        scan.lineCountPerFile = new ConcurrentHashMap<>();
+        // Samples are counted by batches in parallel, as the files of countCodeLines(...) are (using
+        // countingExecutor, countingThreadCount or ioConcurrency), the estimate being refined between batches
+        int nbOfFilesPerBatch = Math.max(16, 4 * AVAILABLE_NUMBER_OF_CORES);
+        LineCountEstimate estimate = estimator.getEstimate();
+        for (List<LineCountEstimator.Sample> samples = estimator.nextSamples(nbOfFilesPerBatch); !samples.isEmpty(); samples = estimator.nextSamples(nbOfFilesPerBatch)) {
+            try {
+                scan.countLines(samples.stream().map(sample -> sample.file).collect(Collectors.toList()));
+            } catch (IOException e) {
+                // Only thrown if interrupted, in which case the estimate is that of the previous batches
+                log.warn("Line count estimation interrupted", e);
+                break;
+            }
+            for (LineCountEstimator.Sample sample : samples) {
+                // Files not counted (failure, binary, or stopped) are left out of the population
+                estimator.addSample(sample, scan.lineCountPerFile.getOrDefault(sample.file, -1L));
             }
-        });
-        return overallLineCount.get();
+            estimate = estimator.getEstimate();
+            if (System.nanoTime() - deadlineNanos >= 0 || scan.isCountingStopped()
+                    || (estimator.isVarianceEstimable() && estimate.getRelativeError() <= targetRelativeError)) {
+                break;
+            }
+        }
+        scan.finish();
+        log.info("Estimated number of lines = {} +/- {} ({}% with 95% confidence) from {} / {} files sampled ({} / {} bytes)",
+                estimate.getLineCount(), estimate.getMarginOfError(), String.format("%.2f", 100 * estimate.getRelativeError()),
+                estimate.getNbOfSampledFiles(), estimate.getNbOfFiles(), estimate.getNbOfSampledBytes(), estimate.getNbOfBytes());
+        return estimate;
+    }
+
+    /**
+     * @return the overall number of lines that have been counted in all the regular
+     * files of the tree rooted at {@code root} (or in {@code root} if it is a regular
+     * file), or that have been counted before the count stopped because the threshold
+     * supplied in {@code lineCountThreshold}, when not {@code null}, has been reached.
+     * <p>The files are counted while the tree is walked, instead of once a collection
+     * of all the files has been built, by the threads of {@code countingExecutor} or
+     * of a dedicated pool of {@code countingThreadCount} threads (or as many threads
+     * as cores by default). Symbolic links are not followed.
+     * <p>WARNING: same as {@link #countCodeLines(Collection, Long)} about NEL & al.
+     */
+    public long countCodeLines(Path root, Long lineCountThreshold) throws IOException {
+        return scanCodeLines(root, lineCountThreshold).getLineCount();
+    }
+
+    /**
+     * @return the result of counting the lines of the regular files of the tree rooted at
+     * {@code root} as done by {@link #countCodeLines(Path, Long)}, this method being
+     * thread-safe as {@link #scanCodeLines(Collection, Long)} is.
+     */
+    public LineCountResult scanCodeLines(Path root, Long lineCountThreshold) throws IOException {
+        LineCountScan scan = new LineCountScan(this, 0, lineCountThreshold, null);
+        scan.countLinesWhileWalking(root);
+        return scan.finish();
+    }
+
+    /**
+     * @return an executor starting a new virtual thread for each task if this JVM supports them
+     * (JDK 21+, or JDK 19/20 with preview features enabled), or else null. Reflection allows
+     * building this class for JDK 17.
+     */
+    static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.debug("Executors.newVirtualThreadPerTaskExecutor() unavailable", e);
+            return null;
+        }
     }
 
     /**
-     * Can be called for logging how many files have been processed so far, how many
-     * files remains to be processed, how many lines have been counted overall, etc.
+     * A file along with its length, got once for both scheduling and counting the file.
      */
-    private void logLineCountingProgress(int nbOfProcessedFiles) {
-        if (nbOfProcessedFiles % countingProgressLogFrequency == 0) {
-            String nbOfThreadsInfo = workingThreadIdsSet != null ? String.format(", using %d threads", workingThreadIdsSet.size()) : "";
-            log.info("Counted {} kLines in {} / {} files so far (#failures = {}){}...", (overallLineCount.get() / 1000), nbOfProcessedFiles, nbOfFilesToProcess, nbFilesInError.get(), nbOfThreadsInfo);
+    static final class SizedFile {
+        final File file;
+        final long length;
+        final Long lastModified; // null if not got along with the length
+
+        SizedFile(File file, long length) {
+            this(file, length, null);
         }
+
+        SizedFile(File file, long length, Long lastModified) {
+            this.file = file;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * @return the existing files of {@code files} sorted by descending length.
+     */
+    static SizedFile[] sortByDescendingLength(Collection<File> files) {
+        return files.stream()
+                .filter(f -> Files.exists(f.toPath()))
+                .map(f -> new SizedFile(f, f.length()))
+                .sorted((f1, f2) -> Long.compare(f2.length, f1.length))
+                .toArray(SizedFile[]::new);
+    }
+
+    static ThreadFactory newCountingThreadFactory() {
+        return newDaemonThreadFactory("line-counting-");
+    }
+
+    static ThreadFactory newDaemonThreadFactory(String threadNamePrefix) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, threadNamePrefix + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
     }
 
     /**
-     * Can be called for logging which thread has processed which file, what encoding
-     * has been found or guessed for it, how many lines have been counted in it, etc.
+     * @return the count of lines found in the file using the configured {@link LineCountingMethod}.
      */
-    private void logPerFileInformation(File file, int fileNumber, Charset fileEncoding, boolean isEncodingCertain, int bomLength, long lineCount) {
-        int encodingCountIndex = getEncodingCountIndex(file, isEncodingCertain, bomLength);
-        String encodingCertainty = encodingCountIndex == 0 ? " (certain)" : encodingCountIndex == 1 ? " (guessed)" : " (doubtful/unknown)";
-        String encodingName = fileEncoding != null ? fileEncoding.name() : NAME_FOR_UNKNOWN_ENCODINGS;
-        String encodingUseCount = encodingNameToFileCountMaps != null
-                ? String.format(" (#use = %d)", encodingNameToFileCountMaps[encodingCountIndex].get(encodingName).get())
-                : "";
-        String bomLengthInBytes = bomLength != 0 ? String.format(" - BOM length = %d bytes", bomLength) : "";
-        log.info(String.format("thread 0x%02x: counted %d lines in file #%06d \"%s\" with encoding %s%s%s%s",
-                (int) (Thread.currentThread().getId() % 0xFF),
-                lineCount, fileNumber, file.getName(),
-                encodingName, encodingCertainty, encodingUseCount, bomLengthInBytes));
+    protected long countFileLines(File file, long fileLength, int bomLength, Charset fileEncoding) throws IOException {
+        if (isIntraFileParallelismApplicable(fileLength)) {
+            return countLinesWithParallelRangeLookup(file, fileReadBufferSize, bomLength, fileEncoding, intraFileRangeSize);
+        }
+        switch (lineCountingMethod) {
+            case CHAR_OR_BYTE_LOOKUP:
+                return canSearchLineBreakAsByte(fileEncoding)
+                        // single-byte encoding, UTF-8, UTF-16 or UTF-32 => CR/LF can unambiguously be searched in a byte[]
+                        ? countLinesWithByteLookup(file, fileReadBufferSize, bomLength, fileEncoding)
+                        // multi-bytes encoding => CR/LF must be searched in a char[] rebuilt from the file bytes
+                        : countLinesWithCharLookup(file, fileReadBufferSize, bomLength, fileEncoding);
+            case VECTORIZED_BYTE_LOOKUP:
+                return canSearchLineBreakAsByte(fileEncoding)
+                        ? countLinesWithVectorizedByteLookup(file, fileReadBufferSize, bomLength, fileEncoding)
+                        : countLinesWithCharLookup(file, fileReadBufferSize, bomLength, fileEncoding);
+            case MEMORY_MAPPED_BYTE_LOOKUP:
+                return canSearchLineBreakAsByte(fileEncoding)
+                        ? countLinesWithMemoryMappedByteLookup(file, bomLength, memoryMappingWindowSize, fileEncoding)
+                        : countLinesWithCharLookup(file, fileReadBufferSize, bomLength, fileEncoding);
+            default:
+                // count lines using BufferedReader or CustomBufferedReader
+                return countLinesWithBufferedReader(file, bomLength, fileEncoding);
+        }
     }
 
     /**
-     * @return the index in the array held by a value of {@link LineCountUtils#encodingNameToFileCountMaps}:
+     * Throws an IllegalStateException if settings that cannot be applied together are set, rather
+     * than one of them being silently ignored by the scans.
      */
-    private static int getEncodingCountIndex(File file, boolean isEncodingCertain, int bomLength) {
+    void checkOptions() {
+        if (ioConcurrency != null && (countingExecutor != null || countingThreadCount != null)) {
+            throw new IllegalStateException("ioConcurrency cannot be combined with countingExecutor or countingThreadCount");
+        }
+        if (intraFileParallelismThreshold != null
+                && lineCountingMethod != LineCountingMethod.CHAR_OR_BYTE_LOOKUP && lineCountingMethod != LineCountingMethod.VECTORIZED_BYTE_LOOKUP) {
+            throw new IllegalStateException("intraFileParallelismThreshold cannot be combined with " + lineCountingMethod);
+        }
+    }
+
+    private boolean isIntraFileParallelismApplicable(long fileLength) {
+        return intraFileParallelismThreshold != null && lineCountingMethod.isExact() && fileLength > intraFileParallelismThreshold;
+    }
+
+    boolean isSinglePassEncodingDetectionApplicable(long fileLength) {
+        return singlePassEncodingDetection && !countLineMetrics
+                && (lineCountingMethod == LineCountingMethod.CHAR_OR_BYTE_LOOKUP || lineCountingMethod == LineCountingMethod.VECTORIZED_BYTE_LOOKUP)
+                && !isIntraFileParallelismApplicable(fileLength);
+    }
+
+    /**
+     * @return whether the JVM can measure the bytes allocated on the heap by each thread.
+     */
+    static boolean isThreadAllocatedMemoryMeasurable() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean threadMXBean
+                && threadMXBean.isThreadAllocatedMemorySupported()) {
+            threadMXBean.setThreadAllocatedMemoryEnabled(true);
+            return true;
+        }
+        log.warn("This JVM cannot measure the bytes allocated by each thread: no allocation will be reported");
+        return false;
+    }
+
+    /**
+     * @return the number of bytes allocated on the heap by the current thread since it started.
+     */
+    static long getCurrentThreadAllocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getCurrentThreadAllocatedBytes();
+    }
+
+    /**
+     * @return the index in the array held by a value of {@link LineCountScan#encodingNameToFileCountMaps}:
+     */
+    static int getEncodingCountIndex(long fileLength, boolean isEncodingCertain, int bomLength) {
         // -index 0 is for encodings which are certain thanks to the recognition of a BOM,
         //  or by convention said to be certain because the length of the file is 0 bytes,
         // -index 1 is for encoding guessed with much confidence thanks to file sampling,
         // -index 2 is for unknown encodings and those hoped to have been guessed right...
-        if (bomLength != 0 || (isEncodingCertain && file.length() == 0L)) {
+        if (bomLength != 0 || (isEncodingCertain && fileLength == 0L)) {
             return 0;
         } else if (isEncodingCertain) {
             return 1;
@@ -226,10 +565,13 @@ public class LineCountUtils {
 
     /**
      * @return whether CR/LF can be searched as byte(s) in
-     * a file whose encoding is the given {@code encoding}.
+     * a file whose encoding is the given {@code encoding}: single-byte encodings, UTF-8
+     * and the legacy multi-bytes encodings whose CR/LF are single bytes, EBCDIC code pages
+     * whose CR, LF and NL are single bytes, or UTF-16 and UTF-32 whose CR/LF are single
+     * code units of 2 or 4 bytes (q.v. {@link LineBreakScanner.CodeUnitLayout}).
      */
     public static boolean canSearchLineBreakAsByte(Charset charset) {
-        return charset.equals(StandardCharsets.UTF_8) || charset.equals(StandardCharsets.ISO_8859_1);
+        return LineBreakScanner.CodeUnitLayout.of(charset) != null;
     }
 
     /**
@@ -239,25 +581,96 @@ public class LineCountUtils {
      * guess the encoding with much confidence).
      * If {@code bomLength} is non-null, then this output arg. gives the number ( >= 1 ) of bytes
      * of the BOM that has been found, if any, or will be set to 0 otherwise.
+     * If {@code encodingConfidence} is non-null, then this output arg. gives the confidence,
+     * from 0 to 1, in the encoding (q.v. {@link FileEncodingUtils#getOrGuessEncoding(File, boolean[], int[], boolean[], float[])}).
+     * Protected so that tests can simulate the latency of slow filesystems.
      */
-    private Charset getFileEncoding(File file, boolean[] isEncodingCertain, int[] bomLength) throws IOException {
-        Charset fileEncoding = FileEncodingUtils.getOrGuessEncoding(file, isEncodingCertain, bomLength);
-        if (encodingNameToFileCountMaps != null) {
-            String encodingName = fileEncoding != null ? fileEncoding.name() : NAME_FOR_UNKNOWN_ENCODINGS;
-            int encodingCountIndex = getEncodingCountIndex(file, isEncodingCertain[0], bomLength[0]);
-            AtomicInteger fileEncodingCount = encodingNameToFileCountMaps[encodingCountIndex].get(encodingName);
-            if (fileEncodingCount == null) {
-                synchronized (encodingNameToFileCountMaps) {
-                    fileEncodingCount = encodingNameToFileCountMaps[encodingCountIndex].get(encodingName);
-                    if (fileEncodingCount == null) {
-                        fileEncodingCount = new AtomicInteger();
-                        encodingNameToFileCountMaps[encodingCountIndex].put(encodingName, fileEncodingCount);
-                    }
-                }
+    protected Charset getFileEncoding(File file, long fileLength, boolean[] isEncodingCertain, int[] bomLength, boolean[] isBinary, float[] encodingConfidence) throws IOException {
+        return FileEncodingUtils.getOrGuessEncoding(file, isEncodingCertain, bomLength, isBinary, encodingConfidence);
+    }
+
+    /**
+     * @return the exact count of lines found in the file, that count including
+     * the last empty line of the file if the file is CR/LF-ended.<p>
+     * The encoding of the file is found or guessed by FileEncodingUtils from the
+     * 1st buffer read for counting its lines, so that the file is opened and read
+     * only once; {@code fileEncoding}, {@code isEncodingCertain} and {@code bomLength}
+     * are output args. set as done by {@link FileEncodingUtils#getOrGuessEncoding(File, boolean[], int[])},
+     * {@code fileEncoding[0]} being {@code null} if the encoding is unknown, in which
+     * case the lines are counted using the default charset of this JVM.<p>
+     * CR/LF are searched by {@link LineBreakScanner} in the bytes (or the code units of
+     * UTF-16 and UTF-32) of files whose encoding allows it, or else in the chars decoded
+     * from the bytes already read followed by the remainder of the file, as done by
+     * countLinesWithCharLookup(...).
+     */
+    public static long countLinesWithSinglePassEncodingDetection(File file, long fileLength, int fileReadBufferSize, Charset[] fileEncoding, boolean[] isEncodingCertain, int[] bomLength) throws IOException {
+        return countLinesWithSinglePassEncodingDetection(file, fileLength, fileReadBufferSize, fileEncoding, isEncodingCertain, bomLength, null);
+    }
+
+    /**
+     * Same as above, except that if {@code isBinary} is non-null, then this output arg. tells
+     * whether the file is classified binary from its first bytes as done by
+     * {@link FileEncodingUtils#getOrGuessEncoding(File, boolean[], int[], boolean[])}, in which
+     * case the rest of the file is not read, and -1 is returned.
+     */
+    public static long countLinesWithSinglePassEncodingDetection(File file, long fileLength, int fileReadBufferSize, Charset[] fileEncoding, boolean[] isEncodingCertain, int[] bomLength, boolean[] isBinary) throws IOException {
+        return countLinesWithSinglePassEncodingDetection(file, fileLength, fileReadBufferSize, fileEncoding, isEncodingCertain, bomLength, isBinary, null);
+    }
+
+    /**
+     * Same as above, except that if {@code encodingConfidence} is non-null, then this output arg.
+     * gives the confidence, from 0 to 1, in the encoding as done by
+     * {@link FileEncodingUtils#getOrGuessEncoding(File, boolean[], int[], boolean[], float[])}.
+     */
+    public static long countLinesWithSinglePassEncodingDetection(File file, long fileLength, int fileReadBufferSize, Charset[] fileEncoding, boolean[] isEncodingCertain, int[] bomLength,
+                                                                 boolean[] isBinary, float[] encodingConfidence) throws IOException {
+        try (FileInputStream fis = new FileInputStream(file)) {
+            // The channel of the stream lets FileEncodingUtils read more windows of a file whose
+            // 1st bytes are ASCII by positioned reads, which leave the stream where it is
+            return countLinesWithSinglePassEncodingDetection(fis, fis.getChannel(), fileLength, fileReadBufferSize, fileEncoding, isEncodingCertain, bomLength, isBinary, encodingConfidence);
+        }
+    }
+
+    /**
+     * Same as above for the content read from {@code inputStream}, which is not closed, and whose
+     * length is {@code fileLength}, for e.g. the content of an entry of an archive, or of a
+     * ReadableByteChannel through Channels.newInputStream(...).
+     */
+    public static long countLinesWithSinglePassEncodingDetection(InputStream inputStream, long fileLength, int fileReadBufferSize, Charset[] fileEncoding, boolean[] isEncodingCertain, int[] bomLength,
+                                                                 boolean[] isBinary, float[] encodingConfidence) throws IOException {
+        return countLinesWithSinglePassEncodingDetection(inputStream, null, fileLength, fileReadBufferSize, fileEncoding, isEncodingCertain, bomLength, isBinary, encodingConfidence);
+    }
+
+    private static long countLinesWithSinglePassEncodingDetection(InputStream inputStream, FileChannel channel, long fileLength, int fileReadBufferSize, Charset[] fileEncoding,
+                                                                  boolean[] isEncodingCertain, int[] bomLength, boolean[] isBinary, float[] encodingConfidence) throws IOException {
+        try (IoBufferPool.Buffers buffers = IoBufferPool.acquire()) {
+            // The 1st buffer must be able to hold the whole sample used for guessing the encoding
+            // and at least a whole code unit of any encoding whose CR/LF can be searched as byte(s)
+            int bufferLength = Math.max(4, (int) Math.min(fileLength, Math.max(fileReadBufferSize, FileEncodingUtils.SAMPLING_READ_NUMBER_OF_BYTES)));
+            byte[] buffer = buffers.byteArray(bufferLength);
+            int nbReadBytes = inputStream.readNBytes(buffer, 0, bufferLength);
+
+            Charset encoding = FileEncodingUtils.getOrGuessEncoding(buffer, nbReadBytes, channel, fileLength, isEncodingCertain, bomLength, isBinary, encodingConfidence);
+            fileEncoding[0] = encoding;
+            if (isBinary != null && isBinary[0]) {
+                return -1;
             }
-            fileEncodingCount.incrementAndGet();
+            if (encoding == null) {
+                encoding = Charset.defaultCharset(); // default charset of this JVM
+                isEncodingCertain[0] = false;
+                bomLength[0] = 0;
+            }
+            // A file whose length is 0 or consisting only of a BOM is said to contain no lines
+            if (fileLength <= bomLength[0]) {
+                return 0;
+            }
+
+            if (!canSearchLineBreakAsByte(encoding)) {
+                // The bytes already read are decoded first, then those remaining in the file
+                return countLinesWithCharLookup(inputStream, buffer, nbReadBytes, fileReadBufferSize, bomLength[0], encoding, buffers);
+            }
+            return countLinesInCodeUnits(inputStream, buffer, bufferLength, nbReadBytes, bomLength[0], LineBreakScanner.CodeUnitLayout.of(encoding));
         }
-        return fileEncoding;
     }
 
     /**
@@ -323,39 +736,69 @@ public class LineCountUtils {
         if (fileLength <= bomLength) {
             return 0;
         }
+        try (IoBufferPool.Buffers buffers = IoBufferPool.acquire();
+             FileInputStream fis = new FileInputStream(file)) {
+            int bufferLength = (int) Math.min(fileLength, fileReadBufferSize);
+            return countLinesWithCharLookup(fis, buffers.byteArray(0), 0, bufferLength, bomLength, fileEncoding, buffers);
+        }
+    }
 
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), fileEncoding))) {
-            boolean previousBufferEndedWithCR = false;
-            char[] buffer = new char[Math.min((int) (fileLength & Integer.MAX_VALUE), fileReadBufferSize)];
-            for (long linesCount = 1; ; ) {
-                // Since here one reads characters, it is impossible to have the sequence
-                // of bytes of the last character being cut because of buffer boundaries.
-                int nbReadChars = br.read(buffer, 0, buffer.length);
-                if (nbReadChars <= 0) {
-                    return linesCount;
-                }
+    /**
+     * Same as {@link LineCountUtils#countLinesWithCharLookup(File, int, int, Charset)}, but
+     * for the {@code nbOfAlreadyReadBytes} 1st bytes of a file held by {@code alreadyReadBytes}
+     * followed by the remaining bytes of the file read from {@code inputStream}.<p>
+     * Rather than through an InputStreamReader, which allocates its own buffers and decoder
+     * for each file, the bytes are decoded by the decoder of {@code buffers} into its CharBuffer,
+     * malformed input and unmappable characters being replaced as done by InputStreamReader.
+     */
+    private static long countLinesWithCharLookup(InputStream inputStream, byte[] alreadyReadBytes, int nbOfAlreadyReadBytes, int fileReadBufferSize, int bomLength, Charset fileEncoding, IoBufferPool.Buffers buffers) throws IOException {
+        CharsetDecoder decoder = buffers.decoder(fileEncoding);
+        // A few bytes more than a whole character, whatever the encoding, can always be held
+        ByteBuffer byteBuffer = buffers.byteBuffer(Math.max(Math.max(fileReadBufferSize, nbOfAlreadyReadBytes), 16));
+        int bufferLength = Math.max(fileReadBufferSize, 16);
+        CharBuffer charBuffer = buffers.charBuffer(bufferLength);
+        byteBuffer.put(alreadyReadBytes, 0, nbOfAlreadyReadBytes);
+
+        long linesCount = 1;
+        boolean previousCharIsCR = false;
+        for (boolean endOfInput = false; !endOfInput; ) {
+            CancellationToken.throwIfCurrentCancelled();
+            // The bytes left undecoded by the previous iteration, if any, are at the beginning of
+            // the buffer, so the sequence of bytes of a character cut by buffer boundaries is
+            // completed by the bytes read now before being decoded.
+            int nbReadBytes = inputStream.read(byteBuffer.array(), byteBuffer.arrayOffset() + byteBuffer.position(),
+                    Math.max(0, Math.min(byteBuffer.remaining(), bufferLength - byteBuffer.position())));
+            if (nbReadBytes > 0) {
+                byteBuffer.position(byteBuffer.position() + nbReadBytes);
+            }
+            endOfInput = nbReadBytes < 0;
+            byteBuffer.flip();
 
+            CoderResult result;
+            do {
+                charBuffer.clear();
+                result = decoder.decode(byteBuffer, charBuffer, endOfInput);
+                if (endOfInput && result.isUnderflow()) {
+                    result = decoder.flush(charBuffer);
+                }
+                char[] buffer = charBuffer.array();
+                int nbDecodedChars = charBuffer.position();
                 int i = 0;
-                if (previousBufferEndedWithCR && buffer[0] == '\n') {
-                    // The counting done so far already did a "++linesCount", and
-                    // is about to do another: we skip the 1st '\n' to avoid it.
-                    i = 1;
-                } else if (bomLength != 0) {
+                if (bomLength != 0 && nbDecodedChars != 0) {
                     i = 1; // whatever the encoding, the BOM corresponds to 1 'char'
                     bomLength = 0;
                 }
-                while (i != nbReadChars) {
-                    char c = buffer[i++];
-                    if (c == '\r' || c == '\n') {
+                for (; i != nbDecodedChars; ++i) {
+                    char c = buffer[i];
+                    if (c == '\r' || (c == '\n' && !previousCharIsCR)) {
                         ++linesCount;
-                        if (c == '\r' && i != nbReadChars && buffer[i] == '\n') {
-                            ++i;
-                        }
                     }
+                    previousCharIsCR = c == '\r';
                 }
-                previousBufferEndedWithCR = buffer[nbReadChars - 1] == '\r';
-            }
+            } while (result.isOverflow());
+            byteBuffer.compact();
         }
+        return linesCount;
     }
 
     /**
@@ -368,6 +811,8 @@ public class LineCountUtils {
      * and loads the whole file in RAM => very risky for big files but worth
      * to be tried for measuring the performances using memory-mapped files,
      * finally found not better than those of countLinesWithCharLookup(...).
+     * See countLinesWithMemoryMappedByteLookup(...) for a version without
+     * these drawbacks for the encodings where CR/LF can be searched as byte.
      */
     public static long countLinesWithEntireFileLoadedInMemory(File file, int fileReadBufferSize, int bomLength, Charset fileEncoding) throws IOException {
         long fileLength = file.length();
@@ -402,6 +847,23 @@ public class LineCountUtils {
         }
     }
 
+    /**
+     * @return the exact count of lines found in the file, that count including
+     * the last empty line of the file if the file is CR/LF-ended.<p>
+     * To be called *only* for encodings where CR/LF can be found unambiguously
+     * when searched as "byte" (q.v. canSearchLineBreakAsByte(...)): the bytes of
+     * single-byte encodings and of UTF-8 are searched by countLinesWithByteLookup(...),
+     * whereas the code units of UTF-16 and UTF-32, and the bytes of EBCDIC, are compared
+     * to their CR/LF in the raw bytes of the file, which is much faster than decoding it
+     * into chars.
+     */
+    public static long countLinesWithByteLookup(File file, int fileReadBufferSize, int bomLength, Charset fileEncoding) throws IOException {
+        LineBreakScanner.CodeUnitLayout layout = LineBreakScanner.CodeUnitLayout.of(fileEncoding);
+        return layout == LineBreakScanner.CodeUnitLayout.SINGLE_BYTE
+                ? countLinesWithByteLookup(file, fileReadBufferSize, bomLength)
+                : countLinesWithCodeUnitLookup(file, fileReadBufferSize, bomLength, layout);
+    }
+
     /**
      * @return the exact count of lines found in the file, that count including
      * the last empty line of the file if the file is CR/LF-ended.<p>
@@ -417,14 +879,17 @@ public class LineCountUtils {
         }
 
         // Performances are the same with "RandomAccessFile raf = new RandomAccessFile(file, 'r')"
-        try (FileInputStream fis = new FileInputStream(file)) {
+        try (IoBufferPool.Buffers buffers = IoBufferPool.acquire();
+             FileInputStream fis = new FileInputStream(file)) {
             boolean previousBufferEndedWithCR = false;
-            byte[] buffer = new byte[Math.min((int) (fileLength & Integer.MAX_VALUE), fileReadBufferSize)];
+            int bufferLength = (int) Math.min(fileLength, fileReadBufferSize);
+            byte[] buffer = buffers.byteArray(bufferLength);
             for (long linesCount = 1; ; ) {
+                CancellationToken.throwIfCurrentCancelled();
                 // If the file has a multi-bytes encoding (like UTF-8 for e.g.), having
                 // the bytes sequence of a character cut because of buffer boundaries
                 // is not a problem since this method deals with bytes, not characters.
-                int nbReadBytes = fis.read(buffer, 0, buffer.length);
+                int nbReadBytes = fis.read(buffer, 0, bufferLength);
                 if (nbReadBytes <= 0) {
                     return linesCount;
                 }
@@ -452,6 +917,173 @@ public class LineCountUtils {
         }
     }
 
+    /**
+     * @return the exact count of lines found in the file, that count including
+     * the last empty line of the file if the file is CR/LF-ended.<p>
+     * To be called *only* for encodings where CR/LF can be found unambiguously
+     * when searched as "byte", whatever the encoding is single/multi-bytes,
+     * typically ISO-8859-N and UTF-8.<p>
+     * Contrary to countLinesWithEntireFileLoadedInMemory(...), the file is never
+     * decoded into chars, and whatever its size it is mapped in memory through a
+     * window of {@code mappingWindowSize} bytes at most, sliding over the file and
+     * unmapped as soon as its bytes have been processed, so that the memory used
+     * does not depend on the size of the file, and with no limit of 2 GB.
+     */
+    public static long countLinesWithMemoryMappedByteLookup(File file, int bomLength, int mappingWindowSize) throws IOException {
+        return countLinesWithMemoryMappedLookup(file, bomLength, mappingWindowSize, LineBreakScanner.CodeUnitLayout.SINGLE_BYTE);
+    }
+
+    /**
+     * Same as {@link LineCountUtils#countLinesWithMemoryMappedByteLookup(File, int, int)}, but
+     * for any encoding where CR/LF can be searched as byte(s) (q.v. canSearchLineBreakAsByte(...)),
+     * the size of the windows being then a multiple of the width of the code units.
+     */
+    public static long countLinesWithMemoryMappedByteLookup(File file, int bomLength, int mappingWindowSize, Charset fileEncoding) throws IOException {
+        return countLinesWithMemoryMappedLookup(file, bomLength, mappingWindowSize, LineBreakScanner.CodeUnitLayout.of(fileEncoding));
+    }
+
+    private static long countLinesWithMemoryMappedLookup(File file, int bomLength, int mappingWindowSize, LineBreakScanner.CodeUnitLayout layout) throws IOException {
+        // A file whose length is 0 or consisting only of a BOM is said to contain no lines
+        long fileLength = file.length();
+        if (fileLength <= bomLength) {
+            return 0;
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            // Math.min() avoids, for some files only, I/O exception "Channel
+            // not open for writing - cannot extend file to required size".
+            long mappedRegionEnd = Math.min(fileLength, channel.size());
+            // Windows never cut a code unit, except an incomplete one ending the file
+            int width = layout.getWidth();
+            int alignedWindowSize = Math.max(width, mappingWindowSize - mappingWindowSize % width);
+            boolean previousWindowEndedWithCR = false;
+            long linesCount = 1;
+            for (long position = bomLength; position < mappedRegionEnd; ) {
+                CancellationToken.throwIfCurrentCancelled();
+                int windowSize = (int) Math.min(alignedWindowSize, mappedRegionEnd - position);
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, windowSize);
+                try {
+                    int end = windowSize - windowSize % width;
+                    if (end != 0) {
+                        linesCount += LineBreakScanner.countLineBreaks(layout, window, 0, end, previousWindowEndedWithCR);
+                        previousWindowEndedWithCR = layout.codeUnitAt(window, end - width) == '\r';
+                    }
+                } finally {
+                    unmap(window);
+                }
+                position += windowSize;
+            }
+            return linesCount;
+        }
+    }
+
+    private static MethodHandle findInvokeCleaner() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafeField = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafeField.setAccessible(true);
+            return MethodHandles.lookup()
+                    .findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                    .bindTo(theUnsafeField.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.debug("Mapped buffers will be unmapped by the garbage collector", e);
+            return null;
+        }
+    }
+
+    /**
+     * Releases the memory mapping of {@code buffer} right now instead of waiting for the
+     * buffer to be garbage collected, which otherwise lets the mappings of many windows
+     * accumulate, growing the resident set size of the process. The buffer must not be
+     * accessed anymore once this method has been called.
+     */
+    static void unmap(MappedByteBuffer buffer) {
+        if (INVOKE_CLEANER != null) {
+            try {
+                INVOKE_CLEANER.invokeExact((ByteBuffer) buffer);
+            } catch (Throwable e) {
+                log.debug("Unable to unmap a mapped buffer", e);
+            }
+        }
+    }
+
+    /**
+     * @return the exact count of lines found in the file, that count including
+     * the last empty line of the file if the file is CR/LF-ended.<p>
+     * To be called *only* for encodings where CR/LF can be found unambiguously
+     * when searched as "byte", whatever the encoding is single/multi-bytes,
+     * typically ISO-8859-N and UTF-8.<p>
+     * Gives the same count as countLinesWithByteLookup(...), but the bytes are
+     * compared to CR/LF many at once by {@link LineBreakScanner}.
+     */
+    public static long countLinesWithVectorizedByteLookup(File file, int fileReadBufferSize, int bomLength) throws IOException {
+        return countLinesWithCodeUnitLookup(file, fileReadBufferSize, bomLength, LineBreakScanner.CodeUnitLayout.SINGLE_BYTE);
+    }
+
+    /**
+     * Same as {@link LineCountUtils#countLinesWithVectorizedByteLookup(File, int, int)}, but
+     * for any encoding where CR/LF can be searched as byte(s) (q.v. canSearchLineBreakAsByte(...)),
+     * the code units of UTF-16 and UTF-32 being compared to CR/LF in the raw bytes of the file.
+     */
+    public static long countLinesWithVectorizedByteLookup(File file, int fileReadBufferSize, int bomLength, Charset fileEncoding) throws IOException {
+        return countLinesWithCodeUnitLookup(file, fileReadBufferSize, bomLength, LineBreakScanner.CodeUnitLayout.of(fileEncoding));
+    }
+
+    /**
+     * @return the exact count of lines of the file whose CR/LF are searched in its code units
+     * of {@code layout} by {@link LineBreakScanner}, that count including the last empty line
+     * of the file if the file is CR/LF-ended.
+     */
+    private static long countLinesWithCodeUnitLookup(File file, int fileReadBufferSize, int bomLength, LineBreakScanner.CodeUnitLayout layout) throws IOException {
+        // A file whose length is 0 or consisting only of a BOM is said to contain no lines
+        long fileLength = file.length();
+        if (fileLength <= bomLength) {
+            return 0;
+        }
+
+        try (IoBufferPool.Buffers buffers = IoBufferPool.acquire();
+             FileInputStream fis = new FileInputStream(file)) {
+            int bufferLength = Math.max(layout.getWidth(), (int) Math.min(fileLength, fileReadBufferSize));
+            return countLinesInCodeUnits(fis, buffers.byteArray(bufferLength), bufferLength, 0, bomLength, layout);
+        }
+    }
+
+    /**
+     * @return the count of lines of a file whose bytes are read from {@code inputStream} into
+     * the {@code bufferLength} 1st bytes of {@code buffer}, which already holds the
+     * {@code nbOfBufferedBytes} 1st bytes of the file (possibly none), the {@code bomLength}
+     * 1st bytes of the file being skipped whether they are already buffered or not. A code unit
+     * of {@code layout} that is cut by the end of the bytes read at once is moved to the
+     * beginning of the buffer so as to be completed by the next read, and an incomplete code
+     * unit ending the file is ignored since it cannot be decoded into CR/LF.
+     */
+    static long countLinesInCodeUnits(InputStream inputStream, byte[] buffer, int bufferLength, int nbOfBufferedBytes, int bomLength, LineBreakScanner.CodeUnitLayout layout) throws IOException {
+        int width = layout.getWidth();
+        long linesCount = 1;
+        boolean previousUnitIsCR = false;
+        int nbOfBytesToSkip = bomLength;
+        while (true) {
+            // The BOM, if any, is skipped, even if cut by the end of the bytes read at once;
+            // a LF starting this buffer and following the CR ending the previous one is not
+            // counted by LineBreakScanner.
+            int from = Math.min(nbOfBytesToSkip, nbOfBufferedBytes);
+            nbOfBytesToSkip -= from;
+            int end = nbOfBufferedBytes - (nbOfBufferedBytes - from) % width;
+            if (end != from) {
+                linesCount += LineBreakScanner.countLineBreaks(layout, buffer, from, end, previousUnitIsCR);
+                previousUnitIsCR = layout.codeUnitAt(buffer, end - width) == '\r';
+            }
+            int nbOfLeftBytes = nbOfBufferedBytes - end;
+            System.arraycopy(buffer, end, buffer, 0, nbOfLeftBytes);
+            CancellationToken.throwIfCurrentCancelled();
+            int nbReadBytes = inputStream.read(buffer, nbOfLeftBytes, bufferLength - nbOfLeftBytes);
+            if (nbReadBytes <= 0) {
+                return linesCount;
+            }
+            nbOfBufferedBytes = nbOfLeftBytes + nbReadBytes;
+        }
+    }
+
     /**
      * @return the exact count of lines found in the file, that count including
      * the last empty line of the file if the file is CR/LF-ended.<p>
@@ -461,6 +1093,16 @@ public class LineCountUtils {
      * which were found not better than those of countLinesWithByteLookup(...).
      */
     public static long countLinesWithByteLookupUsingFileChannel(File file, int fileReadBufferSize, int bomLength) throws IOException {
+        return countLinesWithByteLookupUsingFileChannel(file, fileReadBufferSize, bomLength, false);
+    }
+
+    /**
+     * Same as {@link LineCountUtils#countLinesWithByteLookupUsingFileChannel(File, int, int)}, but
+     * if {@code useDirectBuffer} is true the file is read into a direct (off-heap) buffer, saving
+     * the copy done by the JDK from its own temporary direct buffer when reading into a heap
+     * buffer, the line breaks being then searched in place by {@link LineBreakScanner}.
+     */
+    public static long countLinesWithByteLookupUsingFileChannel(File file, int fileReadBufferSize, int bomLength, boolean useDirectBuffer) throws IOException {
         // A file whose length is 0 or consisting only of a BOM is said to contain no lines
         long fileLength = file.length();
         if (fileLength <= bomLength) {
@@ -468,11 +1110,17 @@ public class LineCountUtils {
         }
 
         // Performances are the same with "FileInputStream fis = new FileInputStream(file)"
-        try (FileChannel channel = new RandomAccessFile(file, "r").getChannel()) {
+        try (IoBufferPool.Buffers buffers = IoBufferPool.acquire();
+             FileChannel channel = new RandomAccessFile(file, "r").getChannel()) {
+            int bufferLength = (int) Math.min(fileLength, fileReadBufferSize);
+            if (useDirectBuffer) {
+                return countLinesInDirectBuffer(channel, buffers.directByteBuffer(bufferLength).limit(bufferLength), bomLength);
+            }
             boolean previousBufferEndedWithCR = false;
-            byte[] buffer = new byte[Math.min((int) (fileLength & Integer.MAX_VALUE), fileReadBufferSize)];
-            ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
-            for (long linesCount = 1; /* NOP */ ; byteBuffer.clear()) {
+            ByteBuffer byteBuffer = buffers.byteBuffer(bufferLength).limit(bufferLength);
+            byte[] buffer = byteBuffer.array();
+            for (long linesCount = 1; /* NOP */ ; byteBuffer.clear().limit(bufferLength)) {
+                CancellationToken.throwIfCurrentCancelled();
                 // If the file has a multi-bytes encoding (like UTF-8 for e.g.), having
                 // the bytes sequence of a character cut because of buffer boundaries
                 // is not a problem since this method deals with bytes, not characters.
@@ -509,41 +1157,116 @@ public class LineCountUtils {
         }
     }
 
+    /**
+     * @return the count of lines of the file read from {@code channel} into {@code directBuffer},
+     * whose limit gives the number of bytes read at once, ignoring the {@code bomLength} 1st bytes.
+     */
+    private static long countLinesInDirectBuffer(FileChannel channel, ByteBuffer directBuffer, int bomLength) throws IOException {
+        int bufferLength = directBuffer.limit();
+        boolean previousBufferEndedWithCR = false;
+        for (long linesCount = 1; /* NOP */ ; directBuffer.clear().limit(bufferLength)) {
+            CancellationToken.throwIfCurrentCancelled();
+            int nbReadBytes = channel.read(directBuffer);
+            if (nbReadBytes <= 0) {
+                return linesCount;
+            }
+            int i = Math.min(bomLength, nbReadBytes);
+            bomLength = 0;
+            linesCount += LineBreakScanner.countLineBreaks(directBuffer, i, nbReadBytes, previousBufferEndedWithCR);
+            previousBufferEndedWithCR = directBuffer.get(nbReadBytes - 1) == '\r';
+        }
+    }
+
+    /**
+     * @return the exact count of lines found in the file, that count including
+     * the last empty line of the file if the file is CR/LF-ended.<p>
+     * The file is split into ranges of {@code rangeSize} bytes at most, whose
+     * boundaries are aligned on the code units of {@code fileEncoding}, then the
+     * line breaks of these ranges are counted in parallel, a CR/LF sequence that
+     * straddles the boundary of two ranges being counted once. Files whose encoding
+     * has characters of variable length that are not made of code units in which
+     * CR/LF can be found unambiguously (for e.g. GB-18030) are counted sequentially
+     * by countLinesWithCharLookup(...).
+     */
+    public static long countLinesWithParallelRangeLookup(File file, int fileReadBufferSize, int bomLength, Charset fileEncoding, long rangeSize) throws IOException {
+        return RangeLineCounter.countLines(file, fileReadBufferSize, bomLength, fileEncoding, rangeSize);
+    }
+
+    /**
+     * Logs the report of {@link #getLastResult()}, if any.
+     */
     public void logReport() {
-        String exactness = lineCountingMethod == LineCountingMethod.CHAR_OR_BYTE_LOOKUP ? "exact" : "approx.";
-        log.info("Number of lines in the entire File collection  = {} kLines over {} files ({} count = {})", overallLineCount.get() / 1000, nbFilesInSuccess.get(), exactness, overallLineCount.get());
-        String nbOfThreadsInfo = workingThreadIdsSet != null ? String.format(" (using %d threads)", workingThreadIdsSet.size()) : "";
-        log.info("Number of files whose lines have been counted  = {}{}", nbFilesInSuccess.get(), nbOfThreadsInfo);
-        String warningForFilesInError = nbFilesInError.get() != 0 ? " *** WARNING ***" : "";
-        log.info("Number of files whose line counting failed     = {}{}", nbFilesInError.get(), warningForFilesInError);
-        String nbOfGB = String.format("%.2f", (nbProcessedBytes.get() >> 20) / 1024f);
-        log.info("Number of bytes processed during line counting = {} = ~{} KB = ~{} MB = ~{} GB", nbProcessedBytes.get(), (nbProcessedBytes.get() >> 10), (nbProcessedBytes.get() >> 20), nbOfGB);
-        if (encodingNameToFileCountMaps != null) {
-            // Build the map containing the aggregation of the counts per encoding.
-            // Values' type is AtomicInteger for compatibility with the maps held
-            // by encodingNameToFileCountMaps[] so that all can be processed just
-            // below using a single stream.
-            Map<String, AtomicInteger> encodingNameToFileCountAgg = new HashMap<>();
-            for (Map<String, AtomicInteger> map : encodingNameToFileCountMaps) {
-                map.forEach((encodingName, fileCount) -> {
-                    AtomicInteger fileCountAgg = encodingNameToFileCountAgg.getOrDefault(encodingName, new AtomicInteger(0));
-                    fileCountAgg.addAndGet(fileCount.get());
-                    encodingNameToFileCountAgg.put(encodingName, fileCountAgg);
-                });
-            }
-
-            // Build array consisting in the elements of encodingNameToFileCountMaps[]
-            // to which is appended, as last element, the aggregation built just above.
-            Stream<Map<String, AtomicInteger>> concatenatedStreams = Stream.concat(Arrays.stream(encodingNameToFileCountMaps), ImmutableList.of(encodingNameToFileCountAgg).stream());
+        LineCountResult result = lastResult;
+        if (result != null) {
+            logReport(result);
+        }
+    }
+
+    /**
+     * Logs the report of {@code result}, as returned by scanCodeLines(...).
+     */
+    public static void logReport(LineCountResult result) {
+        String exactness = result.getLineCountingMethod().isExact() ? "exact" : "approx.";
+        log.info("Number of lines in the entire File collection  = {} kLines over {} files ({} count = {})", result.getLineCount() / 1000, result.getNbOfFilesInSuccess(), exactness, result.getLineCount());
+        LineMetrics lineMetrics = result.getLineMetrics();
+        if (lineMetrics != null) {
+            log.info("Number of code / comment / blank lines         = {} / {} / {} (CR+LF / LF / CR terminators = {} / {} / {})",
+                    lineMetrics.getNbOfCodeLines(), lineMetrics.getNbOfCommentLines(), lineMetrics.getNbOfBlankLines(),
+                    lineMetrics.getNbOfCrLfTerminators(), lineMetrics.getNbOfLfTerminators(), lineMetrics.getNbOfCrTerminators());
+        }
+        String nbOfThreadsInfo = result.getNbOfWorkingThreads() != null ? String.format(" (using %d threads)", result.getNbOfWorkingThreads()) : "";
+        log.info("Number of files whose lines have been counted  = {}{}", result.getNbOfFilesInSuccess(), nbOfThreadsInfo);
+        String warningForPartialCount = !result.isComplete() ? " *** PARTIAL COUNT ***" : "";
+        log.info("Outcome of line counting                       = {}{}", result.getCountingOutcome(), warningForPartialCount);
+        String warningForFilesInError = result.getNbOfFilesInError() != 0 ? " *** WARNING ***" : "";
+        log.info("Number of files whose line counting failed     = {}{}", result.getNbOfFilesInError(), warningForFilesInError);
+        long nbProcessedBytes = result.getNbOfProcessedBytes();
+        String nbOfGB = String.format("%.2f", (nbProcessedBytes >> 20) / 1024f);
+        log.info("Number of bytes processed during line counting = {} = ~{} KB = ~{} MB = ~{} GB", nbProcessedBytes, (nbProcessedBytes >> 10), (nbProcessedBytes >> 20), nbOfGB);
+        long countingDurationNanos = result.getCountingDurationNanos();
+        long tailWaitNanos = result.getTailWaitNanos();
+        long tailWaitPercent = countingDurationNanos != 0 ? 100 * tailWaitNanos / countingDurationNanos : 0;
+        log.info("Duration of line counting (wall-clock time)    = {} ms, of which {} ms ({}%) waiting for the last files", countingDurationNanos / 1_000_000, tailWaitNanos / 1_000_000, tailWaitPercent);
+        if (result.getLineCountCacheFile() != null) {
+            log.info("Number of files counted by a previous run      = {} (unchanged files found in {})", result.getNbOfCacheHits(), result.getLineCountCacheFile());
+        }
+        if (result.getNbOfArchives() != 0) {
+            log.info("Number of archives whose entries were counted  = {} (entries counted as files)", result.getNbOfArchives());
+        }
+        if (result.getNbOfIgnoredPaths() != 0) {
+            log.info("Number of paths left out by the ignore rules   = {} (files and directories)", result.getNbOfIgnoredPaths());
+        }
+        if (result.getNbOfBinaryFiles() != 0) {
+            log.info("Number of files left out because binary        = {} ({} bytes not counted)", result.getNbOfBinaryFiles(), result.getNbOfBinaryBytes());
+        }
+        if (result.getNbOfDuplicateFiles() != 0) {
+            log.info("Number of duplicate files attributed a count   = {} ({} bytes not counted, {} lines counted more than once)", result.getNbOfDuplicateFiles(), result.getNbOfSkippedBytes(), result.getNbOfDuplicateLines());
+        }
+        if (result.getNbOfAllocatedBytes() != null) {
+            long nbAllocatedBytes = result.getNbOfAllocatedBytes();
+            long nbOfFiles = Math.max(1, result.getNbOfFilesInSuccess());
+            log.info("Number of bytes allocated during line counting = {} = ~{} KB (~{} bytes per file)", nbAllocatedBytes, (nbAllocatedBytes >> 10), nbAllocatedBytes / nbOfFiles);
+        }
+        if (result.getNbOfFilesPerCertainEncoding() != null) {
+            // The counts of files per encoding for each certainty of the encoding,
+            // to which is appended, as last element, the sum of these counts.
+            Stream<Map<String, Integer>> concatenatedStreams = Stream.of(result.getNbOfFilesPerCertainEncoding(),
+                    result.getNbOfFilesPerGuessedEncoding(), result.getNbOfFilesPerDoubtfulEncoding(), result.getNbOfFilesPerEncoding());
             String[] encodingStats = concatenatedStreams
                     .map(map -> map.entrySet().stream()
-                            .map(e -> String.format("%s=%d", e.getKey(), e.getValue().get()))
+                            .map(e -> String.format("%s=%d", e.getKey(), e.getValue()))
                             .sorted().collect(Collectors.joining(", ")))
                     .toArray(String[]::new);
             log.info("Number of files per encoding provided by BOM   = {}", encodingStats[0]);
             log.info("Number of files per encoding that was guessed  = {}", encodingStats[1]);
             log.info("Number of files per encoding that is doubtful  = {}", encodingStats[2]);
             log.info("Number of files per encoding (sum of above)    = {}", encodingStats[3]);
+            log.info("Mean confidence in the encoding of the files   = {}", result.getMeanConfidencePerEncoding().entrySet().stream()
+                    .map(e -> String.format("%s=%.3f", e.getKey(), e.getValue()))
+                    .sorted().collect(Collectors.joining(", ")));
+        }
+        for (LineCountResult.Failure failure : result.getFailures()) {
+            log.info("Line counting failed for file                  = \"{}\" ({})", failure.getFile().getAbsolutePath(), failure.getReason());
         }
     }
 
@@ -0,0 +1,61 @@
+package bns.testcarl;
+
+import lombok.Value;
+
+/**
+ * Snapshot of the progress of countCodeLines(...) passed to {@link LineCountingProgressListener}.
+ * The counts are read one after the other while files are being counted, so they may be off
+ * by the files whose counting ended meanwhile, except in the last snapshot (where done is true).
+ */
+@Value
+public class LineCountingProgress {
+
+    // Nanoseconds elapsed since countCodeLines(...) has started
+    long elapsedNanos;
+
+    // Whether this is the last snapshot, taken once countCodeLines(...) is done
+    boolean done;
+
+    // Whether the tree of countCodeLines(Path, Long) is still being walked, the numbers
+    // of files and bytes to process being those of the files found so far
+    boolean walkInProgress;
+
+    int nbOfProcessedFiles;       // Files whose lines have been counted or whose counting has failed
+    int nbOfFailedFiles;
+    int nbOfFilesToProcess;
+    long nbOfProcessedBytes;      // Bytes of the files whose lines have been counted
+    long nbOfBytesToProcess;      // -1 if unknown, i.e. if the lengths of the files are got while counting
+    long nbOfLines;
+    int nbOfActiveThreads;        // Threads counting the lines of a file right now
+
+    double bytesPerSecond;        // Throughput since the previous snapshot
+    double filesPerSecond;
+    double averageBytesPerSecond; // Throughput since countCodeLines(...) has started
+    double averageFilesPerSecond;
+
+    // Nanoseconds spent by all the threads (and so possibly more than elapsedNanos) getting the
+    // encoding of the files, and counting their lines (or doing both at once in a single pass)
+    long encodingDetectionNanos;
+    long lineCountingNanos;
+
+    /**
+     * @return the estimated nanoseconds before all the files are processed, from the bytes left
+     * to process if their number is known, or else from the files left, at the average throughput
+     * so far; -1 if unknown, for e.g. while the files to process are still being found.
+     */
+    public long getEtaNanos() {
+        if (done) {
+            return 0L;
+        }
+        if (walkInProgress) {
+            return -1L;
+        }
+        if (nbOfBytesToProcess >= 0 && averageBytesPerSecond > 0) {
+            return (long) (Math.max(0L, nbOfBytesToProcess - nbOfProcessedBytes) / averageBytesPerSecond * 1e9);
+        }
+        if (averageFilesPerSecond > 0) {
+            return (long) (Math.max(0, nbOfFilesToProcess - nbOfProcessedFiles) / averageFilesPerSecond * 1e9);
+        }
+        return -1L;
+    }
+}
@@ -0,0 +1,14 @@
+package bns.testcarl;
+
+/**
+ * Listener to which {@link LineCountUtils} reports the progress of countCodeLines(...) every
+ * {@code progressReportIntervalMillis}, plus once the counting is done. It is called by a
+ * thread of its own, so that the threads counting lines are not slowed down by listeners,
+ * except for the last snapshot, reported by the thread of countCodeLines(...) once the
+ * periodic reports are over: the listener is never called by 2 threads at once.
+ */
+@FunctionalInterface
+public interface LineCountingProgressListener {
+
+    void onProgress(LineCountingProgress progress);
+}
@@ -0,0 +1,35 @@
+package bns.testcarl;
+
+import lombok.Value;
+
+/**
+ * Counts of the lines of a file (or of a collection of files) by kind, and of the line
+ * terminators by style, built by {@link LineMetricsScanner} in the same pass as the count
+ * of the physical lines, which is the sum of the blank, comment and code lines.
+ */
+@Value
+public class LineMetrics {
+
+    public static final LineMetrics ZERO = new LineMetrics(0, 0, 0, 0, 0, 0);
+
+    long nbOfBlankLines;    // Lines made of whitespace only (the last line of a CR/LF-ended file included)
+    long nbOfCommentLines;  // Lines holding comments and whitespace only
+    long nbOfCodeLines;     // Lines holding anything else, aka SLOC
+
+    long nbOfCrLfTerminators;
+    long nbOfLfTerminators;
+    long nbOfCrTerminators; // CR not followed by LF
+
+    /**
+     * @return the number of physical lines, the same as counted by the exact methods of {@link LineCountUtils}.
+     */
+    public long getNbOfLines() {
+        return nbOfBlankLines + nbOfCommentLines + nbOfCodeLines;
+    }
+
+    public LineMetrics plus(LineMetrics other) {
+        return new LineMetrics(nbOfBlankLines + other.nbOfBlankLines, nbOfCommentLines + other.nbOfCommentLines,
+                nbOfCodeLines + other.nbOfCodeLines, nbOfCrLfTerminators + other.nbOfCrLfTerminators,
+                nbOfLfTerminators + other.nbOfLfTerminators, nbOfCrTerminators + other.nbOfCrTerminators);
+    }
+}
@@ -0,0 +1,318 @@
+package bns.testcarl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.util.Set;
+
+/**
+ * Streaming scanner classifying the lines of a file as blank, comment or code lines according
+ * to a {@link CommentSyntax}, while counting its CR+LF, LF and bare CR line terminators, in
+ * the single pass reading the file that also counts its physical lines.<p>
+ * As done by countLinesWithByteLookup(...) & al. of {@link LineCountUtils}, the code units of
+ * single-byte encodings, UTF-8, UTF-16 and UTF-32 are scanned in the bytes read from the file,
+ * since the ASCII characters of comment markers are single code units in these encodings,
+ * whereas the bytes of other encodings are decoded into chars first, including those of the
+ * multi-bytes encodings whose trail bytes may be ASCII characters such as '\\', and those of
+ * EBCDIC, whose NL is decoded as a LF, so that the lines are those counted from the bytes.
+ * The runs of ordinary code units of code lines, which make most of the bytes of source files,
+ * are skipped by a tight loop, so that the throughput stays close to that of the plain count
+ * of lines.<p>
+ * Strings are assumed to end with the line, and block comments are not nested.
+ */
+public final class LineMetricsScanner {
+
+    // States of the scanner between two code units
+    private static final int CODE = 0;
+    private static final int LINE_COMMENT = 1;
+    private static final int BLOCK_COMMENT = 2;
+    private static final int STRING = 3;
+
+    // Encodings having a layout of single bytes (q.v. LineBreakScanner.CodeUnitLayout#of(Charset)),
+    // but whose trail bytes of multi-bytes characters include ASCII characters
+    private static final Set<String> ENCODINGS_WITH_ASCII_TRAIL_BYTES = Set.of("Shift_JIS", "windows-31j", "x-windows-949", "GBK", "GB18030", "Big5");
+
+    private final CommentSyntax syntax;
+    private final byte[] unitClasses;
+
+    private int state = CODE;
+    private int blockCommentIndex; // Index of the delimiters of the block comment in progress
+    private int quote;             // Quote of the string in progress
+    private boolean escaped;       // Whether the previous code unit of the string is a backslash
+
+    // Last 4 code units met among those that may belong to a marker, the last one in the lowest
+    // byte, reset to 0 by any other code unit, and once a marker is found (q.v. CommentSyntax)
+    private int lastUnits;
+
+    private int nbOfCodeUnitsInLine;
+    private boolean lineHasComment;
+    private boolean previousUnitIsCR;
+
+    private long nbOfBlankLines;
+    private long nbOfCommentLines;
+    private long nbOfCodeLines;
+    private long nbOfCrLfTerminators;
+    private long nbOfLfTerminators;
+    private long nbOfCrTerminators;
+
+    public LineMetricsScanner(CommentSyntax syntax) {
+        this.syntax = syntax;
+        this.unitClasses = syntax.unitClasses;
+    }
+
+    /**
+     * @return the metrics of the lines of {@code file}, whose BOM, if any, is {@code bomLength}
+     * bytes long, the lines of a file whose length is 0 or consisting only of a BOM being none.
+     */
+    public static LineMetrics scan(File file, int fileReadBufferSize, int bomLength, Charset fileEncoding, CommentSyntax syntax) throws IOException {
+        long fileLength = file.length();
+        if (fileLength <= bomLength) {
+            return LineMetrics.ZERO;
+        }
+        try (FileInputStream fis = new FileInputStream(file)) {
+            return scan(fis, fileLength, fileReadBufferSize, bomLength, fileEncoding, syntax);
+        }
+    }
+
+    /**
+     * Same as above for the content read from {@code fis}, BOM included, which is not closed,
+     * and whose length is {@code fileLength}, for e.g. the content of an entry of an archive.
+     */
+    public static LineMetrics scan(InputStream fis, long fileLength, int fileReadBufferSize, int bomLength, Charset fileEncoding, CommentSyntax syntax) throws IOException {
+        if (fileLength <= bomLength) {
+            return LineMetrics.ZERO;
+        }
+        LineMetricsScanner scanner = new LineMetricsScanner(syntax);
+        LineBreakScanner.CodeUnitLayout layout = LineBreakScanner.CodeUnitLayout.of(fileEncoding);
+        try (IoBufferPool.Buffers buffers = IoBufferPool.acquire()) {
+            int bufferLength = Math.max(4, (int) Math.min(fileLength, fileReadBufferSize));
+            if (layout == null || layout == LineBreakScanner.CodeUnitLayout.EBCDIC || ENCODINGS_WITH_ASCII_TRAIL_BYTES.contains(fileEncoding.name())) {
+                scanner.scanChars(fis, bufferLength, bomLength, fileEncoding, layout == LineBreakScanner.CodeUnitLayout.EBCDIC, buffers);
+            } else if (layout.getWidth() == 1) {
+                byte[] buffer = buffers.byteArray(bufferLength);
+                for (int from = bomLength; ; from = 0) {
+                    CancellationToken.throwIfCurrentCancelled();
+                    int nbReadBytes = fis.read(buffer, 0, bufferLength);
+                    if (nbReadBytes <= 0) {
+                        break;
+                    }
+                    // The BOM cannot be cut by the 1st buffer, which holds at least 4 bytes
+                    scanner.scanBytes(buffer, Math.min(from, nbReadBytes), nbReadBytes);
+                }
+            } else {
+                scanner.scanCodeUnits(fis, buffers.byteArray(bufferLength), bufferLength, bomLength, layout);
+            }
+        }
+        return scanner.finish();
+    }
+
+    private void scanCodeUnits(InputStream fis, byte[] buffer, int bufferLength, int bomLength, LineBreakScanner.CodeUnitLayout layout) throws IOException {
+        int width = layout.getWidth();
+        int nbOfBufferedBytes = 0;
+        for (int from = bomLength; ; from = 0) {
+            CancellationToken.throwIfCurrentCancelled();
+            int nbReadBytes = fis.read(buffer, nbOfBufferedBytes, bufferLength - nbOfBufferedBytes);
+            if (nbReadBytes <= 0) {
+                // An incomplete code unit ending the file, if any, is ignored
+                return;
+            }
+            nbOfBufferedBytes += nbReadBytes;
+            from = Math.min(from, nbOfBufferedBytes);
+            int end = nbOfBufferedBytes - (nbOfBufferedBytes - from) % width;
+            for (int i = from; i != end; i += width) {
+                accept(layout.codeUnitAt(buffer, i));
+            }
+            // The bytes of a code unit cut by the end of the buffer are moved to its beginning
+            nbOfBufferedBytes -= end;
+            System.arraycopy(buffer, end, buffer, 0, nbOfBufferedBytes);
+        }
+    }
+
+    private void scanChars(InputStream fis, int bufferLength, int bomLength, Charset fileEncoding, boolean nelIsLineFeed, IoBufferPool.Buffers buffers) throws IOException {
+        CharsetDecoder decoder = buffers.decoder(fileEncoding);
+        ByteBuffer byteBuffer = buffers.byteBuffer(Math.max(bufferLength, 16));
+        CharBuffer charBuffer = buffers.charBuffer(Math.max(bufferLength, 16));
+        for (boolean endOfInput = false; !endOfInput; ) {
+            CancellationToken.throwIfCurrentCancelled();
+            int nbReadBytes = fis.read(byteBuffer.array(), byteBuffer.arrayOffset() + byteBuffer.position(), byteBuffer.remaining());
+            if (nbReadBytes > 0) {
+                byteBuffer.position(byteBuffer.position() + nbReadBytes);
+            }
+            endOfInput = nbReadBytes < 0;
+            byteBuffer.flip();
+            CoderResult result;
+            do {
+                charBuffer.clear();
+                result = decoder.decode(byteBuffer, charBuffer, endOfInput);
+                if (endOfInput && result.isUnderflow()) {
+                    result = decoder.flush(charBuffer);
+                }
+                char[] chars = charBuffer.array();
+                int i = 0;
+                if (bomLength != 0 && charBuffer.position() != 0) {
+                    i = 1; // whatever the encoding, the BOM corresponds to 1 'char'
+                    bomLength = 0;
+                }
+                for (int nbOfDecodedChars = charBuffer.position(); i != nbOfDecodedChars; ++i) {
+                    char c = chars[i];
+                    accept(nelIsLineFeed && c == '\u0085' ? '\n' : c);
+                }
+            } while (result.isOverflow());
+            byteBuffer.compact();
+        }
+    }
+
+    /**
+     * Scans the bytes {@code bytes[from]} to {@code bytes[to - 1]} of a single-byte encoding or of UTF-8.
+     */
+    public void scanBytes(byte[] bytes, int from, int to) {
+        int i = from;
+        while (i != to) {
+            if (state == CODE && !previousUnitIsCR) {
+                // Bytes >= 0x80 (negative) are ordinary, as are letters, digits, etc.
+                int runStart = i;
+                byte b;
+                while (i != to && ((b = bytes[i]) < 0 || unitClasses[b] == CommentSyntax.ORDINARY)) {
+                    ++i;
+                }
+                if (i != runStart) {
+                    nbOfCodeUnitsInLine += i - runStart;
+                    lastUnits = 0;
+                    if (i == to) {
+                        return;
+                    }
+                }
+            }
+            accept(bytes[i++] & 0xFF);
+        }
+    }
+
+    /**
+     * Scans the next code unit (or char) of the file.
+     */
+    public void accept(int unit) {
+        if (previousUnitIsCR) {
+            previousUnitIsCR = false;
+            if (unit == '\n') {
+                ++nbOfCrLfTerminators;
+                return;
+            }
+            ++nbOfCrTerminators;
+        }
+        int unitClass = (unit & ~0x7F) == 0 ? unitClasses[unit] : CommentSyntax.ORDINARY;
+        if (unitClass == CommentSyntax.LINE_BREAK) {
+            endLine();
+            if (unit == '\r') {
+                previousUnitIsCR = true;
+            } else {
+                ++nbOfLfTerminators;
+            }
+            return;
+        }
+        switch (state) {
+            case CODE:
+                if (unitClass == CommentSyntax.WHITESPACE) {
+                    lastUnits = 0;
+                } else if (unitClass == CommentSyntax.ORDINARY) {
+                    ++nbOfCodeUnitsInLine;
+                    lastUnits = 0;
+                } else {
+                    ++nbOfCodeUnitsInLine;
+                    if (syntax.quotes[unit]) {
+                        state = STRING;
+                        quote = unit;
+                        lastUnits = 0;
+                    } else {
+                        lastUnits = lastUnits << 8 | unit;
+                        startCommentIfAny();
+                    }
+                }
+                break;
+            case LINE_COMMENT:
+                if (unitClass != CommentSyntax.WHITESPACE) {
+                    lineHasComment = true;
+                }
+                break;
+            case BLOCK_COMMENT:
+                if (unitClass == CommentSyntax.SPECIAL) {
+                    lineHasComment = true;
+                    lastUnits = lastUnits << 8 | unit;
+                    if ((lastUnits & syntax.blockCommentEndMasks[blockCommentIndex]) == syntax.blockCommentEnds[blockCommentIndex]) {
+                        state = CODE;
+                        lastUnits = 0;
+                    }
+                } else {
+                    lineHasComment |= unitClass != CommentSyntax.WHITESPACE;
+                    lastUnits = 0;
+                }
+                break;
+            default: // STRING
+                if (escaped) {
+                    escaped = false;
+                } else if (unit == '\\') {
+                    escaped = true;
+                } else if (unit == quote) {
+                    state = CODE;
+                }
+                break;
+        }
+    }
+
+    private void startCommentIfAny() {
+        // The code units of the marker, counted as code until the marker is complete, are not
+        for (int i = 0; i != syntax.lineCommentMarkers.length; ++i) {
+            if ((lastUnits & syntax.lineCommentMarkerMasks[i]) == syntax.lineCommentMarkers[i]) {
+                nbOfCodeUnitsInLine -= syntax.lineCommentMarkerLengths[i];
+                lineHasComment = true;
+                state = LINE_COMMENT;
+                lastUnits = 0;
+                return;
+            }
+        }
+        for (int i = 0; i != syntax.blockCommentStarts.length; ++i) {
+            if ((lastUnits & syntax.blockCommentStartMasks[i]) == syntax.blockCommentStarts[i]) {
+                nbOfCodeUnitsInLine -= syntax.blockCommentStartLengths[i];
+                lineHasComment = true;
+                state = BLOCK_COMMENT;
+                blockCommentIndex = i;
+                lastUnits = 0;
+                return;
+            }
+        }
+    }
+
+    private void endLine() {
+        if (nbOfCodeUnitsInLine > 0) {
+            ++nbOfCodeLines;
+        } else if (lineHasComment) {
+            ++nbOfCommentLines;
+        } else {
+            ++nbOfBlankLines;
+        }
+        nbOfCodeUnitsInLine = 0;
+        lineHasComment = false;
+        lastUnits = 0;
+        escaped = false;
+        if (state == LINE_COMMENT || state == STRING) {
+            state = CODE;
+        }
+    }
+
+    /**
+     * @return the metrics of the code units scanned so far, the last line being ended.
+     */
+    public LineMetrics finish() {
+        if (previousUnitIsCR) {
+            previousUnitIsCR = false;
+            ++nbOfCrTerminators;
+        }
+        endLine();
+        return new LineMetrics(nbOfBlankLines, nbOfCommentLines, nbOfCodeLines, nbOfCrLfTerminators, nbOfLfTerminators, nbOfCrTerminators);
+    }
+}
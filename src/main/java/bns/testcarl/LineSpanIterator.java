@@ -0,0 +1,339 @@
+package bns.testcarl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+
+/**
+ * Iterator over the lines of a file, for the analyzers needing their contents, which exposes
+ * each line as a span (offset and length) of the pooled buffer of chars the file is decoded
+ * into, or as a reusable {@link CharSequence} view of that span, so that iterating over the
+ * lines of millions of files allocates nothing per line, unlike BufferedReader.readLine() and
+ * CustomBufferedReader.readLine() of {@link LineCountUtils}, whose Strings led to an
+ * OutOfMemoryError after hours of counting.<p>
+ * Lines are terminated by CR+LF, LF or a bare CR, even when CR+LF is cut by a refill of the
+ * buffer (and by NL in EBCDIC, decoded as U+0085), and the lines iterated over are those
+ * counted by countLinesWithCharLookup(...): a file ending with a line terminator ends with an
+ * empty line, whereas an empty file, or consisting only of a BOM, has no lines. A line longer
+ * than the buffer is handled according to a {@link LongLinePolicy}.<p>
+ * A span, and its view, is valid until the next call to {@link LineSpanIterator#nextLine()}.
+ * The iterator must be closed, for releasing its buffers to {@link IoBufferPool}.
+ */
+public final class LineSpanIterator implements AutoCloseable {
+
+    /**
+     * What is done with a line that does not fit in the buffer of chars.
+     */
+    public enum LongLinePolicy {
+        // The line is returned as several spans, as many as needed, all of them but the last one
+        // being partial (q.v. isPartial()), so that no char is lost and the lines are still counted
+        SPLIT,
+        // Only the beginning of the line that fits in the buffer is returned, as a single span said
+        // truncated (q.v. isTruncated()), the rest of the line being skipped
+        TRUNCATE,
+        // An IOException is thrown, for the analyzers to which a long line means a binary file
+        FAIL
+    }
+
+    private final InputStream in;
+    private final IoBufferPool.Buffers buffers;
+    private final CharsetDecoder decoder;
+    private final ByteBuffer byteBuffer;   // Bytes read and not decoded yet, in read mode
+    private final CharBuffer charBuffer;
+    private final char[] chars;            // Array of charBuffer, whose capacity chars only are used
+    private final int capacity;
+    private final LongLinePolicy longLinePolicy;
+    private final boolean nelIsLineBreak;  // Whether U+0085 is a line terminator, i.e. the NL of EBCDIC
+    private final Line line = new Line();
+
+    private int nextChar;         // Index of the 1st char not returned yet
+    private int nChars;           // Number of chars decoded in chars
+    private int scannedChars;     // Index of the 1st char not scanned yet for a line terminator, >= nextChar
+    private boolean bomToSkip;
+    private boolean endOfBytes;   // Whether the stream has no more bytes
+    private boolean endOfInput;   // Whether all the bytes have been decoded, and the decoder flushed
+    private boolean skipLF;       // Whether the previous line ended with a CR, which a LF may complete
+    private boolean lineIsPending; // Whether a line, maybe empty, is known to follow the last span
+    private boolean skippingLine; // Whether the rest of a truncated line is being skipped
+
+    private int lineStart;
+    private int lineLength;
+    private boolean partial;
+    private boolean truncated;
+    private long lineNumber;      // 1-based number of the line of the last span, 0 before the 1st one
+
+    /**
+     * Iterator over the lines of the content read from {@code in}, which is closed along with this
+     * iterator, decoded from {@code encoding} in a buffer of {@code bufferSize} chars (for e.g.
+     * the fileReadBufferSize of the counting), {@code bomLength} being the length of the BOM
+     * of the content, if any, which is not part of its 1st line.
+     */
+    public LineSpanIterator(InputStream in, int bomLength, Charset encoding, int bufferSize, LongLinePolicy longLinePolicy) {
+        if (bufferSize < 2) {
+            throw new IllegalArgumentException("Buffer size < 2: " + bufferSize);
+        }
+        this.in = in;
+        this.buffers = IoBufferPool.acquire();
+        this.decoder = buffers.decoder(encoding);
+        // A few bytes more than a whole character, whatever the encoding, can always be held
+        this.byteBuffer = buffers.byteBuffer(Math.max(bufferSize, 16)).flip();
+        this.charBuffer = buffers.charBuffer(bufferSize);
+        this.chars = charBuffer.array();
+        this.capacity = bufferSize;
+        this.longLinePolicy = longLinePolicy;
+        this.nelIsLineBreak = LineBreakScanner.CodeUnitLayout.of(encoding) == LineBreakScanner.CodeUnitLayout.EBCDIC;
+        this.bomToSkip = bomLength != 0;
+    }
+
+    /**
+     * @return an iterator over the lines of {@code file} (q.v. constructor).
+     */
+    public static LineSpanIterator open(File file, int bomLength, Charset encoding, int bufferSize, LongLinePolicy longLinePolicy) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            return new LineSpanIterator(in, bomLength, encoding, bufferSize, longLinePolicy);
+        } catch (RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Moves to the next span, i.e. the next line, or the next part of a line split because it is
+     * longer than the buffer.
+     * @return whether there is such a span, or {@code false} once the end of the file is reached.
+     * @throws IOException if the file cannot be read, or if a line is longer than the buffer and
+     * the policy is {@link LongLinePolicy#FAIL}.
+     */
+    public boolean nextLine() throws IOException {
+        truncated = false;
+        while (true) {
+            if (skipLF && nextChar != nChars) {
+                // The LF completing a CR+LF, even when the CR has ended the previous buffer
+                if (chars[nextChar] == '\n') {
+                    ++nextChar;
+                    scannedChars = Math.max(scannedChars, nextChar);
+                }
+                skipLF = false;
+            }
+            int lineBreak = indexOfLineBreak(Math.max(scannedChars, nextChar));
+            if (lineBreak >= 0) {
+                skipLF = chars[lineBreak] == '\r';
+                if (skippingLine) {
+                    // End of a truncated line, which has already been returned
+                    skippingLine = false;
+                    nextChar = scannedChars = lineBreak + 1;
+                    lineIsPending = true;
+                    continue;
+                }
+                return setSpan(nextChar, lineBreak - nextChar, false, lineBreak + 1, true);
+            }
+            if (skippingLine) {
+                nextChar = nChars;
+            }
+            scannedChars = nChars;
+            if (endOfInput) {
+                if (nextChar != nChars) {
+                    // Last line, which has no line terminator
+                    return setSpan(nextChar, nChars - nextChar, false, nChars, false);
+                }
+                if (lineIsPending) {
+                    // Empty last line following a line terminator, or end of a split line
+                    return setSpan(nextChar, 0, false, nChars, false);
+                }
+                lineStart = lineLength = 0;
+                partial = truncated = false;
+                return false;
+            }
+            if (fill() == 0 && !endOfInput) {
+                // The buffer is full of a single line, or almost (with no room left for a surrogate pair)
+                switch (longLinePolicy) {
+                    case SPLIT:
+                        return setSpan(nextChar, nChars - nextChar, true, nChars, true);
+                    case TRUNCATE:
+                        skippingLine = true;
+                        truncated = true;
+                        return setSpan(nextChar, nChars - nextChar, false, nChars, false);
+                    default:
+                        throw new IOException(String.format("Line %d is longer than the buffer of %d chars", lineNumber + 1, capacity));
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the span returned by nextLine(), which starts a new line unless the previous span is
+     * partial, the next span starting at {@code next}.
+     */
+    private boolean setSpan(int start, int length, boolean isPartial, int next, boolean isLineFollowing) {
+        if (!partial) {
+            ++lineNumber;
+        }
+        lineStart = start;
+        lineLength = length;
+        partial = isPartial;
+        nextChar = next;
+        scannedChars = Math.max(scannedChars, next);
+        lineIsPending = isLineFollowing;
+        return true;
+    }
+
+    /**
+     * @return the index of the 1st line terminator of the decoded chars from {@code from}, or -1.
+     */
+    private int indexOfLineBreak(int from) {
+        for (int i = from; i < nChars; ++i) {
+            char c = chars[i];
+            // A single comparison rules out most of the chars of source code
+            if (c <= '\r' ? c == '\n' || c == '\r' : c == '\u0085' && nelIsLineBreak) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Moves the chars not returned yet to the beginning of the buffer, then decodes as many chars
+     * as possible after them, reading more bytes if needed.
+     * @return the number of chars decoded, 0 if the buffer is full or the end of the input reached.
+     */
+    private int fill() throws IOException {
+        CancellationToken.throwIfCurrentCancelled();
+        int nbOfKeptChars = nChars - nextChar;
+        System.arraycopy(chars, nextChar, chars, 0, nbOfKeptChars);
+        scannedChars -= nextChar;
+        nextChar = 0;
+        nChars = nbOfKeptChars;
+        charBuffer.clear().limit(capacity).position(nChars);
+        while (!endOfInput && charBuffer.position() == nChars) {
+            CoderResult result = decoder.decode(byteBuffer, charBuffer, endOfBytes);
+            if (result.isOverflow()) {
+                break;
+            }
+            if (endOfBytes) {
+                if (decoder.flush(charBuffer).isOverflow()) {
+                    break;
+                }
+                endOfInput = true;
+            } else {
+                // The bytes left undecoded, if any, are completed by those read now
+                byteBuffer.compact();
+                int nbReadBytes = in.read(byteBuffer.array(), byteBuffer.arrayOffset() + byteBuffer.position(), byteBuffer.remaining());
+                if (nbReadBytes > 0) {
+                    byteBuffer.position(byteBuffer.position() + nbReadBytes);
+                }
+                endOfBytes = nbReadBytes < 0;
+                byteBuffer.flip();
+            }
+        }
+        int nbOfDecodedChars = charBuffer.position() - nChars;
+        if (bomToSkip && nbOfDecodedChars != 0) {
+            // Whatever the encoding, the BOM is decoded as 1 char
+            System.arraycopy(chars, 1, chars, 0, --nbOfDecodedChars);
+            bomToSkip = false;
+        }
+        nChars += nbOfDecodedChars;
+        return nbOfDecodedChars;
+    }
+
+    /**
+     * @return the buffer holding the chars of the current span, from lineStart() to lineStart() + lineLength().
+     */
+    public char[] buffer() {
+        return chars;
+    }
+
+    /**
+     * @return the index in buffer() of the 1st char of the current span.
+     */
+    public int lineStart() {
+        return lineStart;
+    }
+
+    /**
+     * @return the number of chars of the current span, its line terminator excluded.
+     */
+    public int lineLength() {
+        return lineLength;
+    }
+
+    /**
+     * @return the reusable view of the current span, whose chars change with the next call to
+     * nextLine(), so that it must be copied by toString() (which allocates) to be kept.
+     */
+    public CharSequence line() {
+        return line;
+    }
+
+    /**
+     * @return the 1-based number of the line the current span belongs to.
+     */
+    public long lineNumber() {
+        return lineNumber;
+    }
+
+    /**
+     * @return whether the current span is a part of a line longer than the buffer, which goes on in
+     * the next span (q.v. {@link LongLinePolicy#SPLIT}).
+     */
+    public boolean isPartial() {
+        return partial;
+    }
+
+    /**
+     * @return whether the current span is the beginning of a line filling the buffer, whose rest has
+     * been skipped (q.v. {@link LongLinePolicy#TRUNCATE}), that rest being empty if the line happens
+     * to be exactly as long as the buffer.
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * Closes the stream of the file, and releases the buffers to the pool.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            in.close();
+        } finally {
+            buffers.close();
+        }
+    }
+
+    /**
+     * View of the current span, allocated once per iterator.
+     */
+    private final class Line implements CharSequence {
+
+        @Override
+        public int length() {
+            return lineLength;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= lineLength) {
+                throw new IndexOutOfBoundsException("Index " + index + " out of line length " + lineLength);
+            }
+            return chars[lineStart + index];
+        }
+
+        // The only method allocating, as the subsequence must outlive the span
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return toString().substring(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return new String(chars, lineStart, lineLength);
+        }
+    }
+}
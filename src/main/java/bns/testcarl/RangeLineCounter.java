@@ -0,0 +1,169 @@
+package bns.testcarl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Intra-file parallelism of {@link LineCountUtils}, for files bigger than its intraFileParallelismThreshold:
+ * the file is split into ranges of bytes whose boundaries are aligned on the code units of its encoding,
+ * then the line breaks of these ranges are counted in parallel, a CR/LF sequence that straddles the
+ * boundary of two ranges being counted once.
+ */
+final class RangeLineCounter {
+
+    private RangeLineCounter() {
+    }
+
+    // Threads counting the ranges of countLines(...) along with the threads calling it, instead of the
+    // ForkJoin common pool shared with the other parallel tasks of the JVM: counting a range submits no
+    // task, so the threads calling it, for e.g. those of countingExecutor, can wait for these threads
+    // whatever the number of files counted at once.
+    private static final ExecutorService RANGE_COUNTING_EXECUTOR = Executors.newFixedThreadPool(LineCountUtils.AVAILABLE_NUMBER_OF_CORES, LineCountUtils.newDaemonThreadFactory("range-counting-"));
+
+    /**
+     * @return the exact count of lines of {@code file}, as done by
+     * {@link LineCountUtils#countLinesWithParallelRangeLookup(File, int, int, Charset, long)}.
+     */
+    static long countLines(File file, int fileReadBufferSize, int bomLength, Charset fileEncoding, long rangeSize) throws IOException {
+        // A file whose length is 0 or consisting only of a BOM is said to contain no lines
+        long fileLength = file.length();
+        if (fileLength <= bomLength) {
+            return 0;
+        }
+        LineBreakScanner.CodeUnitLayout layout = LineBreakScanner.CodeUnitLayout.of(fileEncoding);
+        if (layout == null) {
+            return LineCountUtils.countLinesWithCharLookup(file, fileReadBufferSize, bomLength, fileEncoding);
+        }
+        int codeUnitWidth = layout.getWidth();
+
+        // Ranges start after the BOM, whose length is a multiple of the code unit width
+        long alignedRangeSize = Math.max(codeUnitWidth, rangeSize - rangeSize % codeUnitWidth);
+        int nbOfRanges = (int) ((fileLength - bomLength + alignedRangeSize - 1) / alignedRangeSize);
+        // The ranges being counted by other threads, they are given the token of the current one
+        CancellationToken token = CancellationToken.current();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            // Positional reads are thread-safe, so all ranges share the same channel. As done for the
+            // files by LineCountScan#countLinesUsingDedicatedExecutor(...), each task counts the next range not yet
+            // counted until there is none left, the current thread being one of these tasks.
+            RangeLineBreaks[] ranges = new RangeLineBreaks[nbOfRanges];
+            AtomicInteger nextRange = new AtomicInteger();
+            Runnable rangeCounting = () -> {
+                for (int r = nextRange.getAndIncrement(); r < nbOfRanges; r = nextRange.getAndIncrement()) {
+                    long start = bomLength + r * alignedRangeSize;
+                    long end = Math.min(fileLength, start + alignedRangeSize);
+                    try {
+                        ranges[r] = countLineBreaksInByteRange(channel, start, end, fileReadBufferSize, layout, token);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            };
+            List<Future<?>> helpers = new ArrayList<>();
+            try {
+                for (int t = 1; t < Math.min(nbOfRanges, LineCountUtils.AVAILABLE_NUMBER_OF_CORES); ++t) {
+                    helpers.add(RANGE_COUNTING_EXECUTOR.submit(rangeCounting));
+                }
+                rangeCounting.run();
+                for (Future<?> helper : helpers) {
+                    helper.get();
+                }
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof UncheckedIOException uncheckedIOException) {
+                    throw uncheckedIOException.getCause();
+                } else if (e.getCause() instanceof RuntimeException runtimeException) {
+                    throw runtimeException; // for e.g. the CancellationException of the token
+                }
+                throw new IllegalStateException("Range counting thread failed", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Range counting interrupted");
+            } finally {
+                // Once a range has failed, the ranges not started yet are left out
+                nextRange.set(nbOfRanges);
+            }
+
+            long linesCount = 1;
+            for (int r = 0; r != ranges.length; ++r) {
+                linesCount += ranges[r].nbOfLineBreaks;
+                if (r != 0 && ranges[r - 1].endsWithCR && ranges[r].startsWithLF) {
+                    // CR/LF straddling the boundary: the LF has been counted for range #r
+                    --linesCount;
+                }
+            }
+            return linesCount;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Line breaks counted in a range of a file as if the range was preceded by no
+     * CR, plus what is needed for reconciling a CR/LF sequence that would straddle
+     * the boundary between this range and the next one.
+     */
+    private static final class RangeLineBreaks {
+        private final long nbOfLineBreaks;
+        private final boolean startsWithLF;
+        private final boolean endsWithCR;
+
+        private RangeLineBreaks(long nbOfLineBreaks, boolean startsWithLF, boolean endsWithCR) {
+            this.nbOfLineBreaks = nbOfLineBreaks;
+            this.startsWithLF = startsWithLF;
+            this.endsWithCR = endsWithCR;
+        }
+    }
+
+    /**
+     * @return the line breaks found in the bytes of the file from {@code start}
+     * (inclusive) to {@code end} (exclusive), for encodings where CR/LF can be
+     * found unambiguously when searched as "byte", {@code start} being on the
+     * boundary of the code units of {@code layout}, unless {@code token} (if not null)
+     * is cancelled.
+     */
+    private static RangeLineBreaks countLineBreaksInByteRange(FileChannel channel, long start, long end, int fileReadBufferSize, LineBreakScanner.CodeUnitLayout layout, CancellationToken token) throws IOException {
+        try (IoBufferPool.Buffers buffers = IoBufferPool.acquire()) {
+            int width = layout.getWidth();
+            // The buffer holds whole code units, so a range ending with an incomplete
+            // code unit (at the end of the file) ends with a read that is ignored.
+            int bufferLength = (int) Math.min(end - start, fileReadBufferSize);
+            bufferLength = Math.max(width, bufferLength - bufferLength % width);
+            ByteBuffer byteBuffer = buffers.byteBuffer(bufferLength);
+            byte[] buffer = byteBuffer.array();
+            long nbOfLineBreaks = 0;
+            boolean startsWithLF = false;
+            boolean previousBufferEndedWithCR = false;
+            for (long position = start; position < end; ) {
+                if (token != null) {
+                    token.throwIfCancelled();
+                }
+                byteBuffer.clear().limit((int) Math.min(bufferLength, end - position));
+                int nbReadBytes = channel.read(byteBuffer, position);
+                // A partial read cutting a code unit is completed by the next read
+                int nbOfWholeUnitBytes = nbReadBytes - Math.max(0, nbReadBytes) % width;
+                if (nbOfWholeUnitBytes <= 0) {
+                    break; // the file has been truncated since its length was got, or ends with an incomplete code unit
+                }
+                if (position == start) {
+                    startsWithLF = layout.isLineFeed(layout.codeUnitAt(buffer, 0));
+                }
+                nbOfLineBreaks += LineBreakScanner.countLineBreaks(layout, buffer, 0, nbOfWholeUnitBytes, previousBufferEndedWithCR);
+                previousBufferEndedWithCR = layout.codeUnitAt(buffer, nbOfWholeUnitBytes - width) == '\r';
+                position += nbOfWholeUnitBytes;
+            }
+            return new RangeLineBreaks(nbOfLineBreaks, startsWithLF, previousBufferEndedWithCR);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package bns.testcarl;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Parallel walk of the tree of directories of {@link LineCountUtils#scanCodeLines(Path, Long)}, one task
+ * listing each directory, whose regular files are queued along with the length and the last modification
+ * time got while listing them, so that the counting threads of {@link LineCountScan} neither check their
+ * existence nor get their metadata once more.
+ */
+@Slf4j
+final class TreeWalk {
+
+    // Queued once per counting thread after the last file found by the walk
+    static final LineCountUtils.SizedFile END_OF_WALK = new LineCountUtils.SizedFile(null, -1L);
+
+    private final LineCountScan scan;
+    private final int nbOfCountingThreads;
+    private final IgnoreRules ignoreRules;      // null or rules of the files and subtrees left out of the walk
+    private final boolean readGitignoreFiles;   // Whether the .gitignore files found leave out files as well
+    final ExecutorService walkingExecutor;
+    final BlockingQueue<LineCountUtils.SizedFile> walkedFiles;
+
+    // Directories found but not listed yet: the walk is done when it drops to 0
+    private final AtomicInteger nbOfDirectoriesToList = new AtomicInteger(1);
+
+    /**
+     * Initializes the walk of the tree whose files are counted by {@code scan} using {@code nbOfCountingThreads}
+     * threads, the directories being listed by {@code walkingThreadCount} threads, and the files found being
+     * queued until counted, {@code walkedFileQueueCapacity} files at most.
+     */
+    TreeWalk(LineCountScan scan, int nbOfCountingThreads, int walkingThreadCount, int walkedFileQueueCapacity, IgnoreRules ignoreRules, boolean readGitignoreFiles) {
+        this.scan = scan;
+        this.nbOfCountingThreads = nbOfCountingThreads;
+        this.ignoreRules = ignoreRules;
+        this.readGitignoreFiles = readGitignoreFiles;
+        walkingExecutor = Executors.newFixedThreadPool(Math.max(1, walkingThreadCount), LineCountUtils.newDaemonThreadFactory("directory-walking-"));
+        walkedFiles = new ArrayBlockingQueue<>(Math.max(1, walkedFileQueueCapacity));
+    }
+
+    void start(Path root, BasicFileAttributes rootAttributes) throws InterruptedException {
+        if (rootAttributes.isDirectory()) {
+            walkingExecutor.execute(() -> listDirectory(root, "", ignoreRules));
+        } else {
+            if (rootAttributes.isRegularFile()) {
+                queueFile(root, rootAttributes);
+            }
+            endWalk();
+        }
+    }
+
+    /**
+     * Lists {@code directory}, whose path relative to the walked root is {@code relativeDirectory},
+     * {@code rules} being null or the ignore rules of its parent directories.
+     */
+    private void listDirectory(Path directory, String relativeDirectory, IgnoreRules rules) {
+        if (readGitignoreFiles) {
+            rules = (rules != null ? rules : IgnoreRules.of()).withGitignoreFileOf(directory, relativeDirectory);
+        }
+        IgnoreRules directoryRules = rules;
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                if (scan.isCountingStopped()) {
+                    break;
+                }
+                // On Windows, the attributes read while listing the directory are reused
+                // instead of being read once more, which saves a round-trip per file on shares.
+                BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                } catch (IOException e) {
+                    log.warn(String.format("Unable to get the attributes of \"%s\": its lines are not counted.", entry), e);
+                    continue;
+                }
+                String relativePath = relativeDirectory.isEmpty() ? entry.getFileName().toString() : relativeDirectory + '/' + entry.getFileName();
+                if (directoryRules != null && (attributes.isDirectory() || attributes.isRegularFile())
+                        && directoryRules.isIgnored(relativePath, attributes.isDirectory())) {
+                    // The whole subtree of a directory is left out without being listed
+                    scan.nbOfIgnoredPaths.incrementAndGet();
+                } else if (attributes.isDirectory()) {
+                    nbOfDirectoriesToList.incrementAndGet();
+                    walkingExecutor.execute(() -> listDirectory(entry, relativePath, directoryRules));
+                } else if (attributes.isRegularFile()) {
+                    queueFile(entry, attributes);
+                }
+            }
+        } catch (IOException | UncheckedIOException e) {
+            log.warn(String.format("Unable to list directory \"%s\": its files are not counted.", directory), e);
+        } catch (InterruptedException e) {
+            // The counting has been interrupted or has failed, and so the walk is cancelled,
+            // the counting threads still waiting for files being told that it is over
+            Thread.currentThread().interrupt();
+            cancelWalk();
+        } catch (RuntimeException e) {
+            log.warn(String.format("Walk of directory \"%s\" failed: its remaining files are not counted.", directory), e);
+        } finally {
+            // Whatever happened, the directory is done, so that the walk ends and the
+            // counting threads do not wait for files forever
+            if (nbOfDirectoriesToList.decrementAndGet() == 0) {
+                try {
+                    endWalk();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    cancelWalk();
+                }
+            }
+        }
+    }
+
+    private void queueFile(Path file, BasicFileAttributes attributes) throws InterruptedException {
+        scan.nbOfFilesToProcess.incrementAndGet();
+        scan.nbOfBytesToProcess.addAndGet(attributes.size());
+        walkedFiles.put(new LineCountUtils.SizedFile(file.toFile(), attributes.size(), attributes.lastModifiedTime().toMillis()));
+    }
+
+    private void endWalk() throws InterruptedException {
+        scan.walkInProgress = false;
+        for (int t = 0; t != nbOfCountingThreads; ++t) {
+            walkedFiles.put(END_OF_WALK);
+        }
+    }
+
+    /**
+     * Ends the walk without blocking, for a thread that has been interrupted: the files queued
+     * and not counted yet are dropped, so that there is room for the end of the walk, and the
+     * count is flagged as partial.
+     */
+    private void cancelWalk() {
+        scan.walkInProgress = false;
+        scan.countingStopped = true;
+        walkedFiles.clear();
+        for (int t = 0; t != nbOfCountingThreads; ++t) {
+            walkedFiles.offer(END_OF_WALK);
+        }
+    }
+}
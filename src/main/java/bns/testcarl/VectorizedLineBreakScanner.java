@@ -0,0 +1,70 @@
+package bns.testcarl;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Implementation of {@link LineBreakScanner#countLineBreaks(byte[], int, int, boolean)}
+ * using the JDK Vector API. This class is isolated from {@link LineBreakScanner} so that
+ * it is loaded only when the module {@code jdk.incubator.vector} is available.
+ */
+final class VectorizedLineBreakScanner {
+
+    // The widest vector shape supported by the CPU
+    private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED;
+
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+
+    private VectorizedLineBreakScanner() {
+    }
+
+    static long countLineBreaks(byte[] bytes, int from, int to, boolean previousByteIsCR) {
+        if (from == to) {
+            return 0;
+        }
+        // The 1st byte is processed apart so that each vector can be compared with the vector
+        // starting one byte before it, whose lanes are the bytes preceding those of the former.
+        byte firstByte = bytes[from];
+        long count = firstByte == '\r' || (firstByte == '\n' && !previousByteIsCR) ? 1 : 0;
+        int nbOfLanes = SPECIES.length();
+        int i = from + 1;
+        for (int upperBound = i + SPECIES.loopBound(to - i); i != upperBound; i += nbOfLanes) {
+            ByteVector vector = ByteVector.fromArray(SPECIES, bytes, i);
+            VectorMask<Byte> crFlags = vector.eq(CR);
+            VectorMask<Byte> lfFlags = vector.eq(LF);
+            // Only masks and their true counts are used, which are intrinsics since JDK 16,
+            // contrary to VectorMask.toLong() (JDK 19), which would box the masks otherwise.
+            if (crFlags.or(lfFlags).anyTrue()) {
+                VectorMask<Byte> lfFollowingCrFlags = ByteVector.fromArray(SPECIES, bytes, i - 1).eq(CR).and(lfFlags);
+                count += crFlags.trueCount() + lfFlags.trueCount() - lfFollowingCrFlags.trueCount();
+            }
+        }
+        return count + LineBreakScanner.countLineBreaksSwar(bytes, i, to, bytes[i - 1] == '\r');
+    }
+
+    static long countLineBreaks(ByteBuffer buffer, int from, int to, boolean previousByteIsCR) {
+        if (from == to) {
+            return 0;
+        }
+        byte firstByte = buffer.get(from);
+        long count = firstByte == '\r' || (firstByte == '\n' && !previousByteIsCR) ? 1 : 0;
+        int nbOfLanes = SPECIES.length();
+        int i = from + 1;
+        for (int upperBound = i + SPECIES.loopBound(to - i); i != upperBound; i += nbOfLanes) {
+            // The byte order is meaningless for vectors of bytes
+            ByteVector vector = ByteVector.fromByteBuffer(SPECIES, buffer, i, ByteOrder.nativeOrder());
+            VectorMask<Byte> crFlags = vector.eq(CR);
+            VectorMask<Byte> lfFlags = vector.eq(LF);
+            if (crFlags.or(lfFlags).anyTrue()) {
+                VectorMask<Byte> lfFollowingCrFlags = ByteVector.fromByteBuffer(SPECIES, buffer, i - 1, ByteOrder.nativeOrder()).eq(CR).and(lfFlags);
+                count += crFlags.trueCount() + lfFlags.trueCount() - lfFollowingCrFlags.trueCount();
+            }
+        }
+        return count + LineBreakScanner.countLineBreaksSwar(buffer, i, to, buffer.get(i - 1) == '\r');
+    }
+}
@@ -1,4 +1,5 @@
 package bns.testcarl.jsonExtractors;
+import bns.testcarl.LineCountUtils;
 import bns.testcarl.command.Constants;
 import ch.qos.logback.core.net.ObjectWriter;
 import org.json.simple.JSONArray;
@@ -6,10 +7,12 @@ import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 import picocli.CommandLine.*;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.file.Path;
 import java.util.*;
 
 import static java.lang.Object.*;
@@ -25,6 +28,15 @@ public class SoftwareComposition implements Runnable
     @Override
     public void run(){}
     public static void extractor(String detectorOutputFile)
+    {
+        extractor(detectorOutputFile, Constants.inputDIR);
+    }
+
+    /**
+     * Same as above, the paths of the files listed by the detector being relative to
+     * {@code sourceDir} (unless absolute) for counting the lines of each language.
+     */
+    public static void extractor(String detectorOutputFile, String sourceDir)
     {
         //System.out.println("\nExtracting the frameworks for determinator service...\n ");
         Object obj;
@@ -89,6 +101,49 @@ public class SoftwareComposition implements Runnable
             Id_Path.put((Long) IdPathObj.get("id"), (String) IdPathObj.get("path"));
         }
 
+        //Line counts
+
+        // The files of all the languages are counted in a single parallel pass, each file
+        // being read once for both its encoding and its lines
+        HashMap<String, List<File>> filesPerLanguage = new HashMap<>();
+        for (Map.Entry<String, ArrayList<Integer>> pair : hm1.entrySet())
+        {
+            List<File> files = new ArrayList<>();
+            for (Object id : (List<?>) pair.getValue())
+            {
+                String path = Id_Path.get(((Number) id).longValue());
+                if (path != null)
+                {
+                    files.add(Path.of(sourceDir).resolve(path).toFile());
+                }
+            }
+            filesPerLanguage.put(pair.getKey(), files);
+        }
+
+        Map<String, LineCountUtils.LanguageLineCount> languageLineCounts;
+        try {
+            // no threshold for stopping counting LoC after a certain number of
+            // lines has been reached as we need the complete counts per techno.
+            // The comment rules of each file are chosen by its extension, its blank,
+            // comment and code lines being classified in the pass counting its lines.
+            LineCountUtils lineCountUtils = new LineCountUtils();
+            lineCountUtils.setCountLineMetrics(true);
+            languageLineCounts = lineCountUtils.countCodeLinesPerLanguage(filesPerLanguage, null).getLanguageLineCounts();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        HashMap<String,Long> lineCountMap=new HashMap<>();
+        HashMap<String,Long> byteCountMap=new HashMap<>();
+        HashMap<String,Long> codeLineCountMap=new HashMap<>();
+        HashMap<String,Long> commentLineCountMap=new HashMap<>();
+        languageLineCounts.forEach((language, count) -> {
+            lineCountMap.put(language, count.getNbOfLines());
+            byteCountMap.put(language, count.getNbOfBytes());
+            codeLineCountMap.put(language, count.getNbOfCodeLines());
+            commentLineCountMap.put(language, count.getNbOfCommentLines());
+        });
+
 
         JSONObject jo2=new JSONObject(map);
         outputJSON2.put("Languages with File Count", jo2);
@@ -99,6 +154,14 @@ public class SoftwareComposition implements Runnable
         JSONObject jo4=new JSONObject(Id_Path);
         outputJSON4.put("File id with path",jo4);
 
+        // JSONObject being a raw HashMap, the counts are put through a typed view of it
+        @SuppressWarnings("unchecked")
+        Map<String, Object> lineCountsOutput = outputJSON2;
+        lineCountsOutput.put("Languages with Line Count", new JSONObject(lineCountMap));
+        lineCountsOutput.put("Languages with Byte Count", new JSONObject(byteCountMap));
+        lineCountsOutput.put("Languages with Code Line Count", new JSONObject(codeLineCountMap));
+        lineCountsOutput.put("Languages with Comment Line Count", new JSONObject(commentLineCountMap));
+
 
         outputJSON2.putAll(outputJSON3);
         outputJSON2.putAll(outputJSON4);
@@ -0,0 +1,166 @@
+package bns.testcarl;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ArchiveReaderTests {
+
+	@TempDir
+	Path tempDir;
+
+	/**
+	 * Writes the header and the padded content of a tar entry, the checksum being left out.
+	 */
+	static void writeTarEntry(OutputStream out, String name, char type, byte[] content) throws IOException {
+		writeTarEntry(out, "", name, type, content);
+	}
+
+	/**
+	 * Same as above, the directories of the path being written in the prefix of the ustar header.
+	 */
+	static void writeTarEntry(OutputStream out, String prefix, String name, char type, byte[] content) throws IOException {
+		byte[] header = new byte[512];
+		byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+		System.arraycopy(nameBytes, 0, header, 0, nameBytes.length);
+		byte[] size = String.format("%011o", content.length).getBytes(StandardCharsets.US_ASCII);
+		System.arraycopy(size, 0, header, 124, size.length);
+		header[156] = (byte) type;
+		System.arraycopy("ustar\0".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 6);
+		byte[] prefixBytes = prefix.getBytes(StandardCharsets.UTF_8);
+		System.arraycopy(prefixBytes, 0, header, 345, prefixBytes.length);
+		out.write(header);
+		out.write(content);
+		out.write(new byte[(512 - content.length % 512) % 512]);
+	}
+
+	static Map<String, byte[]> readEntries(File archive, boolean parallel) throws IOException {
+		Map<String, byte[]> entries = new ConcurrentHashMap<>();
+		ArchiveReader.forEachEntry(archive, ArchiveReader.formatOf(archive), parallel, (entryName, size, content) -> {
+			try (InputStream in = content.openStream()) {
+				byte[] bytes = in.readAllBytes();
+				assertEquals(size, bytes.length, entryName);
+				entries.put(entryName, bytes);
+			} catch (IOException e) {
+				throw new AssertionError(e);
+			}
+			return true;
+		});
+		return entries;
+	}
+
+	static void assertSameEntries(Map<String, byte[]> expected, Map<String, byte[]> entries) {
+		assertEquals(expected.keySet(), entries.keySet());
+		expected.forEach((entryName, content) -> assertArrayEquals(content, entries.get(entryName), entryName));
+	}
+
+	@Test
+	void formatIsTheOneOfTheExtension() {
+		assertEquals(ArchiveReader.Format.ZIP, ArchiveReader.formatOf(new File("a/lib.JAR")));
+		assertEquals(ArchiveReader.Format.ZIP, ArchiveReader.formatOf(new File("a.war")));
+		assertEquals(ArchiveReader.Format.TAR_GZ, ArchiveReader.formatOf(new File("a.tgz")));
+		assertEquals(ArchiveReader.Format.TAR_GZ, ArchiveReader.formatOf(new File("a.tar.gz")));
+		assertEquals(ArchiveReader.Format.TAR, ArchiveReader.formatOf(new File("a.tar")));
+		assertNull(ArchiveReader.formatOf(new File("a.gz")));
+		assertEquals(new File("a/b.zip!/c/d.txt"), ArchiveReader.entryFile(new File("a/b.zip"), "c/d.txt"));
+	}
+
+	@Test
+	void regularEntriesOfZipArchivesAreStreamed() throws IOException {
+		Map<String, byte[]> expected = new LinkedHashMap<>();
+		for (int n = 0; n != 20; ++n) {
+			expected.put("src/entry" + n + ".txt", ("line\n".repeat(n * 100)).getBytes(StandardCharsets.US_ASCII));
+		}
+		Path zip = tempDir.resolve("sources.zip");
+		try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(zip))) {
+			out.putNextEntry(new ZipEntry("src/"));
+			for (Map.Entry<String, byte[]> entry : expected.entrySet()) {
+				out.putNextEntry(new ZipEntry(entry.getKey()));
+				out.write(entry.getValue());
+			}
+		}
+		assertSameEntries(expected, readEntries(zip.toFile(), false));
+		assertSameEntries(expected, readEntries(zip.toFile(), true));
+	}
+
+	@Test
+	void regularEntriesOfTarArchivesAreStreamedWithTheirLongNames() throws IOException {
+		String longName = "long/" + "name".repeat(40) + ".txt";
+		String paxName = "pax/" + "é".repeat(60) + ".txt";
+		Map<String, byte[]> expected = new LinkedHashMap<>();
+		expected.put("a.txt", "a\nb\n".getBytes(StandardCharsets.US_ASCII));
+		expected.put(longName, "long\n".getBytes(StandardCharsets.US_ASCII));
+		expected.put(paxName, "pax\n".getBytes(StandardCharsets.US_ASCII));
+		expected.put("prefix/of/ustar/b.txt", new byte[1000]);
+		expected.put("empty.txt", new byte[0]);
+
+		Path tarGz = tempDir.resolve("sources.tar.gz");
+		try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(tarGz))) {
+			writeTarEntry(out, "dir/", '5', new byte[0]);
+			writeTarEntry(out, "a.txt", '0', expected.get("a.txt"));
+			writeTarEntry(out, "link.txt", '2', new byte[0]);
+			writeTarEntry(out, "././@LongLink", 'L', (longName + "\0").getBytes(StandardCharsets.UTF_8));
+			writeTarEntry(out, longName.substring(0, 100), '0', expected.get(longName));
+			String paxRecord = "path=" + paxName + "\n";
+			int paxRecordLength = paxRecord.getBytes(StandardCharsets.UTF_8).length + 4;
+			writeTarEntry(out, "PaxHeaders/x", 'x', (paxRecordLength + " " + paxRecord).getBytes(StandardCharsets.UTF_8));
+			writeTarEntry(out, "truncated-pax-name", '0', expected.get(paxName));
+			writeTarEntry(out, "prefix/of/ustar", "b.txt", '0', expected.get("prefix/of/ustar/b.txt"));
+			writeTarEntry(out, "empty.txt", '0', expected.get("empty.txt"));
+			out.write(new byte[1024]);
+		}
+		assertSameEntries(expected, readEntries(tarGz.toFile(), false));
+	}
+
+	@Test
+	void entriesLeftUnreadAreSkippedUntilTheConsumerWantsNoMore() throws IOException {
+		Path tar = tempDir.resolve("sources.tar");
+		try (OutputStream out = Files.newOutputStream(tar)) {
+			for (int n = 0; n != 5; ++n) {
+				writeTarEntry(out, "entry" + n + ".txt", '0', ("line\n".repeat(300 + n)).getBytes(StandardCharsets.US_ASCII));
+			}
+			out.write(new byte[1024]);
+		}
+		List<String> entryNames = new ArrayList<>();
+		ArchiveReader.forEachEntry(tar.toFile(), ArchiveReader.Format.TAR, false, (entryName, size, content) -> {
+			try (InputStream in = content.openStream()) {
+				// A few bytes only of each entry
+				assertArrayEquals("line\n".getBytes(StandardCharsets.US_ASCII), in.readNBytes(5));
+			} catch (IOException e) {
+				throw new AssertionError(e);
+			}
+			entryNames.add(entryName);
+			return entryNames.size() != 3;
+		});
+		assertEquals(List.of("entry0.txt", "entry1.txt", "entry2.txt"), entryNames);
+	}
+
+	@Test
+	void invalidTarHeaderIsReported() throws IOException {
+		Path tar = tempDir.resolve("invalid.tar");
+		byte[] header = new byte[512];
+		System.arraycopy("not a tar".getBytes(StandardCharsets.US_ASCII), 0, header, 124, 9);
+		Files.write(tar, header);
+		assertThrows(IOException.class, () -> readEntries(tar.toFile(), false));
+	}
+}
@@ -0,0 +1,108 @@
+package bns.testcarl;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CancellationTokenTests {
+
+	@Test
+	void cancellingAParentCancelsItsChildrenButNotTheOtherWayRound() {
+		CancellationToken parent = new CancellationToken();
+		CancellationToken child = parent.newChild();
+		CancellationToken grandChild = child.newChild();
+		assertFalse(grandChild.isCancelled());
+		assertDoesNotThrow(grandChild::throwIfCancelled);
+
+		// A run stopping at its threshold cancels its own token, not the one of the caller
+		child.cancel();
+		assertTrue(child.isCancelled());
+		assertTrue(grandChild.isCancelled());
+		assertFalse(parent.isCancelled());
+		assertFalse(child.isDeadlineExceeded());
+		assertThrows(CancellationException.class, grandChild::throwIfCancelled);
+
+		CancellationToken otherChild = parent.newChild();
+		parent.cancel();
+		assertTrue(otherChild.isCancelled());
+		assertFalse(otherChild.isDeadlineExceeded());
+	}
+
+	@Test
+	void deadlinePassesOnceTheTimeoutHasElapsed() throws InterruptedException {
+		CancellationToken expired = CancellationToken.withTimeout(0);
+		assertTrue(expired.isCancelled());
+		assertTrue(expired.isDeadlineExceeded());
+		assertTrue(expired.newChild().isDeadlineExceeded());
+
+		CancellationToken distant = CancellationToken.withTimeout(3_600_000);
+		assertFalse(distant.isCancelled());
+		assertFalse(distant.newChild().isDeadlineExceeded());
+		// Cancelled before its deadline, which has not passed
+		distant.cancel();
+		assertTrue(distant.isCancelled());
+		assertFalse(distant.isDeadlineExceeded());
+
+		CancellationToken close = CancellationToken.withTimeout(50);
+		CancellationToken child = close.newChild();
+		Thread.sleep(100);
+		assertTrue(child.isCancelled());
+		assertTrue(child.isDeadlineExceeded());
+	}
+
+	@Test
+	void currentTokenIsBoundToTheCurrentThreadOnly() throws Exception {
+		CancellationToken token = new CancellationToken();
+		token.cancel();
+		assertDoesNotThrow(CancellationToken::throwIfCurrentCancelled);
+		CancellationToken previousToken = CancellationToken.setCurrent(token);
+		try {
+			assertNull(previousToken);
+			assertSame(token, CancellationToken.current());
+			assertThrows(CancellationException.class, CancellationToken::throwIfCurrentCancelled);
+			assertNull(CompletableFuture.supplyAsync(CancellationToken::current).get());
+		} finally {
+			assertSame(token, CancellationToken.setCurrent(previousToken));
+		}
+		assertNull(CancellationToken.current());
+	}
+
+	@Test
+	void readingStopsAtTheBufferFollowingTheCancellation() {
+		CancellationToken token = new CancellationToken();
+		byte[] content = "line\n".repeat(100).getBytes(StandardCharsets.UTF_8);
+		AtomicInteger nbOfReads = new AtomicInteger();
+		// The token is cancelled by another thread while the 3rd buffer is being read
+		InputStream inputStream = new ByteArrayInputStream(content) {
+			@Override
+			public synchronized int read(byte[] b, int off, int len) {
+				if (nbOfReads.incrementAndGet() == 3) {
+					CompletableFuture.runAsync(token::cancel).join();
+				}
+				return super.read(b, off, len);
+			}
+		};
+		CancellationToken previousToken = CancellationToken.setCurrent(token);
+		try {
+			assertThrows(CancellationException.class, () -> LineCountUtils.countLinesInCodeUnits(
+					inputStream, new byte[16], 16, 0, 0, LineBreakScanner.CodeUnitLayout.SINGLE_BYTE));
+		} finally {
+			CancellationToken.setCurrent(previousToken);
+		}
+		// The 3rd buffer is counted, but the 4th one is not read
+		assertEquals(3, nbOfReads.get());
+	}
+}
@@ -0,0 +1,113 @@
+package bns.testcarl;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ColumnarLineCountReaderTests {
+
+	@TempDir
+	Path tempDir;
+
+	private static final Charset[] ENCODINGS = {StandardCharsets.UTF_8, StandardCharsets.UTF_16BE, null, StandardCharsets.ISO_8859_1};
+
+	// Records of 150 files in 3 blocks of 64 records at most, every 7th file having failed
+	Path writeRecords(List<Object[]> records) throws IOException {
+		Random random = new Random(79);
+		Path columnarFile = tempDir.resolve("line-counts.lcr");
+		try (ColumnarLineCountWriter writer = new ColumnarLineCountWriter(columnarFile, 64)) {
+			for (int n = 0; n != 150; ++n) {
+				Charset encoding = ENCODINGS[n % ENCODINGS.length];
+				Object[] record = {
+						// Paths sharing prefixes of various lengths with the previous one, and a long one
+						new File("/src/d" + n / 10 + "/" + (n == 100 ? "x".repeat(300) : "f" + n) + ".txt"),
+						(long) random.nextInt(100_000),
+						encoding,
+						encoding == StandardCharsets.UTF_16BE,
+						encoding == null ? 0f : random.nextFloat(),
+						encoding == StandardCharsets.UTF_16BE ? 2 : 0,
+						n % 7 == 0 ? -1L : (long) random.nextInt(1000),
+						(long) random.nextInt(1_000_000)
+				};
+				records.add(record);
+				writer.onFileCounted((File) record[0], (long) record[1], (Charset) record[2], (boolean) record[3], (float) record[4],
+						(int) record[5], (long) record[6], (long) record[7]);
+			}
+		}
+		return columnarFile;
+	}
+
+	@Test
+	void recordsAreReadBackInTheOrderTheyHaveBeenWritten() throws IOException {
+		List<Object[]> records = new ArrayList<>();
+		Path columnarFile = writeRecords(records);
+
+		List<Object[]> readRecords = new ArrayList<>();
+		try (ColumnarLineCountReader reader = ColumnarLineCountReader.open(columnarFile)) {
+			assertEquals(records.size(), reader.getNbOfRecords());
+			reader.forEach((file, fileLength, encoding, isEncodingCertain, encodingConfidence, bomLength, lineCount, durationNanos) ->
+					readRecords.add(new Object[] {file, fileLength, encoding, isEncodingCertain, encodingConfidence, bomLength, lineCount, durationNanos}));
+		}
+		assertEquals(records.size(), readRecords.size());
+		for (int n = 0; n != records.size(); ++n) {
+			for (int c = 0; c != records.get(n).length; ++c) {
+				assertEquals(records.get(n)[c], readRecords.get(n)[c], "record " + n + ", column " + c);
+			}
+		}
+	}
+
+	@Test
+	void summaryAddsUpTheRecords() throws IOException {
+		List<Object[]> records = new ArrayList<>();
+		Path columnarFile = writeRecords(records);
+
+		long nbOfFailedFiles = 0, lineCount = 0, nbOfBytes = 0, durationNanos = 0;
+		for (Object[] record : records) {
+			durationNanos += (long) record[7];
+			if ((long) record[6] < 0) {
+				++nbOfFailedFiles;
+			} else {
+				lineCount += (long) record[6];
+				nbOfBytes += (long) record[1];
+			}
+		}
+		try (ColumnarLineCountReader reader = ColumnarLineCountReader.open(columnarFile)) {
+			ColumnarLineCountReader.Summary summary = reader.summarize();
+			assertEquals(records.size(), summary.getNbOfFiles());
+			assertEquals(nbOfFailedFiles, summary.getNbOfFailedFiles());
+			assertEquals(lineCount, summary.getLineCount());
+			assertEquals(nbOfBytes, summary.getNbOfBytes());
+			assertEquals(durationNanos, summary.getDurationNanos());
+			long nbOfCountedFiles = 0;
+			for (Map.Entry<String, Long> entry : summary.getNbOfFilesPerEncoding().entrySet()) {
+				nbOfCountedFiles += entry.getValue();
+			}
+			assertEquals(records.size() - nbOfFailedFiles, nbOfCountedFiles);
+			assertEquals(ENCODINGS.length, summary.getLineCountPerEncoding().size());
+			assertEquals(lineCount, summary.getLineCountPerEncoding().values().stream().mapToLong(Long::longValue).sum());
+		}
+	}
+
+	@Test
+	void truncatedFileIsRejected() throws IOException {
+		Path columnarFile = writeRecords(new ArrayList<>());
+		try (FileChannel channel = FileChannel.open(columnarFile, StandardOpenOption.WRITE)) {
+			channel.truncate(channel.size() - 1);
+		}
+		assertThrows(IOException.class, () -> ColumnarLineCountReader.open(columnarFile));
+	}
+}
@@ -0,0 +1,69 @@
+package bns.testcarl;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CommentSyntaxTests {
+
+	@Test
+	void syntaxIsTheOneOfTheExtensionWhateverItsCase() {
+		assertSame(CommentSyntax.C_LIKE, CommentSyntax.forExtension("java"));
+		assertSame(CommentSyntax.C_LIKE, CommentSyntax.forExtension("JAVA"));
+		assertSame(CommentSyntax.CSS, CommentSyntax.forExtension("css"));
+		assertSame(CommentSyntax.PHP, CommentSyntax.forExtension("php"));
+		assertSame(CommentSyntax.HASH, CommentSyntax.forExtension("Py"));
+		assertSame(CommentSyntax.SQL, CommentSyntax.forExtension("sql"));
+		assertSame(CommentSyntax.XML, CommentSyntax.forExtension("htm"));
+		assertSame(CommentSyntax.NONE, CommentSyntax.forExtension("txt"));
+		assertSame(CommentSyntax.NONE, CommentSyntax.forExtension(""));
+
+		assertSame(CommentSyntax.C_LIKE, CommentSyntax.forFile(new File("a/B.Java")));
+		assertSame(CommentSyntax.SQL, CommentSyntax.forFile(new File("dump.tar.sql")));
+		assertSame(CommentSyntax.NONE, CommentSyntax.forFile(new File("Makefile")));
+		// Neither the name of a hidden file nor those of the parent directories are extensions
+		assertSame(CommentSyntax.NONE, CommentSyntax.forFile(new File(".py")));
+		assertSame(CommentSyntax.NONE, CommentSyntax.forFile(new File("a.java/README")));
+	}
+
+	@Test
+	void markersAndQuotesAreSpecialCodeUnits() {
+		CommentSyntax syntax = CommentSyntax.C_LIKE;
+		for (char unit : new char[]{'/', '*', '"', '\''}) {
+			assertEquals(CommentSyntax.SPECIAL, syntax.unitClasses[unit], String.valueOf(unit));
+		}
+		assertEquals(CommentSyntax.ORDINARY, syntax.unitClasses['#']);
+		assertEquals(CommentSyntax.WHITESPACE, syntax.unitClasses['\t']);
+		assertEquals(CommentSyntax.LINE_BREAK, syntax.unitClasses['\r']);
+		assertTrue(syntax.quotes['"']);
+		assertFalse(syntax.quotes['/']);
+		assertEquals('/' << 8 | '/', syntax.lineCommentMarkers[0]);
+		assertEquals(0xFFFF, syntax.lineCommentMarkerMasks[0]);
+		assertEquals('*' << 8 | '/', syntax.blockCommentEnds[0]);
+
+		assertEquals(CommentSyntax.ORDINARY, CommentSyntax.NONE.unitClasses['/']);
+		// A 4 characters long marker fills the int it is packed in
+		assertEquals('<' << 24 | '!' << 16 | '-' << 8 | '-', CommentSyntax.XML.blockCommentStarts[0]);
+		assertEquals(-1, CommentSyntax.XML.blockCommentStartMasks[0]);
+	}
+
+	@Test
+	void invalidMarkersAndQuotesAreRejected() {
+		String[][] noBlockComments = new String[0][];
+		for (String marker : new String[]{"", "/////", "a b", "\n", "é"}) {
+			assertThrows(IllegalArgumentException.class, () -> new CommentSyntax(new String[]{marker}, noBlockComments, ""), marker);
+			assertThrows(IllegalArgumentException.class, () -> new CommentSyntax(new String[0], new String[][]{{"/*", marker}}, ""), marker);
+		}
+		for (String quote : new String[]{" ", "\r", "é"}) {
+			assertThrows(IllegalArgumentException.class, () -> new CommentSyntax(new String[0], noBlockComments, quote), quote);
+		}
+		// A character cannot be both a quote and part of a marker
+		assertThrows(IllegalArgumentException.class, () -> new CommentSyntax(new String[]{"#"}, noBlockComments, "#"));
+	}
+}
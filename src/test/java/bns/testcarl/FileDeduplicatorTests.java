@@ -0,0 +1,61 @@
+package bns.testcarl;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FileDeduplicatorTests {
+
+	@TempDir
+	Path tempDir;
+
+	File writeFile(String name, byte[] content) throws IOException {
+		return Files.write(tempDir.resolve(name), content).toFile();
+	}
+
+	@Test
+	void pathsOfTheSameFileAndCopiesAreDuplicatesOfTheFirstPath() throws IOException {
+		Random random = new Random(89);
+		File file = writeFile("file.txt", LineCountUtilsTests.randomBytesWithLineBreaks(random, 5000));
+		File copy = writeFile("copy.txt", Files.readAllBytes(file.toPath()));
+		File hardLink = Files.createLink(tempDir.resolve("hard-link.txt"), file.toPath()).toFile();
+		// Path of the copy, found to be a duplicate of the copy before the copy is found to be a duplicate of the file
+		File symbolicLinkToCopy = Files.createSymbolicLink(tempDir.resolve("symbolic-link.txt"), copy.toPath()).toFile();
+		byte[] sameLengthContent = Files.readAllBytes(file.toPath());
+		sameLengthContent[0] ^= 1;
+		File sameLengthFile = writeFile("same-length.txt", sameLengthContent);
+		File otherFile = writeFile("other.txt", LineCountUtilsTests.randomBytesWithLineBreaks(random, 4000));
+		File missingFile = tempDir.resolve("missing.txt").toFile();
+
+		FileDeduplicator deduplicator = FileDeduplicator.deduplicate(
+				List.of(file, copy, symbolicLinkToCopy, missingFile, sameLengthFile, hardLink, otherFile), 4096);
+		assertEquals(List.of(file, sameLengthFile, otherFile), deduplicator.getUniqueFiles());
+		List<File> duplicates = deduplicator.getDuplicates(file);
+		assertEquals(3, duplicates.size());
+		assertTrue(duplicates.containsAll(List.of(copy, symbolicLinkToCopy, hardLink)), duplicates.toString());
+		assertEquals(List.of(), deduplicator.getDuplicates(sameLengthFile));
+		assertEquals(List.of(), deduplicator.getDuplicates(copy));
+		assertEquals(3, deduplicator.getNbOfDuplicates());
+	}
+
+	@Test
+	void emptyFilesAndDirectoriesAreUnique() throws IOException {
+		File emptyFile = writeFile("empty.txt", new byte[0]);
+		File otherEmptyFile = writeFile("other-empty.txt", new byte[0]);
+		File directory = Files.createDirectory(tempDir.resolve("directory.txt")).toFile();
+
+		FileDeduplicator deduplicator = FileDeduplicator.deduplicate(List.of(emptyFile, directory, otherEmptyFile), 4096);
+		assertEquals(3, deduplicator.getUniqueFiles().size());
+		assertTrue(deduplicator.getUniqueFiles().containsAll(List.of(emptyFile, otherEmptyFile, directory)));
+		assertEquals(0, deduplicator.getNbOfDuplicates());
+	}
+}
@@ -0,0 +1,122 @@
+package bns.testcarl;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FileEncodingUtilsTests {
+
+	@TempDir
+	Path tempDir;
+
+	File writeFile(String name, byte[] content) throws IOException {
+		return Files.write(tempDir.resolve(name), content).toFile();
+	}
+
+	// Bytes that are edges of the ranges of UTF-8 sequences, of surrogates and of the BOMs
+	private static final int[] EDGE_BYTES = {0x00, 0x0A, 0x41, 0x7F, 0x80, 0x8F, 0x90, 0x9F, 0xA0, 0xBF, 0xC0, 0xC1, 0xC2, 0xDF,
+			0xD8, 0xDB, 0xDC, 0xE0, 0xED, 0xEE, 0xEF, 0xF0, 0xF4, 0xF5, 0xF8, 0xFE, 0xFF, 0x10, 0x11};
+
+	static boolean isDecodedByJdk(Charset charset, byte[] bytes, int length, boolean endOfInput) {
+		CharsetDecoder decoder = charset.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPORT).onUnmappableCharacter(CodingErrorAction.REPORT);
+		return !decoder.decode(ByteBuffer.wrap(bytes, 0, length), CharBuffer.allocate(length * 2 + 4), endOfInput).isError();
+	}
+
+	@Test
+	void encodingValidatorsAgreeWithJdkDecoders() {
+		Random random = new Random(101);
+		for (int n = 0; n != 200_000; ++n) {
+			// Sequences mostly of edge bytes, sometimes after a run of ASCII for the 8-bytes steps
+			byte[] bytes = new byte[random.nextInt(24)];
+			int asciiRunLength = random.nextBoolean() ? random.nextInt(bytes.length + 1) : 0;
+			for (int i = 0; i != bytes.length; ++i) {
+				bytes[i] = (byte) (i < asciiRunLength ? 'a' : random.nextInt(4) == 0 ? random.nextInt(256) : EDGE_BYTES[random.nextInt(EDGE_BYTES.length)]);
+			}
+			int length = bytes.length - random.nextInt(Math.min(bytes.length, 3) + 1);
+			for (boolean endOfInput : new boolean[]{false, true}) {
+				String message = Arrays.toString(Arrays.copyOf(bytes, length)) + " endOfInput=" + endOfInput;
+				assertEquals(isDecodedByJdk(StandardCharsets.UTF_8, bytes, length, endOfInput), FileEncodingUtils.isValidUtf8(bytes, length, endOfInput), message);
+				assertEquals(isDecodedByJdk(StandardCharsets.UTF_16BE, bytes, length, endOfInput), FileEncodingUtils.isValidUtf16(bytes, length, true, endOfInput), message);
+				assertEquals(isDecodedByJdk(StandardCharsets.UTF_16LE, bytes, length, endOfInput), FileEncodingUtils.isValidUtf16(bytes, length, false, endOfInput), message);
+				assertEquals(isDecodedByJdk(Charset.forName("UTF-32BE"), bytes, length, endOfInput), FileEncodingUtils.isValidUtf32(bytes, length, true, endOfInput), message);
+				assertEquals(isDecodedByJdk(Charset.forName("UTF-32LE"), bytes, length, endOfInput), FileEncodingUtils.isValidUtf32(bytes, length, false, endOfInput), message);
+			}
+		}
+
+		// Guesses from samples, the 0x0 being counted across the 8-bytes steps and the tail
+		String text = "Bonjour à tous, 日本語 et 😀 !\n".repeat(3) + "😀";
+		for (Charset charset : List.of(StandardCharsets.UTF_8, StandardCharsets.UTF_16BE, StandardCharsets.UTF_16LE, Charset.forName("UTF-32BE"), Charset.forName("UTF-32LE"))) {
+			byte[] bytes = text.getBytes(charset);
+			boolean[] isCertain = {false};
+			int[] bomLength = {-1};
+			assertEquals(charset, FileEncodingUtils.getOrGuessEncoding(bytes, bytes.length, bytes.length, isCertain, bomLength, null));
+			assertTrue(isCertain[0]);
+			assertEquals(0, bomLength[0]);
+			// A sample cut in the middle of the last character, the file being longer: only the
+			// non-ASCII characters validated as UTF-8 make up for the bytes that are not sampled
+			int sampleLength = bytes.length - 1 - (charset.name().startsWith("UTF-32") ? 4 : 0);
+			float[] confidence = {-1f};
+			assertEquals(charset, FileEncodingUtils.getOrGuessEncoding(bytes, sampleLength, null, bytes.length, isCertain, bomLength, null, confidence));
+			assertTrue(confidence[0] > 0.9f, charset + " " + confidence[0]);
+			assertTrue(isCertain[0] || charset != StandardCharsets.UTF_8);
+		}
+		byte[] latin1 = "Très élevé !\n".getBytes(StandardCharsets.ISO_8859_1);
+		boolean[] isCertain = {true};
+		assertEquals(StandardCharsets.ISO_8859_1, FileEncodingUtils.getOrGuessEncoding(latin1, latin1.length, latin1.length, isCertain, null, null));
+		assertFalse(isCertain[0]);
+	}
+
+	@Test
+	void windowsStartingInTheMiddleOfGb18030SequencesAreResynchronized() throws IOException {
+		Charset gb18030 = Charset.forName("GB18030");
+		String header = "// Licensed under the Apache License, Version 2.0\n".repeat(60);
+		// 4-bytes sequences only, whose 2nd and 4th bytes are digits (0x30-0x39), the 0x0 making
+		// GB18030 validated rather than guessed from statistics
+		String line = "😀😁😂🤣\0\n";
+		for (boolean hasLineBreaks : List.of(true, false)) {
+			String body = (hasLineBreaks ? line : line.replace("\n", "😎")).repeat(500);
+			// The middle window starts at each of the 4 bytes of a sequence as the padding grows, the
+			// length of the file being odd, since the windows of an even length would be UTF-16 as well
+			for (int padding = 1; padding < 16; padding += 2) {
+				File file = writeFile("header-gb18030.java", (header + " ".repeat(padding) + body).getBytes(gb18030));
+				assertEquals(gb18030, FileEncodingUtils.getOrGuessEncoding(file, new boolean[1], null), "padding " + padding + ", line breaks " + hasLineBreaks);
+			}
+		}
+	}
+
+	@Test
+	void samplesHavingNulOrFullOfControlCharactersAreBinary() {
+		// PNG header, followed by random bytes
+		byte[] image = new byte[2000];
+		new Random(89).nextBytes(image);
+		System.arraycopy(new byte[]{(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n', 0, 0, 0, 0x0D}, 0, image, 0, 12);
+		assertTrue(FileEncodingUtils.isBinarySample(image, 1024, StandardCharsets.ISO_8859_1));
+		assertTrue(FileEncodingUtils.isBinarySample(image, 1024, null));
+
+		byte[] text = "int a;\r\n\tb\f".getBytes(StandardCharsets.US_ASCII);
+		assertFalse(FileEncodingUtils.isBinarySample(text, text.length, StandardCharsets.US_ASCII));
+		byte[] controlCharacters = "\u0001\u0002\u0003\u0004a\n".repeat(100).getBytes(StandardCharsets.US_ASCII);
+		assertTrue(FileEncodingUtils.isBinarySample(controlCharacters, controlCharacters.length, StandardCharsets.US_ASCII));
+		// The 0x0 of UTF-16 code units are not those of a binary file
+		byte[] utf16 = "int a;\n".getBytes(StandardCharsets.UTF_16LE);
+		assertFalse(FileEncodingUtils.isBinarySample(utf16, utf16.length, StandardCharsets.UTF_16LE));
+	}
+}
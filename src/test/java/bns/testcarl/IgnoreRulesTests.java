@@ -0,0 +1,62 @@
+package bns.testcarl;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IgnoreRulesTests {
+
+	@TempDir
+	Path tempDir;
+
+	@Test
+	void patternsMatchLikeThoseOfGitignoreFiles() {
+		IgnoreRules rules = IgnoreRules.VENDOR_AND_BUILD_OUTPUT.plus(IgnoreRules.of("docs/**/*.md", "\\#hash", "/root.txt", "# comment", "", "a?c"));
+		// Patterns ending with a slash match directories only
+		assertTrue(rules.isIgnored("a/node_modules", true));
+		assertFalse(rules.isIgnored("a/node_modules", false));
+		// Patterns having a slash are anchored to the directory of their rules
+		assertTrue(rules.isIgnored("docs/a/b/c.md", false));
+		assertTrue(rules.isIgnored("docs/c.md", false));
+		assertFalse(rules.isIgnored("src/docs/c.md", false));
+		assertTrue(rules.isIgnored("root.txt", false));
+		assertFalse(rules.isIgnored("src/root.txt", false));
+		// Patterns having no slash match names at any depth
+		assertTrue(rules.isIgnored("x/#hash", false));
+		assertTrue(rules.isIgnored("x/y/lib.min.js", false));
+		assertTrue(rules.isIgnored("abc", false));
+		assertFalse(rules.isIgnored("a/c", false));
+		assertFalse(rules.isIgnored("# comment", false));
+	}
+
+	@Test
+	void rulesOfGitignoreFilesWinOverThoseOfParentDirectories() throws IOException {
+		Files.writeString(tempDir.resolve(".gitignore"), "*.log\n!keep.log\n/generated/\n");
+		Files.createDirectories(tempDir.resolve("sub"));
+		Files.writeString(tempDir.resolve("sub/.gitignore"), "!debug.log\nh[0-9].java\n");
+
+		IgnoreRules rootRules = IgnoreRules.VENDOR_AND_BUILD_OUTPUT.withGitignoreFileOf(tempDir, "");
+		assertTrue(rootRules.isIgnored("app.log", false));
+		assertFalse(rootRules.isIgnored("keep.log", false));
+		assertTrue(rootRules.isIgnored("generated", true));
+		assertFalse(rootRules.isIgnored("sub/generated", true));
+		assertTrue(rootRules.isIgnored("build", true));
+
+		IgnoreRules subRules = rootRules.withGitignoreFileOf(tempDir.resolve("sub"), "sub");
+		assertFalse(subRules.isIgnored("sub/debug.log", false));
+		assertTrue(subRules.isIgnored("sub/trace.log", false));
+		assertTrue(subRules.isIgnored("sub/h2.java", false));
+		assertFalse(subRules.isIgnored("sub/h.java", false));
+
+		// A directory without .gitignore file has the rules of its parent
+		Files.createDirectories(tempDir.resolve("sub/none"));
+		assertSame(subRules, subRules.withGitignoreFileOf(tempDir.resolve("sub/none"), "sub/none"));
+	}
+}
@@ -0,0 +1,279 @@
+package bns.testcarl;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class LineBreakScannerTests {
+
+	// Longer than 2 vectors of the widest shape (64 bytes for AVX-512) plus a word, for every alignment
+	private static final int LENGTH = 2 * 64 + 2 * Long.BYTES;
+
+	/**
+	 * Asserts that every kernel counting line breaks in bytes finds {@code expected} of them
+	 * in {@code bytes} from {@code from} to {@code to}, in a byte[] and in a direct buffer.
+	 */
+	static void assertLineBreaks(long expected, byte[] bytes, int from, int to, boolean previousByteIsCR) {
+		String range = String.format("[%d, %d[ of %s, previous byte is CR: %b", from, to, Arrays.toString(bytes), previousByteIsCR);
+		ByteBuffer directBuffer = ByteBuffer.allocateDirect(bytes.length).put(bytes);
+		assertEquals(expected, LineBreakScanner.countLineBreaksScalar(bytes, from, to, previousByteIsCR), "scalar " + range);
+		assertEquals(expected, LineBreakScanner.countLineBreaksSwar(bytes, from, to, previousByteIsCR), "SWAR " + range);
+		assertEquals(expected, LineBreakScanner.countLineBreaksSwar(directBuffer, from, to, previousByteIsCR), "SWAR of buffer " + range);
+		if (LineBreakScanner.isVectorApiAvailable()) {
+			assertEquals(expected, VectorizedLineBreakScanner.countLineBreaks(bytes, from, to, previousByteIsCR), "Vector " + range);
+			assertEquals(expected, VectorizedLineBreakScanner.countLineBreaks(directBuffer, from, to, previousByteIsCR), "Vector of buffer " + range);
+		}
+		assertEquals(expected, LineBreakScanner.countLineBreaks(bytes, from, to, previousByteIsCR), range);
+		assertEquals(expected, LineBreakScanner.countLineBreaks(directBuffer, from, to, previousByteIsCR), "buffer " + range);
+	}
+
+	static byte[] filledWith(char c, int length) {
+		byte[] bytes = new byte[length];
+		Arrays.fill(bytes, (byte) c);
+		return bytes;
+	}
+
+	@Test
+	void kernelsAgree() {
+		Random random = new Random(42);
+		for (int n = 0; n != 2000; ++n) {
+			byte[] bytes = LineCountUtilsTests.randomBytesWithLineBreaks(random, random.nextInt(300));
+			int from = bytes.length == 0 ? 0 : random.nextInt(bytes.length);
+			boolean previousByteIsCR = random.nextBoolean();
+			long expected = LineBreakScanner.countLineBreaksScalar(bytes, from, bytes.length, previousByteIsCR);
+			assertEquals(expected, LineBreakScanner.countLineBreaksSwar(bytes, from, bytes.length, previousByteIsCR));
+			assertEquals(expected, LineBreakScanner.countLineBreaks(bytes, from, bytes.length, previousByteIsCR));
+		}
+	}
+
+	@Test
+	void crAtTheLastByteOfAWordOrOfALaneIsPairedWithTheFollowingLf() {
+		// Whatever the alignment of the range, each position is once the last byte of a word of
+		// the SWAR kernel and of a vector of the Vector kernel (whose vectors start at from + 1)
+		for (int from = 0; from != Long.BYTES + 1; ++from) {
+			for (int i = from; i != LENGTH - 2; ++i) {
+				byte[] bytes = filledWith('x', LENGTH);
+				bytes[i] = '\r';
+				assertLineBreaks(1, bytes, from, LENGTH, false);
+				bytes[i + 1] = '\n';
+				assertLineBreaks(1, bytes, from, LENGTH, false);
+				// CR/LF + LF, then CR + CR/LF
+				bytes[i + 2] = '\n';
+				assertLineBreaks(2, bytes, from, LENGTH, false);
+				bytes[i + 1] = '\r';
+				assertLineBreaks(2, bytes, from, LENGTH, false);
+			}
+		}
+	}
+
+	@Test
+	void crLfAcrossTwoRangesIsCountedOnce() {
+		for (int to = 1; to != LENGTH; ++to) {
+			byte[] bytes = filledWith('x', LENGTH);
+			bytes[to - 1] = '\r';
+			bytes[to] = '\n';
+			// The CR ends the 1st range, and the LF starting the 2nd one is the end of the same line
+			assertLineBreaks(1, bytes, 0, to, false);
+			assertLineBreaks(0, bytes, to, LENGTH, true);
+			assertLineBreaks(1, bytes, to, LENGTH, false);
+			assertLineBreaks(1, bytes, 0, LENGTH, false);
+		}
+		// A range whose single byte is a LF preceded by a CR
+		assertLineBreaks(0, new byte[]{'\n'}, 0, 1, true);
+		assertLineBreaks(1, new byte[]{'\r'}, 0, 1, true);
+	}
+
+	@Test
+	void everyTailLengthIsCounted() {
+		// Up to 2 vectors of 64 bytes, so that the tail left to the SWAR and scalar kernels is
+		// 0 to 63 bytes long whatever the shape of the vectors
+		for (int length = 0; length != 2 * 64; ++length) {
+			assertLineBreaks(0, filledWith('x', length), 0, length, false);
+			assertLineBreaks(length, filledWith('\n', length), 0, length, false);
+			assertLineBreaks(length, filledWith('\r', length), 0, length, true);
+			assertLineBreaks(Math.max(0, length - 1), filledWith('\n', length), 0, length, true);
+			byte[] crLfs = "\r\n".repeat(length / 2 + 1).substring(0, length).getBytes(StandardCharsets.US_ASCII);
+			assertLineBreaks((length + 1) / 2, crLfs, 0, length, false);
+			assertLineBreaks((length + 1) / 2, crLfs, 0, length, true);
+		}
+	}
+
+	@Test
+	void crAndLfBitsInsideNonAsciiBytesAreNotLineBreaks() {
+		// 0x8D and 0x8A are CR and LF with their bit 7 set, as in the UTF-8 bytes of "č" (C4 8D) and
+		// "Ċ" (C4 8A); 0x0C and 0x0B, following CR or LF, are the false positives of the classic
+		// formula finding the zero bytes of a word, 0x0E and 0x0B differing from CR and LF by a bit
+		byte[] lookalikes = {(byte) 0x8D, (byte) 0x8A, (byte) 0xC4, (byte) 0x8D, (byte) 0xC4, (byte) 0x8A, 0x0C, 0x0B, 0x0E, 0x09, 0x1D, 0x1A, (byte) 0xFF, 0x00};
+		for (int length = 0; length != LENGTH; ++length) {
+			byte[] bytes = new byte[length];
+			for (int i = 0; i != length; ++i) {
+				bytes[i] = lookalikes[i % lookalikes.length];
+			}
+			assertLineBreaks(0, bytes, 0, length, false);
+			assertLineBreaks(0, bytes, 0, length, true);
+		}
+		for (int i = 0; i != LENGTH - 1; ++i) {
+			byte[] bytes = new byte[LENGTH];
+			for (int j = 0; j != LENGTH; ++j) {
+				bytes[j] = lookalikes[j % lookalikes.length];
+			}
+			// A CR followed by 0x0C or a LF followed by 0x0B: only the CR or the LF is a line break
+			bytes[i] = '\r';
+			bytes[i + 1] = 0x0C;
+			assertLineBreaks(1, bytes, 0, LENGTH, false);
+			bytes[i] = '\n';
+			bytes[i + 1] = 0x0B;
+			assertLineBreaks(1, bytes, 0, LENGTH, false);
+			// The multi-bytes characters around a CR/LF do not hide it
+			bytes[i] = '\r';
+			bytes[i + 1] = '\n';
+			assertLineBreaks(1, bytes, 0, LENGTH, false);
+		}
+	}
+
+	@Test
+	void codeUnitKernelsAgree() {
+		Random random = new Random(23);
+		for (LineBreakScanner.CodeUnitLayout layout : LineBreakScanner.CodeUnitLayout.values()) {
+			int width = layout.getWidth();
+			for (int n = 0; n != 2000; ++n) {
+				byte[] bytes = new byte[width * random.nextInt(100)];
+				for (int i = 0; i < bytes.length; i += width) {
+					// Most code units are CR/LF or their bytes in the wrong order
+					int r = random.nextInt(4);
+					int lineFeed = layout == LineBreakScanner.CodeUnitLayout.EBCDIC ? (random.nextBoolean() ? 0x15 : 0x25) : '\n';
+					int unit = r == 0 ? '\r' : r == 1 ? lineFeed : r == 2 ? (random.nextBoolean() ? 0x0D00 : 0x0A00) : random.nextInt();
+					for (int b = 0; b != width; ++b) {
+						int shift = 8 * (layout.getByteOrder() == ByteOrder.LITTLE_ENDIAN ? b : width - 1 - b);
+						bytes[i + b] = (byte) (unit >>> shift);
+					}
+				}
+				int from = width * (bytes.length == 0 ? 0 : random.nextInt(bytes.length / width));
+				boolean previousUnitIsCR = random.nextBoolean();
+				String units = decodeUnits(layout, bytes, from);
+				long expected = units.chars().filter(c -> c == '\r').count()
+						+ (previousUnitIsCR && units.startsWith("\n") ? units.substring(1) : units).replace("\r\n", "\r").chars().filter(c -> c == '\n').count();
+				assertEquals(expected, LineBreakScanner.countLineBreaksScalar(layout, bytes, from, bytes.length, previousUnitIsCR));
+				assertEquals(expected, LineBreakScanner.countLineBreaks(layout, bytes, from, bytes.length, previousUnitIsCR));
+				assertEquals(expected, LineBreakScanner.countLineBreaks(layout, ByteBuffer.allocateDirect(bytes.length).put(bytes), from, bytes.length, previousUnitIsCR));
+			}
+		}
+	}
+
+	// Each code unit as a char: CR and LF for the code units 0x0D and 0x0A (and NL for EBCDIC), 'x' for the others
+	static String decodeUnits(LineBreakScanner.CodeUnitLayout layout, byte[] bytes, int from) {
+		StringBuilder units = new StringBuilder();
+		for (int i = from; i != bytes.length; i += layout.getWidth()) {
+			int unit = layout.codeUnitAt(bytes, i);
+			units.append(unit == '\r' ? '\r' : layout.isLineFeed(unit) ? '\n' : 'x');
+		}
+		return units.toString();
+	}
+
+	// A layout for each kind of code units, along with a charset having this layout
+	private static final Map<LineBreakScanner.CodeUnitLayout, Charset> CHARSETS = Map.of(
+			LineBreakScanner.CodeUnitLayout.SINGLE_BYTE, StandardCharsets.UTF_8,
+			LineBreakScanner.CodeUnitLayout.EBCDIC, Charset.forName("IBM037"),
+			LineBreakScanner.CodeUnitLayout.UTF_16LE, StandardCharsets.UTF_16LE,
+			LineBreakScanner.CodeUnitLayout.UTF_16BE, StandardCharsets.UTF_16BE,
+			LineBreakScanner.CodeUnitLayout.UTF_32LE, Charset.forName("UTF-32LE"),
+			LineBreakScanner.CodeUnitLayout.UTF_32BE, Charset.forName("UTF-32BE"));
+
+	/**
+	 * @return the count of lines of {@code content} by countLinesInCodeUnits(...), the bytes being
+	 * read {@code nbOfBytesPerRead} at most at a time into a buffer of {@code bufferLength} bytes,
+	 * whose {@code nbOfBufferedBytes} 1st ones are already read as done by the single-pass detection.
+	 */
+	static long countLinesInCodeUnits(byte[] content, int bomLength, LineBreakScanner.CodeUnitLayout layout, int bufferLength, int nbOfBufferedBytes, int nbOfBytesPerRead) throws IOException {
+		byte[] buffer = new byte[bufferLength];
+		System.arraycopy(content, 0, buffer, 0, nbOfBufferedBytes);
+		InputStream inputStream = new ByteArrayInputStream(content, nbOfBufferedBytes, content.length - nbOfBufferedBytes) {
+			@Override
+			public synchronized int read(byte[] b, int off, int len) {
+				return super.read(b, off, Math.min(len, nbOfBytesPerRead));
+			}
+		};
+		return LineCountUtils.countLinesInCodeUnits(inputStream, buffer, bufferLength, nbOfBufferedBytes, bomLength, layout);
+	}
+
+	@Test
+	void eachCodeUnitLayoutIsCountedWithAndWithoutBom() throws IOException {
+		// 5 line breaks, between characters whose code units hold the bytes 0x0D and 0x0A in UTF-16
+		// and UTF-32 (U+0D0A, U+010D, U+0A0D), which are not CR/LF, nor are their UTF-8 bytes
+		String text = "a\r\nb\u0d0a\rc\u010d\nd\u0a0d\r\n\ne";
+		for (Map.Entry<LineBreakScanner.CodeUnitLayout, Charset> layoutCharset : CHARSETS.entrySet()) {
+			LineBreakScanner.CodeUnitLayout layout = layoutCharset.getKey();
+			Charset charset = layoutCharset.getValue();
+			// EBCDIC has no BOM
+			byte[] bom = layout == LineBreakScanner.CodeUnitLayout.EBCDIC ? new byte[0] : "\ufeff".getBytes(charset);
+			for (byte[] prefix : new byte[][]{new byte[0], bom}) {
+				byte[] body = text.getBytes(charset);
+				byte[] content = Arrays.copyOf(prefix, prefix.length + body.length);
+				System.arraycopy(body, 0, content, prefix.length, body.length);
+				assertEquals(5, LineBreakScanner.countLineBreaks(layout, content, prefix.length, content.length, false), layout.name());
+				for (int bufferLength = layout.getWidth(); bufferLength <= content.length; ++bufferLength) {
+					String buffering = String.format("%s, BOM of %d bytes, buffer of %d bytes", layout, prefix.length, bufferLength);
+					assertEquals(6, countLinesInCodeUnits(content, prefix.length, layout, bufferLength, 0, bufferLength), buffering);
+					// The BOM and the 1st bytes are already in the buffer, or read a byte at a time
+					assertEquals(6, countLinesInCodeUnits(content, prefix.length, layout, bufferLength, bufferLength, bufferLength), buffering);
+					assertEquals(6, countLinesInCodeUnits(content, prefix.length, layout, bufferLength, 0, 1), buffering);
+				}
+				// A BOM only, or an incomplete code unit after the BOM, makes a single empty line
+				assertEquals(1, countLinesInCodeUnits(Arrays.copyOf(content, prefix.length + layout.getWidth() - 1), prefix.length, layout, 64, 0, 64));
+			}
+		}
+	}
+
+	@Test
+	void ebcdicNlAndLfAreBothLineBreaks() throws IOException {
+		// "A" NL "B" LF "C" CR+NL "D" CR+LF "E" CR "F", then 0x0A which is not a line break in EBCDIC
+		byte[] content = {(byte) 0xC1, 0x15, (byte) 0xC2, 0x25, (byte) 0xC3, 0x0D, 0x15, (byte) 0xC4, 0x0D, 0x25, (byte) 0xC5, 0x0D, (byte) 0xC6, 0x0A, (byte) 0xC7};
+		LineBreakScanner.CodeUnitLayout ebcdic = LineBreakScanner.CodeUnitLayout.EBCDIC;
+		assertEquals(ebcdic, LineBreakScanner.CodeUnitLayout.of(Charset.forName("IBM1047")));
+		assertEquals(5, LineBreakScanner.countLineBreaks(ebcdic, content, 0, content.length, false));
+		assertEquals(5, LineBreakScanner.countLineBreaksScalar(ebcdic, content, 0, content.length, false));
+		// A NL or a LF following the CR ending the previous range ends the same line
+		assertEquals(2, LineBreakScanner.countLineBreaks(ebcdic, content, 6, content.length, true));
+		assertEquals(3, LineBreakScanner.countLineBreaks(ebcdic, content, 6, content.length, false));
+		assertEquals(1, LineBreakScanner.countLineBreaks(ebcdic, content, 9, content.length, true));
+		// In the other layouts, the line breaks are the 3 CR and the byte 0x0A, but neither NL nor LF
+		assertEquals(4, LineBreakScanner.countLineBreaks(LineBreakScanner.CodeUnitLayout.SINGLE_BYTE, content, 0, content.length, false));
+		for (int bufferLength = 1; bufferLength <= content.length; ++bufferLength) {
+			assertEquals(6, countLinesInCodeUnits(content, 0, ebcdic, bufferLength, 0, bufferLength));
+		}
+	}
+
+	@Test
+	void crLfSplitAcrossBuffersIsCountedOnce() throws IOException {
+		for (Map.Entry<LineBreakScanner.CodeUnitLayout, Charset> layoutCharset : CHARSETS.entrySet()) {
+			LineBreakScanner.CodeUnitLayout layout = layoutCharset.getKey();
+			int width = layout.getWidth();
+			for (int nbOfUnitsBeforeCR = 0; nbOfUnitsBeforeCR != 10; ++nbOfUnitsBeforeCR) {
+				byte[] content = ("x".repeat(nbOfUnitsBeforeCR) + "\r\ny").getBytes(layoutCharset.getValue());
+				// The CR ends the 1st buffer and the LF starts the 2nd one
+				int crEnd = (nbOfUnitsBeforeCR + 1) * width;
+				assertEquals(1, LineBreakScanner.countLineBreaks(layout, content, 0, crEnd, false));
+				assertEquals(0, LineBreakScanner.countLineBreaks(layout, content, crEnd, content.length, true));
+				assertEquals(2, countLinesInCodeUnits(content, 0, layout, crEnd, 0, crEnd));
+				// The CR or the LF is cut between 2 reads, whatever the length of the buffer
+				for (int bufferLength = width; bufferLength <= content.length; ++bufferLength) {
+					for (int nbOfBytesPerRead = 1; nbOfBytesPerRead <= bufferLength; ++nbOfBytesPerRead) {
+						assertEquals(2, countLinesInCodeUnits(content, 0, layout, bufferLength, 0, nbOfBytesPerRead),
+								String.format("%s, %d units before CR, buffer of %d bytes, %d bytes per read", layout, nbOfUnitsBeforeCR, bufferLength, nbOfBytesPerRead));
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package bns.testcarl;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class LineCountCacheTests {
+
+	@TempDir
+	Path tempDir;
+
+	Path saveCache(LineCountCache.Entry... entries) throws IOException {
+		Path cacheFile = tempDir.resolve("line-counts.cache");
+		LineCountCache cache = LineCountCache.load(cacheFile, LineCountUtils.LineCountingMethod.CHAR_OR_BYTE_LOOKUP);
+		for (LineCountCache.Entry entry : entries) {
+			cache.put(entry);
+		}
+		cache.save(false);
+		return cacheFile;
+	}
+
+	static void overwriteInt(Path file, long position, int value) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.allocate(Integer.BYTES).putInt(value).flip(), position);
+		}
+	}
+
+	@Test
+	void entriesAreFoundOnlyForTheSameFileVersionAndMethod() throws IOException {
+		Path cacheFile = saveCache(new LineCountCache.Entry("/a.txt", 10L, 1000L, "UTF-16LE", true, 1f, 2, 4L));
+		LineCountCache.Entry entry = LineCountCache.load(cacheFile, LineCountUtils.LineCountingMethod.CHAR_OR_BYTE_LOOKUP).get("/a.txt", 10L, 1000L);
+		assertEquals(StandardCharsets.UTF_16LE, entry.getEncoding());
+		assertEquals(2, entry.getBomLength());
+		assertEquals(4, entry.getLineCount());
+		// A modified file is not found, whatever its length or last modification time
+		assertNull(LineCountCache.load(cacheFile, LineCountUtils.LineCountingMethod.CHAR_OR_BYTE_LOOKUP).get("/a.txt", 11L, 1000L));
+		assertNull(LineCountCache.load(cacheFile, LineCountUtils.LineCountingMethod.CHAR_OR_BYTE_LOOKUP).get("/a.txt", 10L, 3000L));
+
+		assertEquals(0, LineCountCache.load(cacheFile, LineCountUtils.LineCountingMethod.GENUINE_BUFFERED_READER_READLINE).size());
+	}
+
+	@Test
+	void cacheOfAnotherDetectionVersionIsIgnored() throws IOException {
+		Path cacheFile = saveCache(new LineCountCache.Entry("/a.txt", 10L, 1000L, "UTF-8", true, 1f, 0, 2L));
+		assertEquals(1, LineCountCache.load(cacheFile, LineCountUtils.LineCountingMethod.CHAR_OR_BYTE_LOOKUP).size());
+
+		// The counts of a previous detection of the encodings are all done again
+		overwriteInt(cacheFile, 32, FileEncodingUtils.DETECTION_VERSION - 1);
+		assertEquals(0, LineCountCache.load(cacheFile, LineCountUtils.LineCountingMethod.CHAR_OR_BYTE_LOOKUP).size());
+	}
+
+	@Test
+	void recordWithEncodingIndexOutOfTheNamesIsDropped() throws IOException {
+		Path cacheFile = saveCache(new LineCountCache.Entry("/a.txt", 10L, 1000L, "UTF-16LE", true, 1f, 2, 2L));
+		// Index of the encoding name of the only record corrupted into 7, its BOM length and flags being kept
+		overwriteInt(cacheFile, LineCountCache.HEADER_SIZE + LineCountCache.ENCODING_INDEX, 0x00070200);
+
+		LineCountCache cache = LineCountCache.load(cacheFile, LineCountUtils.LineCountingMethod.CHAR_OR_BYTE_LOOKUP);
+		assertEquals(1, cache.size());
+		assertNull(cache.get("/a.txt", 10L, 1000L));
+		cache.put(new LineCountCache.Entry("/b.txt", 5L, 1000L, "UTF-8", false, 0.75f, 0, 1L));
+		cache.save(true);
+
+		LineCountCache savedCache = LineCountCache.load(cacheFile, LineCountUtils.LineCountingMethod.CHAR_OR_BYTE_LOOKUP);
+		assertEquals(1, savedCache.size());
+		LineCountCache.Entry entry = savedCache.get("/b.txt", 5L, 1000L);
+		assertEquals(StandardCharsets.UTF_8, entry.getEncoding());
+		assertEquals(0.75f, entry.getEncodingConfidence());
+	}
+
+	@Test
+	void cacheOfRunsSkippingBinaryFilesOrNotIsIgnoredByTheOthers() throws IOException {
+		Path cacheFile = tempDir.resolve("line-counts.cache");
+		LineCountCache cache = LineCountCache.load(cacheFile, LineCountUtils.LineCountingMethod.CHAR_OR_BYTE_LOOKUP, true);
+		cache.put(new LineCountCache.Entry("/a.bin", 10L, 1000L, null, false, 0f, 0, -1L));
+		cache.save(false);
+
+		// The binary file would be counted by a run not skipping binary files
+		assertEquals(0, LineCountCache.load(cacheFile, LineCountUtils.LineCountingMethod.CHAR_OR_BYTE_LOOKUP).size());
+		LineCountCache.Entry entry = LineCountCache.load(cacheFile, LineCountUtils.LineCountingMethod.CHAR_OR_BYTE_LOOKUP, true).get("/a.bin", 10L, 1000L);
+		assertNull(entry.getEncoding());
+		assertEquals(-1, entry.getLineCount());
+	}
+
+	@Test
+	void entriesNeitherFoundNorPutAreDroppedUnlessRetained() throws IOException {
+		Path cacheFile = saveCache(new LineCountCache.Entry("/a.txt", 10L, 1000L, "UTF-8", true, 1f, 0, 1L),
+				new LineCountCache.Entry("/b.txt", 20L, 1000L, "UTF-8", true, 1f, 0, 2L),
+				new LineCountCache.Entry("/c.txt", 30L, 1000L, "UTF-8", true, 1f, 0, 3L));
+		LineCountCache cache = LineCountCache.load(cacheFile, LineCountUtils.LineCountingMethod.CHAR_OR_BYTE_LOOKUP);
+		assertNotNull(cache.get("/a.txt", 10L, 1000L));
+		// A modified file is counted again and its entry replaced, the other one being left unvisited
+		assertNull(cache.get("/b.txt", 21L, 2000L));
+		cache.put(new LineCountCache.Entry("/b.txt", 21L, 2000L, "windows-1252", false, 0.5f, 0, 5L));
+		cache.save(false);
+
+		cache = LineCountCache.load(cacheFile, LineCountUtils.LineCountingMethod.CHAR_OR_BYTE_LOOKUP);
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.get("/a.txt", 10L, 1000L).getLineCount());
+		assertNull(cache.get("/b.txt", 20L, 1000L));
+		LineCountCache.Entry entry = cache.get("/b.txt", 21L, 2000L);
+		assertEquals(5, entry.getLineCount());
+		assertEquals("windows-1252", entry.getEncodingName());
+		assertNull(cache.get("/c.txt", 30L, 1000L));
+
+		// A run stopped before visiting any file keeps them all
+		LineCountCache.load(cacheFile, LineCountUtils.LineCountingMethod.CHAR_OR_BYTE_LOOKUP).save(true);
+		assertEquals(2, LineCountCache.load(cacheFile, LineCountUtils.LineCountingMethod.CHAR_OR_BYTE_LOOKUP).size());
+	}
+
+	@Test
+	void truncatedOrCorruptedCacheFileIsIgnoredThenReplaced() throws IOException {
+		Path cacheFile = saveCache(new LineCountCache.Entry("/a.txt", 10L, 1000L, "UTF-8", true, 1f, 0, 1L));
+		byte[] content = Files.readAllBytes(cacheFile);
+		Files.write(cacheFile, Arrays.copyOf(content, LineCountCache.HEADER_SIZE + 10));
+		assertEquals(0, LineCountCache.load(cacheFile, LineCountUtils.LineCountingMethod.CHAR_OR_BYTE_LOOKUP).size());
+
+		// Number of records beyond the end of the records
+		Files.write(cacheFile, content);
+		overwriteInt(cacheFile, 12, 1000);
+		assertEquals(0, LineCountCache.load(cacheFile, LineCountUtils.LineCountingMethod.CHAR_OR_BYTE_LOOKUP).size());
+
+		Files.write(cacheFile, "not a cache".getBytes(StandardCharsets.US_ASCII));
+		LineCountCache cache = LineCountCache.load(cacheFile, LineCountUtils.LineCountingMethod.CHAR_OR_BYTE_LOOKUP);
+		assertNull(cache.get("/a.txt", 10L, 1000L));
+		cache.put(new LineCountCache.Entry("/a.txt", 10L, 1000L, "UTF-8", true, 1f, 0, 1L));
+		cache.save(false);
+		assertEquals(1, LineCountCache.load(cacheFile, LineCountUtils.LineCountingMethod.CHAR_OR_BYTE_LOOKUP).get("/a.txt", 10L, 1000L).getLineCount());
+	}
+}
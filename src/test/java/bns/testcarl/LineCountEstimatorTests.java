@@ -0,0 +1,141 @@
+package bns.testcarl;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LineCountEstimatorTests {
+
+	// Files named "f<n>.<extension>" whose lengths are "length", nothing being read from them
+	static void addFiles(List<File> files, List<Long> lengths, String extension, int nbOfFiles, long length) {
+		for (int n = 0; n != nbOfFiles; ++n) {
+			files.add(new File("f" + files.size() + '.' + extension));
+			lengths.add(length);
+		}
+	}
+
+	static LineCountEstimator newEstimator(List<File> files, List<Long> lengths) {
+		return new LineCountEstimator(files, lengths.stream().mapToLong(Long::longValue).toArray(), new Random(113));
+	}
+
+	// The extension and the length of each sample, for e.g. "java/1000"
+	static Map<String, Long> countPerStratum(List<LineCountEstimator.Sample> samples) {
+		return samples.stream().map(sample -> sample.file.getName().replaceAll(".*\\.", "") + '/' + sample.length)
+				.collect(Collectors.groupingBy(Function.identity(), Collectors.counting()));
+	}
+
+	@Test
+	void firstSamplesAreTakenFromEveryStratumOfExtensionAndLengthClass() {
+		List<File> files = new ArrayList<>();
+		List<Long> lengths = new ArrayList<>();
+		addFiles(files, lengths, "java", 8, 1000);
+		// Lengths differing by more than a factor of 4 are in another stratum
+		addFiles(files, lengths, "java", 8, 100);
+		addFiles(files, lengths, "txt", 8, 1000);
+		// Fewer than 8 files of an extension are merged into a stratum of the same length class
+		addFiles(files, lengths, "md", 3, 1000);
+		addFiles(files, lengths, "c", 2, 1000);
+		LineCountEstimator estimator = newEstimator(files, lengths);
+
+		List<LineCountEstimator.Sample> samples = estimator.nextSamples(8);
+		Map<String, Long> nbOfSamplesPerStratum = countPerStratum(samples);
+		assertEquals(2L, nbOfSamplesPerStratum.get("java/1000"));
+		assertEquals(2L, nbOfSamplesPerStratum.get("java/100"));
+		assertEquals(2L, nbOfSamplesPerStratum.get("txt/1000"));
+		assertEquals(2L, nbOfSamplesPerStratum.getOrDefault("md/1000", 0L) + nbOfSamplesPerStratum.getOrDefault("c/1000", 0L));
+		assertFalse(estimator.isVarianceEstimable());
+		samples.forEach(sample -> estimator.addSample(sample, sample.length / 40));
+		assertTrue(estimator.isVarianceEstimable());
+	}
+
+	@Test
+	void marginOfErrorIsTheOneOfTheRatioEstimator() {
+		List<File> files = new ArrayList<>();
+		List<Long> lengths = new ArrayList<>();
+		addFiles(files, lengths, "txt", 8, 1000);
+		LineCountEstimator estimator = newEstimator(files, lengths);
+		List<LineCountEstimator.Sample> samples = estimator.nextSamples(4);
+		assertEquals(4, samples.size());
+		for (int i = 0; i != samples.size(); ++i) {
+			estimator.addSample(samples.get(i), 10 * (i + 1));
+		}
+		// Ratio of 100 lines / 4000 bytes times 8000 bytes, the residuals being -15, -5, 5 and 15 lines:
+		// 1.96 * sqrt(8 * 8 * (1 - 4 / 8) * (500 / 3) / 4) = 71.57
+		LineCountEstimate estimate = estimator.getEstimate();
+		assertEquals(new LineCountEstimate(200, 72, 4, 8, 4000, 8000), estimate);
+		assertEquals(0.36, estimate.getRelativeError(), 1e-9);
+		assertEquals(128, estimate.getLowerBound());
+		assertEquals(272, estimate.getUpperBound());
+		assertFalse(estimate.isExact());
+	}
+
+	@Test
+	void samplesGoToTheStratumWhoseVarianceDecreasesTheMost() {
+		List<File> files = new ArrayList<>();
+		List<Long> lengths = new ArrayList<>();
+		addFiles(files, lengths, "java", 20, 1000);
+		addFiles(files, lengths, "txt", 20, 1000);
+		LineCountEstimator estimator = newEstimator(files, lengths);
+		int nbOfTexts = 0;
+		for (LineCountEstimator.Sample sample : estimator.nextSamples(4)) {
+			// The lines per byte of the Java files do not vary, whereas those of the texts do
+			boolean isText = sample.file.getName().endsWith(".txt");
+			estimator.addSample(sample, !isText ? 25 : nbOfTexts++ == 0 ? 10 : 40);
+		}
+		assertEquals(2, nbOfTexts);
+		assertEquals(Map.of("txt/1000", 5L), countPerStratum(estimator.nextSamples(5)));
+	}
+
+	@Test
+	void linesProportionalToBytesMakeAnEstimateWithoutError() {
+		List<File> files = new ArrayList<>();
+		List<Long> lengths = new ArrayList<>();
+		// Powers of 2, so that the residuals are exactly 0 rather than rounding errors
+		addFiles(files, lengths, "java", 10, 4096);
+		addFiles(files, lengths, "java", 10, 65536);
+		addFiles(files, lengths, "txt", 10, 8192);
+		LineCountEstimator estimator = newEstimator(files, lengths);
+		estimator.nextSamples(6).forEach(sample -> estimator.addSample(sample, sample.length / 64));
+		LineCountEstimate estimate = estimator.getEstimate();
+		assertEquals((10 * 4096 + 10 * 65536 + 10 * 8192) / 64, estimate.getLineCount());
+		assertEquals(0, estimate.getMarginOfError());
+		assertEquals(0d, estimate.getRelativeError());
+		assertEquals(6, estimate.getNbOfSampledFiles());
+		assertFalse(estimate.isExact());
+	}
+
+	@Test
+	void estimateIsExactOnceAllFilesAreCountedFailuresAside() {
+		List<File> files = new ArrayList<>();
+		List<Long> lengths = new ArrayList<>();
+		addFiles(files, lengths, "txt", 9, 1000);
+		addFiles(files, lengths, "c", 3, 100);
+		LineCountEstimator estimator = newEstimator(files, lengths);
+		long lineCount = 0;
+		int n = 0;
+		for (List<LineCountEstimator.Sample> samples = estimator.nextSamples(5); !samples.isEmpty(); samples = estimator.nextSamples(5)) {
+			for (LineCountEstimator.Sample sample : samples) {
+				// Every 4th file fails, and so is left out of the population
+				long sampleLineCount = n++ % 4 == 3 ? -1 : 1 + n % 7;
+				estimator.addSample(sample, sampleLineCount);
+				lineCount += Math.max(0, sampleLineCount);
+			}
+		}
+		LineCountEstimate estimate = estimator.getEstimate();
+		assertEquals(12, n);
+		assertTrue(estimate.isExact());
+		assertEquals(9, estimate.getNbOfFiles());
+		assertEquals(lineCount, estimate.getLineCount());
+		assertEquals(0, estimate.getMarginOfError());
+	}
+}
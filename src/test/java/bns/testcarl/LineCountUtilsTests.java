@@ -0,0 +1,977 @@
+package bns.testcarl;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class LineCountUtilsTests {
+
+	@TempDir
+	Path tempDir;
+
+	// Random bytes where CR and LF are frequent so that CR/LF sequences
+	// straddle the lanes of vectors, the longs and the read buffers.
+	static byte[] randomBytesWithLineBreaks(Random random, int length) {
+		byte[] bytes = new byte[length];
+		for (int i = 0; i != length; ++i) {
+			int r = random.nextInt(8);
+			bytes[i] = r == 0 ? (byte) '\r' : r == 1 ? (byte) '\n' : (byte) random.nextInt(256);
+		}
+		return bytes;
+	}
+
+	File writeFile(String name, byte[] content) throws IOException {
+		return Files.write(tempDir.resolve(name), content).toFile();
+	}
+
+	@Test
+	void vectorizedByteLookupGivesSameCountsAsByteLookup() throws IOException {
+		Random random = new Random(7);
+		for (int n = 0; n != 50; ++n) {
+			File file = writeFile("random" + n + ".txt", randomBytesWithLineBreaks(random, random.nextInt(20000)));
+			for (int bufferSize : new int[]{1, 7, 64, 4096}) {
+				assertEquals(LineCountUtils.countLinesWithByteLookup(file, bufferSize, 0),
+						LineCountUtils.countLinesWithVectorizedByteLookup(file, bufferSize, 0));
+			}
+		}
+	}
+
+	@Test
+	void utf16AndUtf32ByteLookupGivesSameCountsAsCharLookup() throws IOException {
+		Random random = new Random(29);
+		String text = "\r\n\u00e9t\u00e9\r\r\n\ud83d\ude00\n\r\u4e2d\r\n\n";
+		int n = 0;
+		for (Charset charset : new Charset[]{StandardCharsets.UTF_16LE, StandardCharsets.UTF_16BE, Charset.forName("UTF-32LE"), Charset.forName("UTF-32BE")}) {
+			for (int i = 0; i != 12; ++i) {
+				byte[] bom = i % 3 == 0 ? "\ufeff".getBytes(charset) : new byte[0];
+				byte[] body = text.repeat(random.nextInt(300)).getBytes(charset);
+				// Some files end with an incomplete code unit
+				byte[] content = Arrays.copyOf(bom, bom.length + body.length + (i % 4 == 1 ? 1 : 0));
+				System.arraycopy(body, 0, content, bom.length, body.length);
+				File file = writeFile("units" + n++ + ".txt", content);
+				long expected = LineCountUtils.countLinesWithCharLookup(file, 4096, bom.length, charset);
+				for (int bufferSize : new int[]{1, 3, 6, 64, 4096}) {
+					assertEquals(expected, LineCountUtils.countLinesWithByteLookup(file, bufferSize, bom.length, charset));
+					assertEquals(expected, LineCountUtils.countLinesWithVectorizedByteLookup(file, bufferSize, bom.length, charset));
+					assertEquals(expected, LineCountUtils.countLinesWithMemoryMappedByteLookup(file, bom.length, bufferSize, charset));
+				}
+			}
+		}
+	}
+
+	@Test
+	void legacyCodePagesAreGuessedAndCountedFromTheirBytes() throws IOException {
+		// COBOL in EBCDIC, each line ended by NL, LF, CR+NL, CR+LF or CR
+		Charset ibm037 = Charset.forName("IBM037");
+		byte[][] terminators = {{0x15}, {0x25}, {0x0D, 0x15}, {0x0D, 0x25}, {0x0D}};
+		String[] cobolLines = {"       IDENTIFICATION DIVISION.", "       PROGRAM-ID. HELLO.", "      * GREETS THE WORLD",
+				"       PROCEDURE DIVISION.", "           DISPLAY 'HELLO, WORLD'.", "      ", "           STOP RUN."};
+		ByteArrayOutputStream cobol = new ByteArrayOutputStream();
+		Random random = new Random(103);
+		int nbOfLines = 300;
+		for (int i = 0; i != nbOfLines; ++i) {
+			cobol.write(cobolLines[i % cobolLines.length].getBytes(ibm037));
+			cobol.write(terminators[random.nextInt(terminators.length)]);
+		}
+		byte[] content = cobol.toByteArray();
+		File file = writeFile("hello.cbl", content);
+		boolean[] isCertain = {true};
+		assertEquals(ibm037, FileEncodingUtils.getOrGuessEncoding(file, isCertain, null));
+		assertFalse(isCertain[0]);
+		assertEquals(LineBreakScanner.CodeUnitLayout.EBCDIC, LineBreakScanner.CodeUnitLayout.of(ibm037));
+		for (int bufferSize : new int[]{1, 7, 64, 4096}) {
+			assertEquals(nbOfLines + 1, LineCountUtils.countLinesWithByteLookup(file, bufferSize, 0, ibm037));
+			assertEquals(nbOfLines + 1, LineCountUtils.countLinesWithVectorizedByteLookup(file, bufferSize, 0, ibm037));
+			assertEquals(nbOfLines + 1, LineCountUtils.countLinesWithMemoryMappedByteLookup(file, 0, bufferSize, ibm037));
+			assertEquals(nbOfLines + 1, LineCountUtils.countLinesWithParallelRangeLookup(file, bufferSize, 0, ibm037, 1 + bufferSize));
+		}
+		for (boolean singlePassEncodingDetection : new boolean[]{false, true}) {
+			LineCountUtils lineCountUtils = new LineCountUtils();
+			lineCountUtils.setSinglePassEncodingDetection(singlePassEncodingDetection);
+			lineCountUtils.setCountLineMetrics(!singlePassEncodingDetection);
+			LineCountResult result = lineCountUtils.scanCodeLines(List.of(file), null);
+			assertEquals(nbOfLines + 1, result.getLineCount());
+			if (!singlePassEncodingDetection) {
+				assertEquals(nbOfLines + 1, result.getLineMetrics().getNbOfLines());
+			}
+		}
+		// The brackets tell IBM1047 apart, whose NL is decoded as U+000A and LF as U+0085
+		Charset ibm1047 = Charset.forName("IBM1047");
+		byte[] ebcdicC = "int a[2] = {0, 1};\n   b[0] = a[1];\n".repeat(20).getBytes(ibm1047);
+		assertEquals(ibm1047, FileEncodingUtils.getOrGuessEncoding(ebcdicC, ebcdicC.length, ebcdicC.length, null, null, null));
+
+		// Single-byte and multi-bytes legacy encodings, whose CR/LF are searched as bytes
+		Map<String, String> texts = Map.of(
+				"Shift_JIS", "日本語のテキストです。\r\nこんにちは、世界！\r\n",
+				"EUC-KR", "한국어 텍스트입니다.\n안녕하세요, 세계!\n",
+				"windows-1251", "Это текст на русском языке.\nПривет, мир!\n",
+				"windows-1252", "It’s a “quoted” text – with an ellipsis…\n");
+		for (Map.Entry<String, String> text : texts.entrySet()) {
+			Charset charset = Charset.forName(text.getKey());
+			byte[] bytes = text.getValue().repeat(10).getBytes(charset);
+			assertEquals(charset, FileEncodingUtils.getOrGuessEncoding(bytes, bytes.length, bytes.length, null, null, null));
+			assertTrue(LineCountUtils.canSearchLineBreakAsByte(charset));
+			File textFile = writeFile("legacy-" + text.getKey() + ".txt", bytes);
+			assertEquals(LineCountUtils.countLinesWithCharLookup(textFile, 4096, 0, charset), LineCountUtils.countLinesWithByteLookup(textFile, 64, 0, charset));
+		}
+		byte[] latin1 = "Très élevé, à côté du café.\n".repeat(10).getBytes(StandardCharsets.ISO_8859_1);
+		assertEquals(StandardCharsets.ISO_8859_1, FileEncodingUtils.getOrGuessEncoding(latin1, latin1.length, latin1.length, null, null, null));
+	}
+
+	@Test
+	void memoryMappedByteLookupGivesSameCountsAsByteLookup() throws IOException {
+		Random random = new Random(3);
+		for (int n = 0; n != 20; ++n) {
+			File file = writeFile("mapped" + n + ".txt", randomBytesWithLineBreaks(random, 1 + random.nextInt(20000)));
+			long expected = LineCountUtils.countLinesWithByteLookup(file, 4096, 0);
+			for (int windowSize : new int[]{1, 5, 100, 1 << 20}) {
+				assertEquals(expected, LineCountUtils.countLinesWithMemoryMappedByteLookup(file, 0, windowSize));
+			}
+		}
+	}
+
+	@Test
+	void parallelRangeLookupGivesSameCountsAsSequentialLookup() throws IOException {
+		Random random = new Random(11);
+		for (int n = 0; n != 20; ++n) {
+			File file = writeFile("bytes" + n + ".txt", randomBytesWithLineBreaks(random, 1 + random.nextInt(5000)));
+			long expected = LineCountUtils.countLinesWithByteLookup(file, 4096, 0);
+			for (long rangeSize : new long[]{1, 2, 3, 17, 1000, 1 << 20}) {
+				assertEquals(expected, LineCountUtils.countLinesWithParallelRangeLookup(file, 64, 0, StandardCharsets.UTF_8, rangeSize));
+			}
+		}
+		String text = "\r\n\u00e9t\u00e9\r\r\n\ud83d\ude00\n\rabc\r\n\n";
+		for (Charset charset : new Charset[]{StandardCharsets.UTF_16LE, StandardCharsets.UTF_16BE, Charset.forName("UTF-32LE"), Charset.forName("UTF-32BE")}) {
+			File file = writeFile("text-" + charset.name() + ".txt", text.repeat(50).getBytes(charset));
+			long expected = LineCountUtils.countLinesWithCharLookup(file, 4096, 0, charset);
+			for (long rangeSize : new long[]{1, 6, 16, 1000}) {
+				assertEquals(expected, LineCountUtils.countLinesWithParallelRangeLookup(file, 64, 0, charset, rangeSize));
+			}
+		}
+	}
+
+	@Test
+	void singlePassEncodingDetectionGivesSameResultsAsTwoPasses() throws IOException {
+		Random random = new Random(5);
+		String text = "int main() {\r\n\treturn 0; // \u00e9t\u00e9 \u4e2d\u6587\r}\n\n";
+		int n = 0;
+		for (Charset charset : new Charset[]{StandardCharsets.UTF_8, StandardCharsets.ISO_8859_1, StandardCharsets.UTF_16LE, StandardCharsets.UTF_16BE, Charset.forName("UTF-32LE"), Charset.forName("GB18030")}) {
+			for (int repeat : new int[]{0, 1, 30, 300}) {
+				byte[] bom = random.nextBoolean() ? "\ufeff".getBytes(charset) : new byte[0];
+				byte[] body = text.repeat(repeat).getBytes(charset);
+				byte[] content = new byte[bom.length + body.length];
+				System.arraycopy(bom, 0, content, 0, bom.length);
+				System.arraycopy(body, 0, content, bom.length, body.length);
+				assertSinglePassMatchesTwoPasses(writeFile("fused" + n++ + ".txt", content));
+			}
+		}
+		for (int i = 0; i != 20; ++i) {
+			assertSinglePassMatchesTwoPasses(writeFile("fused" + n++ + ".bin", randomBytesWithLineBreaks(random, random.nextInt(10000))));
+		}
+	}
+
+	void assertSinglePassMatchesTwoPasses(File file) throws IOException {
+		boolean[] isCertain = new boolean[1];
+		int[] bomLength = new int[1];
+		Charset encoding = FileEncodingUtils.getOrGuessEncoding(file, isCertain, bomLength);
+		Charset countingEncoding = encoding != null ? encoding : Charset.defaultCharset();
+		long expected = LineCountUtils.canSearchLineBreakAsByte(countingEncoding)
+				? LineCountUtils.countLinesWithByteLookup(file, 4096, bomLength[0], countingEncoding)
+				: LineCountUtils.countLinesWithCharLookup(file, 4096, bomLength[0], countingEncoding);
+
+		Charset[] fusedEncoding = new Charset[1];
+		boolean[] fusedIsCertain = new boolean[1];
+		int[] fusedBomLength = new int[1];
+		long lineCount = LineCountUtils.countLinesWithSinglePassEncodingDetection(file, file.length(), 4096, fusedEncoding, fusedIsCertain, fusedBomLength);
+		assertEquals(encoding, fusedEncoding[0]);
+		assertArrayEquals(isCertain, fusedIsCertain);
+		assertArrayEquals(bomLength, fusedBomLength);
+		assertEquals(expected, lineCount);
+	}
+
+	@Test
+	void charLookupGivesSameCountsAsDecodedString() throws IOException {
+		Random random = new Random(13);
+		String text = "a\r\n\u00e9\r\r\n\ud83d\ude00\n\u4e2d\n\r";
+		int n = 0;
+		for (Charset charset : new Charset[]{StandardCharsets.UTF_8, StandardCharsets.UTF_16LE, StandardCharsets.UTF_16BE, Charset.forName("UTF-32BE"), Charset.forName("GB18030")}) {
+			for (int i = 0; i != 10; ++i) {
+				// Valid text, then random bytes which are malformed in most encodings
+				byte[] content = i % 2 == 0
+						? text.repeat(random.nextInt(500)).getBytes(charset)
+						: randomBytesWithLineBreaks(random, random.nextInt(5000));
+				File file = writeFile("chars" + n++ + ".txt", content);
+				String decoded = new String(content, charset);
+				long expected = decoded.isEmpty() ? 0 : 1 + decoded.chars().filter(c -> c == '\r').count()
+						+ decoded.replace("\r\n", "\r").chars().filter(c -> c == '\n').count();
+				for (int bufferSize : new int[]{1, 7, 64, 4096}) {
+					assertEquals(expected, LineCountUtils.countLinesWithCharLookup(file, bufferSize, 0, charset));
+				}
+			}
+		}
+	}
+
+	@Test
+	void byteLookupUsingDirectBufferGivesSameCountsAsByteLookup() throws IOException {
+		Random random = new Random(17);
+		for (int n = 0; n != 20; ++n) {
+			File file = writeFile("direct" + n + ".txt", randomBytesWithLineBreaks(random, 1 + random.nextInt(20000)));
+			for (int bufferSize : new int[]{1, 7, 4096}) {
+				long expected = LineCountUtils.countLinesWithByteLookup(file, bufferSize, 0);
+				assertEquals(expected, LineCountUtils.countLinesWithByteLookupUsingFileChannel(file, bufferSize, 0, false));
+				assertEquals(expected, LineCountUtils.countLinesWithByteLookupUsingFileChannel(file, bufferSize, 0, true));
+			}
+		}
+	}
+
+	@Test
+	void pooledBuffersAreNotAllocatedForEachFile() throws IOException {
+		Random random = new Random(19);
+		List<File> files = new ArrayList<>();
+		for (int n = 0; n != 200; ++n) {
+			// Half of the files are UTF-16 encoded so that the char lookup is measured too
+			byte[] content = n % 2 == 0
+					? "int i = 0;\r\n".repeat(1000 + random.nextInt(1000)).getBytes(StandardCharsets.UTF_8)
+					: ("\ufeff" + "int i = 0;\r\n".repeat(1000 + random.nextInt(1000))).getBytes(StandardCharsets.UTF_16LE);
+			files.add(writeFile("pooled" + n + ".txt", content));
+		}
+		for (boolean singlePass : new boolean[]{false, true}) {
+			LineCountUtils lineCountUtils = new LineCountUtils();
+			lineCountUtils.setMeasureAllocatedBytes(true);
+			lineCountUtils.setSinglePassEncodingDetection(singlePass);
+			// The 1st counts warm the pool and the JIT up (the Vector API allocates its vectors
+			// until compiled), so the smallest measure is the one of the steady state
+			long lineCount = lineCountUtils.countCodeLines(files, null);
+			// Skipped rather than passed on JVMs that cannot measure the bytes allocated by each thread
+			assumeTrue(lineCountUtils.getLastResult().getNbOfAllocatedBytes() != null, "per-thread allocation not measurable");
+			long minNbOfAllocatedBytesPerFile = Long.MAX_VALUE;
+			for (int i = 0; i != 20; ++i) {
+				assertEquals(lineCount, lineCountUtils.countCodeLines(files, null));
+				minNbOfAllocatedBytesPerFile = Math.min(minNbOfAllocatedBytesPerFile, lineCountUtils.getLastResult().getNbOfAllocatedBytes() / files.size());
+			}
+			// Each file used to allocate at least a read buffer of 4 KB, and 16 KB more
+			// for the InputStreamReader and the char[] of the char lookup
+			assertTrue(minNbOfAllocatedBytesPerFile < 4096, "bytes allocated per file: " + minNbOfAllocatedBytesPerFile);
+		}
+	}
+
+	@Test
+	void dedicatedExecutorGivesSameCountsAsCommonPoolLargestFilesFirst() throws IOException {
+		Random random = new Random(31);
+		List<File> files = new ArrayList<>();
+		for (int n = 0; n != 100; ++n) {
+			files.add(writeFile("scheduled" + n + ".txt", randomBytesWithLineBreaks(random, random.nextInt(30000))));
+		}
+		files.add(tempDir.resolve("missing.txt").toFile());
+
+		LineCountUtils.SizedFile[] sizedFiles = LineCountUtils.sortByDescendingLength(files);
+		assertEquals(files.size() - 1, sizedFiles.length);
+		for (int i = 1; i != sizedFiles.length; ++i) {
+			assertTrue(sizedFiles[i - 1].length >= sizedFiles[i].length);
+		}
+
+		long expected = new LineCountUtils().countCodeLines(files, null);
+		LineCountUtils withThreadCount = new LineCountUtils();
+		withThreadCount.setCountingThreadCount(3);
+		assertEquals(expected, withThreadCount.countCodeLines(files, null));
+		assertTrue(withThreadCount.getLastResult().getTailWaitNanos() <= withThreadCount.getLastResult().getCountingDurationNanos());
+
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			LineCountUtils withExecutor = new LineCountUtils();
+			withExecutor.setCountingExecutor(executor);
+			assertEquals(expected, withExecutor.countCodeLines(files, null));
+			// The supplied executor is left running, so it can be reused
+			assertEquals(expected, withExecutor.countCodeLines(files, null));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	// Simulates a network share where reading each file costs a round-trip
+	static class SlowFilesystemLineCountUtils extends LineCountUtils {
+		@Override
+		protected long countFileLines(File file, long fileLength, int bomLength, Charset fileEncoding) throws IOException {
+			try {
+				Thread.sleep(20);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return super.countFileLines(file, fileLength, bomLength, fileEncoding);
+		}
+	}
+
+	// Simulates a network share where opening each file, for getting its encoding, costs a round-trip
+	// that is not CPU, and so is not bounded by the number of cores when ioConcurrency is set
+	static class HighLatencyFilesystemLineCountUtils extends LineCountUtils {
+		@Override
+		protected Charset getFileEncoding(File file, long fileLength, boolean[] isEncodingCertain, int[] bomLength, boolean[] isBinary, float[] encodingConfidence) throws IOException {
+			try {
+				Thread.sleep(20);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return super.getFileEncoding(file, fileLength, isEncodingCertain, bomLength, isBinary, encodingConfidence);
+		}
+	}
+
+	@Test
+	void virtualThreadsCountAsManyLinesOnSlowFilesystem() throws IOException {
+		Random random = new Random(37);
+		List<File> files = new ArrayList<>();
+		for (int n = 0; n != 100; ++n) {
+			files.add(writeFile("slow" + n + ".txt", randomBytesWithLineBreaks(random, random.nextInt(10000))));
+		}
+		LineCountUtils platformThreads = new SlowFilesystemLineCountUtils();
+		long expected = platformThreads.countCodeLines(files, null);
+		LineCountUtils virtualThreads = new SlowFilesystemLineCountUtils();
+		virtualThreads.setIoConcurrency(files.size());
+		assertEquals(expected, virtualThreads.countCodeLines(files, null));
+		assertEquals(files.size(), virtualThreads.getLastResult().getNbOfFilesInSuccess());
+	}
+
+	@Test
+	void ioConcurrencyOutpacesParallelStreamOnHighLatencyFilesystem() throws IOException {
+		Random random = new Random(97);
+		List<File> files = new ArrayList<>();
+		// As many files as 20 rounds of 20 ms for the threads of the ForkJoin common pool
+		for (int n = 0; n != 20 * Runtime.getRuntime().availableProcessors(); ++n) {
+			files.add(writeFile("latency" + n + ".txt", randomBytesWithLineBreaks(random, random.nextInt(10000))));
+		}
+		LineCountUtils parallelStream = new HighLatencyFilesystemLineCountUtils();
+		long expected = parallelStream.countCodeLines(files, null);
+		LineCountUtils ioConcurrency = new HighLatencyFilesystemLineCountUtils();
+		ioConcurrency.setIoConcurrency(files.size());
+		assertEquals(expected, ioConcurrency.countCodeLines(files, null));
+
+		double parallelStreamFilesPerSecond = files.size() * 1e9 / parallelStream.getLastResult().getCountingDurationNanos();
+		double ioConcurrencyFilesPerSecond = files.size() * 1e9 / ioConcurrency.getLastResult().getCountingDurationNanos();
+		// Generous threshold: the files are opened in 1 round (at most 5 rounds of 256 platform threads
+		// on 64 cores without virtual threads) instead of 20, which makes a ratio of 4 at least
+		assertTrue(ioConcurrencyFilesPerSecond >= 2 * parallelStreamFilesPerSecond,
+				String.format("ioConcurrency: %.0f files/s, parallelStream: %.0f files/s", ioConcurrencyFilesPerSecond, parallelStreamFilesPerSecond));
+	}
+
+	@Test
+	void lineCountCacheCountsOnlyModifiedFilesAgain() throws IOException {
+		Random random = new Random(41);
+		List<File> files = new ArrayList<>();
+		for (int n = 0; n != 50; ++n) {
+			files.add(writeFile("cached" + n + ".txt", randomBytesWithLineBreaks(random, random.nextInt(10000))));
+		}
+		files.add(writeFile("cached-utf16.txt", "\ufeffa\r\nb\nc\r".getBytes(StandardCharsets.UTF_16LE)));
+		Path cacheFile = tempDir.resolve("line-counts.cache");
+
+		LineCountUtils firstRun = new LineCountUtils();
+		firstRun.setLineCountCacheFile(cacheFile);
+		long expected = firstRun.countCodeLines(files, null);
+		assertEquals(0, firstRun.getLastResult().getNbOfCacheHits());
+		assertEquals(files.size(), LineCountCache.load(cacheFile, LineCountUtils.LineCountingMethod.CHAR_OR_BYTE_LOOKUP).size());
+
+		LineCountUtils secondRun = new LineCountUtils();
+		secondRun.setLineCountCacheFile(cacheFile);
+		assertEquals(expected, secondRun.countCodeLines(files, null));
+		assertEquals(files.size(), secondRun.getLastResult().getNbOfCacheHits());
+
+		// A modified file is counted again, the others being still taken from the cache
+		File modifiedFile = files.get(0);
+		long modifiedFileLineCount = new LineCountUtils().countCodeLines(List.of(modifiedFile), null);
+		Files.write(modifiedFile.toPath(), "1\n2\n3".getBytes(StandardCharsets.US_ASCII));
+		Files.setLastModifiedTime(modifiedFile.toPath(), FileTime.fromMillis(modifiedFile.lastModified() + 2000));
+		LineCountUtils thirdRun = new LineCountUtils();
+		thirdRun.setLineCountCacheFile(cacheFile);
+		assertEquals(expected - modifiedFileLineCount + 3, thirdRun.countCodeLines(files, null));
+		assertEquals(files.size() - 1, thirdRun.getLastResult().getNbOfCacheHits());
+
+		LineCountCache.Entry entry = LineCountCache.load(cacheFile, LineCountUtils.LineCountingMethod.CHAR_OR_BYTE_LOOKUP)
+				.get(files.get(files.size() - 1).getAbsolutePath(), files.get(files.size() - 1).length(), files.get(files.size() - 1).lastModified());
+		assertEquals(StandardCharsets.UTF_16LE, entry.getEncoding());
+		assertEquals(2, entry.getBomLength());
+		assertEquals(4, entry.getLineCount());
+	}
+
+	@Test
+	void treeWalkGivesSameCountsAsFileCollection() throws IOException {
+		Random random = new Random(43);
+		List<File> files = new ArrayList<>();
+		for (int n = 0; n != 60; ++n) {
+			Path directory = tempDir.resolve("tree").resolve("d" + n % 4).resolve("e" + n % 3);
+			Files.createDirectories(directory);
+			Path file = directory.resolve("walked" + n + ".txt");
+			Files.write(file, randomBytesWithLineBreaks(random, random.nextInt(10000)));
+			files.add(file.toFile());
+		}
+		Files.createDirectories(tempDir.resolve("tree").resolve("empty"));
+
+		LineCountUtils fromCollection = new LineCountUtils();
+		long expected = fromCollection.countCodeLines(files, null);
+		LineCountUtils fromTree = new LineCountUtils();
+		// A queue shorter than the number of files makes the walk wait for the counting threads
+		fromTree.setWalkedFileQueueCapacity(2);
+		fromTree.setWalkingThreadCount(3);
+		fromTree.setCountingThreadCount(2);
+		assertEquals(expected, fromTree.countCodeLines(tempDir.resolve("tree"), null));
+		assertEquals(fromCollection.getLastResult().getNbOfProcessedBytes(), fromTree.getLastResult().getNbOfProcessedBytes());
+
+		File singleFile = files.get(7);
+		assertEquals(new LineCountUtils().countCodeLines(List.of(singleFile), null), new LineCountUtils().countCodeLines(singleFile.toPath(), null));
+	}
+
+	@Test
+	void perLanguageCountsAddUpToCountsOfEachLanguage() throws IOException {
+		Random random = new Random(47);
+		Map<String, List<File>> filesPerLanguage = new HashMap<>();
+		for (String language : List.of("Java", "C", "Python")) {
+			List<File> files = new ArrayList<>();
+			for (int n = 0; n != 20; ++n) {
+				files.add(writeFile(language + n + ".src", randomBytesWithLineBreaks(random, random.nextInt(10000))));
+			}
+			filesPerLanguage.put(language, files);
+		}
+		// A file listed for 2 languages counts for each of them, whereas it is counted once overall
+		filesPerLanguage.get("C").add(filesPerLanguage.get("Java").get(0));
+		filesPerLanguage.get("Python").add(tempDir.resolve("missing.py").toFile());
+
+		LineCountUtils lineCountUtils = new LineCountUtils();
+		LanguageLineCountResult languageLineCountResult = lineCountUtils.countCodeLinesPerLanguage(filesPerLanguage, null);
+		Map<String, LineCountUtils.LanguageLineCount> languageLineCounts = languageLineCountResult.getLanguageLineCounts();
+		assertEquals(filesPerLanguage.keySet(), languageLineCounts.keySet());
+		long sumOfBytes = 0;
+		for (Map.Entry<String, List<File>> entry : filesPerLanguage.entrySet()) {
+			LineCountUtils expected = new LineCountUtils();
+			LineCountUtils.LanguageLineCount languageLineCount = languageLineCounts.get(entry.getKey());
+			assertEquals(expected.countCodeLines(entry.getValue(), null), languageLineCount.getNbOfLines());
+			assertEquals(expected.getLastResult().getNbOfProcessedBytes(), languageLineCount.getNbOfBytes());
+			sumOfBytes += languageLineCount.getNbOfBytes();
+		}
+		File sharedFile = filesPerLanguage.get("Java").get(0);
+		assertEquals(sumOfBytes - sharedFile.length(), languageLineCountResult.getLineCountResult().getNbOfProcessedBytes());
+		assertEquals(3 * 20, languageLineCountResult.getLineCountResult().getNbOfFilesInSuccess());
+		assertEquals(21, languageLineCounts.get("C").getNbOfFiles());
+		assertEquals(20, languageLineCounts.get("Python").getNbOfFiles());
+	}
+
+	@Test
+	void estimateIsWithinMarginOfErrorOfExactCount() throws IOException {
+		Random random = new Random(53);
+		List<File> files = new ArrayList<>();
+		String[] extensions = { "java", "xml", "sql" };
+		for (int n = 0; n != 600; ++n) {
+			// Lines of about the same length per extension, as in source files
+			int lineLength = 20 + 30 * (n % 3) + random.nextInt(10);
+			int nbOfLines = 1 + random.nextInt(random.nextBoolean() ? 50 : 500);
+			files.add(writeFile("estimated" + n + "." + extensions[n % 3], ("x".repeat(lineLength) + "\n").repeat(nbOfLines).getBytes(StandardCharsets.US_ASCII)));
+		}
+		long exactCount = new LineCountUtils().countCodeLines(files, null);
+
+		LineCountUtils lineCountUtils = new LineCountUtils();
+		lineCountUtils.setSamplingSeed(59L);
+		LineCountEstimate estimate = lineCountUtils.estimateCodeLines(files, 0.05, 60_000);
+		assertTrue(estimate.getRelativeError() <= 0.05, "relative error: " + estimate.getRelativeError());
+		assertTrue(estimate.getNbOfSampledFiles() < files.size(), "sampled files: " + estimate.getNbOfSampledFiles());
+		assertTrue(estimate.getLowerBound() <= exactCount && exactCount <= estimate.getUpperBound(),
+				String.format("exact count %d not in [%d, %d]", exactCount, estimate.getLowerBound(), estimate.getUpperBound()));
+
+		// No error can be reached only by counting all the files
+		LineCountEstimate exactEstimate = lineCountUtils.estimateCodeLines(files, 0, 60_000);
+		assertTrue(exactEstimate.isExact());
+		assertEquals(exactCount, exactEstimate.getLineCount());
+		assertEquals(0, exactEstimate.getMarginOfError());
+
+		// The samples are counted by the threads of the same modes as countCodeLines(...)
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			LineCountUtils withExecutor = new LineCountUtils();
+			withExecutor.setSamplingSeed(59L);
+			withExecutor.setCountWorkingThreads(true);
+			withExecutor.setCountingExecutor(executor);
+			assertEquals(estimate, withExecutor.estimateCodeLines(files, 0.05, 60_000));
+			assertTrue(withExecutor.getLastResult().getNbOfWorkingThreads() <= 2);
+		} finally {
+			executor.shutdown();
+		}
+		LineCountUtils withIoConcurrency = new LineCountUtils();
+		withIoConcurrency.setSamplingSeed(59L);
+		withIoConcurrency.setIoConcurrency(8);
+		assertEquals(exactCount, withIoConcurrency.estimateCodeLines(files, 0, 60_000).getLineCount());
+	}
+
+	@Test
+	void incompatibleOptionsAreRejectedRatherThanIgnored() throws IOException {
+		File file = writeFile("options.txt", "a\nb\n".getBytes(StandardCharsets.US_ASCII));
+		List<File> files = List.of(file);
+		LineCountUtils withIoConcurrencyAndThreadCount = new LineCountUtils();
+		withIoConcurrencyAndThreadCount.setIoConcurrency(8);
+		withIoConcurrencyAndThreadCount.setCountingThreadCount(2);
+		assertThrows(IllegalStateException.class, () -> withIoConcurrencyAndThreadCount.countCodeLines(files, null));
+		assertThrows(IllegalStateException.class, () -> withIoConcurrencyAndThreadCount.countCodeLines(tempDir, null));
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			LineCountUtils withIoConcurrencyAndExecutor = new LineCountUtils();
+			withIoConcurrencyAndExecutor.setIoConcurrency(8);
+			withIoConcurrencyAndExecutor.setCountingExecutor(executor);
+			assertThrows(IllegalStateException.class, () -> withIoConcurrencyAndExecutor.estimateCodeLines(files, 0.01, 60_000));
+		} finally {
+			executor.shutdown();
+		}
+
+		// The ranges of big files are counted by their own method only
+		for (LineCountUtils.LineCountingMethod method : LineCountUtils.LineCountingMethod.values()) {
+			LineCountUtils withRanges = new LineCountUtils();
+			withRanges.setLineCountingMethod(method);
+			withRanges.setIntraFileParallelismThreshold(1L);
+			withRanges.setIntraFileRangeSize(1L);
+			if (method == LineCountUtils.LineCountingMethod.CHAR_OR_BYTE_LOOKUP || method == LineCountUtils.LineCountingMethod.VECTORIZED_BYTE_LOOKUP) {
+				assertEquals(3, withRanges.countCodeLines(files, null), method.name());
+			} else {
+				assertThrows(IllegalStateException.class, () -> withRanges.countCodeLines(files, null), method.name());
+			}
+		}
+	}
+
+	@Test
+	void cancelledCountIsPartial() throws IOException {
+		Random random = new Random(61);
+		List<File> files = new ArrayList<>();
+		for (int n = 0; n != 50; ++n) {
+			files.add(writeFile("cancelled" + n + ".txt", randomBytesWithLineBreaks(random, 1000 + random.nextInt(10000))));
+		}
+		LineCountUtils complete = new LineCountUtils();
+		long expected = complete.countCodeLines(files, null);
+		assertEquals(LineCountUtils.CountingOutcome.COMPLETE, complete.getLastResult().getCountingOutcome());
+
+		LineCountUtils withThreshold = new LineCountUtils();
+		withThreshold.setCountingThreadCount(2);
+		long partialCount = withThreshold.countCodeLines(files, expected / 10);
+		assertTrue(partialCount >= expected / 10 && partialCount < expected);
+		assertEquals(LineCountUtils.CountingOutcome.THRESHOLD_REACHED, withThreshold.getLastResult().getCountingOutcome());
+
+		CancellationToken cancelledToken = new CancellationToken();
+		cancelledToken.cancel();
+		LineCountUtils cancelled = new LineCountUtils();
+		cancelled.setCancellationToken(cancelledToken);
+		assertEquals(0, cancelled.countCodeLines(files, null));
+		assertEquals(LineCountUtils.CountingOutcome.CANCELLED, cancelled.getLastResult().getCountingOutcome());
+		assertEquals(0, cancelled.getLastResult().getNbOfProcessedBytes());
+
+		LineCountUtils withDeadline = new LineCountUtils();
+		withDeadline.setCancellationToken(CancellationToken.withTimeout(0));
+		assertEquals(0, withDeadline.countCodeLines(tempDir, null));
+		assertEquals(LineCountUtils.CountingOutcome.DEADLINE_EXCEEDED, withDeadline.getLastResult().getCountingOutcome());
+
+		// The reading of a file stops at the next buffer once the token of the thread is cancelled
+		CancellationToken previousToken = CancellationToken.setCurrent(cancelledToken);
+		try {
+			File file = files.get(0);
+			assertThrows(CancellationException.class, () -> LineCountUtils.countLinesWithVectorizedByteLookup(file, 4096, 0));
+			assertThrows(CancellationException.class, () -> LineCountUtils.countLinesWithCharLookup(file, 4096, 0, StandardCharsets.UTF_8));
+			assertThrows(CancellationException.class, () -> LineCountUtils.countLinesWithParallelRangeLookup(file, 256, 0, StandardCharsets.ISO_8859_1, 512));
+		} finally {
+			CancellationToken.setCurrent(previousToken);
+		}
+	}
+
+	@Test
+	void progressIsReportedPeriodicallyAndOnceDone() throws IOException {
+		Random random = new Random(67);
+		List<File> files = new ArrayList<>();
+		for (int n = 0; n != 40; ++n) {
+			files.add(writeFile("progress" + n + ".txt", randomBytesWithLineBreaks(random, random.nextInt(10000))));
+		}
+		List<LineCountingProgress> snapshots = new CopyOnWriteArrayList<>();
+		LineCountUtils lineCountUtils = new SlowFilesystemLineCountUtils();
+		lineCountUtils.setCountingThreadCount(2);
+		lineCountUtils.setProgressListener(snapshots::add);
+		lineCountUtils.setProgressReportIntervalMillis(50);
+		long lineCount = lineCountUtils.countCodeLines(files, null);
+
+		assertTrue(snapshots.size() >= 2, "snapshots: " + snapshots.size());
+		LineCountingProgress lastSnapshot = snapshots.get(snapshots.size() - 1);
+		assertTrue(lastSnapshot.isDone());
+		assertEquals(lineCount, lastSnapshot.getNbOfLines());
+		assertEquals(files.size(), lastSnapshot.getNbOfProcessedFiles());
+		assertEquals(lineCountUtils.getLastResult().getNbOfProcessedBytes(), lastSnapshot.getNbOfBytesToProcess());
+		assertEquals(0, lastSnapshot.getNbOfActiveThreads());
+		assertEquals(0, lastSnapshot.getEtaNanos());
+		// Reading each file takes 20 ms on this filesystem
+		assertTrue(lastSnapshot.getLineCountingNanos() >= files.size() * 20_000_000L);
+		for (int i = 1; i != snapshots.size(); ++i) {
+			assertTrue(snapshots.get(i - 1).getNbOfProcessedFiles() <= snapshots.get(i).getNbOfProcessedFiles());
+			assertFalse(snapshots.get(i - 1).isDone());
+		}
+		LineCountingProgress firstSnapshot = snapshots.get(0);
+		assertTrue(firstSnapshot.getNbOfProcessedFiles() < files.size() && firstSnapshot.getEtaNanos() > 0,
+				String.format("%d files, ETA %d ns", firstSnapshot.getNbOfProcessedFiles(), firstSnapshot.getEtaNanos()));
+	}
+
+	@Test
+	void concurrentScansOnSharedExecutorGetTheirOwnResults() throws Exception {
+		Random random = new Random(71);
+		List<List<File>> fileSets = new ArrayList<>();
+		for (int set = 0; set != 4; ++set) {
+			List<File> files = new ArrayList<>();
+			for (int n = 0; n != 10 + 10 * set; ++n) {
+				files.add(writeFile("concurrent" + set + "-" + n + ".txt", randomBytesWithLineBreaks(random, random.nextInt(10000))));
+			}
+			fileSets.add(files);
+		}
+		// A directory cannot be read, and so is a failure of the 2nd scan only
+		File directory = Files.createDirectory(tempDir.resolve("unreadable.txt")).toFile();
+		fileSets.get(1).add(directory);
+
+		List<LineCountResult> expected = new ArrayList<>();
+		for (List<File> files : fileSets) {
+			expected.add(new LineCountUtils().scanCodeLines(files, null));
+		}
+
+		ExecutorService countingExecutor = Executors.newFixedThreadPool(2);
+		ExecutorService scanningThreads = Executors.newFixedThreadPool(fileSets.size());
+		try {
+			LineCountUtils lineCountUtils = new LineCountUtils();
+			lineCountUtils.setCountingExecutor(countingExecutor);
+			lineCountUtils.setBuildEncodingStatistics(true);
+			List<Future<LineCountResult>> results = new ArrayList<>();
+			for (List<File> files : fileSets) {
+				results.add(scanningThreads.submit(() -> lineCountUtils.scanCodeLines(files, null)));
+			}
+			for (int set = 0; set != fileSets.size(); ++set) {
+				LineCountResult result = results.get(set).get();
+				assertEquals(expected.get(set).getLineCount(), result.getLineCount());
+				assertEquals(expected.get(set).getNbOfProcessedBytes(), result.getNbOfProcessedBytes());
+				assertEquals(expected.get(set).getNbOfFilesInSuccess(), result.getNbOfFilesInSuccess());
+				assertEquals(LineCountUtils.CountingOutcome.COMPLETE, result.getCountingOutcome());
+				assertEquals(result.getNbOfFilesInSuccess(), result.getNbOfFilesPerEncoding().values().stream().mapToInt(Integer::intValue).sum());
+			}
+			assertEquals(1, results.get(1).get().getFailures().size());
+			assertEquals(directory, results.get(1).get().getFailures().get(0).getFile());
+			assertTrue(results.get(0).get().getFailures().isEmpty());
+			assertThrows(UnsupportedOperationException.class, () -> results.get(0).get().getNbOfFilesPerGuessedEncoding().clear());
+		} finally {
+			scanningThreads.shutdown();
+			countingExecutor.shutdown();
+		}
+	}
+
+	@Test
+	void columnarFileHoldsRecordOfEachFile() throws IOException {
+		Random random = new Random(73);
+		List<File> files = new ArrayList<>();
+		for (int n = 0; n != 300; ++n) {
+			Path directory = Files.createDirectories(tempDir.resolve("columnar").resolve("d" + n / 50));
+			byte[] content = n % 10 == 0
+					? ("\ufeff" + "int i = 0;\n".repeat(random.nextInt(100))).getBytes(StandardCharsets.UTF_16BE)
+					: randomBytesWithLineBreaks(random, random.nextInt(5000));
+			files.add(Files.write(directory.resolve("columnar" + n + ".txt"), content).toFile());
+		}
+		File directory = Files.createDirectory(tempDir.resolve("columnar").resolve("unreadable.txt")).toFile();
+		files.add(directory);
+
+		// Small batches so that the records are split into several blocks
+		Path columnarFile = tempDir.resolve("line-counts.lcr");
+		LineCountUtils lineCountUtils = new LineCountUtils();
+		LineCountResult result;
+		try (ColumnarLineCountWriter writer = new ColumnarLineCountWriter(columnarFile, 64)) {
+			lineCountUtils.setFileLineCountSink(writer);
+			lineCountUtils.setBuildEncodingStatistics(true);
+			result = lineCountUtils.scanCodeLines(files, null);
+		}
+
+		try (ColumnarLineCountReader reader = ColumnarLineCountReader.open(columnarFile)) {
+			assertEquals(files.size(), reader.getNbOfRecords());
+			ColumnarLineCountReader.Summary summary = reader.summarize();
+			assertEquals(files.size(), summary.getNbOfFiles());
+			assertEquals(1, summary.getNbOfFailedFiles());
+			assertEquals(result.getLineCount(), summary.getLineCount());
+			assertEquals(result.getNbOfProcessedBytes(), summary.getNbOfBytes());
+			result.getNbOfFilesPerEncoding().forEach((encodingName, nbOfFiles) -> assertEquals(nbOfFiles.longValue(), summary.getNbOfFilesPerEncoding().get(encodingName)));
+			assertEquals(result.getNbOfFilesPerEncoding().size(), summary.getNbOfFilesPerEncoding().size());
+
+			Map<File, Long> lineCounts = new HashMap<>();
+			Map<String, Double> confidenceSums = new HashMap<>();
+			reader.forEach((file, fileLength, encoding, isEncodingCertain, encodingConfidence, bomLength, lineCount, durationNanos) -> {
+				assertEquals(file.length(), fileLength);
+				assertTrue(durationNanos >= 0);
+				if (file.getName().matches("columnar[0-9]*0\\.txt")) {
+					assertEquals(StandardCharsets.UTF_16BE, encoding);
+					assertTrue(isEncodingCertain);
+					assertEquals(1f, encodingConfidence);
+					assertEquals(2, bomLength);
+				}
+				if (lineCount >= 0) {
+					confidenceSums.merge(encoding != null ? encoding.name() : LineCountUtils.NAME_FOR_UNKNOWN_ENCODINGS, (double) encodingConfidence, Double::sum);
+				} else {
+					assertEquals(0f, encodingConfidence);
+				}
+				lineCounts.put(file, lineCount);
+			});
+			assertEquals(files.size(), lineCounts.size());
+			assertEquals(confidenceSums.keySet(), result.getMeanConfidencePerEncoding().keySet());
+			result.getMeanConfidencePerEncoding().forEach((encodingName, meanConfidence) ->
+					assertEquals(confidenceSums.get(encodingName) / result.getNbOfFilesPerEncoding().get(encodingName), meanConfidence, 1e-4, encodingName));
+			assertEquals(-1L, lineCounts.get(directory.getAbsoluteFile()));
+			for (int n = 0; n < files.size() - 1; n += 37) {
+				File file = files.get(n);
+				assertEquals(new LineCountUtils().countCodeLines(List.of(file), null), lineCounts.get(file.getAbsoluteFile()));
+			}
+		}
+	}
+
+	@Test
+	void lineMetricsAddUpToExactLineCount() throws IOException {
+		Random random = new Random(79);
+		List<File> files = new ArrayList<>();
+		for (int n = 0; n != 60; ++n) {
+			byte[] content = n % 3 == 0
+					? ("\ufeff" + "/* a */ int i; // b\r\n\n".repeat(random.nextInt(200))).getBytes(StandardCharsets.UTF_16BE)
+					: randomBytesWithLineBreaks(random, random.nextInt(10000));
+			files.add(writeFile("metrics" + n + (n % 2 == 0 ? ".java" : ".py"), content));
+		}
+		files.add(writeFile("metrics-empty.java", new byte[0]));
+		long expected = new LineCountUtils().countCodeLines(files, null);
+
+		LineCountUtils lineCountUtils = new LineCountUtils();
+		lineCountUtils.setCountLineMetrics(true);
+		LineCountResult result = lineCountUtils.scanCodeLines(files, null);
+		assertEquals(expected, result.getLineCount());
+		LineMetrics lineMetrics = result.getLineMetrics();
+		assertEquals(expected, lineMetrics.getNbOfLines());
+		assertEquals(expected - (files.size() - 1), lineMetrics.getNbOfCrLfTerminators() + lineMetrics.getNbOfLfTerminators() + lineMetrics.getNbOfCrTerminators());
+		assertTrue(lineMetrics.getNbOfCommentLines() != 0 && lineMetrics.getNbOfCodeLines() != 0);
+	}
+
+	@Test
+	void duplicatesAreCountedOnceAndAttributedToEveryPath() throws IOException {
+		Random random = new Random(83);
+		List<File> files = new ArrayList<>();
+		List<File> uniqueFiles = new ArrayList<>();
+		for (int n = 0; n != 20; ++n) {
+			File file = writeFile("dedupe" + n + ".txt", randomBytesWithLineBreaks(random, 1000 + random.nextInt(5000)));
+			files.add(file);
+			uniqueFiles.add(file);
+			// Copies, hard links and symbolic links of every other file
+			if (n % 2 == 0) {
+				files.add(writeFile("dedupe" + n + "-copy.txt", Files.readAllBytes(file.toPath())));
+				files.add(Files.createLink(tempDir.resolve("dedupe" + n + "-link.txt"), file.toPath()).toFile());
+				files.add(Files.createSymbolicLink(tempDir.resolve("dedupe" + n + "-symlink.txt"), file.toPath()).toFile());
+			}
+		}
+		// Same length as dedupe0.txt but another content
+		byte[] sameLengthContent = Files.readAllBytes(files.get(0).toPath());
+		sameLengthContent[0] ^= 1;
+		File sameLengthFile = writeFile("dedupe-same-length.txt", sameLengthContent);
+		files.add(sameLengthFile);
+		uniqueFiles.add(sameLengthFile);
+		LineCountResult expected = new LineCountUtils().scanCodeLines(files, null);
+
+		LineCountUtils lineCountUtils = new LineCountUtils();
+		lineCountUtils.setDeduplicateFiles(true);
+		List<File> countedFiles = new CopyOnWriteArrayList<>();
+		lineCountUtils.setFileLineCountSink((file, fileLength, encoding, isEncodingCertain, encodingConfidence, bomLength, lineCount, durationNanos) -> countedFiles.add(file));
+		LineCountResult result = lineCountUtils.scanCodeLines(files, null);
+		assertEquals(expected.getLineCount(), result.getLineCount());
+		assertEquals(expected.getNbOfProcessedBytes(), result.getNbOfProcessedBytes());
+		assertEquals(files.size(), result.getNbOfFilesInSuccess());
+		assertEquals(files.size(), countedFiles.size());
+		assertEquals(files.size() - uniqueFiles.size(), result.getNbOfDuplicateFiles());
+		long uniqueLineCount = new LineCountUtils().countCodeLines(uniqueFiles, null);
+		assertEquals(result.getLineCount() - uniqueLineCount, result.getNbOfDuplicateLines());
+		assertEquals(result.getNbOfProcessedBytes() - uniqueFiles.stream().mapToLong(File::length).sum(), result.getNbOfSkippedBytes());
+
+		// Each path of a language gets the lines of its file
+		Map<String, LineCountUtils.LanguageLineCount> languageLineCounts = lineCountUtils.countCodeLinesPerLanguage(
+				Map.of("all", files, "links", files.subList(2, 4)), null).getLanguageLineCounts();
+		assertEquals(expected.getLineCount(), languageLineCounts.get("all").getNbOfLines());
+		assertEquals(2, languageLineCounts.get("links").getNbOfFiles());
+		assertEquals(2 * new LineCountUtils().countCodeLines(files.subList(0, 1), null), languageLineCounts.get("links").getNbOfLines());
+	}
+
+	@Test
+	void ignoredSubtreesAndBinaryFilesAreLeftOut() throws IOException {
+		Path root = tempDir.resolve("pruned");
+		List<File> expectedFiles = new ArrayList<>();
+		for (String path : List.of("src/A.java", "src/B.py", "keep.log", "sub/generated/h.java")) {
+			Path file = root.resolve(path);
+			Files.createDirectories(file.getParent());
+			expectedFiles.add(Files.writeString(file, "int a;\n".repeat(path.length())).toFile());
+		}
+		expectedFiles.add(Files.writeString(root.resolve(".gitignore"), "# logs\n*.log\n!keep.log\n/generated/\n").toFile());
+		expectedFiles.add(Files.writeString(root.resolve("sub/.gitignore"), "h[0-9].java\n").toFile());
+		for (String path : List.of("node_modules/lib/x.js", "build/out.txt", "app.log", "generated/g.java", "sub/h2.java")) {
+			Path file = root.resolve(path);
+			Files.createDirectories(file.getParent());
+			Files.writeString(file, "ignored\n".repeat(100));
+		}
+		// PNG header, whose extension does not tell it is binary
+		byte[] image = new byte[2000];
+		new Random(89).nextBytes(image);
+		System.arraycopy(new byte[]{(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n', 0, 0, 0, 0x0D}, 0, image, 0, 12);
+		Files.write(root.resolve("src/image.dat"), image);
+
+		long expected = new LineCountUtils().countCodeLines(expectedFiles, null);
+		for (boolean singlePassEncodingDetection : new boolean[]{false, true}) {
+			LineCountUtils lineCountUtils = new LineCountUtils();
+			lineCountUtils.setSinglePassEncodingDetection(singlePassEncodingDetection);
+			lineCountUtils.setIgnoreRules(IgnoreRules.VENDOR_AND_BUILD_OUTPUT);
+			lineCountUtils.setReadGitignoreFiles(true);
+			lineCountUtils.setSkipBinaryFiles(true);
+			LineCountResult result = lineCountUtils.scanCodeLines(root, null);
+			assertEquals(expected, result.getLineCount());
+			assertEquals(expectedFiles.size(), result.getNbOfFilesInSuccess());
+			assertEquals(5, result.getNbOfIgnoredPaths());
+			assertEquals(1, result.getNbOfBinaryFiles());
+			assertEquals(image.length, result.getNbOfBinaryBytes());
+			assertTrue(result.isComplete());
+		}
+	}
+
+	@Test
+	void encodingIsGuessedFromMoreWindowsWhenTheSampleIsAscii() throws IOException {
+		String header = "// Licensed under the Apache License, Version 2.0\n".repeat(60);
+		String body = "String s = \"Привет, 世界, déjà vu\";\n".repeat(500);
+		String footer = "}\n".repeat(100);
+
+		// An ASCII header (and footer) followed by UTF-8: the middle window tells the encoding
+		File utf8File = writeFile("header-utf8.java", (header + body + footer).getBytes(StandardCharsets.UTF_8));
+		boolean[] isCertain = {false};
+		float[] confidence = {-1f};
+		assertEquals(StandardCharsets.UTF_8, FileEncodingUtils.getOrGuessEncoding(utf8File, isCertain, null, null, confidence));
+		assertTrue(isCertain[0]);
+		assertTrue(confidence[0] >= 0.99f, String.valueOf(confidence[0]));
+		assertSinglePassMatchesTwoPasses(utf8File);
+
+		// The same without its header is guessed from its 1st window only, with the same certainty
+		File headlessFile = writeFile("headless-utf8.java", (body + footer).getBytes(StandardCharsets.UTF_8));
+		assertEquals(StandardCharsets.UTF_8, FileEncodingUtils.getOrGuessEncoding(headlessFile, isCertain, null, null, confidence));
+		assertTrue(isCertain[0]);
+
+		// An ASCII header followed by legacy encodings, which must not be taken for UTF-8
+		for (Charset charset : List.of(Charset.forName("GB18030"), Charset.forName("windows-1251"), StandardCharsets.ISO_8859_1)) {
+			String legacyBody = charset.name().equals("GB18030") ? "String s = \"你好，世界\";\n".repeat(500)
+					: charset.name().equals("windows-1251") ? "String s = \"Привет, мир\";\n".repeat(500)
+					: "String s = \"Très élevé, à côté\";\n".repeat(500);
+			File legacyFile = writeFile("header-" + charset.name() + ".java", (header + legacyBody + footer).getBytes(charset));
+			Charset guessedEncoding = FileEncodingUtils.getOrGuessEncoding(legacyFile, isCertain, null, null, confidence);
+			assertNotEquals(StandardCharsets.UTF_8, guessedEncoding, charset.name());
+			// Same guess as from the body alone, which is never said certain
+			File bodyFile = writeFile("body-" + charset.name() + ".java", legacyBody.getBytes(charset));
+			assertEquals(FileEncodingUtils.getOrGuessEncoding(bodyFile, new boolean[1], null), guessedEncoding, charset.name());
+			assertFalse(isCertain[0]);
+			assertTrue(confidence[0] <= 0.5f);
+			assertSinglePassMatchesTwoPasses(legacyFile);
+		}
+
+		// A file that is ASCII everywhere it is sampled is UTF-8, all the more likely that it is small
+		File asciiFile = writeFile("ascii.java", (header + header + footer).getBytes(StandardCharsets.US_ASCII));
+		assertEquals(StandardCharsets.UTF_8, FileEncodingUtils.getOrGuessEncoding(asciiFile, isCertain, null, null, confidence));
+		assertFalse(isCertain[0]);
+		assertEquals(3.0f * 1024 / asciiFile.length(), confidence[0], 1e-6f);
+		assertSinglePassMatchesTwoPasses(asciiFile);
+
+		// Without a channel for reading more windows, the 1st window is all there is
+		byte[] bytes = Files.readAllBytes(utf8File.toPath());
+		assertEquals(StandardCharsets.UTF_8, FileEncodingUtils.getOrGuessEncoding(bytes, bytes.length, null, bytes.length + 1L, isCertain, null, null, confidence));
+		assertFalse(isCertain[0]);
+	}
+
+	@Test
+	void archiveEntriesAreCountedAsFiles() throws IOException {
+		Random random = new Random(97);
+		Map<String, byte[]> entries = new LinkedHashMap<>();
+		for (int n = 0; n != 40; ++n) {
+			entries.put("src/dir" + n % 3 + "/entry" + n + ".java", n % 5 == 0
+					? ("\ufeff" + "int i = 0;\r\n".repeat(random.nextInt(300))).getBytes(StandardCharsets.UTF_16LE)
+					: randomBytesWithLineBreaks(random, random.nextInt(20000)));
+		}
+		entries.put("empty.txt", new byte[0]);
+		entries.put("long/" + "name".repeat(40) + ".txt", "a\nb\n".getBytes(StandardCharsets.US_ASCII));
+		List<File> extractedFiles = new ArrayList<>();
+		for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+			Path file = tempDir.resolve("extracted").resolve(entry.getKey());
+			Files.createDirectories(file.getParent());
+			extractedFiles.add(Files.write(file, entry.getValue()).toFile());
+		}
+		long expected = new LineCountUtils().countCodeLines(extractedFiles, null);
+
+		Path zip = tempDir.resolve("archives").resolve("sources.zip");
+		Files.createDirectories(zip.getParent());
+		try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(zip))) {
+			out.putNextEntry(new ZipEntry("src/"));
+			for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+				out.putNextEntry(new ZipEntry(entry.getKey()));
+				out.write(entry.getValue());
+			}
+		}
+		Path tarGz = tempDir.resolve("archives").resolve("sources.tar.gz");
+		try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(tarGz))) {
+			ArchiveReaderTests.writeTarEntry(out, "src/", '5', new byte[0]);
+			for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+				if (entry.getKey().length() > 100) {
+					// GNU long name
+					ArchiveReaderTests.writeTarEntry(out, "././@LongLink", 'L', (entry.getKey() + "\0").getBytes(StandardCharsets.UTF_8));
+				}
+				ArchiveReaderTests.writeTarEntry(out, entry.getKey().substring(0, Math.min(100, entry.getKey().length())), '0', entry.getValue());
+			}
+			out.write(new byte[1024]);
+		}
+
+		LineCountUtils lineCountUtils = new LineCountUtils();
+		lineCountUtils.setCountArchiveEntries(true);
+		lineCountUtils.setBuildEncodingStatistics(true);
+		Map<File, Long> lineCounts = new ConcurrentHashMap<>();
+		lineCountUtils.setFileLineCountSink((file, fileLength, encoding, isEncodingCertain, encodingConfidence, bomLength, lineCount, durationNanos) -> lineCounts.put(file, lineCount));
+		LineCountResult result = lineCountUtils.scanCodeLines(tempDir.resolve("archives"), null);
+		assertEquals(2 * expected, result.getLineCount());
+		assertEquals(2, result.getNbOfArchives());
+		assertEquals(2 * entries.size(), result.getNbOfFilesInSuccess());
+		assertEquals(2 * entries.size(), lineCounts.size());
+		assertEquals(0, result.getNbOfFilesInError());
+		for (String archiveName : List.of("sources.zip", "sources.tar.gz")) {
+			File archive = tempDir.resolve("archives").resolve(archiveName).toFile();
+			for (int i = 0; i != extractedFiles.size(); i += 7) {
+				String entryName = new ArrayList<>(entries.keySet()).get(i);
+				assertEquals(new LineCountUtils().countCodeLines(List.of(extractedFiles.get(i)), null), lineCounts.get(new File(archive.getPath() + "!/" + entryName)), entryName);
+			}
+		}
+		assertEquals(2 * 8, result.getNbOfFilesPerCertainEncoding().get("UTF-16LE"));
+
+		// Same counts when the lines are classified
+		lineCountUtils.setCountLineMetrics(true);
+		LineCountResult metricsResult = lineCountUtils.scanCodeLines(tempDir.resolve("archives"), null);
+		assertEquals(2 * expected, metricsResult.getLineCount());
+		assertEquals(2 * expected, metricsResult.getLineMetrics().getNbOfLines());
+	}
+}
@@ -0,0 +1,173 @@
+package bns.testcarl;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class LineMetricsScannerTests {
+
+	@TempDir
+	Path tempDir;
+
+	File writeFile(String name, byte[] content) throws IOException {
+		return Files.write(tempDir.resolve(name), content).toFile();
+	}
+
+	/**
+	 * @return the metrics of {@code source} encoded in UTF-8, after checking that they are the same
+	 * whichever the index at which the bytes are cut in 2 runs, and when the chars are accepted one by one.
+	 */
+	static LineMetrics scan(String source, CommentSyntax syntax) {
+		byte[] bytes = source.getBytes(StandardCharsets.UTF_8);
+		LineMetrics metrics = null;
+		for (int cut = 0; cut <= bytes.length; ++cut) {
+			LineMetricsScanner scanner = new LineMetricsScanner(syntax);
+			scanner.scanBytes(bytes, 0, cut);
+			scanner.scanBytes(bytes, cut, bytes.length);
+			LineMetrics cutMetrics = scanner.finish();
+			if (metrics != null) {
+				assertEquals(metrics, cutMetrics, "cut at " + cut);
+			}
+			metrics = cutMetrics;
+		}
+		LineMetricsScanner scanner = new LineMetricsScanner(syntax);
+		source.chars().forEach(scanner::accept);
+		assertEquals(metrics, scanner.finish());
+		return metrics;
+	}
+
+	@Test
+	void linesAreBlankCommentOrCode() {
+		String source = "int i;\n"
+				+ "  \t\f\u000B \n"
+				+ "// a\n"
+				+ "  //\n"
+				+ "i++; // b\n"
+				+ "é\n"
+				+ "/ /\n"
+				+ "*/\n";
+		// The empty line following the last LF is blank
+		assertEquals(new LineMetrics(2, 2, 5, 0, 8, 0), scan(source, CommentSyntax.C_LIKE));
+	}
+
+	@Test
+	void markersInsideStringsAreCode() {
+		String source = "s = \"// a /* b\";\n"
+				+ "s = \"\\\" // c\";\n"
+				+ "c = '\"'; // d\n"
+				+ "s = \"open\n"
+				+ "// e\n"
+				+ "s = \"\\\\\"; /* f\n"
+				+ "*/\n";
+		// The string left open by the 4th line ends with it, and the escaped backslash of the 6th
+		// line does not escape the closing quote, so that its block comment ends on the 7th line
+		assertEquals(new LineMetrics(1, 2, 5, 0, 7, 0), scan(source, CommentSyntax.C_LIKE));
+	}
+
+	@Test
+	void blockCommentsSpanLines() {
+		String source = "/* a\n"
+				+ "\n"
+				+ "   b */\n"
+				+ "/*/ c\n"
+				+ "*/ x\n"
+				+ "x /* d */\n"
+				+ "/**/ /* e */\n"
+				+ "/* f */ y /* g\n"
+				+ "*/\n";
+		// The empty 2nd line of the comment is blank, and "/*/" does not end the comment it starts
+		assertEquals(new LineMetrics(2, 5, 3, 0, 9, 0), scan(source, CommentSyntax.C_LIKE));
+	}
+
+	@Test
+	void terminatorsAreCountedByStyle() {
+		assertEquals(new LineMetrics(3, 0, 3, 2, 1, 2), scan("a\r\nb\rc\n\r\r\n", CommentSyntax.NONE));
+		// A CR ending the content is a bare CR
+		assertEquals(new LineMetrics(1, 0, 1, 0, 0, 1), scan("a\r", CommentSyntax.NONE));
+		assertEquals(new LineMetrics(0, 0, 1, 0, 0, 0), scan("a", CommentSyntax.NONE));
+	}
+
+	@Test
+	void everyNonBlankLineIsCodeWithoutCommentSyntax() {
+		assertEquals(new LineMetrics(2, 0, 3, 0, 4, 0), scan("// a\n# b\n/* c */\n\n", CommentSyntax.NONE));
+	}
+
+	@Test
+	void commentsAreThoseOfTheSyntax() {
+		assertEquals(new LineMetrics(1, 2, 2, 0, 4, 0), scan("# a\nx = \"#\" # b\ny = '#'\n  #\n", CommentSyntax.HASH));
+		// Double quotes do not start SQL strings
+		assertEquals(new LineMetrics(1, 1, 1, 0, 2, 0), scan("SELECT \"a -- b\"\n-- c\n", CommentSyntax.SQL));
+		assertEquals(new LineMetrics(0, 2, 2, 0, 3, 0), scan("<a>\n  <!-- b\n c --> \n</a>", CommentSyntax.XML));
+
+		// Block comments end with the delimiter of their start only
+		CommentSyntax syntax = new CommentSyntax(new String[]{"REM"}, new String[][]{{"(*", "*)"}, {"{", "}"}}, "");
+		String source = "(* a *) { b }\n"
+				+ "{ c\n"
+				+ "*) }\n"
+				+ "x (* y\n"
+				+ "*) REM z\n";
+		assertEquals(new LineMetrics(1, 4, 1, 0, 5, 0), scan(source, syntax));
+	}
+
+	@Test
+	void bomIsSkippedWhateverTheEncoding() throws IOException {
+		String source = "\ufeff// a\n\tb; /* c */\n";
+		LineMetrics expected = new LineMetrics(1, 1, 1, 0, 2, 0);
+		for (Charset charset : new Charset[]{StandardCharsets.UTF_8, StandardCharsets.UTF_16LE, StandardCharsets.UTF_16BE, Charset.forName("UTF-32BE")}) {
+			byte[] content = source.getBytes(charset);
+			int bomLength = "\ufeff".getBytes(charset).length;
+			for (int fileReadBufferSize : new int[]{4, 4096}) {
+				assertEquals(expected, LineMetricsScanner.scan(new ByteArrayInputStream(content), content.length, fileReadBufferSize, bomLength, charset, CommentSyntax.C_LIKE),
+						charset + " / " + fileReadBufferSize);
+			}
+		}
+		// Nothing but a BOM
+		assertEquals(LineMetrics.ZERO, LineMetricsScanner.scan(new ByteArrayInputStream(new byte[]{(byte) 0xFE, (byte) 0xFF}), 2, 4096, 2, StandardCharsets.UTF_16BE, CommentSyntax.C_LIKE));
+	}
+
+	@Test
+	void charsOfEncodingsWithAsciiTrailBytesAreDecoded() throws IOException {
+		// The 2nd byte of 表 in Shift_JIS is a backslash, which would escape the closing quote
+		Charset shiftJis = Charset.forName("Shift_JIS");
+		byte[] content = "s = \"表\"; /* a\n*/\n".getBytes(shiftJis);
+		assertEquals(0x5C, content[6]);
+		assertEquals(new LineMetrics(1, 1, 1, 0, 2, 0), LineMetricsScanner.scan(new ByteArrayInputStream(content), content.length, 4096, 0, shiftJis, CommentSyntax.C_LIKE));
+
+		// The NL of EBCDIC ends lines as its LF does
+		Charset ibm037 = Charset.forName("IBM037");
+		content = "x\u0085// b\n".getBytes(ibm037);
+		assertEquals(new LineMetrics(1, 1, 1, 0, 2, 0), LineMetricsScanner.scan(new ByteArrayInputStream(content), content.length, 4096, 0, ibm037, CommentSyntax.C_LIKE));
+	}
+
+	@Test
+	void metricsAreTheSameWhateverTheEncodingAndTheBufferSize() throws IOException {
+		String source = "package a;\r\n"
+				+ "\r\n"
+				+ "// comment\n"
+				+ "int i = 0; // trailing\n"
+				+ "/* block\n"
+				+ "   still */ int j;\r"
+				+ "   \t \n"
+				+ "String s = \"// not a comment /*\";\n"
+				+ "/**/ \n"
+				+ "c = '\\'' + 1; /* c */\n";
+		LineMetrics expected = new LineMetrics(3, 3, 5, 2, 7, 1);
+		for (Charset charset : new Charset[]{StandardCharsets.UTF_8, StandardCharsets.UTF_16LE, Charset.forName("UTF-32BE"), Charset.forName("windows-1252")}) {
+			File file = writeFile("metrics-" + charset.name() + ".java", source.getBytes(charset));
+			// Small buffers so that markers and CR+LF are cut by the ends of the buffers
+			for (int fileReadBufferSize : new int[]{5, 7, 4096}) {
+				assertEquals(expected, LineMetricsScanner.scan(file, fileReadBufferSize, 0, charset, CommentSyntax.forFile(file)), charset + " / " + fileReadBufferSize);
+			}
+		}
+		assertEquals(LineMetrics.ZERO, LineMetricsScanner.scan(writeFile("metrics-empty.java", new byte[0]), 4096, 0, StandardCharsets.UTF_8, CommentSyntax.C_LIKE));
+	}
+}
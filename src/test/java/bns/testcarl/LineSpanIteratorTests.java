@@ -0,0 +1,120 @@
+package bns.testcarl;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LineSpanIteratorTests {
+
+	@TempDir
+	Path tempDir;
+
+	File writeFile(String name, byte[] content) throws IOException {
+		return Files.write(tempDir.resolve(name), content).toFile();
+	}
+
+	@Test
+	void linesAreThoseCountedByCharLookup() throws IOException {
+		Random random = new Random(53);
+		String[] pieces = {"int i = 0;", "é", "日本", "😀", "\r", "\n", "\r\n", " ", "x".repeat(40)};
+		for (int n = 0; n != 300; ++n) {
+			Charset charset = n % 3 == 0 ? StandardCharsets.ISO_8859_1 : n % 3 == 1 ? StandardCharsets.UTF_8 : StandardCharsets.UTF_16LE;
+			byte[] content;
+			int bomLength = 0;
+			if (charset == StandardCharsets.ISO_8859_1) {
+				content = LineCountUtilsTests.randomBytesWithLineBreaks(random, random.nextInt(2000));
+			} else {
+				StringBuilder text = new StringBuilder(charset == StandardCharsets.UTF_16LE ? "\ufeff" : "");
+				for (int i = random.nextInt(200); i != 0; --i) {
+					text.append(pieces[random.nextInt(pieces.length)]);
+				}
+				content = text.toString().getBytes(charset);
+				bomLength = charset == StandardCharsets.UTF_16LE ? 2 : 0;
+			}
+			File file = writeFile("spans" + n + ".txt", content);
+			String decoded = new String(content, bomLength, content.length - bomLength, charset);
+			List<String> expectedLines = decoded.isEmpty() ? List.of() : Arrays.asList(decoded.split("\r\n|\r|\n", -1));
+			assertEquals(LineCountUtils.countLinesWithCharLookup(file, 4096, bomLength, charset), expectedLines.size());
+
+			// Buffers smaller than the lines, so that CR+LF and surrogate pairs are cut by refills
+			int bufferSize = n % 2 == 0 ? 2 + random.nextInt(60) : 4096;
+			List<String> lines = new ArrayList<>();
+			StringBuilder splitLine = new StringBuilder();
+			try (LineSpanIterator iterator = LineSpanIterator.open(file, bomLength, charset, bufferSize, LineSpanIterator.LongLinePolicy.SPLIT)) {
+				while (iterator.nextLine()) {
+					splitLine.append(iterator.buffer(), iterator.lineStart(), iterator.lineLength());
+					assertEquals(iterator.lineLength(), iterator.line().length());
+					if (!iterator.isPartial()) {
+						lines.add(splitLine.toString());
+						splitLine.setLength(0);
+						assertEquals(lines.size(), iterator.lineNumber());
+					}
+				}
+			}
+			assertEquals(expectedLines, lines, "buffer of " + bufferSize + " chars");
+
+			// Same lines, cut to the buffer size
+			List<String> truncatedLines = new ArrayList<>();
+			try (LineSpanIterator iterator = LineSpanIterator.open(file, bomLength, charset, bufferSize, LineSpanIterator.LongLinePolicy.TRUNCATE)) {
+				while (iterator.nextLine()) {
+					truncatedLines.add(iterator.line().toString());
+					// A line filling the buffer (but a surrogate pair) is said truncated, even if nothing follows
+					if (iterator.isTruncated()) {
+						assertTrue(iterator.lineLength() >= bufferSize - 1);
+					} else {
+						assertEquals(expectedLines.get(truncatedLines.size() - 1).length(), iterator.lineLength());
+					}
+				}
+			}
+			assertEquals(expectedLines.size(), truncatedLines.size());
+			for (int i = 0; i != truncatedLines.size(); ++i) {
+				assertTrue(expectedLines.get(i).startsWith(truncatedLines.get(i)));
+			}
+		}
+	}
+
+	@Test
+	void lineLongerThanTheBufferFailsIfAskedSo() throws IOException {
+		File longLineFile = writeFile("long-line.txt", ("short\n" + "y".repeat(100) + "\n").getBytes(StandardCharsets.US_ASCII));
+		try (LineSpanIterator iterator = LineSpanIterator.open(longLineFile, 0, StandardCharsets.US_ASCII, 64, LineSpanIterator.LongLinePolicy.FAIL)) {
+			assertTrue(iterator.nextLine());
+			assertEquals("short", iterator.line().toString());
+			assertThrows(IOException.class, iterator::nextLine);
+		}
+	}
+
+	@Test
+	void nlOfEbcdicEndsTheLines() throws IOException {
+		// The lines are as many as counted from the bytes
+		Charset ibm037 = Charset.forName("IBM037");
+		File ebcdicFile = writeFile("spans.cbl", "       IDENTIFICATION DIVISION.\u0085       PROGRAM-ID. HELLO.\r\n\u0085".getBytes(ibm037));
+		List<String> ebcdicLines = new ArrayList<>();
+		try (LineSpanIterator iterator = LineSpanIterator.open(ebcdicFile, 0, ibm037, 16, LineSpanIterator.LongLinePolicy.TRUNCATE)) {
+			while (iterator.nextLine()) {
+				ebcdicLines.add(iterator.line().toString());
+			}
+		}
+		assertEquals(List.of("       IDENTIFIC", "       PROGRAM-I", "", ""), ebcdicLines);
+		assertEquals(ebcdicLines.size(), LineCountUtils.countLinesWithByteLookup(ebcdicFile, 4096, 0, ibm037));
+	}
+
+	@Test
+	void bufferOfLessThan2CharsIsRejected() throws IOException {
+		File file = writeFile("small-buffer.txt", "a\nb\n".getBytes(StandardCharsets.US_ASCII));
+		assertThrows(IllegalArgumentException.class, () -> LineSpanIterator.open(file, 0, StandardCharsets.US_ASCII, 1, LineSpanIterator.LongLinePolicy.SPLIT));
+	}
+}